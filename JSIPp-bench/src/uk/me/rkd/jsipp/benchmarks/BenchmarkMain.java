@@ -0,0 +1,21 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always attached, so every result includes allocation per operation
+ * (gc.alloc.rate.norm) alongside ops/s. Takes the usual JMH command-line options, e.g. a benchmark name regexp.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] argv) throws RunnerException, CommandLineOptionException {
+		Options opts = new OptionsBuilder().parent(new CommandLineOptions(argv)).addProfiler(GCProfiler.class).build();
+		new Runner(opts).run();
+	}
+}
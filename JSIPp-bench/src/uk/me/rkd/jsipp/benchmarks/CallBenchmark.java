@@ -0,0 +1,57 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.runtime.Call;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+/**
+ * One whole UAS call: create it, hand it a MESSAGE, and run it until it has sent its 200 OK and finished. The socket
+ * manager and timer are stubs, so this measures the per-call work done inside JSIPp.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+
+	private Scenario scenario;
+	private StubSocketManager sm;
+	private StubTimer timer;
+	private ReceivedMessage request;
+	private int callNumber = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		this.scenario = Scenario.fromXMLDocument(Messages.parseXML(Messages.UAS_SCENARIO));
+		this.sm = new StubSocketManager();
+		this.timer = new StubTimer();
+		this.request = new LazyMessageDecoder().decode(ByteBuffer.wrap(Messages.REQUEST.getBytes("UTF-8")));
+	}
+
+	@Benchmark
+	public boolean uasCall() {
+		int n = this.callNumber++;
+		Call call = new Call(n, Integer.toString(n), this.scenario.getName(), this.scenario.phases(), this.sm,
+		        this.timer);
+		call.process_incoming(this.request);
+		call.run(this.timer);
+		return call.hasCompleted();
+	}
+}
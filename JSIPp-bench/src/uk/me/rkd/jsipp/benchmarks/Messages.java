@@ -0,0 +1,74 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Sample messages and scenarios shared by the benchmarks.
+ */
+final class Messages {
+
+	static final String INVITE_TEMPLATE = "\n"
+	        + "      INVITE sip:[service]@[remote_ip]:[remote_port] SIP/2.0\n"
+	        + "      Via: SIP/2.0/[transport] [local_ip]:[local_port];branch=[branch]\n"
+	        + "      From: sipp <sip:sipp@[local_ip]:[local_port]>;tag=[pid]SIPpTag00[call_number]\n"
+	        + "      To: [service] <sip:[service]@[remote_ip]:[remote_port]>\n"
+	        + "      Call-ID: [call_id]\n"
+	        + "      CSeq: 1 INVITE\n"
+	        + "      Contact: sip:sipp@[local_ip]:[local_port]\n"
+	        + "      Max-Forwards: 70\n"
+	        + "      Subject: Performance Test\n"
+	        + "      Content-Type: application/sdp\n"
+	        + "      Content-Length: [len]\n"
+	        + "\n"
+	        + "      v=0\n"
+	        + "      o=user1 53655765 2353687637 IN IP[local_ip_type] [local_ip]\n"
+	        + "      s=-\n"
+	        + "      c=IN IP[media_ip_type] [media_ip]\n"
+	        + "      t=0 0\n"
+	        + "      m=audio [media_port] RTP/AVP 0\n"
+	        + "      a=rtpmap:0 PCMU/8000\n"
+	        + "\n";
+
+	static final String RESPONSE = "SIP/2.0 200 OK\r\n"
+	        + "Via: SIP/2.0/UDP client.atlanta.example.com:5060;branch=z9hG4bK74bf9;received=192.0.2.101\r\n"
+	        + "From: Alice <sip:alice@atlanta.example.com>;tag=9fxced76sl\r\n"
+	        + "To: Bob <sip:bob@biloxi.example.com>;tag=8321234356\r\n"
+	        + "Call-ID: 3848276298220188511@atlanta.example.com\r\n" + "CSeq: 1 INVITE\r\n"
+	        + "Contact: <sip:bob@client.biloxi.example.com;transport=tcp>\r\n" + "Content-Type: application/sdp\r\n"
+	        + "Content-Length: 147\r\n" + "\r\n" + "v=0\r\n"
+	        + "o=bob 2890844527 2890844527 IN IP4 client.biloxi.example.com\r\n" + "s=-\r\n"
+	        + "c=IN IP4 192.0.2.201\r\n" + "t=0 0\r\n" + "m=audio 3456 RTP/AVP 0\r\n" + "a=rtpmap:0 PCMU/8000\r\n";
+
+	static final String REQUEST = "MESSAGE sip:carol@chicago.com SIP/2.0\r\n"
+	        + "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKhjhs8ass877\r\n" + "Max-Forwards: 70\r\n"
+	        + "To: <sip:carol@chicago.com>\r\n" + "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+	        + "Call-ID: a84b4c76e66710\r\n" + "CSeq: 63104 MESSAGE\r\n" + "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+	        + "Content-Length: 0\r\n" + "\r\n";
+
+	static final String UAS_SCENARIO = "<scenario name='bench'>"
+	        + "<recv request='MESSAGE' />"
+	        + "<send><![CDATA[\n"
+	        + "      SIP/2.0 200 OK\n"
+	        + "      [last_Via:]\n"
+	        + "      [last_From:]\n"
+	        + "      [last_To:]\n"
+	        + "      [last_Call-ID:]\n"
+	        + "      [last_CSeq:]\n"
+	        + "      Contact: <sip:[local_ip]:[local_port];transport=[transport]>\n"
+	        + "      Content-Length: 0\n"
+	        + "]]></send>"
+	        + "</scenario>";
+
+	private Messages() {
+	}
+
+	static Document parseXML(String xml) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		return dbf.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+	}
+}
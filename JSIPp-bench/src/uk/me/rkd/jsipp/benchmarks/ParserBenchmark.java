@@ -0,0 +1,109 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+
+import uk.me.rkd.jsipp.compiler.phases.RecvPhase;
+import uk.me.rkd.jsipp.runtime.parsers.DatagramMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.MessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageListener;
+import uk.me.rkd.jsipp.runtime.parsers.StreamMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.StrictMessageDecoder;
+
+/**
+ * The receive side: framing and parsing inbound messages, and matching them against the expected phase. Run with
+ * both decoders to compare the lazy parser against jain-sip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	static class SinkListener implements SIPpMessageListener {
+		Blackhole bh;
+
+		@Override
+		public void handleException(ParseException ex, String messageText) {
+			throw new IllegalStateException(ex);
+		}
+
+		@Override
+		public void processMessage(ReceivedMessage msg) throws Exception {
+			bh.consume(msg);
+		}
+
+		@Override
+		public void sendSingleCLRF() throws Exception {
+		}
+	}
+
+	@Param({ "lazy", "strict" })
+	public String decoder;
+
+	private SinkListener listener;
+	private MessageDecoder messageDecoder;
+	private StreamMessageParser streamParser;
+	private DatagramMessageParser datagramParser;
+	private byte[] response;
+	private RecvPhase recvPhase;
+	private ReceivedMessage parsedResponse;
+
+	@Setup
+	public void setup(Blackhole bh) throws Exception {
+		this.listener = new SinkListener();
+		this.listener.bh = bh;
+		this.messageDecoder = "strict".equals(this.decoder) ? new StrictMessageDecoder() : new LazyMessageDecoder();
+		this.streamParser = new StreamMessageParser(this.listener, this.messageDecoder, 4096);
+		this.datagramParser = new DatagramMessageParser(this.listener, this.messageDecoder);
+		this.response = Messages.RESPONSE.getBytes("UTF-8");
+
+		Document doc = Messages.parseXML("<recv response='200' />");
+		this.recvPhase = new RecvPhase(doc.getDocumentElement(), 0);
+		this.parsedResponse = this.messageDecoder.decode(ByteBuffer.wrap(this.response));
+	}
+
+	@Benchmark
+	public void streamAddBytes() throws Exception {
+		this.streamParser.addBytes(this.response);
+	}
+
+	@Benchmark
+	public void datagramAddBytes() throws Exception {
+		this.datagramParser.addBytes(this.response);
+	}
+
+	@Benchmark
+	public ReceivedMessage decode() throws Exception {
+		return this.messageDecoder.decode(ByteBuffer.wrap(this.response));
+	}
+
+	@Benchmark
+	public String lastHeader() {
+		return this.parsedResponse.getHeaderAsFormattedString("From");
+	}
+
+	@Benchmark
+	public boolean recvExpected() {
+		return this.recvPhase.expected(this.parsedResponse);
+	}
+}
@@ -0,0 +1,61 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.me.rkd.jsipp.runtime.RTPHeader;
+import uk.me.rkd.jsipp.runtime.RTPPacket;
+
+/**
+ * Decoding one 20ms G.711 RTP packet, as the RTP sink does for every packet received: decode() copies it into an
+ * RTPPacket, header() reads what the sink needs in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTPBenchmark {
+
+	private ByteBuffer packet;
+	private final RTPHeader header = new RTPHeader();
+
+	@Setup
+	public void setup() {
+		this.packet = ByteBuffer.allocate(172);
+		this.packet.put((byte) 0x80);
+		this.packet.put((byte) 0x00);
+		this.packet.putShort((short) 1234);
+		this.packet.putInt(160000);
+		this.packet.putInt(0x12345678);
+		while (this.packet.hasRemaining()) {
+			this.packet.put((byte) 0xFF);
+		}
+		this.packet.flip();
+	}
+
+	@Benchmark
+	public RTPPacket decode() {
+		this.packet.rewind();
+		return RTPPacket.decode(this.packet);
+	}
+
+	@Benchmark
+	public long header() {
+		this.packet.rewind();
+		this.header.wrap(this.packet);
+		return this.header.sequenceNumber() + this.header.timestamp();
+	}
+}
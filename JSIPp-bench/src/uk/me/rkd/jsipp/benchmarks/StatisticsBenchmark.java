@@ -0,0 +1,52 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.me.rkd.jsipp.runtime.Statistics;
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+/**
+ * Publishing one per-phase statistics event, as Call does for every message sent or received: record() is the binary
+ * path calls use, report() the text one left for occasional events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatisticsBenchmark {
+
+	private int callNumber = 0;
+	private final int scenario = Statistics.INSTANCE.scenarioId("bench");
+
+	@Setup(Level.Trial)
+	public void startPublisher() {
+		Statistics.INSTANCE.start();
+	}
+
+	@Benchmark
+	public void record() {
+		Statistics.INSTANCE.record(StatType.PHASE_SUCCESS, this.scenario, this.callNumber++, 1, 200);
+	}
+
+	@Benchmark
+	public void report() {
+		String timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
+		int call = this.callNumber++;
+		Statistics.INSTANCE.report(StatType.PHASE_SUCCESS, timestamp, "bench", Integer.toString(call),
+		                           Integer.toString(call), "1", "200");
+	}
+}
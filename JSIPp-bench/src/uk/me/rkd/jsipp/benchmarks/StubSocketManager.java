@@ -0,0 +1,54 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import uk.me.rkd.jsipp.runtime.Call;
+import uk.me.rkd.jsipp.runtime.network.OutboundBuffer;
+import uk.me.rkd.jsipp.runtime.network.SocketManager;
+
+/**
+ * A SocketManager with no sockets, which discards everything sent through it.
+ */
+class StubSocketManager extends SocketManager {
+	private static final InetSocketAddress LOCAL = new InetSocketAddress("192.0.2.2", 5061);
+	private static final InetSocketAddress REMOTE = new InetSocketAddress("192.0.2.1", 5060);
+
+	long bytesSent = 0;
+
+	@Override
+	public void add(Call call) {
+	}
+
+	@Override
+	public void remove(Call call) {
+	}
+
+	@Override
+	public void send(Integer callNumber, OutboundBuffer message) {
+		this.bytesSent += message.remaining();
+	}
+
+	@Override
+	public SocketAddress getaddr(Integer callNumber) {
+		return LOCAL;
+	}
+
+	@Override
+	public SocketAddress getdest(Integer callNumber) {
+		return REMOTE;
+	}
+
+	@Override
+	public void setListener(SocketAddress bindAddr) {
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void stop() {
+	}
+}
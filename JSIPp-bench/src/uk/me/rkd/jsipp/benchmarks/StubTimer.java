@@ -0,0 +1,50 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Timer that never fires, so the benchmark drives calls itself. Every newTimeout returns the same handle.
+ */
+class StubTimer implements Timer, Timeout {
+
+	@Override
+	public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+		return this;
+	}
+
+	@Override
+	public Set<Timeout> stop() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public Timer timer() {
+		return this;
+	}
+
+	@Override
+	public TimerTask task() {
+		return null;
+	}
+
+	@Override
+	public boolean isExpired() {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean cancel() {
+		return false;
+	}
+}
@@ -0,0 +1,76 @@
+package uk.me.rkd.jsipp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.me.rkd.jsipp.compiler.MessageTemplate;
+import uk.me.rkd.jsipp.compiler.SimpleVariableTable;
+import uk.me.rkd.jsipp.compiler.VariableTable;
+import uk.me.rkd.jsipp.compiler.phases.SendPhase;
+import uk.me.rkd.jsipp.runtime.KeywordReplacer;
+import uk.me.rkd.jsipp.runtime.network.OutboundBuffer;
+
+/**
+ * Building outgoing messages: whitespace stripping at load time, and keyword replacement at send time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+
+	private String message;
+	private MessageTemplate template;
+	private VariableTable variables;
+
+	@Setup
+	public void setup() {
+		this.message = SendPhase.stripWhitespace(Messages.INVITE_TEMPLATE);
+		this.template = MessageTemplate.compile(this.message);
+		this.variables = new SimpleVariableTable();
+		this.variables.putKeyword("service", "sipp");
+		this.variables.putKeyword("remote_ip", "192.0.2.1");
+		this.variables.putKeyword("remote_port", "5060");
+		this.variables.putKeyword("local_ip", "192.0.2.2");
+		this.variables.putKeyword("local_port", "5061");
+		this.variables.putKeyword("local_ip_type", "4");
+		this.variables.putKeyword("media_ip", "192.0.2.2");
+		this.variables.putKeyword("media_ip_type", "4");
+		this.variables.putKeyword("media_port", "6000");
+		this.variables.putKeyword("transport", "UDP");
+		this.variables.putKeyword("branch", "z9hG4bK-1234");
+		this.variables.putKeyword("pid", "1234");
+		this.variables.putKeyword("call_number", "42");
+		this.variables.putKeyword("call_id", "42");
+		this.variables.putKeyword("len", "129");
+	}
+
+	@Benchmark
+	public String stripWhitespace() {
+		return SendPhase.stripWhitespace(Messages.INVITE_TEMPLATE);
+	}
+
+	@Benchmark
+	public String replaceKeywords() {
+		return KeywordReplacer.replaceKeywords(this.message, this.variables, false);
+	}
+
+	@Benchmark
+	public OutboundBuffer renderTemplate() {
+		OutboundBuffer out = OutboundBuffer.get();
+		this.template.render(this.variables, out);
+		return out;
+	}
+}
@@ -85,6 +85,26 @@ public enum Configuration {
 	private long rateIncreasePeriod;
 	private double rateMax;
     private boolean rtpSink;
+	private boolean strictParser;
+	private int selectorThreads;
+	private String ioBackend;
+	private long timerResolution;
+	private int timerThreads;
+	private long watchdogInterval;
+	private long watchdogThreshold;
+	private String arrivals;
+	private String arrivalCatchUp;
+	private int maxConcurrentCalls;
+	private long maxTotalCalls;
+	private boolean closedLoop;
+	private boolean traceStat;
+	private String statFile;
+	private long statPeriod;
+	private boolean zmqDisabled;
+	private int minRtpPort;
+	private int maxRtpPort;
+	private String rtpStream;
+	private boolean rtcpRr;
 
 	public static Configuration createFromOptions(CommandLine cmd) {
 		String host = null;
@@ -111,6 +131,27 @@ public enum Configuration {
 		INSTANCE.listenPort = Integer.parseInt(cmd.getOptionValue("p", "5060"));
 
 		INSTANCE.rtpSink = cmd.hasOption("rtp_sink");
+		INSTANCE.strictParser = cmd.hasOption("strict_parser");
+		INSTANCE.selectorThreads = Integer.parseInt(cmd.getOptionValue("selector_threads", "1"));
+		INSTANCE.ioBackend = cmd.getOptionValue("io", "nio");
+		INSTANCE.timerResolution = Long.parseLong(cmd.getOptionValue("timer_resol", "10"));
+		INSTANCE.watchdogInterval = Long.parseLong(cmd.getOptionValue("watchdog_interval", "400"));
+		INSTANCE.watchdogThreshold = Long.parseLong(cmd.getOptionValue("watchdog_threshold", "500"));
+		INSTANCE.arrivals = cmd.getOptionValue("arrivals", "constant");
+		INSTANCE.arrivalCatchUp = cmd.getOptionValue("arrival_catchup", "burst");
+		INSTANCE.maxConcurrentCalls = Integer.parseInt(cmd.getOptionValue("l", "0"));
+		INSTANCE.maxTotalCalls = Long.parseLong(cmd.getOptionValue("m", "0"));
+		INSTANCE.closedLoop = cmd.hasOption("closed_loop");
+		INSTANCE.traceStat = cmd.hasOption("trace_stat");
+		INSTANCE.statFile = cmd.getOptionValue("stf");
+		INSTANCE.statPeriod = Long.parseLong(cmd.getOptionValue("fd", "60"));
+		INSTANCE.zmqDisabled = cmd.hasOption("no_zmq");
+		INSTANCE.minRtpPort = Integer.parseInt(cmd.getOptionValue("min_rtp_port", "0"));
+		INSTANCE.maxRtpPort = Integer.parseInt(cmd.getOptionValue("max_rtp_port", "0"));
+		INSTANCE.rtpStream = cmd.getOptionValue("rtp_stream");
+		INSTANCE.rtcpRr = cmd.hasOption("rtcp_rr");
+		INSTANCE.timerThreads = Integer.parseInt(cmd.getOptionValue("timer_threads",
+		        Integer.toString(Runtime.getRuntime().availableProcessors())));
 
 		return INSTANCE;
 	}
@@ -119,10 +160,151 @@ public enum Configuration {
         return rtpSink;
     }
 
+	/**
+	 * @return whether incoming messages should be fully parsed by jain-sip rather than lazily indexed
+	 */
+	public boolean isStrictParser() {
+		return strictParser;
+	}
+
+	/**
+	 * @return the number of threads reading from the network, each with its own selector
+	 */
+	public int getSelectorThreads() {
+		return Math.max(1, selectorThreads);
+	}
+
+	/**
+	 * @return "nio" for the built-in selector loop, or "netty"
+	 */
+	public String getIoBackend() {
+		return ioBackend;
+	}
+
+	/**
+	 * @return the tick of the timer wheels, in milliseconds
+	 */
+	public long getTimerResolution() {
+		return Math.max(1, timerResolution);
+	}
+
+	/**
+	 * @return the number of threads running calls, each with its own timer wheel
+	 */
+	public int getTimerThreads() {
+		return Math.max(1, timerThreads);
+	}
+
+	/**
+	 * @return how often the watchdog checks that timers fire on time, in milliseconds, or 0 if it is disabled
+	 */
+	public long getWatchdogInterval() {
+		return Math.max(0, watchdogInterval);
+	}
+
+	/**
+	 * @return how late timers or network threads may run, in milliseconds, before the generator counts as overloaded
+	 */
+	public long getWatchdogThreshold() {
+		return watchdogThreshold;
+	}
+
+	/**
+	 * @return how new calls are spaced: "constant", "poisson", "onoff:ON_MS,OFF_MS" or "replay:FILE"
+	 */
+	public String getArrivals() {
+		return arrivals;
+	}
+
+	/**
+	 * @return what to do with calls that are overdue because JSIPp fell behind: "burst", "skip" or "limited"
+	 */
+	public String getArrivalCatchUp() {
+		return arrivalCatchUp;
+	}
+
+	/**
+	 * @return the most calls that may be in progress at once, or 0 for no limit
+	 */
+	public int getMaxConcurrentCalls() {
+		return Math.max(0, maxConcurrentCalls);
+	}
+
+	/**
+	 * @return the most calls to start before stopping, or 0 for no limit
+	 */
+	public long getMaxTotalCalls() {
+		return Math.max(0, maxTotalCalls);
+	}
+
+	/**
+	 * @return whether to keep the -l limit's worth of calls in progress, instead of starting them at a rate
+	 */
+	public boolean isClosedLoop() {
+		return closedLoop;
+	}
+
+	/**
+	 * @return whether to write a row of statistics to a file every getStatPeriod() seconds
+	 */
+	public boolean isTraceStat() {
+		return traceStat;
+	}
+
+	/**
+	 * @return the file -trace_stat writes to, or null for the default
+	 */
+	public String getStatFile() {
+		return statFile;
+	}
+
+	/**
+	 * @return how often -trace_stat writes a row, in seconds
+	 */
+	public long getStatPeriod() {
+		return statPeriod;
+	}
+
+	/**
+	 * @return whether to leave out the ZeroMQ statistics publisher and control socket
+	 */
+	public boolean isZmqDisabled() {
+		return zmqDisabled;
+	}
+
+	/**
+	 * @return the lowest port -rtp_sink gives calls, or 0 to open a new socket on an ephemeral port for each call
+	 */
+	public int getMinRtpPort() {
+		return minRtpPort;
+	}
+
+	/**
+	 * @return the highest port -rtp_sink gives calls, or 0 to open a new socket on an ephemeral port for each call
+	 */
+	public int getMaxRtpPort() {
+		return maxRtpPort;
+	}
+
+	/**
+	 * @return the audio file each call plays to the address in the SDP it receives, optionally followed by a comma and
+	 *         its payload type, or null if calls don't send RTP
+	 */
+	public String getRtpStream() {
+		return rtpStream;
+	}
+
+	/**
+	 * @return whether -rtp_sink sends RTCP receiver reports back to where the RTP comes from
+	 */
+	public boolean isRtcpRr() {
+		return rtcpRr;
+	}
+
     public static Options createOptions() {
 		Options opts = new Options();
 		Option help = new Option("h", "display help text");
-		Option scenarioFile = OptionBuilder.withArgName("file").hasArg().withDescription("The XML file defining the SIPp scenario").create("sf");
+		Option scenarioFile = OptionBuilder.withArgName("files").hasArg().withDescription("The XML file defining the SIPp scenario, or several separated by commas, each optionally followed by @WEIGHT to set its share of the calls (default 1), such as register.xml@10,invite.xml@90").create("sf");
 		Option rate = OptionBuilder.withArgName("rate").hasArg().withDescription("The number of new calls to be created per second (default 1)").create("r");
 		Option transport = OptionBuilder.withArgName("transport").hasArg().withDescription("tn: one TCP socket per call\nun: one UDP socket per call\nt1: all calls multiplexed on one TCP socket\nu1: all calls multiplexed on one UDP socket").create("t");
 		Option listen_ip = OptionBuilder.withArgName("listen_ip").hasArg().withDescription("For UAS mode, the IP address to listen on").create("i");
@@ -131,6 +313,26 @@ public enum Configuration {
 		Option rate_increase_period = OptionBuilder.withArgName("rate_increase_period").hasArg().withDescription("If rate should ramp up periodically, specify the number of seconds between each step up").create("rate_increase_period");
 		Option rate_max = OptionBuilder.withArgName("rate_max").hasArg().withDescription("If rate should ramp up periodically, specify the maximum number of calls/second").create("rate_max");
         Option rtp_sink = OptionBuilder.withArgName("rtp_sink").withDescription("Open a socket to receive RTP for each call, and calculate jitter/packet loss stats").create("rtp_sink");
+		Option selector_threads = OptionBuilder.withArgName("threads").hasArg().withDescription("The number of threads reading SIP from the network (default 1)").create("selector_threads");
+		Option io = OptionBuilder.withArgName("backend").hasArg().withDescription("nio: the built-in selector loop (default)\nnetty: Netty, using native epoll where available").create("io");
+		Option timer_resol = OptionBuilder.withArgName("ms").hasArg().withDescription("The timer tick in milliseconds, down to 1 (default 10). Timeouts and pauses may fire up to this much late").create("timer_resol");
+		Option timer_threads = OptionBuilder.withArgName("threads").hasArg().withDescription("The number of threads running calls (default one per core)").create("timer_threads");
+		Option watchdog_interval = OptionBuilder.withArgName("ms").hasArg().withDescription("How often the watchdog checks that JSIPp's own threads are running on time (default 400, 0 to disable)").create("watchdog_interval");
+		Option watchdog_threshold = OptionBuilder.withArgName("ms").hasArg().withDescription("How late JSIPp's threads may run before a 'generator overloaded' event is published (default 500)").create("watchdog_threshold");
+		Option arrivals = OptionBuilder.withArgName("process").hasArg().withDescription("constant: calls evenly spaced at the rate (default)\npoisson: randomly spaced calls averaging the rate\nonoff:ON_MS,OFF_MS: bursts of calls separated by silences, averaging the rate\nreplay:FILE: calls started at the times in FILE, in seconds, one per line").create("arrivals");
+		Option arrival_catchup = OptionBuilder.withArgName("policy").hasArg().withDescription("If JSIPp falls behind starting calls:\nburst: start all the overdue calls at once (default)\nskip: drop calls more than 10ms overdue\nlimited: catch up at no more than twice the rate").create("arrival_catchup");
+		Option limit = OptionBuilder.withArgName("calls").hasArg().withDescription("The most calls in progress at once; new calls wait until one ends (default no limit)").create("l");
+		Option max_calls = OptionBuilder.withArgName("calls").hasArg().withDescription("Stop starting calls after this many (default no limit)").create("m");
+		Option closed_loop = OptionBuilder.withArgName("closed_loop").withDescription("Ignore the rate and start a new call whenever one ends, keeping -l calls in progress").create("closed_loop");
+		Option trace_stat = OptionBuilder.withArgName("trace_stat").withDescription("Write a row of statistics to a file every -fd seconds").create("trace_stat");
+		Option stat_file = OptionBuilder.withArgName("file").hasArg().withDescription("The file -trace_stat writes to (default SCENARIO_PID_.csv)").create("stf");
+		Option stat_period = OptionBuilder.withArgName("seconds").hasArg().withDescription("How often -trace_stat writes a row (default 60)").create("fd");
+		Option no_zmq = OptionBuilder.withArgName("no_zmq").withDescription("Don't publish statistics over ZeroMQ or listen for rate changes, such as when -trace_stat is enough").create("no_zmq");
+		Option min_rtp_port = OptionBuilder.withArgName("port").hasArg().withDescription("With -rtp_sink, give calls ports from this one up to -max_rtp_port, keeping their sockets open for reuse (default a new ephemeral port per call)").create("min_rtp_port");
+		Option max_rtp_port = OptionBuilder.withArgName("port").hasArg().withDescription("The highest port -rtp_sink gives calls, with -min_rtp_port").create("max_rtp_port");
+		Option rtp_stream = OptionBuilder.withArgName("file[,pt]").hasArg().withDescription("Play this audio file on a loop to the address in the SDP each call receives, as RTP payload type 0 (PCMU, default), 8 (PCMA) or 18 (G729). The file is raw payload, or a WAV file").create("rtp_stream");
+		Option rtcp_rr = OptionBuilder.withDescription("With -rtp_sink, send an RTCP receiver report every 5 seconds to where each call's RTP comes from, on the same port").create("rtcp_rr");
+		Option strict_parser = OptionBuilder.withArgName("strict_parser").withDescription("Fully parse and validate every incoming message with the JAIN SIP parser (slower)").create("strict_parser");
 
 		opts.addOption(help);
 		opts.addOption(scenarioFile);
@@ -138,12 +340,32 @@ public enum Configuration {
 		opts.addOption(rate_increase);
 		opts.addOption(rate_increase_period);
 		opts.addOption(rate_max);
+		opts.addOption(arrivals);
+		opts.addOption(arrival_catchup);
+		opts.addOption(limit);
+		opts.addOption(max_calls);
+		opts.addOption(closed_loop);
+		opts.addOption(trace_stat);
+		opts.addOption(stat_file);
+		opts.addOption(stat_period);
+		opts.addOption(no_zmq);
 
 		opts.addOption(transport);
+		opts.addOption(io);
 		opts.addOption(listen_ip);
 		opts.addOption(listen_port);
 		
 		opts.addOption(rtp_sink);
+		opts.addOption(min_rtp_port);
+		opts.addOption(max_rtp_port);
+		opts.addOption(rtp_stream);
+		opts.addOption(rtcp_rr);
+		opts.addOption(strict_parser);
+		opts.addOption(selector_threads);
+		opts.addOption(timer_resol);
+		opts.addOption(timer_threads);
+		opts.addOption(watchdog_interval);
+		opts.addOption(watchdog_threshold);
 		return opts;
 	}
 
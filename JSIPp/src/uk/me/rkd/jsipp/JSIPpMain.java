@@ -1,6 +1,8 @@
 package uk.me.rkd.jsipp;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.util.UUID;
 
@@ -13,13 +15,22 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.ParseException;
 import org.xml.sax.SAXException;
 
-import uk.me.rkd.jsipp.compiler.Scenario;
 import uk.me.rkd.jsipp.compiler.SimpleVariableTable;
 import uk.me.rkd.jsipp.compiler.VariableTable;
+import uk.me.rkd.jsipp.runtime.Arrivals;
 import uk.me.rkd.jsipp.runtime.CallOpeningTask;
+import uk.me.rkd.jsipp.runtime.CallStore;
+import uk.me.rkd.jsipp.runtime.Latencies;
+import uk.me.rkd.jsipp.runtime.RTPStats;
 import uk.me.rkd.jsipp.runtime.RateIncreaseThread;
+import uk.me.rkd.jsipp.runtime.ScenarioMix;
 import uk.me.rkd.jsipp.runtime.Scheduler;
+import uk.me.rkd.jsipp.runtime.Statistics;
+import uk.me.rkd.jsipp.runtime.StatsFile;
+import uk.me.rkd.jsipp.runtime.Watchdog;
+import uk.me.rkd.jsipp.runtime.network.NettySocketManager;
 import uk.me.rkd.jsipp.runtime.network.RTPSocketManager;
+import uk.me.rkd.jsipp.runtime.network.RTPStreamer;
 import uk.me.rkd.jsipp.runtime.network.SocketManager;
 import uk.me.rkd.jsipp.runtime.network.TCPMultiplexingSocketManager;
 import uk.me.rkd.jsipp.runtime.network.UDPMultiplexingSocketManager;
@@ -30,6 +41,17 @@ public class JSIPpMain {
 		// TODO Auto-generated constructor stub
 	}
 
+	private static SocketManager createSocketManager(Configuration cfg, boolean udp, int numSockets)
+	        throws IOException {
+		if (cfg.getIoBackend().equals("netty")) {
+			return new NettySocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), udp, numSockets);
+		} else if (udp) {
+			return new UDPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), numSockets);
+		} else {
+			return new TCPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), numSockets);
+		}
+	}
+
 	public static void main(String argv[]) throws ParserConfigurationException, SAXException, IOException,
 	        InterruptedException, ParseException {
 		CommandLineParser parser = new BasicParser();
@@ -39,42 +61,81 @@ public class JSIPpMain {
 			new HelpFormatter().printHelp("sipp.jar [OPTIONS] remotehost[:port]", Configuration.createOptions());
 			return;
 		}
-		Scenario scenario = Scenario.fromXMLFilename(cfg.getScenarioFile());
+		ScenarioMix scenario = ScenarioMix.fromSpec(cfg.getScenarioFile());
+		Statistics.INSTANCE.scenarioDesc = scenario.forZMQ();
+		boolean playsAudio = false;
+		for (int i = 0; i < scenario.size(); i++) {
+			Latencies.INSTANCE.register(scenario.get(i));
+			playsAudio |= scenario.get(i).playsAudio();
+		}
 		if (scenario.isUac() && (cmd.getArgList().size() != 1)) {
 			new HelpFormatter().printHelp("sipp.jar [OPTIONS] remotehost[:port]", Configuration.createOptions());
 			return;
 		}
-		Scheduler sched = new Scheduler(50);
+		if (cfg.isClosedLoop() && cfg.getMaxConcurrentCalls() == 0) {
+			System.err.println("-closed_loop needs -l to say how many calls to keep in progress");
+			return;
+		}
+		Scheduler sched = new Scheduler(cfg.getTimerResolution(), cfg.getTimerThreads());
 		VariableTable globalVariables = SimpleVariableTable.global();
 		globalVariables.putKeyword("service", "sipp");
 		globalVariables.putKeyword("pid", UUID.randomUUID().toString());
 		SocketManager sm;
+		if (cfg.getMinRtpPort() > 0 || cfg.getMaxRtpPort() > 0) {
+			RTPSocketManager.INSTANCE.setPortRange(cfg.getMinRtpPort(), cfg.getMaxRtpPort());
+		}
+		RTPSocketManager.INSTANCE.setReceiverReports(cfg.isRtcpRr());
 		RTPSocketManager.INSTANCE.start();
+		if (cfg.getRtpStream() != null) {
+			RTPStreamer.INSTANCE.setAudio(RTPStreamer.Audio.fromSpec(cfg.getRtpStream()));
+		}
+		if (cfg.getRtpStream() != null || playsAudio) {
+			RTPStreamer.INSTANCE.start();
+		}
 
 		if (scenario.isUas()) {
-			sm = new TCPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), 0);
+			boolean udp = cfg.getTransport().startsWith("u");
+			sm = createSocketManager(cfg, udp, 0);
+			globalVariables.putKeyword("transport", udp ? "UDP" : "TCP");
 			InetSocketAddress bindAddr = new InetSocketAddress(cfg.getListenIP(), cfg.getListenPort());
 			sm.setListener(bindAddr);
 		} else {
-			if (cfg.getTransport().equals("un")) {
-				sm = new UDPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), 512);
-				globalVariables.putKeyword("transport", "UDP");
-			} else if (cfg.getTransport().equals("tn")) {
-				sm = new TCPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), 512);
+			if (cfg.getTransport().equals("tn")) {
+				sm = createSocketManager(cfg, false, 512);
 				globalVariables.putKeyword("transport", "TCP");
 			} else if (cfg.getTransport().equals("t1")) {
-				sm = new TCPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), 1);
+				sm = createSocketManager(cfg, false, 1);
 				globalVariables.putKeyword("transport", "TCP");
 			} else if (cfg.getTransport().equals("u1")) {
-				sm = new UDPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), 1);
+				sm = createSocketManager(cfg, true, 1);
 				globalVariables.putKeyword("transport", "UDP");
 			} else {
-				sm = new UDPMultiplexingSocketManager(cfg.getRemoteHost(), cfg.getRemotePort(), 512);
+				sm = createSocketManager(cfg, true, 512);
 				globalVariables.putKeyword("transport", "UDP");
 			}
 		}
 
 		CallOpeningTask opentask = CallOpeningTask.getInstance(scenario, sm, cfg.getRate(), sched.getTimer());
+		opentask.setArrivals(Arrivals.fromSpec(cfg.getArrivals(), cfg.getRate()));
+		opentask.setCatchUp(CallOpeningTask.CatchUp.fromString(cfg.getArrivalCatchUp()));
+		opentask.setLimits(cfg.getMaxConcurrentCalls(), cfg.getMaxTotalCalls(), cfg.isClosedLoop());
+		if (cfg.getWatchdogInterval() > 0) {
+			Watchdog.INSTANCE.start(sched, cfg.getWatchdogInterval(), cfg.getWatchdogThreshold());
+		}
+		if (!cfg.isZmqDisabled()) {
+			Statistics.INSTANCE.start();
+			Latencies.INSTANCE.start(sched);
+			RTPStats.INSTANCE.start(sched);
+		}
+		StatsFile statsFile = null;
+		if (cfg.isTraceStat()) {
+			String filename = cfg.getStatFile();
+			if (filename == null) {
+				filename = defaultStatFile(cfg.getScenarioFile());
+			}
+			statsFile = new StatsFile(filename, cfg.getStatPeriod());
+			statsFile.start();
+		}
 		sm.start();
 
 		if (cfg.getRateIncrease() > 0) {
@@ -98,7 +159,33 @@ public class JSIPpMain {
 		// Wait for a second so all the calls finish
 		Thread.sleep(1000);
 
+		Watchdog.INSTANCE.stop();
+		Latencies.INSTANCE.stop();
+		RTPStats.INSTANCE.stop();
+		if (statsFile != null) {
+			statsFile.finish();
+		}
+		RTPStreamer.INSTANCE.stop();
 		sm.stop();
 		sched.stop();
+		System.out.println("Peak of " + CallStore.INSTANCE.peak() + " concurrent calls, using "
+		        + CallStore.bytesPerCall() + " bytes of call state each (" + CallStore.INSTANCE.capacityBytes()
+		        + " bytes reserved)");
+		Latencies.INSTANCE.printSummary(System.out);
+		RTPStats.INSTANCE.printSummary(System.out);
+		if (cfg.getRtpStream() != null || playsAudio) {
+			System.out.println("Sent " + RTPStreamer.INSTANCE.packetsSent() + " RTP packets ("
+			        + RTPStreamer.INSTANCE.packetsDropped() + " dropped)");
+		}
+	}
+
+	/**
+	 * @return the file name SIPp would use for -trace_stat: the first scenario's, without .xml, then the process ID
+	 */
+	private static String defaultStatFile(String scenarioSpec) {
+		String first = scenarioSpec.split(",")[0].split("@")[0];
+		String base = new File(first).getName().replaceFirst("\\.xml$", "");
+		String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		return base + "_" + pid + "_.csv";
 	}
 }
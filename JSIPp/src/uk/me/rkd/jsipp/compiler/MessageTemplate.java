@@ -0,0 +1,213 @@
+package uk.me.rkd.jsipp.compiler;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import uk.me.rkd.jsipp.runtime.network.OutboundBuffer;
+import uk.me.rkd.jsipp.runtime.network.SharedSegment;
+
+/**
+ * A message from a <send> phase, split at scenario load time into literal and keyword segments.
+ *
+ * Rendering a template resolves each keyword once, encodes the message straight to bytes and works out [len] from the
+ * sizes of the body segments, so the message text is never rescanned at send time. Literal segments live in shared
+ * direct buffers and are written out with gathering writes rather than copied.
+ */
+public class MessageTemplate {
+	private static final Pattern keywordPattern = Pattern.compile("\\[(.+?)(\\+(\\d+))?:?\\]");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CRLF = "\r\n";
+	private static final String HEADER_END = "\r\n\r\n";
+	private static final String DROPPED = new String("");
+
+	static final int LITERAL = 0;
+	static final int KEYWORD = 1;
+	static final int LAST_HEADER = 2;
+	static final int LENGTH = 3;
+
+	static class Segment {
+		final int type;
+		final SharedSegment shared;
+		final String keyword;
+		final int addend;
+		final boolean inBody;
+		final String text;
+		// For [last_*] keywords, the index of the segment holding the CRLF that ends this line
+		int lineEnd;
+
+		Segment(int type, String text, String keyword, int addend, boolean inBody) {
+			this.type = type;
+			this.text = text;
+			this.shared = (text != null) ? SharedSegment.of(text.getBytes(UTF8)) : null;
+			this.keyword = keyword;
+			this.addend = addend;
+			this.inBody = inBody;
+		}
+	}
+
+	private final String text;
+	private final Segment[] segments;
+	private final boolean usesLastHeaders;
+
+	private MessageTemplate(String text, List<Segment> segments) {
+		this.text = text;
+		this.segments = segments.toArray(new Segment[segments.size()]);
+		boolean last = false;
+		for (Segment s : this.segments) {
+			last |= (s.type == LAST_HEADER);
+		}
+		this.usesLastHeaders = last;
+	}
+
+	/**
+	 * @param text
+	 *            a SIP message containing [keyword] blocks, already stripped of formatting whitespace
+	 * @return the compiled template
+	 */
+	public static MessageTemplate compile(String text) {
+		List<Segment> segments = new ArrayList<Segment>();
+		int bodyOffset = text.indexOf(HEADER_END);
+		bodyOffset = (bodyOffset == -1) ? text.length() : bodyOffset + HEADER_END.length();
+
+		Matcher m = keywordPattern.matcher(text);
+		int position = 0;
+		while (m.find(position)) {
+			addLiteral(segments, text, position, m.start(), bodyOffset);
+			String keyword = m.group(1);
+			int addend = (m.group(3) != null) ? Integer.parseInt(m.group(3)) : 0;
+			boolean inBody = m.start() >= bodyOffset;
+			if (keyword.equals("len")) {
+				segments.add(new Segment(LENGTH, null, keyword, addend, inBody));
+			} else if (keyword.startsWith("last_")) {
+				segments.add(new Segment(LAST_HEADER, m.group(0), keyword, addend, inBody));
+			} else {
+				segments.add(new Segment(KEYWORD, m.group(0), keyword, addend, inBody));
+			}
+			position = m.end();
+		}
+		addLiteral(segments, text, position, text.length(), bodyOffset);
+
+		// A missing [last_*] header takes the rest of its line with it, so find where each line ends
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i).type == LAST_HEADER) {
+				int end = i + 1;
+				while (end < segments.size()
+				        && !(segments.get(end).type == LITERAL && startsWithCRLF(segments.get(end)))) {
+					end++;
+				}
+				segments.get(i).lineEnd = end;
+			}
+		}
+		return new MessageTemplate(text, segments);
+	}
+
+	private static boolean startsWithCRLF(Segment s) {
+		return s.text.startsWith(CRLF);
+	}
+
+	/**
+	 * Adds the literal text between start and end, split so that no segment straddles the start of the body and so
+	 * that the CRLF ending the first line begins a segment of its own.
+	 */
+	private static void addLiteral(List<Segment> segments, String text, int start, int end, int bodyOffset) {
+		if (start < bodyOffset && end > bodyOffset) {
+			addLiteral(segments, text, start, bodyOffset, bodyOffset);
+			addLiteral(segments, text, bodyOffset, end, bodyOffset);
+			return;
+		}
+		int crlf = text.indexOf(CRLF, start);
+		if (crlf > start && crlf < end) {
+			addLiteral(segments, text, start, crlf, bodyOffset);
+			addLiteral(segments, text, crlf, end, bodyOffset);
+			return;
+		}
+		if (end > start) {
+			String literal = StringEscapeUtils.unescapeJava(text.substring(start, end));
+			segments.add(new Segment(LITERAL, literal, null, 0, start >= bodyOffset));
+		}
+	}
+
+	/**
+	 * @return true if this template contains any [last_*] keywords, and so needs the last received message
+	 */
+	public boolean usesLastHeaders() {
+		return this.usesLastHeaders;
+	}
+
+	/**
+	 * @param variables
+	 *            the keywords and variables to substitute in
+	 * @return the encoded message, with [len] set to the number of bytes in the body
+	 */
+	public byte[] render(VariableTable variables) {
+		OutboundBuffer out = OutboundBuffer.get();
+		render(variables, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Renders the message into a pooled outbound buffer. Literal text is added as shared segments, so only the keyword
+	 * values are encoded.
+	 *
+	 * @param variables
+	 *            the keywords and variables to substitute in
+	 * @param out
+	 *            the buffer to append the message to
+	 */
+	public void render(VariableTable variables, OutboundBuffer out) {
+		String[] values = out.values(segments.length);
+		int bodyLength = 0;
+		for (int i = 0; i < segments.length; i++) {
+			Segment s = segments[i];
+			values[i] = null;
+			if (s.type == LITERAL) {
+				if (s.inBody) {
+					bodyLength += s.shared.length();
+				}
+			} else if (s.type != LENGTH) {
+				String replacement = variables.get(s.keyword);
+				if (replacement != null && s.addend != 0) {
+					replacement = Integer.toString(Integer.parseInt(replacement) + s.addend);
+				}
+				if (replacement == null && s.type == LAST_HEADER) {
+					// Drop the rest of the line, keeping the CRLF
+					for (int j = i; j < s.lineEnd; j++) {
+						values[j] = DROPPED;
+					}
+					i = s.lineEnd - 1;
+					continue;
+				}
+				values[i] = replacement;
+				if (s.inBody) {
+					bodyLength += (replacement != null) ? OutboundBuffer.utf8Length(replacement) : s.shared.length();
+				}
+			}
+		}
+
+		for (int i = 0; i < segments.length; i++) {
+			Segment s = segments[i];
+			String value = values[i];
+			values[i] = null;
+			if (value == DROPPED) {
+				continue;
+			} else if (s.type == LENGTH) {
+				out.append(bodyLength + s.addend);
+			} else if (value != null) {
+				out.append(value);
+			} else {
+				// Literal text, or a keyword with no value which is sent as-is
+				out.append(s.shared);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.text;
+	}
+}
@@ -6,8 +6,10 @@ package uk.me.rkd.jsipp.compiler;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.DataFormatException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -19,22 +21,36 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
+import uk.me.rkd.jsipp.compiler.actions.MessageAction;
+import uk.me.rkd.jsipp.compiler.actions.PlayPcapAudio;
 import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.compiler.phases.Nop;
 import uk.me.rkd.jsipp.compiler.phases.Pause;
 import uk.me.rkd.jsipp.compiler.phases.RecvPhase;
 import uk.me.rkd.jsipp.compiler.phases.SendPhase;
-import uk.me.rkd.jsipp.runtime.Statistics;
 
 /**
  * @author robertday
  * 
  */
 public class Scenario {
+	/** The most distinct RTD timers a scenario may use, as in SIPp */
+	public static final int MAX_RTDS = 5;
+
 	private final List<CallPhase> actions;
+	// Shared by every call, so they can all refer to the same list
+	private final List<CallPhase> phases;
 	private boolean uac = false;
 	private String name;
+	// Bucket bounds in milliseconds, as declared by <ResponseTimeRepartition> and <CallLengthRepartition>
+	private int[] responseTimeRepartition = new int[0];
+	private int[] callLengthRepartition = new int[0];
+	private List<String> rtdNames = new ArrayList<String>();
 
-	private String forZMQ() {
+	/**
+	 * @return the scenario's name and phases, in the form the statistics control socket hands out
+	 */
+	public String forZMQ() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("NAME:");
 		sb.append(this.getName());
@@ -48,6 +64,7 @@ public class Scenario {
 
 	private Scenario(String name, List<CallPhase> a) {
 		this.actions = a;
+		this.phases = Collections.unmodifiableList(a);
 		this.name = name;
 		for (CallPhase action : actions) {
 			if (action instanceof SendPhase) {
@@ -58,7 +75,6 @@ public class Scenario {
 				break;
 			}
 		}
-		Statistics.INSTANCE.scenarioDesc = this.forZMQ();
 	}
 
 	public boolean isUac() {
@@ -74,7 +90,7 @@ public class Scenario {
 	 *         through.
 	 */
 	public List<CallPhase> phases() {
-		return Collections.unmodifiableList(this.actions);
+		return this.phases;
 	}
 
 	public static Scenario fromXMLFilename(String filename) throws ParserConfigurationException, SAXException,
@@ -103,29 +119,165 @@ public class Scenario {
 	public static Scenario fromXMLDocument(Document doc) {
 		Element scenario = doc.getDocumentElement();
 		NamedNodeMap attr = scenario.getAttributes();
-		Node nameattr = attr.getNamedItem("duration");
+		Node nameattr = attr.getNamedItem("name");
 		String name = "Unnamed Scenario";
 		if (nameattr != null) {
-			// TODO - verify that the name doesn't contain special characters
-			name = nameattr.getTextContent();
+			// Statistics are published as colon-separated fields, and scenario descriptions as semicolon-separated ones
+			name = nameattr.getTextContent().replace(':', '_').replace(';', '_');
 		}
 		List<CallPhase> actions = new ArrayList<CallPhase>();
+		List<String> rtdNames = new ArrayList<String>();
 		int idx = 0;
 		for (Node m = scenario.getFirstChild(); m != null; m = m.getNextSibling()) {
+			CallPhase phase = null;
 			if (m.getNodeName() == "#text") {
 				// ignore whitespace elements
 			} else if (m.getNodeName() == "recv") {
-				actions.add(new RecvPhase(m, idx));
-				idx += 1;
+				phase = new RecvPhase(m, idx);
 			} else if (m.getNodeName() == "send") {
-				actions.add(new SendPhase(m, idx));
-				idx += 1;
+				phase = new SendPhase(m, idx);
 			} else if (m.getNodeName() == "pause") {
-				actions.add(new Pause(m, idx));
+				phase = new Pause(m, idx);
+			} else if (m.getNodeName() == "nop") {
+				phase = new Nop(m, idx);
+			}
+			if (phase != null) {
+				readRtds(m, phase, rtdNames);
+				readActions(m, phase);
+				actions.add(phase);
 				idx += 1;
 			}
 		}
-		return new Scenario(name, actions);
+		Scenario s = new Scenario(name, actions);
+		s.rtdNames = rtdNames;
+		for (Node m = scenario.getFirstChild(); m != null; m = m.getNextSibling()) {
+			if (m.getNodeName().equals("ResponseTimeRepartition")) {
+				s.responseTimeRepartition = parseRepartition(m);
+			} else if (m.getNodeName().equals("CallLengthRepartition")) {
+				s.callLengthRepartition = parseRepartition(m);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Sets the RTD timers a phase starts and stops from its start_rtd, rtd and repeat_rtd attributes, adding any names
+	 * not seen before. As in SIPp, "true" stands for the timer named "1".
+	 */
+	private static void readRtds(Node node, CallPhase phase, List<String> rtdNames) {
+		NamedNodeMap attr = node.getAttributes();
+		Node start = attr.getNamedItem("start_rtd");
+		Node stop = attr.getNamedItem("rtd");
+		Node repeat = attr.getNamedItem("repeat_rtd");
+		if (start != null) {
+			phase.startRtd = rtdIndex(start.getTextContent(), rtdNames);
+		}
+		if (stop != null) {
+			phase.stopRtd = rtdIndex(stop.getTextContent(), rtdNames);
+		}
+		phase.repeatRtd = (repeat != null) && repeat.getTextContent().equalsIgnoreCase("true");
+	}
+
+	/**
+	 * Sets the actions a phase performs from its <action> elements. Actions that aren't supported are left out, with a
+	 * warning, so that scenarios using them still run.
+	 */
+	private static void readActions(Node node, CallPhase phase) {
+		List<MessageAction> actions = new ArrayList<MessageAction>();
+		for (Node a = node.getFirstChild(); a != null; a = a.getNextSibling()) {
+			if (!a.getNodeName().equals("action")) {
+				continue;
+			}
+			for (Node child = a.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child.getNodeType() != Node.ELEMENT_NODE) {
+					continue;
+				}
+				try {
+					MessageAction action = MessageAction.fromNode(child);
+					if (action != null) {
+						actions.add(action);
+					}
+				} catch (DataFormatException e) {
+					System.err.println("Ignoring action in phase " + phase.idx + ": " + e.getMessage());
+				}
+			}
+		}
+		if (!actions.isEmpty()) {
+			phase.actions = Collections.unmodifiableList(actions);
+		}
+	}
+
+	private static int rtdIndex(String name, List<String> rtdNames) {
+		name = name.trim();
+		if (name.equalsIgnoreCase("true")) {
+			name = "1";
+		}
+		// Published as a colon-separated field, like the scenario name
+		name = name.replace(':', '_').replace(';', '_');
+		int index = rtdNames.indexOf(name);
+		if (index < 0) {
+			if (rtdNames.size() == MAX_RTDS) {
+				throw new IllegalArgumentException("A scenario can use at most " + MAX_RTDS + " RTD timers");
+			}
+			rtdNames.add(name);
+			index = rtdNames.size() - 1;
+		}
+		return index;
+	}
+
+	/**
+	 * @return the names of the RTD timers the phases start and stop, in the order of their indexes
+	 */
+	public List<String> getRtdNames() {
+		return Collections.unmodifiableList(this.rtdNames);
+	}
+
+	/**
+	 * @return the comma-separated bounds in the node's value attribute, sorted, without duplicates
+	 */
+	private static int[] parseRepartition(Node node) {
+		Node value = node.getAttributes().getNamedItem("value");
+		if (value == null) {
+			return new int[0];
+		}
+		String[] fields = value.getTextContent().split(",");
+		int[] bounds = new int[fields.length];
+		int count = 0;
+		for (String field : fields) {
+			if (!field.trim().isEmpty()) {
+				bounds[count++] = Integer.parseInt(field.trim());
+			}
+		}
+		bounds = Arrays.copyOf(bounds, count);
+		Arrays.sort(bounds);
+		int distinct = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			if (i == 0 || bounds[i] != bounds[i - 1]) {
+				bounds[distinct++] = bounds[i];
+			}
+		}
+		return Arrays.copyOf(bounds, distinct);
+	}
+
+	/**
+	 * @return the upper bounds, in milliseconds, of the buckets response times are counted in, or an empty array
+	 */
+	public int[] getResponseTimeRepartition() {
+		return this.responseTimeRepartition.clone();
+	}
+
+	/**
+	 * @return the upper bounds, in milliseconds, of the buckets call lengths are counted in, or an empty array
+	 */
+	public int[] getCallLengthRepartition() {
+		return this.callLengthRepartition.clone();
+	}
+
+	/**
+	 * @return whether calls play RTP from a capture, and so need their RTP streamer running
+	 */
+	public boolean playsAudio() {
+		return PlayPcapAudio.isUsedBy(this.phases);
 	}
 
 	public String getName() {
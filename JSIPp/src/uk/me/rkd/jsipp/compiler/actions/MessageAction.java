@@ -5,14 +5,20 @@ package uk.me.rkd.jsipp.compiler.actions;
 
 import java.util.zip.DataFormatException;
 
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import uk.me.rkd.jsipp.runtime.Call;
+
 /**
  * @author robertday
  * 
  */
 public abstract class MessageAction {
-	abstract void perform(String message);
+	/**
+	 * Performs the action for a call, once the phase it belongs to is done.
+	 */
+	public abstract void perform(Call call);
 
 	/**
 	 * @param xmlnode
@@ -22,9 +28,26 @@ public abstract class MessageAction {
 	 *             if the action's name is unknown
 	 */
 	public static MessageAction fromActionNode(final Node xmlnode) throws DataFormatException {
-		Node action = xmlnode.getFirstChild();
+		return fromNode(xmlnode.getFirstChild());
+	}
+
+	/**
+	 * @param action
+	 *            - one of the elements inside an <action> node
+	 * @return A MessageAction subclass of the appropriate type, or null for an action that needs nothing done
+	 * @throws DataFormatException
+	 *             if the action's name is unknown
+	 */
+	public static MessageAction fromNode(final Node action) throws DataFormatException {
 		if (action.getNodeName().equals("ereg")) {
 			return null;
+		} else if (action.getNodeName().equals("exec")) {
+			NamedNodeMap attr = action.getAttributes();
+			Node pcap = attr.getNamedItem("play_pcap_audio");
+			if (pcap != null) {
+				return new PlayPcapAudio(pcap.getTextContent().trim());
+			}
+			throw new DataFormatException("exec only supports play_pcap_audio");
 		}
 		throw new DataFormatException(action.getNodeName() + " is an unknown action type");
 	}
@@ -0,0 +1,70 @@
+package uk.me.rkd.jsipp.compiler.actions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.runtime.Call;
+import uk.me.rkd.jsipp.runtime.network.RTPStreamer;
+
+/**
+ * SIPp's <exec play_pcap_audio="file"/>: replays the RTP in a capture to the address in the SDP the call last
+ * received, in place of anything the call was already playing.
+ *
+ * The capture is mapped and indexed when the scenario is loaded, once however many phases and scenarios play it, and
+ * every call replays it from the same mapping.
+ */
+public class PlayPcapAudio extends MessageAction {
+
+	private static final Map<String, RTPStreamer.Audio> captures = new HashMap<String, RTPStreamer.Audio>();
+
+	public final RTPStreamer.Audio audio;
+	private final String filename;
+	// Calls that have had no SDP are only warned about once, rather than flooding the output at high call rates
+	private final AtomicBoolean warned = new AtomicBoolean();
+
+	PlayPcapAudio(String filename) {
+		this.filename = filename;
+		this.audio = capture(filename);
+	}
+
+	private static synchronized RTPStreamer.Audio capture(String filename) {
+		try {
+			String path = new File(filename).getCanonicalPath();
+			RTPStreamer.Audio audio = captures.get(path);
+			if (audio == null) {
+				audio = RTPStreamer.Audio.openPcap(path);
+				captures.put(path, audio);
+			}
+			return audio;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can't read " + filename + " for play_pcap_audio", e);
+		}
+	}
+
+	/**
+	 * @return whether any of the phases plays a capture
+	 */
+	public static boolean isUsedBy(List<CallPhase> phases) {
+		for (CallPhase phase : phases) {
+			for (MessageAction action : phase.actions) {
+				if (action instanceof PlayPcapAudio) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void perform(Call call) {
+		if (!call.play(this.audio) && this.warned.compareAndSet(false, true)) {
+			System.err.println("No SDP received to play " + this.filename + " to, so calls that reach it without one "
+			        + "won't play it (only warning once)");
+		}
+	}
+}
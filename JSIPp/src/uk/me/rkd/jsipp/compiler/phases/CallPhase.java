@@ -1,12 +1,25 @@
 package uk.me.rkd.jsipp.compiler.phases;
 
-import gov.nist.javax.sip.message.SIPMessage;
+import java.util.Collections;
+import java.util.List;
+
+import uk.me.rkd.jsipp.compiler.actions.MessageAction;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
 
 public abstract class CallPhase {
+	public static final int NO_RTD = -1;
+
 	public int idx;
 	public String expected;
+	// The response time (RTD) timers this phase starts and stops, as indexes into the scenario's getRtdNames()
+	public int startRtd = NO_RTD;
+	public int stopRtd = NO_RTD;
+	// Whether stopRtd is measured every time this phase passes, rather than only the first time in a call
+	public boolean repeatRtd = false;
+	// Performed in order once the phase is done
+	public List<MessageAction> actions = Collections.emptyList();
 
-	public abstract boolean expected(SIPMessage msg);
+	public abstract boolean expected(ReceivedMessage msg);
 
 	public abstract boolean isOptional();
 	
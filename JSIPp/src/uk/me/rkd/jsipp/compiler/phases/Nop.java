@@ -0,0 +1,30 @@
+package uk.me.rkd.jsipp.compiler.phases;
+
+import org.w3c.dom.Node;
+
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+/**
+ * SIPp's <nop>: does nothing itself and moves straight on, but can perform actions and start and stop RTD timers.
+ */
+public class Nop extends CallPhase {
+
+	public Nop(Node xmlnode, int idx) {
+		this.idx = idx;
+	}
+
+	@Override
+	public boolean expected(ReceivedMessage msg) {
+		return false;
+	}
+
+	@Override
+	public boolean isOptional() {
+		return false;
+	}
+
+	@Override
+	public String forZMQ() {
+		return "NOP:";
+	}
+}
@@ -3,7 +3,7 @@ package uk.me.rkd.jsipp.compiler.phases;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
-import gov.nist.javax.sip.message.SIPMessage;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
 
 public class Pause extends CallPhase {
 
@@ -21,7 +21,7 @@ public class Pause extends CallPhase {
 	}
 	
 	@Override
-	public boolean expected(SIPMessage msg) {
+	public boolean expected(ReceivedMessage msg) {
 		return false;
 	}
 
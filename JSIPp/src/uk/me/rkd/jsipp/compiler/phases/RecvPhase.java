@@ -1,12 +1,12 @@
 package uk.me.rkd.jsipp.compiler.phases;
 
-import gov.nist.javax.sip.message.SIPMessage;
-import gov.nist.javax.sip.message.SIPRequest;
-import gov.nist.javax.sip.message.SIPResponse;
+import java.util.regex.Pattern;
 
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
 public class RecvPhase extends CallPhase {
 
 	public static enum RecvType {
@@ -17,6 +17,8 @@ public class RecvPhase extends CallPhase {
 	public final boolean regexp;
 	public final boolean optional;
 	public final int timeout;
+	private final int expectedCode;
+	private final Pattern expectedPattern;
 
 	public RecvPhase(Node xmlnode, int idx) {
 		this.idx = idx;
@@ -28,7 +30,7 @@ public class RecvPhase extends CallPhase {
 		Node timeout_param = attr.getNamedItem("timeout");
 
 		if (timeout_param != null) {
-			this.timeout = new Integer(regex_param.getTextContent());
+			this.timeout = new Integer(timeout_param.getTextContent());
 		} else {
 			this.timeout = 5000;
 		}
@@ -48,23 +50,33 @@ public class RecvPhase extends CallPhase {
 		if (expected_response != null) {
 			this.expected = expected_response.getTextContent();
 			this.recvType = RecvType.RESPONSE;
+			this.expectedCode = this.regexp ? 0 : Integer.parseInt(this.expected);
 		} else if (expected_request != null) {
 			this.expected = expected_request.getTextContent();
 			this.recvType = RecvType.REQUEST;
+			this.expectedCode = 0;
 		} else {
 			this.expected = "";
 			this.recvType = null;
+			this.expectedCode = 0;
 			throw new NullPointerException();
 		}
+		this.expectedPattern = this.regexp ? Pattern.compile(this.expected) : null;
 	}
 
 	@Override
-	public boolean expected(SIPMessage msg) {
-		if (msg instanceof SIPRequest) {
-			return ((SIPRequest) msg).getMethod().equals(expected);
+	public boolean expected(ReceivedMessage msg) {
+		if (this.expectedPattern != null) {
+			if (msg.isRequest()) {
+				return this.recvType == RecvType.REQUEST && this.expectedPattern.matcher(msg.getMethod()).matches();
+			}
+			return this.recvType == RecvType.RESPONSE
+			        && this.expectedPattern.matcher(Integer.toString(msg.getStatusCode())).matches();
+		}
+		if (msg.isRequest()) {
+			return this.recvType == RecvType.REQUEST && msg.getMethod().equals(expected);
 		} else {
-			// message instanceof SIPResponse
-			return ((SIPResponse) msg).getStatusCode() == Integer.parseInt(expected);
+			return this.recvType == RecvType.RESPONSE && msg.getStatusCode() == this.expectedCode;
 		}
 	}
 
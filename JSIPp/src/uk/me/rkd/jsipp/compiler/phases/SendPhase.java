@@ -1,7 +1,6 @@
 package uk.me.rkd.jsipp.compiler.phases;
 
 import gov.nist.javax.sip.header.StatusLine;
-import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.parser.RequestLineParser;
 import gov.nist.javax.sip.parser.StatusLineParser;
 
@@ -11,10 +10,19 @@ import java.util.regex.Pattern;
 
 import org.w3c.dom.Node;
 
+import uk.me.rkd.jsipp.compiler.MessageTemplate;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
 import uk.me.rkd.jsipp.runtime.parsers.SipUtils;
 
 public class SendPhase extends CallPhase {
 	public final String message;
+	public final MessageTemplate template;
+	// The first retransmission interval over unreliable transports (T1), in milliseconds, or 0 not to retransmit
+	public final int retrans;
+	// INVITEs keep doubling their retransmission interval, where other requests stop at T2
+	public final boolean invite;
+	// The request's method, or null if this sends a response
+	public final String method;
 	public static final Pattern initialSpaces = Pattern.compile("^\\s*");
 
 	public SendPhase(Node xmlnode, int idx) {
@@ -22,6 +30,11 @@ public class SendPhase extends CallPhase {
 		this.expected = "<<SENDING>>";
 		String raw_message = xmlnode.getFirstChild().getTextContent();
 		this.message = this.stripWhitespace(raw_message);
+		this.template = MessageTemplate.compile(this.message);
+		Node retrans_param = (xmlnode.getAttributes() != null) ? xmlnode.getAttributes().getNamedItem("retrans") : null;
+		this.retrans = (retrans_param != null) ? Integer.parseInt(retrans_param.getTextContent().trim()) : 0;
+		this.invite = this.message.startsWith("INVITE ");
+		this.method = this.message.startsWith("SIP/") ? null : this.message.split(" ", 2)[0];
 	}
 
 	/**
@@ -77,7 +90,7 @@ public class SendPhase extends CallPhase {
 	}
 
 	@Override
-	public boolean expected(SIPMessage msg) {
+	public boolean expected(ReceivedMessage msg) {
 		return false;
 	}
 
@@ -0,0 +1,21 @@
+package uk.me.rkd.jsipp.runtime;
+
+/**
+ * Decides when new calls start. CallOpeningTask asks for the gap to each next call in turn, and opens it once that
+ * much time has passed since the previous one was due.
+ *
+ * @see Arrivals
+ */
+public interface ArrivalProcess {
+
+	/**
+	 * @return the nanoseconds between the previous call's start and the next one's, or -1 if no more calls should be
+	 *         started
+	 */
+	long nextGap();
+
+	/**
+	 * Changes the mean number of calls started per second, where the process has one.
+	 */
+	void setRate(double callsPerSecond);
+}
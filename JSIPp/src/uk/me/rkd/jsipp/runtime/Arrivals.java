@@ -0,0 +1,179 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The arrival processes that can be chosen with -arrivals.
+ */
+public final class Arrivals {
+
+	private static final Logger logger = Logger.getLogger(Arrivals.class);
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private Arrivals() {
+	}
+
+	/**
+	 * @param spec
+	 *            "constant", "poisson", "onoff:ON_MS,OFF_MS" or "replay:FILE"
+	 * @param rate
+	 *            the mean calls per second (ignored when replaying)
+	 */
+	public static ArrivalProcess fromSpec(String spec, double rate) throws IOException {
+		if (spec.equals("constant")) {
+			return new Constant(rate);
+		} else if (spec.equals("poisson")) {
+			return new Poisson(rate, new Random());
+		} else if (spec.startsWith("onoff:")) {
+			String[] periods = spec.substring(6).split(",");
+			if (periods.length != 2) {
+				throw new IllegalArgumentException("Expected onoff:ON_MS,OFF_MS but got " + spec);
+			}
+			return new OnOff(rate, Long.parseLong(periods[0].trim()), Long.parseLong(periods[1].trim()));
+		} else if (spec.startsWith("replay:")) {
+			return new Replay(new BufferedReader(new FileReader(spec.substring(7))));
+		}
+		throw new IllegalArgumentException("Unknown arrival process " + spec);
+	}
+
+	static long gapAt(double rate) {
+		// A rate of zero means no calls, until CallOpeningTask.setRate brings the next one forward
+		return (rate > 0) ? (long) (NANOS_PER_SECOND / rate) : TimeUnit.HOURS.toNanos(1);
+	}
+
+	/**
+	 * Calls evenly spaced at the given rate.
+	 */
+	public static class Constant implements ArrivalProcess {
+		private volatile double rate;
+
+		public Constant(double rate) {
+			this.rate = rate;
+		}
+
+		@Override
+		public long nextGap() {
+			return gapAt(this.rate);
+		}
+
+		@Override
+		public void setRate(double callsPerSecond) {
+			this.rate = callsPerSecond;
+		}
+	}
+
+	/**
+	 * Independent arrivals at the given mean rate, so the gaps between them are exponentially distributed.
+	 */
+	public static class Poisson implements ArrivalProcess {
+		private final Random random;
+		private volatile double rate;
+
+		public Poisson(double rate, Random random) {
+			this.rate = rate;
+			this.random = random;
+		}
+
+		@Override
+		public long nextGap() {
+			if (this.rate <= 0) {
+				return gapAt(0);
+			}
+			// 1 - nextDouble() is in (0, 1], so the log is finite
+			return (long) (-Math.log(1 - this.random.nextDouble()) * NANOS_PER_SECOND / this.rate);
+		}
+
+		@Override
+		public void setRate(double callsPerSecond) {
+			this.rate = callsPerSecond;
+		}
+	}
+
+	/**
+	 * Bursts of evenly spaced calls lasting onMs, separated by silences of offMs. Calls arrive faster during a burst so
+	 * that the mean over a whole cycle is the given rate.
+	 */
+	public static class OnOff implements ArrivalProcess {
+		private final long onNanos;
+		private final long offNanos;
+		private volatile double rate;
+		// How far into the current burst the last call was
+		private long position = 0;
+
+		public OnOff(double rate, long onMs, long offMs) {
+			if (onMs <= 0 || offMs < 0) {
+				throw new IllegalArgumentException("The on period must be positive and the off period not negative");
+			}
+			this.rate = rate;
+			this.onNanos = TimeUnit.MILLISECONDS.toNanos(onMs);
+			this.offNanos = TimeUnit.MILLISECONDS.toNanos(offMs);
+		}
+
+		@Override
+		public long nextGap() {
+			long gap = gapAt(this.rate * (this.onNanos + this.offNanos) / this.onNanos);
+			this.position += gap;
+			while (this.position >= this.onNanos) {
+				// Skip over the silence into the next burst
+				this.position -= this.onNanos;
+				gap += this.offNanos;
+			}
+			return gap;
+		}
+
+		@Override
+		public void setRate(double callsPerSecond) {
+			this.rate = callsPerSecond;
+		}
+	}
+
+	/**
+	 * Call start times read from a file, one per line, in seconds from the start of the run (for example taken from a
+	 * production trace). Blank lines and lines starting with # are skipped, and no more calls start after the last one.
+	 */
+	public static class Replay implements ArrivalProcess {
+		private final BufferedReader reader;
+		private long previous = 0;
+		private boolean finished = false;
+
+		public Replay(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public long nextGap() {
+			if (this.finished) {
+				return -1;
+			}
+			try {
+				String line;
+				while ((line = this.reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					long at = (long) (Double.parseDouble(line) * NANOS_PER_SECOND);
+					long gap = Math.max(0, at - this.previous);
+					this.previous = Math.max(at, this.previous);
+					return gap;
+				}
+				this.reader.close();
+			} catch (IOException | NumberFormatException e) {
+				logger.error("Couldn't read call arrival times, so no more calls will be started", e);
+			}
+			this.finished = true;
+			return -1;
+		}
+
+		@Override
+		public void setRate(double callsPerSecond) {
+			// The file decides the rate
+		}
+	}
+}
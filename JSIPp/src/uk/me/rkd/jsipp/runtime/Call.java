@@ -1,6 +1,5 @@
 package uk.me.rkd.jsipp.runtime;
 
-import gov.nist.javax.sip.message.SIPMessage;
 import io.netty.util.Timeout;
 import io.netty.util.Timer;
 import io.netty.util.TimerTask;
@@ -8,53 +7,86 @@ import io.netty.util.TimerTask;
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import uk.me.rkd.jsipp.Configuration;
+import uk.me.rkd.jsipp.compiler.Scenario;
 import uk.me.rkd.jsipp.compiler.SimpleVariableTable;
+import uk.me.rkd.jsipp.compiler.actions.MessageAction;
 import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.compiler.phases.Nop;
 import uk.me.rkd.jsipp.compiler.phases.Pause;
 import uk.me.rkd.jsipp.compiler.phases.RecvPhase;
 import uk.me.rkd.jsipp.compiler.phases.SendPhase;
 import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+import uk.me.rkd.jsipp.runtime.network.OutboundBuffer;
 import uk.me.rkd.jsipp.runtime.network.RTPSocketManager;
+import uk.me.rkd.jsipp.runtime.network.RTPStreamer;
 import uk.me.rkd.jsipp.runtime.network.SocketManager;
-import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
 import uk.me.rkd.jsipp.runtime.parsers.SipUtils;
 
+/**
+ * A call in progress. Its state lives in a slot of the CallStore, so the object itself is only the slot number; once
+ * the call has ended the slot is recycled and the object just remembers whether it succeeded.
+ *
+ * Over UDP, a message sent with a retrans attribute is sent again until it's answered, after retrans ms and then at
+ * doubling intervals (RFC 3261 timers A and E, capped at T2 except for INVITEs). A request is answered by a final
+ * response with its method in the CSeq, or for an INVITE by any response; a provisional response to another request
+ * only slows retransmission to every T2. A response is answered by the peer's next request, such as the ACK. The
+ * retransmissions are driven by the call's own timeout, which is set for whichever comes first of the next
+ * retransmission and the end of the current phase, so they add no timer entries of their own.
+ */
 public class Call implements TimerTask {
 
-	private final int callNumber;
-	private final String callId;
+	static final int NO_TIMEOUT = -1;
+	static final int NO_STREAM = -1;
+	// RFC 3261's T2, the longest a non-INVITE request waits between retransmissions
+	static final int T2 = 4000;
+	// As SIPp: how many times a message may be retransmitted, about 64*T1 for an INVITE
+	static final int MAX_INVITE_RETRANS = 5;
+	static final int MAX_RETRANS = 7;
+	private static final int SUCCEEDED = -1;
+	private static final int FAILED = -2;
+
+	private static final CallStore store = CallStore.INSTANCE;
+
+	// The call's slot in the store, or SUCCEEDED or FAILED once it has ended
+	private int slot;
 
 	/**
 	 * @return the callId
 	 */
-	public String getCallId() {
-		return callId;
-	}
-
-	final int NO_TIMEOUT = -1;
-	private int phaseIndex = 0;
-	private List<CallPhase> phases;
-	private SocketManager sm;
-	private long timeoutEnds = NO_TIMEOUT;
-	private Timer timer;
-	private SIPMessage lastMessage;
-	private CallVariables variables;
-	private boolean alreadyFinished = false;
-	private Timeout currentTimeout;
-	private String scenarioName;
-	private int mediaPort = 0;
+	public synchronized String getCallId() {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		String callId = p.callId[i];
+		return (callId != null) ? callId : Integer.toString(p.callNumber[i]);
+	}
 
+	/**
+	 * The keywords for one message sent by this call. It only lives as long as the send, so nothing is kept per call.
+	 */
 	public class CallVariables extends SimpleVariableTable {
+		private final String branch;
+
+		CallVariables(String branch) {
+			this.branch = branch;
+		}
 
 		@Override
 		public String get(String name) {
 			try {
-				if (name.equals("local_port")) {
+				if (name.equals("branch")) {
+					return this.branch;
+				} else if (name.equals("call_number")) {
+					return Integer.toString(getNumber());
+				} else if (name.equals("call_id")) {
+					return getCallId();
+				} else if (name.equals("local_port")) {
 					return Integer.toString(getLocalAddress().getPort());
 				} else if (name.equals("remote_port")) {
 					return Integer.toString(getRemoteAddress().getPort());
@@ -67,7 +99,7 @@ public class Call implements TimerTask {
 				} else if (name.equals("media_ip")) {
 					return "127.0.0.1";
 				} else if (name.equals("media_port")) {
-					return Integer.toString(mediaPort);
+					return Integer.toString(page().mediaPort[CallStore.index(slot)]);
 				} else if (name.equals("media_ip_type")) {
 					return "4";
 				}
@@ -76,58 +108,72 @@ public class Call implements TimerTask {
 				return null;
 			}
 
-			if (vars.containsKey(name)) {
-				return vars.get(name);
-			}
-
 			String global = SimpleVariableTable.global().get(name);
 
 			if (global != null) {
 				return global;
 			}
 
+			ReceivedMessage lastMessage = page().lastMessage[CallStore.index(slot)];
 			if (name.startsWith("last_") && lastMessage != null) {
 				String headerName = name.replace("last_", "");
-				return lastMessage.getHeaderAsFormattedString(headerName).trim();
+				return lastMessage.getHeaderAsFormattedString(headerName);
 			}
 			return null;
 		}
 
 	}
 
+	private CallStore.Page page() {
+		if (this.slot < 0) {
+			throw new IllegalStateException("Call has ended");
+		}
+		return store.page(this.slot);
+	}
+
+	private CallStore.Profile profile() {
+		return store.profile(page(), CallStore.index(this.slot));
+	}
+
 	private void publishStat(StatType type, boolean include_idx) {
-		publishStat(type, include_idx, false);
-	}
-	
-	private void publishStat(StatType type, boolean include_idx, boolean receiving) {
-		String timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
-		if (include_idx && receiving) {
-			String identifier = SipUtils.methodOrStatusCode(this.lastMessage.getFirstLine());
-			Statistics.INSTANCE.report(type, timestamp, this.scenarioName, Integer.toString(this.callNumber), this.callId, Integer.toString(this.phaseIndex), identifier);
-		} else if (include_idx) {
-			Statistics.INSTANCE.report(type, timestamp, this.scenarioName, Integer.toString(this.callNumber), this.callId, Integer.toString(this.phaseIndex));
-		} else {
-			Statistics.INSTANCE.report(type, timestamp, this.scenarioName, Integer.toString(this.callNumber), this.callId);
+		publishStat(type, include_idx, null);
+	}
+
+	private void publishStat(StatType type, boolean include_idx, ReceivedMessage received) {
+		int code = Statistics.NO_CODE;
+		if (received != null) {
+			code = received.isRequest() ? Statistics.methodCode(received.getMethod()) : received.getStatusCode();
 		}
+		Statistics.INSTANCE.record(type, profile().statsId, getNumber(), include_idx ? getPhaseIndex()
+		        : Statistics.NO_PHASE, code);
 	}
 
 	public void registerSocket() throws IOException {
-		this.sm.add(this);
+		profile().sm.add(this);
+	}
+
+	/**
+	 * Fails a call that couldn't be started, such as one registerSocket() failed for, giving back what it had taken.
+	 */
+	public synchronized void abandon() {
+		if (!hasEnded()) {
+			fail();
+		}
 	}
 
 	public Call(int callNum, String callId, String scenarioname, List<CallPhase> phases, SocketManager sm, Timer t) {
-		this.variables = new CallVariables();
-		this.callNumber = callNum;
-		this.callId = callId;
-		this.scenarioName = scenarioname;
-		this.variables.putKeyword("call_number", Integer.toString(callNum));
-		this.variables.putKeyword("call_id", this.callId);
-		this.phases = phases;
-		this.sm = sm;
-		this.timer = t;
+		this.slot = store.allocate(scenarioname, phases, sm, t);
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		p.callNumber[i] = callNum;
+		p.startedAt[i] = System.nanoTime();
+		// UAC calls use their number as their Call-ID, which can be rebuilt rather than kept
+		if (!callId.equals(Integer.toString(callNum))) {
+			p.callId[i] = callId;
+		}
 		if (Configuration.INSTANCE.isRtpSink()) {
 		    try {
-		        this.mediaPort = RTPSocketManager.INSTANCE.add(callId);
+		        p.mediaPort[i] = (char) RTPSocketManager.INSTANCE.add(callId, profile().rtp);
 		    } catch (IOException e) {
 		        // TODO Auto-generated catch block
 		        e.printStackTrace();
@@ -137,116 +183,306 @@ public class Call implements TimerTask {
 	}
 
 	private void success() {
-		if (!alreadyFinished) {
-			publishStat(StatType.CALL_SUCCESS, false);
-			end();
-		}
+		profile().latency.recordCallLength(System.nanoTime() - page().startedAt[CallStore.index(this.slot)]);
+		publishStat(StatType.CALL_SUCCESS, false);
+		end(SUCCEEDED);
 	}
 
 	private void fail() {
 		publishStat(StatType.CALL_FAILURE, false);
-		end();
+		end(FAILED);
 	}
 
-	private void end() {
-	    if (Configuration.INSTANCE.isRtpSink()) {
-	        RTPSocketManager.INSTANCE.remove(this.callId);
-	    }
-		alreadyFinished = true;
+	private void end(int outcome) {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		if (p.mediaPort[i] != 0) {
+			RTPSocketManager.INSTANCE.remove(p.mediaPort[i]);
+		}
+		if (p.rtpStream[i] != NO_STREAM) {
+			RTPStreamer.INSTANCE.remove(p.rtpStream[i]);
+		}
+		if (p.timeout[i] != null) {
+			p.timeout[i].cancel();
+		}
 		try {
-			this.sm.remove(this);
+			profile().sm.remove(this);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		store.release(this.slot);
+		this.slot = outcome;
+		CallOpeningTask opener = CallOpeningTask.getInstance();
+		if (opener != null) {
+			opener.callEnded();
+		}
 	}
 
-	public boolean hasCompleted() {
-		return this.phaseIndex >= this.phases.size();
+	private boolean hasEnded() {
+		return this.slot < 0;
+	}
+
+	public synchronized boolean hasCompleted() {
+		if (hasEnded()) {
+			return this.slot == SUCCEEDED;
+		}
+		return getPhaseIndex() >= profile().phases.size();
 	}
 
 	public synchronized void reschedule(long when) {
-		if (this.currentTimeout != null) {
-			this.currentTimeout.cancel();
+		if (hasEnded()) {
+			return;
+		}
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		if (p.timeout[i] != null) {
+			p.timeout[i].cancel();
 		}
-		//System.out.println("Rescheduling for " + Long.toString(when) + " ms");
-		this.currentTimeout = this.timer.newTimeout(this, when, TimeUnit.MILLISECONDS);
+		p.timeout[i] = profile().timer.newTimeout(this, when, TimeUnit.MILLISECONDS);
 	}
 
 	public synchronized void run(Timeout timeout) {
-		//System.out.println(String.format("Call %d, phase %d", this.getNumber(), this.phaseIndex));
+		if (hasEnded()) {
+			return;
+		}
 		if (hasCompleted()) {
 			this.success();
 		} else {
 			CallPhase currentPhase = getCurrentPhase();
-			this.timer = timeout.timer();
+			if (untilRetransmission() == 0) {
+				retransmit();
+				if (hasEnded()) {
+					return;
+				}
+			}
 
 			// If we're waiting to receive, check for timeout
 			if (currentPhase instanceof RecvPhase) {
-				if (this.timeoutEnds == NO_TIMEOUT) {
-					this.timeoutEnds = ((RecvPhase) currentPhase).timeout + System.currentTimeMillis();
-				}
-				long untilTimeout = this.timeoutEnds - System.currentTimeMillis();
+				long untilTimeout = untilTimeout(((RecvPhase) currentPhase).timeout);
 				if (untilTimeout < 0) {
 					publishStat(StatType.RECV_TIMED_OUT, true);
 					this.fail();
 				} else {
 					// We haven't timed out yet - reschedule ourselves to run when we will time out
-					reschedule(untilTimeout);
+					reschedule(Math.min(untilTimeout, untilRetransmission()));
 				}
 			} else if (currentPhase instanceof Pause) {
-				if (this.timeoutEnds == NO_TIMEOUT) {
-					this.timeoutEnds = ((Pause) currentPhase).getDuration() + System.currentTimeMillis();
-				}
-				long untilTimeout = this.timeoutEnds - System.currentTimeMillis();
+				long untilTimeout = untilTimeout(((Pause) currentPhase).getDuration());
 				if (untilTimeout < 0) {
+					timeRtds(currentPhase);
+					performActions(currentPhase);
 					publishStat(StatType.PHASE_SUCCESS, true);
 					nextPhase();
 					this.run(timeout);
 				} else {
 					// We haven't timed out yet - reschedule ourselves to run when we will time out
-					reschedule(untilTimeout);
+					reschedule(Math.min(untilTimeout, untilRetransmission()));
 				}
 			} else if (currentPhase instanceof SendPhase) {
 				// We're sending - just send and move on
 				send();
+				if (hasEnded()) {
+					// The send failed, and failed the call
+					return;
+				}
+				nextPhase();
+				this.run(timeout);
+			} else if (currentPhase instanceof Nop) {
+				timeRtds(currentPhase);
+				performActions(currentPhase);
+				publishStat(StatType.PHASE_SUCCESS, true);
 				nextPhase();
 				this.run(timeout);
 			}
 		}
 	}
 
+	/**
+	 * @return the milliseconds left in the current phase, which lasts for duration from the first time this is asked
+	 */
+	private long untilTimeout(long duration) {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		if (p.timeoutEnds[i] == NO_TIMEOUT) {
+			p.timeoutEnds[i] = duration + System.currentTimeMillis();
+		}
+		return p.timeoutEnds[i] - System.currentTimeMillis();
+	}
+
 	private void send() {
 		SendPhase currentPhase = (SendPhase) getCurrentPhase();
-		this.variables.putKeyword("branch", "z9hG4bK" + UUID.randomUUID().toString());
+		String branch = "z9hG4bK" + UUID.randomUUID().toString();
+		assert (!this.hasCompleted());
+		if (!render(currentPhase, branch)) {
+			return;
+		}
+		// Response times run from here, not from any retransmission
+		page().lastSentAt[CallStore.index(this.slot)] = System.nanoTime();
+		timeRtds(currentPhase);
+		performActions(currentPhase);
+		publishStat(StatType.PHASE_SUCCESS, true);
+
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		if (currentPhase.retrans > 0 && profile().retransmit) {
+			p.retransAt[i] = System.currentTimeMillis() + currentPhase.retrans;
+			p.retransInterval[i] = currentPhase.retrans;
+			p.retransPhase[i] = (char) getPhaseIndex();
+			p.retransLeft[i] = (byte) (currentPhase.invite ? MAX_INVITE_RETRANS : MAX_RETRANS);
+			p.retransBranch[i] = branch;
+		} else {
+			stopRetransmitting();
+		}
+	}
+
+	/**
+	 * Stops and starts the RTD timers the phase names, as it passes. A timer is only measured once per call unless the
+	 * phase says to repeat it.
+	 */
+	private void timeRtds(CallPhase phase) {
+		if (phase.startRtd == CallPhase.NO_RTD && phase.stopRtd == CallPhase.NO_RTD) {
+			return;
+		}
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		int base = i * Scenario.MAX_RTDS;
+		long now = System.nanoTime();
+		int stop = phase.stopRtd;
+		if (stop != CallPhase.NO_RTD && (p.rtdDone[i] & (1 << stop)) == 0) {
+			long started = p.rtdStartedAt[base + stop];
+			profile().latency.recordRtd(stop, now - ((started != 0) ? started : p.startedAt[i]));
+			if (!phase.repeatRtd) {
+				p.rtdDone[i] |= 1 << stop;
+			}
+		}
+		if (phase.startRtd != CallPhase.NO_RTD) {
+			p.rtdStartedAt[base + phase.startRtd] = now;
+		}
+	}
+
+	private void performActions(CallPhase phase) {
+		for (MessageAction action : phase.actions) {
+			action.perform(this);
+		}
+	}
+
+	/**
+	 * Renders and sends a message, failing the call if that doesn't work.
+	 *
+	 * @return whether the message was sent
+	 */
+	private boolean render(SendPhase phase, String branch) {
 		try {
-			// Do a first pass of keyword replacement, so we can calculate the body length
-			String message = KeywordReplacer.replaceKeywords(currentPhase.message, this.variables, false);
-			int len = SIPpMessageParser.getBodyLength(message);
-			this.variables.putKeyword("len", Integer.toString(len));
-
-			// Do a second pass now that we know the value of [len]
-			assert (!this.hasCompleted());
-			message = KeywordReplacer.replaceKeywords(currentPhase.message, this.variables, false);
-			this.sm.send(this.callNumber, message);
-			publishStat(StatType.PHASE_SUCCESS, true);
+			// The template works out [len] itself from the size of the body it renders
+			OutboundBuffer message = OutboundBuffer.get();
+			phase.template.render(new CallVariables(branch), message);
+			profile().sm.send(getNumber(), message);
+			return true;
 		} catch (Exception e) {
 			System.out.println("Send failed");
 			e.printStackTrace();
 			this.fail();
+			return false;
 		}
 	}
 
-	public int getNumber() {
-		return callNumber;
+	/**
+	 * @return the milliseconds until the last message sent should be retransmitted (0 if it's due), or Long.MAX_VALUE
+	 *         if it shouldn't be
+	 */
+	long untilRetransmission() {
+		long at = page().retransAt[CallStore.index(this.slot)];
+		return (at == 0) ? Long.MAX_VALUE : Math.max(0, at - System.currentTimeMillis());
 	}
 
-	public synchronized void process_incoming(SIPMessage message) {
-		this.timeoutEnds = NO_TIMEOUT;
-		this.lastMessage = message;
+	private void retransmit() {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		int phaseIndex = p.retransPhase[i];
+		SendPhase phase = (SendPhase) profile().phases.get(phaseIndex);
+		if (!render(phase, p.retransBranch[i])) {
+			return;
+		}
+		Statistics.INSTANCE.record(StatType.RETRANSMISSION, profile().statsId, getNumber(), phaseIndex,
+		                           Statistics.NO_CODE);
+		p.retransLeft[i] -= 1;
+		if (p.retransLeft[i] <= 0) {
+			stopRetransmitting();
+			return;
+		}
+		int interval = p.retransInterval[i] * 2;
+		p.retransInterval[i] = phase.invite ? interval : Math.min(interval, Math.max(T2, phase.retrans));
+		p.retransAt[i] = System.currentTimeMillis() + p.retransInterval[i];
+	}
+
+	/**
+	 * Stops or slows retransmission of the message last sent if the one received answers it.
+	 */
+	private void answerRetransmission(ReceivedMessage message) {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		if (p.retransAt[i] == 0) {
+			return;
+		}
+		SendPhase sent = (SendPhase) profile().phases.get(p.retransPhase[i]);
+		if (sent.method == null) {
+			if (message.isRequest()) {
+				stopRetransmitting();
+			}
+			return;
+		}
+		// Another request from the peer, or a response to an earlier transaction, says nothing about this one
+		if (message.isRequest() || !sent.method.equalsIgnoreCase(message.getCSeqMethod())) {
+			return;
+		}
+		if (message.getStatusCode() >= 200 || sent.invite) {
+			stopRetransmitting();
+		} else {
+			// Timer E once a non-INVITE request has had a provisional response (RFC 3261 section 17.1.2.2)
+			p.retransInterval[i] = T2;
+			p.retransAt[i] = System.currentTimeMillis() + T2;
+		}
+	}
+
+	private void stopRetransmitting() {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		p.retransAt[i] = 0;
+		p.retransBranch[i] = null;
+	}
+
+	public synchronized int getNumber() {
+		return page().callNumber[CallStore.index(this.slot)];
+	}
+
+	private int getPhaseIndex() {
+		return page().phaseIndex[CallStore.index(this.slot)];
+	}
+
+	public synchronized void process_incoming(ReceivedMessage message) {
+		if (hasEnded()) {
+			// A message that raced with the end of the call
+			return;
+		}
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		p.timeoutEnds[i] = NO_TIMEOUT;
+		if (profile().keepLastMessage) {
+			p.lastMessage[i] = message;
+		}
+		answerRetransmission(message);
+		if (profile().playsAudio || RTPStreamer.INSTANCE.isStreaming()) {
+			readSdp(message);
+		}
 
 		CallPhase phase = getCurrentPhase();
 		if (phase.expected(message)) {
-			publishStat(StatType.PHASE_SUCCESS, true, true);
+			if (p.lastSentAt[i] != 0) {
+				profile().latency.recordResponseTime(getPhaseIndex(), System.nanoTime() - p.lastSentAt[i]);
+			}
+			timeRtds(phase);
+			performActions(phase);
+			publishStat(StatType.PHASE_SUCCESS, true, message);
 			nextPhase();
 			reschedule(0);
 		} else {
@@ -256,26 +492,70 @@ public class Call implements TimerTask {
 				process_incoming(message);
 				return;
 			}
-			publishStat(StatType.UNEXPECTED_MSG_RECVD, true, true);
+			publishStat(StatType.UNEXPECTED_MSG_RECVD, true, message);
 			System.out.println("Expected " + phase.expected);
 			this.fail();
 		}
 	}
 
+	/**
+	 * Keeps the address a message's SDP says to send audio to, redirecting any RTP the call is already sending there,
+	 * and with -rtp_stream, starts sending it.
+	 */
+	private void readSdp(ReceivedMessage message) {
+		String type = message.getHeader("Content-Type");
+		if (type == null || !type.toLowerCase().contains("application/sdp")) {
+			return;
+		}
+		InetSocketAddress target = SipUtils.sdpAudioTarget(new String(message.getBody(), StandardCharsets.US_ASCII));
+		if (target == null) {
+			return;
+		}
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		p.remoteMedia[i] = target;
+		if (p.rtpStream[i] != NO_STREAM) {
+			RTPStreamer.INSTANCE.redirect(p.rtpStream[i], target);
+		} else if (RTPStreamer.INSTANCE.isStreaming()) {
+			p.rtpStream[i] = RTPStreamer.INSTANCE.add(target);
+		}
+	}
+
+	/**
+	 * Plays audio to the address in the last SDP received, in place of anything the call was already playing. If no
+	 * SDP has been received, there's nowhere to play it and nothing is sent.
+	 *
+	 * @return whether the audio is playing
+	 */
+	public synchronized boolean play(RTPStreamer.Audio audio) {
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		if (p.remoteMedia[i] == null) {
+			return false;
+		}
+		if (p.rtpStream[i] != NO_STREAM) {
+			RTPStreamer.INSTANCE.remove(p.rtpStream[i]);
+		}
+		p.rtpStream[i] = RTPStreamer.INSTANCE.add(audio, p.remoteMedia[i]);
+		return true;
+	}
+
 	private CallPhase getCurrentPhase() {
-		return this.phases.get(this.phaseIndex);
+		return profile().phases.get(getPhaseIndex());
 	}
 
 	private void nextPhase() {
-		this.timeoutEnds = NO_TIMEOUT;
-		this.phaseIndex += 1;
+		CallStore.Page p = page();
+		int i = CallStore.index(this.slot);
+		p.timeoutEnds[i] = NO_TIMEOUT;
+		p.phaseIndex[i] += 1;
 	}
 
 	InetSocketAddress getRemoteAddress() throws IOException {
-		return (InetSocketAddress) this.sm.getdest(callNumber);
+		return (InetSocketAddress) profile().sm.getdest(getNumber());
 	}
 
 	InetSocketAddress getLocalAddress() throws IOException {
-		return (InetSocketAddress) this.sm.getaddr(callNumber);
+		return (InetSocketAddress) profile().sm.getaddr(getNumber());
 	}
 }
@@ -4,28 +4,98 @@ import io.netty.util.Timeout;
 import io.netty.util.Timer;
 import io.netty.util.TimerTask;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
 import uk.me.rkd.jsipp.runtime.network.SocketManager;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
 
+/**
+ * Starts new calls at the times given by an ArrivalProcess. Each call is opened when it is due rather than once per
+ * timer tick, so calls are spread evenly even when several arrive within a tick. Each call runs a scenario picked from
+ * the ScenarioMix, so the scenarios share the arrival process, the limits, the sockets and the timers.
+ *
+ * The number of calls in progress can be capped (-l), as can the total number started (-m). A call that becomes due
+ * while at the cap waits until another ends, and then the catch-up policy applies to it like any other overdue call.
+ * In closed-loop mode the arrival process is ignored, and a new call is started as soon as any call ends, keeping the
+ * cap's worth of calls in progress.
+ *
+ * Once a second, the number of calls that were due and the number actually opened are published as a CALL_RATE event,
+ * along with how many are in progress, and a SCENARIO_RATE event gives each scenario's share.
+ */
 public class CallOpeningTask implements TimerTask {
 
-	private final Scenario scenario;
+	/**
+	 * What to do with calls that are already overdue when the task wakes up, because the generator has fallen behind.
+	 */
+	public enum CatchUp {
+		/** Open them all straight away */
+		BURST,
+		/** Drop calls more than SKIP_AFTER late, and count them as missed */
+		SKIP,
+		/** Open them at no more than twice the normal rate until back on schedule */
+		LIMITED;
+
+		public static CatchUp fromString(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	// Calls due this soon are opened now rather than sleeping for such a short time
+	private static final long SLACK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long SKIP_AFTER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// How soon to try again after failing to open calls
+	private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final ScenarioMix scenarios;
+	private final int[] openedPerScenario;
 	private final SocketManager socketManager;
 	private int callNum = 0;
-	private int callsSinceLastRateChange = 0;
 	private Timer handle;
-	private long lastRateChangeTime;
 	private double rate;
-	private boolean finished = false;
+	private ArrivalProcess arrivals;
+	private CatchUp catchUp = CatchUp.BURST;
+	private volatile boolean finished = false;
+	private boolean exhausted = false;
+	private Timeout pending;
+	private int maxConcurrent = 0;
+	private long maxTotal = 0;
+	private boolean closedLoop = false;
+	private long totalOpened = 0;
+	private boolean socketFailureReported = false;
+	// Updated by calls ending on any thread, so kept outside the lock
+	private final AtomicInteger inFlight = new AtomicInteger();
+	// Set while calls are due but held back by the cap, so that the next call to end wakes us
+	private final AtomicBoolean waiting = new AtomicBoolean();
+	// When the next call is due, from System.nanoTime(), or 0 before the first run
+	private long nextArrival = 0;
+	private long lastGap;
+	private long lastWake = 0;
+	private long periodStart = 0;
+	private int dueInPeriod = 0;
+	private int openedInPeriod = 0;
+	private int missedInPeriod = 0;
 	private Map<String, String> globalVariables;
 	private static CallOpeningTask INSTANCE;
 
 	public static CallOpeningTask getInstance(Scenario scenario, SocketManager socketManager, double rate, Timer timer) {
+		return getInstance(ScenarioMix.single(scenario), socketManager, rate, timer);
+	}
+
+	/**
+	 * @param rate
+	 *            the calls per second across all the scenarios, shared out by their weights
+	 */
+	public static CallOpeningTask getInstance(ScenarioMix scenarios, SocketManager socketManager, double rate,
+	        Timer timer) {
 		if (INSTANCE == null) {
-			INSTANCE = new CallOpeningTask(scenario, socketManager, rate, timer);
+			INSTANCE = new CallOpeningTask(scenarios, socketManager, rate, timer);
 		}
 		return INSTANCE;
 	}
@@ -38,19 +108,71 @@ public class CallOpeningTask implements TimerTask {
 		INSTANCE = null;
 	}
 
-	private CallOpeningTask(Scenario scenario, SocketManager socketManager, double rate, Timer timer) {
-		this.scenario = scenario;
-		this.lastRateChangeTime = System.currentTimeMillis();
+	private CallOpeningTask(ScenarioMix scenarios, SocketManager socketManager, double rate, Timer timer) {
+		this.scenarios = scenarios;
+		this.openedPerScenario = new int[scenarios.size()];
 		this.socketManager = socketManager;
 		this.rate = rate;
+		this.arrivals = new Arrivals.Constant(rate);
+		this.lastGap = Arrivals.gapAt(rate);
 		this.handle = timer;
-		// TODO Auto-generated constructor stub
 	}
 
+	/**
+	 * Replaces the default of evenly spaced calls at the configured rate. Must be called before the task first runs.
+	 */
+	public synchronized void setArrivals(ArrivalProcess arrivals) {
+		this.arrivals = arrivals;
+		this.arrivals.setRate(this.rate);
+	}
+
+	public synchronized void setCatchUp(CatchUp catchUp) {
+		this.catchUp = catchUp;
+	}
+
+	/**
+	 * @param maxConcurrent
+	 *            the most calls in progress at once, or 0 for no limit
+	 * @param maxTotal
+	 *            the most calls to start, or 0 for no limit
+	 * @param closedLoop
+	 *            whether to start a new call whenever one ends rather than following the arrival process
+	 */
+	public synchronized void setLimits(int maxConcurrent, long maxTotal, boolean closedLoop) {
+		if (closedLoop && maxConcurrent <= 0) {
+			throw new IllegalArgumentException("Closed-loop mode needs a limit on concurrent calls");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxTotal = maxTotal;
+		this.closedLoop = closedLoop;
+	}
+
+	/**
+	 * @return the number of calls started and not yet ended
+	 */
+	public int getCallsInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * Changes the rate from the next call on. If that call was due later than it would be at the new rate, it is
+	 * brought forward.
+	 */
 	public synchronized void setRate(double rate) {
 		this.rate = rate;
-		this.lastRateChangeTime = System.currentTimeMillis();
-		this.callsSinceLastRateChange = 0;
+		this.arrivals.setRate(rate);
+		if (this.nextArrival == 0 || this.exhausted || this.finished) {
+			return;
+		}
+		long now = System.nanoTime();
+		long gap = Arrivals.gapAt(rate);
+		if (this.nextArrival - now > gap) {
+			this.nextArrival = now + gap;
+			this.lastGap = gap;
+			if (this.pending != null && this.pending.cancel()) {
+				this.pending = this.handle.newTimeout(this, gap, TimeUnit.NANOSECONDS);
+			}
+		}
 	}
 
 	public synchronized double getRate() {
@@ -66,31 +188,182 @@ public class CallOpeningTask implements TimerTask {
 		if (finished) {
 			return;
 		}
+		long delay = -1;
 		try {
-			long runtime = System.currentTimeMillis() - this.lastRateChangeTime;
-			double callsPerMs = (this.rate / 1000.0);
-			double msPerCall = 1 / callsPerMs;
-			long expectedCalls = (long) (runtime * callsPerMs);
-			long callstoStart = expectedCalls - this.callsSinceLastRateChange;
-			//System.out.println(callstoStart);
-			timeout.timer().newTimeout(this, (long) msPerCall, TimeUnit.MILLISECONDS);
-			for (int i = 0; i < callstoStart; i++) {
-				Call call = new Call(this.callNum, Integer.toString(this.callNum), this.scenario.getName(), this.scenario.phases(),
-				        this.socketManager, this.handle);
-				call.registerSocket();
-				call.reschedule(0);
-				this.callNum += 1;
-				this.callsSinceLastRateChange += 1;
+			long now = System.nanoTime();
+			if (this.nextArrival == 0) {
+				this.nextArrival = now;
+				this.periodStart = now;
+				advance();
+			}
+			if (this.closedLoop) {
+				while (!this.exhausted && admit()) {
+					openCall();
+					this.dueInPeriod += 1;
+				}
+				if (now - this.periodStart >= REPORT_INTERVAL_NANOS) {
+					report(now);
+				}
+				// The next call to end wakes us
+				return;
 			}
+			int budget = Integer.MAX_VALUE;
+			if (this.catchUp == CatchUp.LIMITED && this.lastWake != 0) {
+				budget = (int) Math.min(Integer.MAX_VALUE, Math.max(1, 2 * (now - this.lastWake) / Math.max(1, this.lastGap)));
+			}
+			this.lastWake = now;
+
+			int opened = 0;
+			boolean blocked = false;
+			while (!this.exhausted && this.nextArrival - now <= SLACK_NANOS) {
+				if (this.catchUp == CatchUp.SKIP && now - this.nextArrival > SKIP_AFTER_NANOS) {
+					this.missedInPeriod += 1;
+				} else if (opened >= budget) {
+					break;
+				} else if (!admit()) {
+					blocked = true;
+					break;
+				} else {
+					openCall();
+					opened += 1;
+				}
+				this.dueInPeriod += 1;
+				advance();
+			}
+
+			if (now - this.periodStart >= REPORT_INTERVAL_NANOS) {
+				report(now);
+			}
+			if (this.exhausted || blocked) {
+				// Either we're done, or the next call to end wakes us
+				return;
+			}
+			// When the catch-up budget ran out, come back after one normal gap to open the next batch
+			delay = (opened >= budget) ? this.lastGap : Math.max(0, this.nextArrival - now);
 		} catch (Exception e) {
 			e.printStackTrace();
+			// Try again shortly, rather than never opening another call
+			delay = this.exhausted ? -1 : Math.max(this.lastGap, RETRY_NANOS);
+		}
+		if (delay >= 0) {
+			if (this.pending != null && this.pending != timeout) {
+				// We were woken by a call ending, so drop the wake-up we had already scheduled
+				this.pending.cancel();
+			}
+			this.pending = timeout.timer().newTimeout(this, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Checks whether the limits allow another call to start. If not, and only the concurrent call limit is in the way,
+	 * the next call to end will wake us.
+	 */
+	private boolean admit() {
+		if (this.maxTotal > 0 && this.totalOpened >= this.maxTotal) {
+			this.exhausted = true;
+			return false;
+		}
+		if (this.maxConcurrent <= 0 || this.inFlight.get() < this.maxConcurrent) {
+			return true;
+		}
+		this.waiting.set(true);
+		// A call may have ended between the check and setting the flag, in which case it didn't wake us
+		return this.inFlight.get() < this.maxConcurrent && this.waiting.compareAndSet(true, false);
+	}
+
+	/**
+	 * Called by each call as it ends. Doesn't take the lock, as the call holds its own.
+	 */
+	void callEnded() {
+		this.inFlight.decrementAndGet();
+		if (this.waiting.compareAndSet(true, false) && !this.finished) {
+			this.handle.newTimeout(this, 0, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void advance() {
+		long gap = this.arrivals.nextGap();
+		if (gap < 0) {
+			this.exhausted = true;
+		} else {
+			this.nextArrival += gap;
+			this.lastGap = gap;
+		}
+	}
+
+	private void openCall() {
+		int which = this.scenarios.next();
+		Scenario scenario = this.scenarios.get(which);
+		Call call = new Call(this.callNum, Integer.toString(this.callNum), scenario.getName(), scenario.phases(),
+		        this.socketManager, this.handle);
+		this.callNum += 1;
+		this.openedInPeriod += 1;
+		this.openedPerScenario[which] += 1;
+		this.totalOpened += 1;
+		// Counted before it can end, or it could be uncounted first
+		this.inFlight.incrementAndGet();
+		try {
+			call.registerSocket();
+		} catch (IOException e) {
+			if (!this.socketFailureReported) {
+				this.socketFailureReported = true;
+				System.err.println("Can't open a socket for a call, so it fails (only warning once): " + e);
+			}
+			call.abandon();
+			return;
+		}
+		call.reschedule(0);
+	}
+
+	private void report(long now) {
+		double seconds = (now - this.periodStart) / 1e9;
+		String timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
+		Statistics.INSTANCE.report(StatType.CALL_RATE, timestamp,
+		                           String.format("%.2f", this.dueInPeriod / seconds),
+		                           String.format("%.2f", this.openedInPeriod / seconds),
+		                           Integer.toString(this.missedInPeriod), Integer.toString(this.inFlight.get()),
+		                           Integer.toString(this.maxConcurrent));
+		for (int i = 0; i < this.openedPerScenario.length; i++) {
+			Statistics.INSTANCE.report(StatType.SCENARIO_RATE, timestamp, this.scenarios.get(i).getName(),
+			                           String.format("%.2f", this.dueInPeriod * this.scenarios.share(i) / seconds),
+			                           String.format("%.2f", this.openedPerScenario[i] / seconds));
+			this.openedPerScenario[i] = 0;
 		}
+		this.periodStart = now;
+		this.dueInPeriod = 0;
+		this.openedInPeriod = 0;
+		this.missedInPeriod = 0;
 	}
 
+	/**
+	 * @return a call running the first scenario, or null if the limits don't allow another
+	 */
 	public synchronized Call newUAS(String callId) {
-		Call call = new Call(this.callNum, callId, this.scenario.getName(), this.scenario.phases(), this.socketManager, this.handle);
-		this.handle.newTimeout(call, 10, TimeUnit.MILLISECONDS);
+		return newUAS(callId, 0);
+	}
+
+	/**
+	 * @return a call for a new incoming dialog, running the scenario that expects msg, or null if none does or the
+	 *         limits don't allow another
+	 */
+	public synchronized Call newUAS(ReceivedMessage msg) {
+		int which = this.scenarios.forIncoming(msg);
+		return (which < 0) ? null : newUAS(msg.getCallId(), which);
+	}
+
+	private Call newUAS(String callId, int which) {
+		if ((this.maxTotal > 0 && this.totalOpened >= this.maxTotal)
+		        || (this.maxConcurrent > 0 && this.inFlight.get() >= this.maxConcurrent)) {
+			return null;
+		}
+		Scenario scenario = this.scenarios.get(which);
+		Call call = new Call(this.callNum, callId, scenario.getName(), scenario.phases(), this.socketManager, this.handle);
 		this.callNum += 1;
+		this.openedInPeriod += 1;
+		this.openedPerScenario[which] += 1;
+		this.totalOpened += 1;
+		this.inFlight.incrementAndGet();
+		this.handle.newTimeout(call, 10, TimeUnit.MILLISECONDS);
 		return call;
 	}
 }
@@ -0,0 +1,245 @@
+package uk.me.rkd.jsipp.runtime;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.compiler.actions.PlayPcapAudio;
+import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.compiler.phases.SendPhase;
+import uk.me.rkd.jsipp.runtime.network.SocketManager;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+/**
+ * Holds the state of every live call in preallocated arrays, indexed by a slot number, so that a Call object is just a
+ * slot. Slots are allocated in pages of PAGE_SIZE and recycled when a call ends.
+ *
+ * Each slot is only read and written by its Call, under the Call's lock; allocating and freeing slots is done under
+ * the store's lock, which orders one owner's writes to a slot before the next owner's.
+ *
+ * What every call of a scenario shares - the phases, socket manager and timer - is kept once, as a Profile, and each
+ * slot stores only the profile's index.
+ */
+public class CallStore {
+
+	public static final CallStore INSTANCE = new CallStore();
+
+	static final int PAGE_BITS = 12;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	// Assume compressed references below a 32 GB heap, as HotSpot does by default
+	private static final int REF_SIZE = (Runtime.getRuntime().maxMemory() < (32L << 30)) ? 4 : 8;
+
+	/**
+	 * The state shared by all calls of a scenario.
+	 */
+	static final class Profile {
+		final String scenarioName;
+		final List<CallPhase> phases;
+		final SocketManager sm;
+		final Timer timer;
+		// Whether any message sent uses [last_*] keywords, so calls have to keep the last message received
+		final boolean keepLastMessage;
+		// Whether sends with a retrans attribute are retransmitted, which they aren't over TCP
+		final boolean retransmit;
+		// How statistics events identify the scenario
+		final int statsId;
+		// Where the scenario's call lengths and response times are recorded
+		final Latencies.ScenarioLatencies latency;
+		// Whether any phase plays a capture, so calls have to keep the media address from the SDP they receive
+		final boolean playsAudio;
+		// Where the jitter and loss of the RTP the scenario's calls receive is recorded
+		final RTPStats.ScenarioRTP rtp;
+
+		Profile(String scenarioName, List<CallPhase> phases, SocketManager sm, Timer timer) {
+			this.scenarioName = scenarioName;
+			this.phases = phases;
+			this.sm = sm;
+			this.timer = timer;
+			boolean keep = false;
+			for (CallPhase phase : phases) {
+				if (phase instanceof SendPhase && ((SendPhase) phase).template.usesLastHeaders()) {
+					keep = true;
+				}
+			}
+			this.keepLastMessage = keep;
+			this.retransmit = !sm.isReliable();
+			this.statsId = Statistics.INSTANCE.scenarioId(scenarioName);
+			this.latency = Latencies.INSTANCE.forScenario(scenarioName, phases);
+			this.playsAudio = PlayPcapAudio.isUsedBy(phases);
+			this.rtp = RTPStats.INSTANCE.forScenario(scenarioName);
+		}
+
+		boolean matches(String scenarioName, List<CallPhase> phases, SocketManager sm, Timer timer) {
+			return this.phases == phases && this.sm == sm && this.timer == timer
+			        && this.scenarioName.equals(scenarioName);
+		}
+	}
+
+	static final class Page {
+		final int[] callNumber = new int[PAGE_SIZE];
+		final int[] phaseIndex = new int[PAGE_SIZE];
+		final long[] timeoutEnds = new long[PAGE_SIZE];
+		final char[] mediaPort = new char[PAGE_SIZE];
+		final char[] profile = new char[PAGE_SIZE];
+		// Only set when the Call-ID isn't just the call number
+		final String[] callId = new String[PAGE_SIZE];
+		final ReceivedMessage[] lastMessage = new ReceivedMessage[PAGE_SIZE];
+		final Timeout[] timeout = new Timeout[PAGE_SIZE];
+		// When the last message sent is next due to be retransmitted, or 0 if it isn't
+		final long[] retransAt = new long[PAGE_SIZE];
+		final int[] retransInterval = new int[PAGE_SIZE];
+		final char[] retransPhase = new char[PAGE_SIZE];
+		final byte[] retransLeft = new byte[PAGE_SIZE];
+		// The Via branch of the message being retransmitted, so that it can be rendered again identically
+		final String[] retransBranch = new String[PAGE_SIZE];
+		// System.nanoTime() when the call started, and when it last sent a message (or 0 if it hasn't)
+		final long[] startedAt = new long[PAGE_SIZE];
+		final long[] lastSentAt = new long[PAGE_SIZE];
+		// MAX_RTDS per slot: System.nanoTime() when each RTD timer was last started, or 0 to run from the call's start
+		final long[] rtdStartedAt = new long[PAGE_SIZE * Scenario.MAX_RTDS];
+		// A bit per RTD timer that has been measured and shouldn't be again
+		final byte[] rtdDone = new byte[PAGE_SIZE];
+		// The RTP stream the call is playing, or Call.NO_STREAM if it isn't
+		final int[] rtpStream = new int[PAGE_SIZE];
+		// Where the last SDP received said to send audio, if the call keeps it
+		final InetSocketAddress[] remoteMedia = new InetSocketAddress[PAGE_SIZE];
+	}
+
+	private volatile Page[] pages = new Page[0];
+	private final List<Profile> profiles = new ArrayList<Profile>();
+	private volatile Profile[] profileTable = new Profile[0];
+	private int[] freeSlots = new int[PAGE_SIZE];
+	private int freeCount = 0;
+	private int nextSlot = 0;
+	private int inUse = 0;
+	private int peak = 0;
+
+	CallStore() {
+	}
+
+	/**
+	 * @return a free slot, with its profile set and the rest of its state cleared
+	 */
+	synchronized int allocate(String scenarioName, List<CallPhase> phases, SocketManager sm, Timer timer) {
+		int slot;
+		if (this.freeCount > 0) {
+			slot = this.freeSlots[--this.freeCount];
+		} else {
+			slot = this.nextSlot++;
+			if ((slot >> PAGE_BITS) == this.pages.length) {
+				addPage();
+			}
+		}
+		this.inUse++;
+		this.peak = Math.max(this.peak, this.inUse);
+		Page p = page(slot);
+		int i = slot & PAGE_MASK;
+		p.phaseIndex[i] = 0;
+		p.timeoutEnds[i] = Call.NO_TIMEOUT;
+		p.mediaPort[i] = 0;
+		p.retransAt[i] = 0;
+		p.lastSentAt[i] = 0;
+		p.rtdDone[i] = 0;
+		p.rtpStream[i] = Call.NO_STREAM;
+		for (int r = i * Scenario.MAX_RTDS; r < (i + 1) * Scenario.MAX_RTDS; r++) {
+			p.rtdStartedAt[r] = 0;
+		}
+		p.profile[i] = (char) profileIndex(scenarioName, phases, sm, timer);
+		return slot;
+	}
+
+	/**
+	 * Returns the slot for reuse, dropping its references so they can be collected.
+	 */
+	synchronized void release(int slot) {
+		Page p = page(slot);
+		int i = slot & PAGE_MASK;
+		p.callId[i] = null;
+		p.lastMessage[i] = null;
+		p.timeout[i] = null;
+		p.retransBranch[i] = null;
+		p.remoteMedia[i] = null;
+		if (this.freeCount == this.freeSlots.length) {
+			int[] bigger = new int[this.freeSlots.length * 2];
+			System.arraycopy(this.freeSlots, 0, bigger, 0, this.freeCount);
+			this.freeSlots = bigger;
+		}
+		this.freeSlots[this.freeCount++] = slot;
+		this.inUse--;
+	}
+
+	private void addPage() {
+		Page[] bigger = new Page[this.pages.length + 1];
+		System.arraycopy(this.pages, 0, bigger, 0, this.pages.length);
+		bigger[this.pages.length] = new Page();
+		this.pages = bigger;
+	}
+
+	private int profileIndex(String scenarioName, List<CallPhase> phases, SocketManager sm, Timer timer) {
+		for (int i = this.profiles.size() - 1; i >= 0; i--) {
+			if (this.profiles.get(i).matches(scenarioName, phases, sm, timer)) {
+				return i;
+			}
+		}
+		if (this.profiles.size() > Character.MAX_VALUE) {
+			throw new IllegalStateException("Too many distinct call profiles");
+		}
+		this.profiles.add(new Profile(scenarioName, phases, sm, timer));
+		this.profileTable = this.profiles.toArray(new Profile[this.profiles.size()]);
+		return this.profiles.size() - 1;
+	}
+
+	Page page(int slot) {
+		return this.pages[slot >> PAGE_BITS];
+	}
+
+	static int index(int slot) {
+		return slot & PAGE_MASK;
+	}
+
+	Profile profile(Page p, int i) {
+		return this.profileTable[p.profile[i]];
+	}
+
+	/**
+	 * @return the number of calls currently holding a slot
+	 */
+	public synchronized int size() {
+		return this.inUse;
+	}
+
+	/**
+	 * @return the most calls that have held slots at once
+	 */
+	public synchronized int peak() {
+		return this.peak;
+	}
+
+	/**
+	 * @return the bytes of array space each slot takes
+	 */
+	static int bytesPerSlot() {
+		return 4 + 4 + 8 + 2 + 2 + 3 * REF_SIZE + (8 + 4 + 2 + 1 + REF_SIZE) + 8 + 8 + 8 * Scenario.MAX_RTDS + 1 + 4 + REF_SIZE;
+	}
+
+	/**
+	 * @return the heap used per call by its slot and its Call object, not counting its pending timeout, its entries in
+	 *         the socket manager's maps, or a kept message
+	 */
+	public static int bytesPerCall() {
+		int callObject = (REF_SIZE == 4) ? 16 : 24;
+		return bytesPerSlot() + callObject;
+	}
+
+	/**
+	 * @return the heap reserved for call slots, in bytes
+	 */
+	public long capacityBytes() {
+		return (long) this.pages.length * PAGE_SIZE * bytesPerSlot();
+	}
+}
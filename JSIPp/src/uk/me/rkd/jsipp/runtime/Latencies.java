@@ -0,0 +1,271 @@
+package uk.me.rkd.jsipp.runtime;
+
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.compiler.phases.RecvPhase;
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+/**
+ * Measures call lengths and response times in-process, per scenario, so that tail latencies don't have to be pieced
+ * together from the per-call events. The response time of a recv phase is the time from the last message the call
+ * sent to the message that matched; the call length is the time from the call starting to it succeeding. Named RTD
+ * timers measure between whichever phases the scenario chooses with start_rtd and rtd, as in SIPp; a timer that is
+ * stopped without having been started runs from the start of the call.
+ *
+ * Once a second, everything measured so far is published through Statistics, in microseconds, as
+ * "LATENCY:timestamp:scenario:what:count:p50:p99:p99.9:max", where what is "call", a phase index or "rtd_" and the
+ * timer's name, and where the scenario declares a ResponseTimeRepartition or CallLengthRepartition, as
+ * "REPARTITION:timestamp:scenario:what:bounds:counts", with the bounds in milliseconds and one more count than bounds
+ * for everything above the last. RTD timers are counted against the ResponseTimeRepartition.
+ */
+public class Latencies {
+
+	private static final long REPORT_INTERVAL_MS = 1000;
+
+	public static final Latencies INSTANCE = new Latencies();
+
+	/**
+	 * The recorders for one scenario.
+	 */
+	static final class ScenarioLatencies {
+		final String name;
+		final List<CallPhase> phases;
+		final LatencyRecorder callLength;
+		// Indexed by phase, and only set for recv phases
+		final LatencyRecorder[] responseTime;
+		// Indexed by RTD timer
+		final LatencyRecorder[] rtd;
+		final String[] rtdNames;
+
+		ScenarioLatencies(String name, List<CallPhase> phases, Declared declared) {
+			this.name = name;
+			this.phases = phases;
+			this.callLength = new LatencyRecorder(declared.callLengthRepartition);
+			this.responseTime = new LatencyRecorder[phases.size()];
+			int rtds = 0;
+			for (int i = 0; i < phases.size(); i++) {
+				CallPhase phase = phases.get(i);
+				if (phase instanceof RecvPhase) {
+					this.responseTime[i] = new LatencyRecorder(declared.responseTimeRepartition);
+				}
+				rtds = Math.max(rtds, Math.max(phase.startRtd, phase.stopRtd) + 1);
+			}
+			this.rtd = new LatencyRecorder[rtds];
+			this.rtdNames = new String[rtds];
+			for (int i = 0; i < rtds; i++) {
+				this.rtd[i] = new LatencyRecorder(declared.responseTimeRepartition);
+				this.rtdNames[i] = (i < declared.rtdNames.size()) ? declared.rtdNames.get(i) : Integer.toString(i + 1);
+			}
+		}
+
+		void recordResponseTime(int phase, long nanos) {
+			LatencyRecorder recorder = this.responseTime[phase];
+			if (recorder != null) {
+				recorder.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+			}
+		}
+
+		void recordCallLength(long nanos) {
+			this.callLength.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+
+		void recordRtd(int rtd, long nanos) {
+			this.rtd[rtd].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+	}
+
+	/**
+	 * What a scenario file declares about how its latencies are reported.
+	 */
+	private static final class Declared {
+		final int[] responseTimeRepartition;
+		final int[] callLengthRepartition;
+		final List<String> rtdNames;
+
+		Declared(int[] responseTimeRepartition, int[] callLengthRepartition, List<String> rtdNames) {
+			this.responseTimeRepartition = responseTimeRepartition;
+			this.callLengthRepartition = callLengthRepartition;
+			this.rtdNames = rtdNames;
+		}
+	}
+
+	private static final Declared NOTHING_DECLARED = new Declared(new int[0], new int[0],
+	        Collections.<String> emptyList());
+
+	private final Map<String, Declared> declared = new HashMap<String, Declared>();
+	private final List<ScenarioLatencies> scenarios = new ArrayList<ScenarioLatencies>();
+	private volatile boolean running = false;
+
+	Latencies() {
+	}
+
+	/**
+	 * Takes the repartitions and RTD timer names the scenario declares. Must be called before its first call starts.
+	 */
+	public synchronized void register(Scenario scenario) {
+		this.declared.put(scenario.getName(), new Declared(scenario.getResponseTimeRepartition(),
+		        scenario.getCallLengthRepartition(), scenario.getRtdNames()));
+	}
+
+	/**
+	 * @return the recorders for the named scenario, the same each time for the same scenario
+	 */
+	synchronized ScenarioLatencies forScenario(String name, List<CallPhase> phases) {
+		for (ScenarioLatencies s : this.scenarios) {
+			if (s.phases == phases && s.name.equals(name)) {
+				return s;
+			}
+		}
+		Declared declared = this.declared.get(name);
+		ScenarioLatencies s = new ScenarioLatencies(name, phases, (declared != null) ? declared : NOTHING_DECLARED);
+		this.scenarios.add(s);
+		return s;
+	}
+
+	/**
+	 * Starts the periodic report on the scheduler's first timer.
+	 */
+	public synchronized void start(Scheduler sched) {
+		if (this.running) {
+			return;
+		}
+		this.running = true;
+		sched.getShardTimers()[0].newTimeout(new Reporter(), REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		this.running = false;
+	}
+
+	/**
+	 * Publishes everything measured so far.
+	 */
+	synchronized void report() {
+		String timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
+		for (ScenarioLatencies s : this.scenarios) {
+			publish(timestamp, s.name, "call", s.callLength);
+			for (int i = 0; i < s.responseTime.length; i++) {
+				if (s.responseTime[i] != null) {
+					publish(timestamp, s.name, Integer.toString(i), s.responseTime[i]);
+				}
+			}
+			for (int i = 0; i < s.rtd.length; i++) {
+				publish(timestamp, s.name, "rtd_" + s.rtdNames[i], s.rtd[i]);
+			}
+		}
+	}
+
+	private void publish(String timestamp, String scenario, String which, LatencyRecorder recorder) {
+		LatencyHistogram.Snapshot latency = recorder.collect();
+		if (latency.count() == 0) {
+			return;
+		}
+		Statistics.INSTANCE.report(StatType.LATENCY, timestamp, scenario, which, Long.toString(latency.count()),
+		                           Long.toString(latency.percentile(50)), Long.toString(latency.percentile(99)),
+		                           Long.toString(latency.percentile(99.9)), Long.toString(latency.max()));
+		int[] bounds = recorder.bounds();
+		if (bounds.length > 0) {
+			Statistics.INSTANCE.report(StatType.REPARTITION, timestamp, scenario, which, join(bounds),
+			                           join(recorder.repartition()));
+		}
+	}
+
+	private static String join(int[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			sb.append((i == 0) ? "" : ",").append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	private static String join(long[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			sb.append((i == 0) ? "" : ",").append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return every call length measured so far, across all scenarios
+	 */
+	synchronized LatencyHistogram.Snapshot totalCallLength() {
+		LatencyHistogram.Snapshot total = LatencyHistogram.Snapshot.empty();
+		for (ScenarioLatencies s : this.scenarios) {
+			total = total.merge(s.callLength.collect());
+		}
+		return total;
+	}
+
+	/**
+	 * @return every recv phase's response time measured so far, across all scenarios
+	 */
+	synchronized LatencyHistogram.Snapshot totalResponseTime() {
+		LatencyHistogram.Snapshot total = LatencyHistogram.Snapshot.empty();
+		for (ScenarioLatencies s : this.scenarios) {
+			for (LatencyRecorder recorder : s.responseTime) {
+				if (recorder != null) {
+					total = total.merge(recorder.collect());
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Prints the call lengths and response times measured over the whole run, in milliseconds.
+	 */
+	public synchronized void printSummary(PrintStream out) {
+		for (ScenarioLatencies s : this.scenarios) {
+			summarise(out, s.name + " call length", s.callLength);
+			for (int i = 0; i < s.responseTime.length; i++) {
+				if (s.responseTime[i] != null) {
+					summarise(out, s.name + " phase " + i + " response time", s.responseTime[i]);
+				}
+			}
+			for (int i = 0; i < s.rtd.length; i++) {
+				summarise(out, s.name + " RTD " + s.rtdNames[i], s.rtd[i]);
+			}
+		}
+	}
+
+	private static void summarise(PrintStream out, String what, LatencyRecorder recorder) {
+		LatencyHistogram.Snapshot latency = recorder.collect();
+		if (latency.count() == 0) {
+			return;
+		}
+		out.println(String.format("%s: %d measured, p50 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms", what,
+		                          latency.count(), latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0,
+		                          latency.percentile(99.9) / 1000.0, latency.max() / 1000.0));
+		int[] bounds = recorder.bounds();
+		long[] counts = recorder.repartition();
+		for (int i = 0; i < bounds.length; i++) {
+			out.println(String.format("  %s%dms: %d", (i == 0) ? "0-" : (bounds[i - 1] + "-"), bounds[i], counts[i]));
+		}
+		if (bounds.length > 0) {
+			out.println(String.format("  >%dms: %d", bounds[bounds.length - 1], counts[bounds.length]));
+		}
+	}
+
+	private class Reporter implements TimerTask {
+		@Override
+		public void run(Timeout timeout) {
+			if (!running) {
+				return;
+			}
+			report();
+			timeout.timer().newTimeout(this, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+}
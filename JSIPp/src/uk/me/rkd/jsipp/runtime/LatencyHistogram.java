@@ -0,0 +1,125 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of non-negative values (such as latencies in microseconds) with log-linear buckets: each
+ * power of two is split into 16 equal buckets, so any value is known to within about 6%. Recording is a single atomic
+ * increment, so it can be called from the hot paths of several threads.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	// Values up to 2^40 (about 12 days in microseconds); anything larger is counted in the last bucket
+	private static final int MAX_EXPONENT = 40;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucketFor(long value) {
+		if (value < SUB_COUNT) {
+			return (value < 0) ? 0 : (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + mantissa;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_COUNT) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+		long lowest = (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	public void record(long value) {
+		this.counts.incrementAndGet(bucketFor(value));
+		long current = this.max.get();
+		while (value > current && !this.max.compareAndSet(current, value)) {
+			current = this.max.get();
+		}
+	}
+
+	/**
+	 * Takes the values recorded since the last call and starts again from empty. Values recorded while this runs end up
+	 * in one interval or the other.
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] taken = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			taken[i] = this.counts.getAndSet(i, 0);
+		}
+		return new Snapshot(taken, this.max.getAndSet(0));
+	}
+
+	public static class Snapshot {
+		private final long[] counts;
+		private final long max;
+		private final long total;
+
+		Snapshot(long[] counts, long max) {
+			this.counts = counts;
+			this.max = max;
+			long total = 0;
+			for (long c : counts) {
+				total += c;
+			}
+			this.total = total;
+		}
+
+		/**
+		 * @return a snapshot holding the values of both
+		 */
+		Snapshot merge(Snapshot other) {
+			long[] merged = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				merged[i] = this.counts[i] + other.counts[i];
+			}
+			return new Snapshot(merged, Math.max(this.max, other.max));
+		}
+
+		static Snapshot empty() {
+			return new Snapshot(new long[BUCKETS], 0);
+		}
+
+		public long count() {
+			return this.total;
+		}
+
+		public long max() {
+			return this.max;
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 100
+		 * @return a value that at least this percentage of the recorded values are no larger than, or 0 if nothing was
+		 *         recorded
+		 */
+		public long percentile(double percentile) {
+			if (this.total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(this.total * percentile / 100.0));
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= rank) {
+					return Math.min(highestValueIn(i), this.max);
+				}
+			}
+			return this.max;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in microseconds, recorded into one of several LatencyHistograms picked by the recording thread, so that
+ * threads recording at the same time seldom touch the same counters; reading merges them. Each value is also counted
+ * exactly against a repartition (the bucket boundaries a scenario declares, in milliseconds, as SIPp reports them).
+ *
+ * Reading takes the values recorded since the last read and adds them to a running total, which is what's reported.
+ */
+public class LatencyRecorder {
+
+	private static final int STRIPES = Math.min(64,
+	        Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+	// Keep each stripe's repartition counts on cache lines of their own
+	private static final int PAD = 8;
+
+	private final LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+	private final long[] boundsMicros;
+	private final int stride;
+	private final AtomicLongArray repartition;
+	private LatencyHistogram.Snapshot total = LatencyHistogram.Snapshot.empty();
+	private final long[] repartitionTotal;
+
+	/**
+	 * @param repartitionMs
+	 *            the upper bounds of the repartition buckets in milliseconds, in increasing order, or an empty array
+	 */
+	public LatencyRecorder(int[] repartitionMs) {
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new LatencyHistogram();
+		}
+		this.boundsMicros = new long[repartitionMs.length];
+		for (int i = 0; i < repartitionMs.length; i++) {
+			this.boundsMicros[i] = repartitionMs[i] * 1000L;
+		}
+		// One count per bound, and one for everything above the last
+		int buckets = repartitionMs.length + 1;
+		this.stride = (buckets + PAD - 1) / PAD * PAD;
+		this.repartition = new AtomicLongArray(STRIPES * this.stride);
+		this.repartitionTotal = new long[buckets];
+	}
+
+	public void record(long micros) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		this.stripes[stripe].record(micros);
+		if (this.boundsMicros.length > 0) {
+			int bucket = Arrays.binarySearch(this.boundsMicros, micros);
+			if (bucket < 0) {
+				// Not on a bound, so it belongs with the next one up
+				bucket = -bucket - 1;
+			}
+			this.repartition.incrementAndGet(stripe * this.stride + bucket);
+		}
+	}
+
+	/**
+	 * Adds everything recorded since the last call to the running total.
+	 *
+	 * @return the running total
+	 */
+	public synchronized LatencyHistogram.Snapshot collect() {
+		for (int s = 0; s < STRIPES; s++) {
+			this.total = this.total.merge(this.stripes[s].snapshotAndReset());
+			for (int b = 0; b < this.repartitionTotal.length; b++) {
+				this.repartitionTotal[b] += this.repartition.getAndSet(s * this.stride + b, 0);
+			}
+		}
+		return this.total;
+	}
+
+	/**
+	 * @return the repartition as of the last collect(): the number of values at or below each bound but above the one
+	 *         before, then the number above the last bound
+	 */
+	public synchronized long[] repartition() {
+		return this.repartitionTotal.clone();
+	}
+
+	/**
+	 * @return the repartition bounds, in milliseconds
+	 */
+	public int[] bounds() {
+		int[] ms = new int[this.boundsMicros.length];
+		for (int i = 0; i < ms.length; i++) {
+			ms[i] = (int) (this.boundsMicros[i] / 1000);
+		}
+		return ms;
+	}
+}
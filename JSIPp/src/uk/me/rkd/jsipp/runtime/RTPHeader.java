@@ -0,0 +1,94 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of the RTP header (RFC 3550 section 5.1) of a packet in a buffer, read in place. Unlike RTPPacket.decode() it
+ * copies nothing and allocates nothing, so one instance can be pointed at each packet received in turn.
+ */
+public class RTPHeader {
+
+	private static final int FIXED_LENGTH = 12;
+
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+	private int payloadStart;
+	private int payloadEnd;
+
+	/**
+	 * Points this view at the packet between the buffer's position and its limit.
+	 *
+	 * @return whether it holds a well-formed RTP version 2 packet; if not, the getters mustn't be used
+	 */
+	public boolean wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.start = buffer.position();
+		this.end = buffer.limit();
+		if (this.end - this.start < FIXED_LENGTH) {
+			return false;
+		}
+		int first = buffer.get(this.start) & 0xFF;
+		if ((first >>> 6) != 2) {
+			return false;
+		}
+		int headerLength = FIXED_LENGTH + (first & 0x0F) * 4;
+		if ((first & 0x10) != 0) {
+			// The extension's length is in 32-bit words, after its 4-byte header
+			if (this.end - this.start < headerLength + 4) {
+				return false;
+			}
+			headerLength += 4 + (buffer.getShort(this.start + headerLength + 2) & 0xFFFF) * 4;
+		}
+		int padding = 0;
+		if ((first & 0x20) != 0) {
+			padding = buffer.get(this.end - 1) & 0xFF;
+		}
+		this.payloadStart = this.start + headerLength;
+		this.payloadEnd = this.end - padding;
+		return this.payloadStart <= this.payloadEnd;
+	}
+
+	public boolean marker() {
+		return (this.buffer.get(this.start + 1) & 0x80) != 0;
+	}
+
+	public int payloadType() {
+		return this.buffer.get(this.start + 1) & 0x7F;
+	}
+
+	/**
+	 * @return the sequence number, from 0 to 65535
+	 */
+	public int sequenceNumber() {
+		return this.buffer.getShort(this.start + 2) & 0xFFFF;
+	}
+
+	/**
+	 * @return the RTP timestamp, as an unsigned 32-bit number
+	 */
+	public long timestamp() {
+		return this.buffer.getInt(this.start + 4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return the synchronisation source, as an unsigned 32-bit number
+	 */
+	public long ssrc() {
+		return this.buffer.getInt(this.start + 8) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return where in the buffer the payload starts, after any CSRCs and header extension
+	 */
+	public int payloadOffset() {
+		return this.payloadStart;
+	}
+
+	/**
+	 * @return the payload's length, not counting any padding
+	 */
+	public int payloadLength() {
+		return this.payloadEnd - this.payloadStart;
+	}
+}
@@ -1,66 +1,298 @@
 package uk.me.rkd.jsipp.runtime;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * The receiving end of one RTP stream, keeping what RFC 3550 has a receiver keep: the interarrival jitter of appendix
+ * A.8, in integer RTP timestamp units at the payload type's clock rate, and loss from the sequence numbers as in
+ * appendix A.1, with a bitmap of the last 64 sequence numbers to tell late packets, which fill a gap, from duplicates.
+ *
+ * Once a second the session adds a sample of its jitter and of its loss since the last sample to its scenario's
+ * RTPStats, so that what's published is a distribution per scenario rather than a message per call. It can also write
+ * the RTCP receiver reports to send back to the source.
+ *
+ * A session is only used by the RTP selector thread.
+ */
 public class RTPSession {
 
-	private String id;
-	private RTPPacket lastPacket;
-	private double lastTS;
-	private double jitter = 0;
-	private long lastPrint = 0;
-	private long initialSeqNumber = 0;
-	private long packetsSeen = 0;
-	private long outOfSequencePackets = 0;
-    private DatagramChannel channel;
-
-	public RTPSession(String arbitraryId, DatagramChannel c) {
+	// As RFC 3550 appendix A.1: how far a sequence number can jump ahead, or fall behind, before the source is taken
+	// to have started its numbering again
+	private static final int MAX_DROPOUT = 3000;
+	private static final int MAX_MISORDER = 100;
+	private static final int WINDOW = 64;
+	static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// RFC 3550 section 6.2's minimum time between reports
+	static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+	/** The length of the receiver reports writeReceiverReport() writes */
+	public static final int RR_LENGTH = 32;
+
+	private final String id;
+	private final DatagramChannel channel;
+	private final RTPStats.ScenarioRTP stats;
+	// Our own SSRC, to send receiver reports as
+	private final int ssrc = ThreadLocalRandom.current().nextInt();
+
+	private boolean started = false;
+	private int sourceSsrc;
+	private int clockRate;
+	private long firstArrivalNanos;
+	// The highest sequence number seen, how many times the numbers have wrapped, and a bit for each of the WINDOW
+	// sequence numbers up to it that has been received, the highest in the lowest bit
+	private int maxSeq;
+	private int cycles;
+	private long window;
+	private long expected;
+	private long received;
+	private long reordered;
+	private long duplicates;
+	// The jitter, times 16 as in appendix A.8, and the last packet's transit time
+	private int jitter;
+	private int lastTransit;
+
+	// The counts as they were when last sampled and last reported
+	private long nextSampleNanos;
+	private long sampledExpected;
+	private long sampledReceived;
+	private long sampledReordered;
+	private long sampledDuplicates;
+	private long nextReportNanos;
+	private long reportedExpected;
+	private long reportedReceived;
+	// The middle 32 bits of the NTP timestamp in the last sender report, and when it arrived
+	private int lastSr;
+	private long lastSrNanos;
+
+	public RTPSession(String arbitraryId, DatagramChannel c, RTPStats.ScenarioRTP stats) {
 		this.id = arbitraryId;
 		this.channel = c;
+		this.stats = stats;
 	}
-	
+
 	public String getId() {
-        return id;
-    }
-
-    public DatagramChannel getChannel() {
-        return channel;
-    }
-
-    public void update(RTPPacket packet) {
-		double timestamp = System.currentTimeMillis() / 0.125;
-		if (this.lastPacket != null) {
-		    // Receiving a second or subsequent packet
-            this.packetsSeen++;
-
-			if (lastPacket.getSequenceNumber() > packet.getSequenceNumber()) {
-			    // Packet received out of order - count this but do no other processing
-				this.outOfSequencePackets++;
-			} else {
-			    // Jitter calculations
-	            double deviation = (packet.getTimestamp() - timestamp) - (this.lastPacket.getTimestamp() - this.lastTS);
-	            this.jitter = this.jitter + ((Math.abs(deviation) - this.jitter) / 16);
-			    
-	            // Remember this packet's data
-			    this.lastPacket = packet;
-			    this.lastTS = timestamp;
+		return id;
+	}
+
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return whether a packet that looks like RTP is RTCP multiplexed with it (RFC 5761): a sender report, receiver
+	 *         report, SDES, BYE or APP
+	 */
+	public static boolean isRtcp(ByteBuffer packet) {
+		if (packet.remaining() < 2) {
+			return false;
+		}
+		int type = packet.get(packet.position() + 1) & 0xFF;
+		return type >= 200 && type <= 204;
+	}
+
+	/**
+	 * @return the RTP clock rate of a payload type, as RFC 3551 assigns them, or 8000 for a dynamic one
+	 */
+	static int clockRate(int payloadType) {
+		switch (payloadType) {
+		case 6:
+			return 16000;
+		case 10:
+		case 11:
+			return 44100;
+		case 16:
+			return 11025;
+		case 17:
+			return 22050;
+		case 14:
+		case 25:
+		case 26:
+		case 28:
+		case 31:
+		case 32:
+		case 33:
+		case 34:
+			return 90000;
+		default:
+			return 8000;
+		}
+	}
+
+	/**
+	 * Takes account of a packet received, reading only what it needs from the header so nothing is kept or allocated.
+	 *
+	 * @param arrivalNanos
+	 *            System.nanoTime() when it arrived
+	 */
+	public void update(RTPHeader packet, long arrivalNanos) {
+		int seq = packet.sequenceNumber();
+		if (!this.started) {
+			this.started = true;
+			this.sourceSsrc = (int) packet.ssrc();
+			this.clockRate = clockRate(packet.payloadType());
+			this.firstArrivalNanos = arrivalNanos;
+			this.maxSeq = seq;
+			this.window = 1;
+			this.expected = 1;
+			this.received = 1;
+			this.lastTransit = transit(packet, arrivalNanos);
+			this.nextSampleNanos = arrivalNanos + SAMPLE_INTERVAL_NANOS;
+			this.nextReportNanos = arrivalNanos + REPORT_INTERVAL_NANOS;
+			return;
+		}
+
+		int ahead = (seq - this.maxSeq) & 0xFFFF;
+		if (ahead == 0) {
+			this.duplicates++;
+			return;
+		} else if (ahead < MAX_DROPOUT) {
+			// In order, perhaps after a gap
+			if (seq < this.maxSeq) {
+				this.cycles++;
+			}
+			this.window = (ahead >= WINDOW) ? 1 : (this.window << ahead) | 1;
+			this.maxSeq = seq;
+			this.expected += ahead;
+			this.received++;
+		} else if (ahead > 0x10000 - MAX_MISORDER) {
+			int behind = 0x10000 - ahead;
+			if (behind < WINDOW) {
+				long bit = 1L << behind;
+				if ((this.window & bit) != 0) {
+					this.duplicates++;
+					return;
+				}
+				this.window |= bit;
 			}
+			// Late, so not lost after all
+			this.reordered++;
+			this.received++;
 		} else {
-		    // First packet - set things up
-            this.lastTS = timestamp;
-            this.lastPacket = packet;		    
-			this.initialSeqNumber = packet.getSequenceNumber() - 1;
-            this.packetsSeen = 1;
-        }
-				
-        if ((System.currentTimeMillis() - this.lastPrint) > 250) {
-            String report_timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
-            
-            // Report current jitter, packets received and packets lost/received out of order as a fraction of packets received
-            double packetsLost = 1 - (packetsSeen / (packet.getSequenceNumber() - this.initialSeqNumber));
-            Statistics.INSTANCE.report(Statistics.StatType.RTCP, report_timestamp, this.id, Double.toString(jitter), Long.toString(packetsSeen), Double.toString(packetsLost), Double.toString(outOfSequencePackets / packetsSeen), "0");
-            this.lastPrint = System.currentTimeMillis();
-        }
-	}
-	
+			// Too far to be loss or reordering: the source has started its numbering again, so count on from here
+			this.maxSeq = seq;
+			this.window = 1;
+			this.expected++;
+			this.received++;
+		}
+
+		// Appendix A.8, in integers: J += (|D| - J) / 16, keeping J times 16
+		int transit = transit(packet, arrivalNanos);
+		int d = transit - this.lastTransit;
+		this.lastTransit = transit;
+		if (d < 0) {
+			d = -d;
+		}
+		this.jitter += d - ((this.jitter + 8) >> 4);
+
+		if (arrivalNanos >= this.nextSampleNanos) {
+			sample();
+			this.nextSampleNanos = arrivalNanos + SAMPLE_INTERVAL_NANOS;
+		}
+	}
+
+	/**
+	 * @return the arrival time, in RTP timestamp units since the first packet so it can't overflow, less the RTP
+	 *         timestamp, wrapping as RTP timestamps do
+	 */
+	private int transit(RTPHeader packet, long arrivalNanos) {
+		long arrival = TimeUnit.NANOSECONDS.toMicros(arrivalNanos - this.firstArrivalNanos) * this.clockRate / 1000000;
+		return (int) (arrival - packet.timestamp());
+	}
+
+	/**
+	 * Takes note of an RTCP packet from the source: the time of a sender report, so the next receiver report can say
+	 * how long ago it arrived.
+	 */
+	public void updateRtcp(ByteBuffer packet, long arrivalNanos) {
+		int start = packet.position();
+		if (packet.remaining() >= 16 && (packet.get(start + 1) & 0xFF) == 200) {
+			this.lastSr = packet.getInt(start + 10);
+			this.lastSrNanos = arrivalNanos;
+		}
+	}
+
+	/**
+	 * Adds the last sample to the scenario's statistics, when the stream ends.
+	 */
+	public void finish() {
+		if (this.started) {
+			sample();
+		}
+	}
+
+	private void sample() {
+		long expectedSince = this.expected - this.sampledExpected;
+		long receivedSince = this.received - this.sampledReceived;
+		// Late packets from before the last sample can make it look as if fewer were lost than none
+		long lost = Math.max(0, expectedSince - receivedSince);
+		long lossPpm = (expectedSince > 0) ? lost * 1000000 / expectedSince : 0;
+		if (this.stats != null) {
+			this.stats.sample(jitterMicros(), lossPpm, receivedSince, lost, this.reordered - this.sampledReordered,
+			                  this.duplicates - this.sampledDuplicates);
+		}
+		this.sampledExpected = this.expected;
+		this.sampledReceived = this.received;
+		this.sampledReordered = this.reordered;
+		this.sampledDuplicates = this.duplicates;
+	}
+
+	/**
+	 * @return the jitter in microseconds
+	 */
+	long jitterMicros() {
+		return (this.clockRate == 0) ? 0 : (long) (this.jitter >> 4) * 1000000 / this.clockRate;
+	}
+
+	/**
+	 * @return the packets expected from the sequence numbers but not received, which is negative if more were
+	 *         received than expected
+	 */
+	long cumulativeLost() {
+		return this.expected - this.received;
+	}
+
+	long reordered() {
+		return this.reordered;
+	}
+
+	long duplicates() {
+		return this.duplicates;
+	}
+
+	/**
+	 * @return whether it's time to send a receiver report
+	 */
+	public boolean reportDue(long nowNanos) {
+		return this.started && nowNanos >= this.nextReportNanos;
+	}
+
+	/**
+	 * Writes an RTCP receiver report (RFC 3550 section 6.4.2) with a report block for the source, RR_LENGTH bytes, and
+	 * starts the next reporting interval.
+	 */
+	public void writeReceiverReport(ByteBuffer out, long nowNanos) {
+		long expectedSince = this.expected - this.reportedExpected;
+		long lostSince = expectedSince - (this.received - this.reportedReceived);
+		int fraction = (expectedSince == 0 || lostSince <= 0) ? 0 : (int) Math.min(255, (lostSince << 8)
+		        / expectedSince);
+		// A 24-bit signed count
+		long lost = Math.max(-0x800000, Math.min(0x7FFFFF, cumulativeLost()));
+		long sinceSr = (this.lastSrNanos == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(nowNanos - this.lastSrNanos)
+		        * 65536 / 1000000;
+
+		// Version 2, one report block, packet type RR, and the length in 32-bit words less one
+		out.put((byte) 0x81).put((byte) 201).putShort((short) (RR_LENGTH / 4 - 1));
+		out.putInt(this.ssrc);
+		out.putInt(this.sourceSsrc);
+		out.putInt((fraction << 24) | (int) (lost & 0xFFFFFF));
+		out.putInt((this.cycles << 16) | this.maxSeq);
+		out.putInt(this.jitter >> 4);
+		out.putInt(this.lastSr);
+		out.putInt((int) sinceSr);
+
+		this.reportedExpected = this.expected;
+		this.reportedReceived = this.received;
+		this.nextReportNanos = nowNanos + REPORT_INTERVAL_NANOS;
+	}
 }
@@ -0,0 +1,140 @@
+package uk.me.rkd.jsipp.runtime;
+
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+/**
+ * Jitter and packet loss of the RTP received with -rtp_sink, per scenario. Each RTPSession adds a sample about once a
+ * second, so the distributions are over streams and seconds: one stream with a bad second shows up in the p99 rather
+ * than being averaged away across calls.
+ *
+ * Once a second, everything measured so far is published through Statistics as
+ * "RTP:timestamp:scenario:samples:packets:lost:reordered:duplicates:jitter p50:p99:max:loss p50:p99:max", with the
+ * jitter in microseconds and the loss per sample in parts per million.
+ */
+public class RTPStats {
+
+	private static final long REPORT_INTERVAL_MS = 1000;
+	private static final int PACKETS = 0;
+	private static final int LOST = 1;
+	private static final int REORDERED = 2;
+	private static final int DUPLICATES = 3;
+
+	public static final RTPStats INSTANCE = new RTPStats();
+
+	/**
+	 * What one scenario's streams have received.
+	 */
+	public static final class ScenarioRTP {
+		final String name;
+		final LatencyRecorder jitter = new LatencyRecorder(new int[0]);
+		final LatencyRecorder lossPpm = new LatencyRecorder(new int[0]);
+		final StripedCounters counts = new StripedCounters(4);
+
+		ScenarioRTP(String name) {
+			this.name = name;
+		}
+
+		void sample(long jitterMicros, long lossPpm, long packets, long lost, long reordered, long duplicates) {
+			this.jitter.record(jitterMicros);
+			this.lossPpm.record(lossPpm);
+			this.counts.add(PACKETS, packets);
+			this.counts.add(LOST, lost);
+			this.counts.add(REORDERED, reordered);
+			this.counts.add(DUPLICATES, duplicates);
+		}
+	}
+
+	private final List<ScenarioRTP> scenarios = new ArrayList<ScenarioRTP>();
+	private volatile boolean running = false;
+
+	RTPStats() {
+	}
+
+	/**
+	 * @return the statistics for the named scenario, the same each time for the same scenario
+	 */
+	synchronized ScenarioRTP forScenario(String name) {
+		for (ScenarioRTP s : this.scenarios) {
+			if (s.name.equals(name)) {
+				return s;
+			}
+		}
+		ScenarioRTP s = new ScenarioRTP(name);
+		this.scenarios.add(s);
+		return s;
+	}
+
+	/**
+	 * Starts the periodic report on the scheduler's first timer.
+	 */
+	public synchronized void start(Scheduler sched) {
+		if (this.running) {
+			return;
+		}
+		this.running = true;
+		sched.getShardTimers()[0].newTimeout(new Reporter(), REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		this.running = false;
+	}
+
+	/**
+	 * Publishes everything measured so far.
+	 */
+	synchronized void report() {
+		String timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
+		for (ScenarioRTP s : this.scenarios) {
+			LatencyHistogram.Snapshot jitter = s.jitter.collect();
+			if (jitter.count() == 0) {
+				continue;
+			}
+			LatencyHistogram.Snapshot loss = s.lossPpm.collect();
+			Statistics.INSTANCE.report(StatType.RTP, timestamp, s.name, Long.toString(jitter.count()),
+			                           Long.toString(s.counts.sum(PACKETS)), Long.toString(s.counts.sum(LOST)),
+			                           Long.toString(s.counts.sum(REORDERED)), Long.toString(s.counts.sum(DUPLICATES)),
+			                           Long.toString(jitter.percentile(50)), Long.toString(jitter.percentile(99)),
+			                           Long.toString(jitter.max()), Long.toString(loss.percentile(50)),
+			                           Long.toString(loss.percentile(99)), Long.toString(loss.max()));
+		}
+	}
+
+	/**
+	 * Prints the RTP received over the whole run, with the jitter in milliseconds.
+	 */
+	public synchronized void printSummary(PrintStream out) {
+		for (ScenarioRTP s : this.scenarios) {
+			LatencyHistogram.Snapshot jitter = s.jitter.collect();
+			if (jitter.count() == 0) {
+				continue;
+			}
+			long packets = s.counts.sum(PACKETS);
+			long lost = s.counts.sum(LOST);
+			out.println(String.format("%s RTP: %d packets, %d lost (%.3f%%), %d reordered, %d duplicated, "
+			        + "jitter p50 %.3fms, p99 %.3fms, max %.3fms", s.name, packets, lost,
+			                          (packets + lost == 0) ? 0.0 : 100.0 * lost / (packets + lost),
+			                          s.counts.sum(REORDERED), s.counts.sum(DUPLICATES),
+			                          jitter.percentile(50) / 1000.0, jitter.percentile(99) / 1000.0,
+			                          jitter.max() / 1000.0));
+		}
+	}
+
+	private class Reporter implements TimerTask {
+		@Override
+		public void run(Timeout timeout) {
+			if (!running) {
+				return;
+			}
+			report();
+			timeout.timer().newTimeout(this, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+/**
+ * The scenarios run by one JSIPp instance, each with a weight giving its share of new calls. All the scenarios must be
+ * UAC or all UAS. UAC calls are dealt out in proportion to the weights, interleaved as evenly as possible (smooth
+ * weighted round-robin, so weights of 1 and 3 give B, A, B, B, B, A, B, B...); each UAS call runs the first scenario
+ * whose opening recv matches the message that starts it.
+ */
+public class ScenarioMix {
+
+	private final Scenario[] scenarios;
+	private final double[] weights;
+	private final double[] current;
+	private double totalWeight = 0;
+
+	public ScenarioMix(List<Scenario> scenarios, List<Double> weights) {
+		if (scenarios.isEmpty() || scenarios.size() != weights.size()) {
+			throw new IllegalArgumentException("Need one weight for each of at least one scenario");
+		}
+		this.scenarios = scenarios.toArray(new Scenario[scenarios.size()]);
+		this.weights = new double[this.scenarios.length];
+		this.current = new double[this.scenarios.length];
+		for (int i = 0; i < this.scenarios.length; i++) {
+			if (this.scenarios[i].isUac() != this.scenarios[0].isUac()) {
+				throw new IllegalArgumentException("Scenarios " + this.scenarios[0].getName() + " and "
+				        + this.scenarios[i].getName() + " can't be mixed, as only one of them is a UAC");
+			}
+			if (!(weights.get(i) > 0)) {
+				throw new IllegalArgumentException("The weight of " + this.scenarios[i].getName() + " must be positive");
+			}
+			this.weights[i] = weights.get(i);
+			this.totalWeight += this.weights[i];
+		}
+	}
+
+	public static ScenarioMix single(Scenario scenario) {
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		List<Double> weights = new ArrayList<Double>();
+		scenarios.add(scenario);
+		weights.add(1.0);
+		return new ScenarioMix(scenarios, weights);
+	}
+
+	/**
+	 * @param spec
+	 *            comma-separated scenario files, each optionally followed by @WEIGHT (default 1), such as
+	 *            "register.xml@10,message.xml@15,invite.xml@75"
+	 */
+	public static ScenarioMix fromSpec(String spec) throws ParserConfigurationException, SAXException, IOException {
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		List<Double> weights = new ArrayList<Double>();
+		for (String entry : spec.split(",")) {
+			int at = entry.lastIndexOf('@');
+			String filename = (at < 0) ? entry : entry.substring(0, at);
+			scenarios.add(Scenario.fromXMLFilename(filename.trim()));
+			weights.add((at < 0) ? 1.0 : Double.parseDouble(entry.substring(at + 1).trim()));
+		}
+		return new ScenarioMix(scenarios, weights);
+	}
+
+	public int size() {
+		return this.scenarios.length;
+	}
+
+	public Scenario get(int i) {
+		return this.scenarios[i];
+	}
+
+	/**
+	 * @return the share of all new calls that run scenario i
+	 */
+	public double share(int i) {
+		return this.weights[i] / this.totalWeight;
+	}
+
+	public boolean isUac() {
+		return this.scenarios[0].isUac();
+	}
+
+	public boolean isUas() {
+		return !isUac();
+	}
+
+	/**
+	 * Picks the scenario for the next UAC call. Not thread-safe; CallOpeningTask calls it under its own lock.
+	 *
+	 * @return the index of the scenario
+	 */
+	public int next() {
+		if (this.scenarios.length == 1) {
+			return 0;
+		}
+		int best = 0;
+		for (int i = 0; i < this.scenarios.length; i++) {
+			this.current[i] += this.weights[i];
+			if (this.current[i] > this.current[best]) {
+				best = i;
+			}
+		}
+		this.current[best] -= this.totalWeight;
+		return best;
+	}
+
+	/**
+	 * @return the index of the scenario to run for a new UAS call started by msg, or -1 if none of them expect it
+	 */
+	public int forIncoming(ReceivedMessage msg) {
+		if (this.scenarios.length == 1) {
+			// A lone scenario takes whatever arrives, and the call reports it as unexpected if it doesn't match
+			return 0;
+		}
+		for (int i = 0; i < this.scenarios.length; i++) {
+			List<CallPhase> phases = this.scenarios[i].phases();
+			if (!phases.isEmpty() && phases.get(0).expected(msg)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return every scenario's description, one after the other
+	 */
+	public String forZMQ() {
+		StringBuilder sb = new StringBuilder();
+		for (Scenario scenario : this.scenarios) {
+			sb.append(scenario.forZMQ());
+		}
+		return sb.toString();
+	}
+}
@@ -1,6 +1,5 @@
 package uk.me.rkd.jsipp.runtime;
 
-import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timeout;
 import io.netty.util.Timer;
 import io.netty.util.TimerTask;
@@ -9,17 +8,37 @@ import java.util.concurrent.TimeUnit;
 
 public class Scheduler {
 
-	private HashedWheelTimer timer;
+	private ShardedTimer timer;
 
 	public Scheduler(long milliseconds) {
-		this.timer = new HashedWheelTimer(milliseconds, TimeUnit.MILLISECONDS);
-		this.timer.start();
+		this(milliseconds, 1);
+	}
+
+	/**
+	 * @param milliseconds
+	 *            the tick of each timer wheel
+	 * @param shards
+	 *            the number of timer threads to spread calls over
+	 */
+	public Scheduler(long milliseconds, int shards) {
+		this.timer = new ShardedTimer(milliseconds, TimeUnit.MILLISECONDS, shards);
 	}
 
 	public Timer getTimer() {
 		return this.timer;
 	}
 
+	/**
+	 * @return the timer of each shard, for tasks that have to run on every timer thread
+	 */
+	public Timer[] getShardTimers() {
+		Timer[] timers = new Timer[this.timer.getShards()];
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = this.timer.getShard(i);
+		}
+		return timers;
+	}
+
 	public void stop() {
 		this.timer.stop();
 	}
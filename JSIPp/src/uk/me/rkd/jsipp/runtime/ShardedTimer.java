@@ -0,0 +1,57 @@
+package uk.me.rkd.jsipp.runtime;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Timer spread over several WheelTimers, each with its own thread. A call's timeouts always go to the same shard,
+ * picked by its call number, so calls run in parallel but each one stays on one thread; other tasks (such as the
+ * CallOpeningTask) go to the first shard.
+ */
+public class ShardedTimer implements Timer {
+
+	private final WheelTimer[] shards;
+
+	public ShardedTimer(long tickDuration, TimeUnit unit, int numShards) {
+		this.shards = new WheelTimer[Math.max(1, numShards)];
+		for (int i = 0; i < this.shards.length; i++) {
+			this.shards[i] = new WheelTimer(tickDuration, unit, "jsipp-timer-" + i);
+		}
+	}
+
+	private Timer shardFor(TimerTask task) {
+		if (task instanceof Call && this.shards.length > 1) {
+			int n = ((Call) task).getNumber() % this.shards.length;
+			return this.shards[(n < 0) ? n + this.shards.length : n];
+		}
+		return this.shards[0];
+	}
+
+	@Override
+	public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+		return shardFor(task).newTimeout(task, delay, unit);
+	}
+
+	@Override
+	public Set<Timeout> stop() {
+		Set<Timeout> unprocessed = new HashSet<Timeout>();
+		for (WheelTimer shard : this.shards) {
+			unprocessed.addAll(shard.stop());
+		}
+		return Collections.unmodifiableSet(unprocessed);
+	}
+
+	public int getShards() {
+		return this.shards.length;
+	}
+
+	public Timer getShard(int i) {
+		return this.shards[i];
+	}
+}
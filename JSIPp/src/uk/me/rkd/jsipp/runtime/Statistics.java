@@ -1,26 +1,76 @@
 package uk.me.rkd.jsipp.runtime;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.zeromq.ZMQ;
 
+/**
+ * Publishes statistics over ZeroMQ, and answers rate queries and changes on the control socket.
+ *
+ * Per-call events are recorded as fixed-size binary records in a StatsRing, so recording one allocates nothing and
+ * never blocks; the publisher thread turns them into the colon-separated text that curses.rb reads
+ * ("SIPP-TYPE:timestamp:scenario:call number:call number:phase[:method or status code]", where the Call-ID field is
+ * now the call number) and sends them in multi-part messages of up to BATCH frames. Occasional events with free-form
+ * fields still go through report(), whose queue is also bounded and never waited on. Events that don't fit are dropped
+ * and counted, and the count is published once a second as STATS_DROPPED if it has grown.
+ *
+ * Every recorded event is also counted by type in StripedCounters, which costs an uncontended atomic add, so totals
+ * such as those in the -trace_stat file are available without the ZeroMQ publisher. The sockets and their threads are
+ * only set up by start(); until then record() only counts.
+ */
 public class Statistics {
 
 	public static Statistics INSTANCE = new Statistics();
+
+	/** For events with no phase, such as CALL_BEGIN */
+	public static final int NO_PHASE = -1;
+	/** For events that aren't about a received message */
+	public static final int NO_CODE = 0;
+
+	private static final int RING_SIZE = 1 << 16;
+	private static final int BATCH = 256;
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long DROP_REPORT_INTERVAL_MS = 1000;
+	// Requests are recorded by their index in this table, as negative codes, to keep them apart from status codes
+	private static final String[] METHODS = { "INVITE", "ACK", "BYE", "CANCEL", "OPTIONS", "REGISTER", "MESSAGE",
+	        "INFO", "PRACK", "SUBSCRIBE", "NOTIFY", "UPDATE", "REFER", "PUBLISH" };
+	private static final int OTHER_METHOD = -(METHODS.length + 1);
+	private static final StatType[] TYPES = StatType.values();
+
 	private ZMQ.Socket publisher;
 	ZMQ.Context context;
 	public String scenarioDesc = "";
 	ArrayBlockingQueue<String> toPublish = new ArrayBlockingQueue<String>(1024);
+	private final StatsRing events = new StatsRing(RING_SIZE);
+	private final AtomicLong textDropped = new AtomicLong();
+	private final List<String> scenarioNames = new ArrayList<String>();
+	private volatile String[] scenarioTable = new String[0];
+	private final StripedCounters counts = new StripedCounters(StatType.values().length);
+	private volatile boolean publishing = false;
 
 	public enum StatType {
-		CALL_SUCCESS, CALL_FAILURE, PHASE_SUCCESS, UNEXPECTED_MSG_RECVD, RECV_TIMED_OUT, CALL_BEGIN, RTCP
+		CALL_SUCCESS, CALL_FAILURE, PHASE_SUCCESS, UNEXPECTED_MSG_RECVD, RECV_TIMED_OUT, CALL_BEGIN, RTP, WATCHDOG, GENERATOR_OVERLOADED, CALL_RATE, SCENARIO_RATE, RETRANSMISSION, STATS_DROPPED, LATENCY, REPARTITION
 	}
 
 	private Statistics() {
-		context = ZMQ.context(1);
+	}
 
+	/**
+	 * Opens the ZeroMQ sockets and starts publishing.
+	 */
+	public synchronized void start() {
+		if (this.publishing) {
+			return;
+		}
+		context = ZMQ.context(1);
 		new ReplyThread().start();
 		new PublisherThread().start();
+		this.publishing = true;
 	}
 
 	private class ReplyThread extends Thread {
@@ -44,32 +94,156 @@ public class Statistics {
 	}
 
 	private class PublisherThread extends Thread {
+		private final StatsRing.Event event = new StatsRing.Event();
+		private final List<String> batch = new ArrayList<String>(BATCH);
+		private long lastDropReport = System.currentTimeMillis();
+		private long droppedReported = 0;
+
 		public void run() {
 			publisher = context.socket(ZMQ.PUB);
 			publisher.bind("tcp://*:5556");
 			while (true) {
+				while (this.batch.size() < BATCH && events.poll(this.event)) {
+					this.batch.add(decode(this.event));
+				}
 				String msg;
-				try {
-					msg = Statistics.this.toPublish.take();
-					publisher.send(msg);
-				} catch (InterruptedException e) {
-					// Drop message
+				while (this.batch.size() < BATCH && (msg = toPublish.poll()) != null) {
+					this.batch.add(msg);
+				}
+				reportDrops();
+				if (this.batch.isEmpty()) {
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
 				}
+				int last = this.batch.size() - 1;
+				for (int i = 0; i < last; i++) {
+					publisher.sendMore(this.batch.get(i));
+				}
+				publisher.send(this.batch.get(last));
+				this.batch.clear();
+			}
+		}
+
+		private void reportDrops() {
+			long now = System.currentTimeMillis();
+			if (now - this.lastDropReport < DROP_REPORT_INTERVAL_MS) {
+				return;
+			}
+			this.lastDropReport = now;
+			long dropped = getDropped();
+			if (dropped != this.droppedReported) {
+				this.droppedReported = dropped;
+				this.batch.add("SIPP-" + StatType.STATS_DROPPED + ":" + timestamp(now) + ":" + dropped);
 			}
 		}
 	}
 
+	private static String timestamp(long millis) {
+		return Double.toString(millis % 1000.0);
+	}
+
+	/**
+	 * @return the number used to identify the scenario in recorded events, the same each time for the same name
+	 */
+	public synchronized int scenarioId(String name) {
+		int id = this.scenarioNames.indexOf(name);
+		if (id < 0) {
+			this.scenarioNames.add(name);
+			this.scenarioTable = this.scenarioNames.toArray(new String[this.scenarioNames.size()]);
+			id = this.scenarioNames.size() - 1;
+		}
+		return id;
+	}
+
+	/**
+	 * @return the code for a received request, to pass to record()
+	 */
+	public static int methodCode(String method) {
+		for (int i = 0; i < METHODS.length; i++) {
+			if (METHODS[i].equals(method)) {
+				return -(i + 1);
+			}
+		}
+		return OTHER_METHOD;
+	}
+
+	/**
+	 * @return the method or status code that a code passed to record() stands for
+	 */
+	static String identifier(int code) {
+		if (code > 0) {
+			return Integer.toString(code);
+		} else if (code == OTHER_METHOD) {
+			return "OTHER";
+		}
+		return METHODS[-code - 1];
+	}
+
+	/**
+	 * Records a per-call event, without blocking or allocating. It is dropped if the publisher has fallen too far
+	 * behind.
+	 *
+	 * @param scenario
+	 *            from scenarioId()
+	 * @param phase
+	 *            the phase the event is about, or NO_PHASE
+	 * @param code
+	 *            the status code of a received response, methodCode() of a received request, or NO_CODE
+	 */
+	public void record(StatType type, int scenario, int callNumber, int phase, int code) {
+		this.counts.increment(type.ordinal());
+		if (this.publishing) {
+			this.events.offer(System.currentTimeMillis(), type.ordinal(), scenario, callNumber, phase, code);
+		}
+	}
+
+	/**
+	 * @return how many events of the type have been recorded
+	 */
+	public long count(StatType type) {
+		return this.counts.sum(type.ordinal());
+	}
+
+	/**
+	 * @return the text form of a recorded event, as published
+	 */
+	String decode(StatsRing.Event e) {
+		String[] scenarios = this.scenarioTable;
+		String scenario = (e.scenario >= 0 && e.scenario < scenarios.length) ? scenarios[e.scenario] : "";
+		String callNumber = Integer.toString(e.callNumber);
+		StringBuilder out = new StringBuilder(64);
+		out.append("SIPP-").append(TYPES[e.type]).append(':').append(timestamp(e.timestamp)).append(':')
+		        .append(scenario).append(':').append(callNumber).append(':').append(callNumber);
+		if (e.phase != NO_PHASE) {
+			out.append(':').append(e.phase);
+			if (e.code != NO_CODE) {
+				out.append(':').append(identifier(e.code));
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Publishes an event with free-form fields. Meant for occasional events; per-call ones should use record().
+	 */
 	public void report(StatType statname, String... values) {
+		if (!this.publishing) {
+			return;
+		}
 		StringBuilder out = new StringBuilder(statname.toString());
 		for (String value : values) {
 			out.append(":");
 			out.append(value);
 		}
-		//System.out.println(out.toString());
-		try {
-			toPublish.put("SIPP-" + out.toString());
-		} catch (InterruptedException e) {
-			// Do nothing
+		if (!toPublish.offer("SIPP-" + out.toString())) {
+			this.textDropped.incrementAndGet();
 		}
 	}
+
+	/**
+	 * @return how many events have been dropped because the publisher couldn't keep up
+	 */
+	public long getDropped() {
+		return this.events.dropped() + this.textDropped.get();
+	}
 }
@@ -0,0 +1,137 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+/**
+ * Writes a row of statistics to a file every period, like SIPp's -trace_stat, so that a run's results can be had
+ * without subscribing to the ZeroMQ stream. Fields are separated by semicolons, as in SIPp's _.csv files, and counts
+ * are given for the period (P) and cumulatively (C). Latencies are percentiles of everything measured so far, in
+ * milliseconds.
+ *
+ * The counts come from Statistics' striped counters and the latencies from Latencies, so the calls themselves do no
+ * extra work; the writing is done on a thread of its own, away from the timer and network threads.
+ */
+public class StatsFile extends Thread {
+
+	private static final StatType[] COUNTED = { StatType.CALL_BEGIN, StatType.CALL_SUCCESS, StatType.CALL_FAILURE,
+	        StatType.RECV_TIMED_OUT, StatType.UNEXPECTED_MSG_RECVD, StatType.RETRANSMISSION };
+	private static final String[] COUNTED_NAMES = { "CallsCreated", "SuccessfulCall", "FailedCall",
+	        "FailedTimeoutOnRecv", "FailedUnexpectedMessage", "Retransmissions" };
+	private static final double[] PERCENTILES = { 50, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p99.9" };
+
+	private final PrintWriter out;
+	private final long periodMs;
+	private final long startMs = System.currentTimeMillis();
+	private final long[] last = new long[COUNTED.length];
+	private long lastRowMs = this.startMs;
+	private volatile boolean running = true;
+
+	/**
+	 * @param periodSeconds
+	 *            how often to write a row (-fd)
+	 */
+	public StatsFile(String filename, long periodSeconds) throws IOException {
+		super("StatsFile");
+		setDaemon(true);
+		this.out = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+		this.periodMs = TimeUnit.SECONDS.toMillis(Math.max(1, periodSeconds));
+	}
+
+	public void run() {
+		writeHeader();
+		long next = this.startMs + this.periodMs;
+		while (this.running) {
+			long wait = next - System.currentTimeMillis();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					// Woken by finish() to write the last row
+				}
+				continue;
+			}
+			writeRow();
+			next += this.periodMs;
+		}
+	}
+
+	/**
+	 * Writes a last row for the time since the previous one, and closes the file.
+	 */
+	public void finish() throws InterruptedException {
+		this.running = false;
+		interrupt();
+		join();
+		writeRow();
+		this.out.close();
+	}
+
+	synchronized void writeHeader() {
+		StringBuilder sb = new StringBuilder("StartTime;LastResetTime;CurrentTime;ElapsedTime(P);ElapsedTime(C);");
+		sb.append("TargetRate;CallRate(P);CallRate(C);CurrentCall;");
+		for (String name : COUNTED_NAMES) {
+			sb.append(name).append("(P);").append(name).append("(C);");
+		}
+		for (String name : new String[] { "CallLength", "ResponseTime" }) {
+			for (String p : PERCENTILE_NAMES) {
+				sb.append(name).append('_').append(p).append("(ms);");
+			}
+		}
+		this.out.println(sb);
+		this.out.flush();
+	}
+
+	synchronized void writeRow() {
+		long now = System.currentTimeMillis();
+		long[] counts = new long[COUNTED.length];
+		for (int i = 0; i < COUNTED.length; i++) {
+			counts[i] = Statistics.INSTANCE.count(COUNTED[i]);
+		}
+		double periodSeconds = Math.max(1, now - this.lastRowMs) / 1000.0;
+		double totalSeconds = Math.max(1, now - this.startMs) / 1000.0;
+		CallOpeningTask opener = CallOpeningTask.getInstance();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(date(this.startMs)).append(';').append(date(this.lastRowMs)).append(';').append(date(now))
+		        .append(';');
+		sb.append(format(periodSeconds)).append(';').append(format(totalSeconds)).append(';');
+		sb.append(format((opener != null) ? opener.getRate() : 0)).append(';');
+		sb.append(format((counts[0] - this.last[0]) / periodSeconds)).append(';');
+		sb.append(format(counts[0] / totalSeconds)).append(';');
+		sb.append(CallStore.INSTANCE.size()).append(';');
+		for (int i = 0; i < COUNTED.length; i++) {
+			sb.append(counts[i] - this.last[i]).append(';').append(counts[i]).append(';');
+		}
+		appendPercentiles(sb, Latencies.INSTANCE.totalCallLength());
+		appendPercentiles(sb, Latencies.INSTANCE.totalResponseTime());
+		this.out.println(sb);
+		this.out.flush();
+
+		System.arraycopy(counts, 0, this.last, 0, counts.length);
+		this.lastRowMs = now;
+	}
+
+	private static void appendPercentiles(StringBuilder sb, LatencyHistogram.Snapshot latency) {
+		for (double p : PERCENTILES) {
+			sb.append(format(latency.percentile(p) / 1000.0)).append(';');
+		}
+	}
+
+	private static String format(double value) {
+		return (value == Math.rint(value)) ? Long.toString((long) value) : String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String date(long millis) {
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(millis));
+	}
+}
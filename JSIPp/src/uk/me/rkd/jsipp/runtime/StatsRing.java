@@ -0,0 +1,119 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of fixed-size statistics events, written by any number of threads and read by one. Events are kept
+ * as four longs in a preallocated array, so recording one allocates nothing, and a writer that finds the ring full
+ * drops its event and counts it rather than waiting.
+ *
+ * Each slot has a sequence number saying whose turn it is (as in Dmitry Vyukov's bounded queue): a writer may fill
+ * the slot for position n when its sequence is n, and marks it n + 1 when done; the reader empties it and marks it
+ * n + capacity, ready for the writer one lap later.
+ */
+public class StatsRing {
+
+	/**
+	 * One event, as read from the ring.
+	 */
+	public static final class Event {
+		public long timestamp;
+		public int type;
+		public int scenario;
+		public int callNumber;
+		public int phase;
+		public int code;
+	}
+
+	private static final int RECORD_LONGS = 4;
+
+	private final int capacity;
+	private final int mask;
+	private final long[] records;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// Only touched by the reader
+	private long head = 0;
+
+	/**
+	 * @param capacity
+	 *            the most events held at once, rounded up to a power of two
+	 */
+	public StatsRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.records = new long[size * RECORD_LONGS];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an event, unless the ring is full. Never blocks.
+	 *
+	 * @return whether the event was added
+	 */
+	public boolean offer(long timestamp, int type, int scenario, int callNumber, int phase, int code) {
+		long pos;
+		int slot;
+		while (true) {
+			pos = this.tail.get();
+			slot = (int) pos & this.mask;
+			long seq = this.sequences.get(slot);
+			if (seq == pos) {
+				if (this.tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+			} else if (seq < pos) {
+				// The reader hasn't emptied this slot since the last lap
+				this.dropped.incrementAndGet();
+				return false;
+			}
+			// Otherwise another writer claimed the position first, so try the next one
+		}
+		int base = slot * RECORD_LONGS;
+		this.records[base] = timestamp;
+		this.records[base + 1] = ((long) type << 32) | (scenario & 0xFFFFFFFFL);
+		this.records[base + 2] = ((long) callNumber << 32) | (phase & 0xFFFFFFFFL);
+		this.records[base + 3] = code;
+		this.sequences.lazySet(slot, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest event. Must only be called from one thread.
+	 *
+	 * @return whether there was an event to take, in which case it has been copied into the given one
+	 */
+	public boolean poll(Event into) {
+		int slot = (int) this.head & this.mask;
+		if (this.sequences.get(slot) != this.head + 1) {
+			return false;
+		}
+		int base = slot * RECORD_LONGS;
+		into.timestamp = this.records[base];
+		into.type = (int) (this.records[base + 1] >>> 32);
+		into.scenario = (int) this.records[base + 1];
+		into.callNumber = (int) (this.records[base + 2] >>> 32);
+		into.phase = (int) this.records[base + 2];
+		into.code = (int) this.records[base + 3];
+		this.sequences.lazySet(slot, this.head + this.capacity);
+		this.head++;
+		return true;
+	}
+
+	/**
+	 * @return how many events have been dropped because the ring was full
+	 */
+	public long dropped() {
+		return this.dropped.get();
+	}
+
+	public int capacity() {
+		return this.capacity;
+	}
+}
@@ -0,0 +1,65 @@
+package uk.me.rkd.jsipp.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of counters that many threads can add to at once without fighting over cache lines. Each counter is
+ * spread over several cells, one of which is picked by the adding thread (as LongAdder does, but with the cells laid
+ * out in one preallocated array); reading a counter sums its cells, so it's cheap to add and dearer to read.
+ */
+public class StripedCounters {
+
+	private static final int STRIPES = Math.min(64,
+	        Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+	// Longs per cache line, so each stripe's cells start on a line of their own
+	private static final int LINE = 8;
+
+	private final int counters;
+	private final int stride;
+	private final AtomicLongArray cells;
+
+	public StripedCounters(int counters) {
+		this.counters = counters;
+		this.stride = (counters + LINE - 1) / LINE * LINE;
+		this.cells = new AtomicLongArray(STRIPES * this.stride);
+	}
+
+	public void increment(int counter) {
+		add(counter, 1);
+	}
+
+	public void add(int counter, long delta) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		this.cells.getAndAdd(stripe * this.stride + counter, delta);
+	}
+
+	/**
+	 * @return the counter's total. Additions made while this runs may or may not be included.
+	 */
+	public long sum(int counter) {
+		long total = 0;
+		for (int s = 0; s < STRIPES; s++) {
+			total += this.cells.get(s * this.stride + counter);
+		}
+		return total;
+	}
+
+	/**
+	 * Reads every counter at once, into the given array.
+	 */
+	public void sumAll(long[] into) {
+		for (int c = 0; c < this.counters; c++) {
+			into[c] = 0;
+		}
+		for (int s = 0; s < STRIPES; s++) {
+			int base = s * this.stride;
+			for (int c = 0; c < this.counters; c++) {
+				into[c] += this.cells.get(base + c);
+			}
+		}
+	}
+
+	public int size() {
+		return this.counters;
+	}
+}
@@ -0,0 +1,141 @@
+package uk.me.rkd.jsipp.runtime;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+/**
+ * Checks that JSIPp itself is keeping up, so that timeouts caused by an overloaded generator aren't blamed on the
+ * system under test. A probe on every timer thread reschedules itself each interval and records how late it was woken,
+ * and the network threads record how long each pass over their ready sockets kept others waiting. Timer lateness
+ * includes up to one tick (-timer_resol) of rounding, so the threshold should be well above that.
+ *
+ * Once a second, both lateness histograms are published through Statistics as WATCHDOG events (count, median, 99th
+ * percentile and maximum, in microseconds), and a GENERATOR_OVERLOADED event is published for each whose maximum went
+ * over the threshold.
+ */
+public class Watchdog {
+
+	private static final Logger logger = Logger.getLogger(Watchdog.class);
+	private static final long REPORT_INTERVAL_MS = 1000;
+
+	public static final Watchdog INSTANCE = new Watchdog();
+
+	private final LatencyHistogram timerLateness = new LatencyHistogram();
+	private final LatencyHistogram networkLateness = new LatencyHistogram();
+	private volatile boolean running = false;
+	private volatile long intervalMs;
+	private volatile long thresholdMicros;
+
+	Watchdog() {
+	}
+
+	/**
+	 * Starts a probe on each of the scheduler's timer threads, and the periodic report.
+	 *
+	 * @param intervalMs
+	 *            how often each probe should run
+	 * @param thresholdMs
+	 *            the lateness beyond which the generator is reported as overloaded
+	 */
+	public synchronized void start(Scheduler sched, long intervalMs, long thresholdMs) {
+		if (this.running) {
+			return;
+		}
+		this.intervalMs = Math.max(1, intervalMs);
+		this.thresholdMicros = TimeUnit.MILLISECONDS.toMicros(thresholdMs);
+		this.running = true;
+		Timer[] shards = sched.getShardTimers();
+		for (Timer shard : shards) {
+			new Probe().schedule(shard);
+		}
+		shards[0].newTimeout(new Reporter(), REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		this.running = false;
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * @return how often probes should check their lateness
+	 */
+	public long getIntervalMillis() {
+		return this.intervalMs;
+	}
+
+	/**
+	 * Records how long a network thread spent on one pass, during which sockets that became ready had to wait.
+	 */
+	public void recordNetworkLateness(long nanos) {
+		if (this.running) {
+			this.networkLateness.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+	}
+
+	/**
+	 * Records how long after it was due a probe ran.
+	 */
+	public void recordTimerLateness(long nanos) {
+		if (this.running) {
+			this.timerLateness.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+	}
+
+	/**
+	 * Publishes the lateness recorded since the last report.
+	 */
+	void report() {
+		String timestamp = Double.toString(System.currentTimeMillis() % 1000.0);
+		publish(timestamp, "timer", this.timerLateness.snapshotAndReset());
+		publish(timestamp, "network", this.networkLateness.snapshotAndReset());
+	}
+
+	private void publish(String timestamp, String source, LatencyHistogram.Snapshot lateness) {
+		Statistics.INSTANCE.report(StatType.WATCHDOG, timestamp, source, Long.toString(lateness.count()),
+		                           Long.toString(lateness.percentile(50)), Long.toString(lateness.percentile(99)),
+		                           Long.toString(lateness.max()));
+		if (lateness.max() > this.thresholdMicros) {
+			logger.warn("Generator overloaded: " + source + " threads up to " + lateness.max() / 1000 + "ms late");
+			Statistics.INSTANCE.report(StatType.GENERATOR_OVERLOADED, timestamp, source, Long.toString(lateness.max()));
+		}
+	}
+
+	private class Probe implements TimerTask {
+		private long due;
+
+		void schedule(Timer timer) {
+			this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMs);
+			timer.newTimeout(this, intervalMs, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void run(Timeout timeout) {
+			if (!running) {
+				return;
+			}
+			recordTimerLateness(Math.max(0, System.nanoTime() - this.due));
+			schedule(timeout.timer());
+		}
+	}
+
+	private class Reporter implements TimerTask {
+		@Override
+		public void run(Timeout timeout) {
+			if (!running) {
+				return;
+			}
+			report();
+			timeout.timer().newTimeout(this, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+}
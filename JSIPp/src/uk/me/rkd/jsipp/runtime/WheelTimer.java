@@ -0,0 +1,361 @@
+package uk.me.rkd.jsipp.runtime;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A Timer run by one thread over a hierarchy of four 256-slot wheels, as in the Linux kernel's timer wheel. The first
+ * wheel holds timeouts due in the next 256 ticks, one slot per tick; each wheel above covers 256 times the span of the
+ * one below, and a slot is cascaded down a level when the wheel below wraps. Adding, cancelling and expiring a timeout
+ * are all O(1), however far off it is - a minute-long pause is just moved down a level or two on the way.
+ *
+ * Timeouts never fire early. One that is already due when it is added (such as a call rescheduling itself with no
+ * delay) wakes the thread and is run straight away, and one due before the next tick is kept aside in deadline order
+ * and run at its deadline, so short delays aren't rounded up to a whole tick.
+ */
+public class WheelTimer implements Timer {
+
+	private static final Logger logger = Logger.getLogger(WheelTimer.class);
+
+	private static final int WHEEL_BITS = 8;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 4;
+	// Timeouts further off than the top wheel reaches are put at its far end, and re-placed from there
+	private static final long MAX_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+	private final long tickNanos;
+	private final long startTime;
+	private final Bucket[][] wheels = new Bucket[LEVELS][WHEEL_SIZE];
+	private final Queue<WheelTimeout> pending = new ConcurrentLinkedQueue<WheelTimeout>();
+	private final Queue<WheelTimeout> cancelled = new ConcurrentLinkedQueue<WheelTimeout>();
+	// Timeouts due before the next tick; only touched by the worker thread
+	private final PriorityQueue<WheelTimeout> near = new PriorityQueue<WheelTimeout>(64, new Comparator<WheelTimeout>() {
+		@Override
+		public int compare(WheelTimeout a, WheelTimeout b) {
+			return Long.signum(a.deadline - b.deadline);
+		}
+	});
+	private final Thread worker;
+	private volatile boolean running = true;
+	private volatile boolean parked = false;
+
+	// The next tick to be processed; only touched by the worker thread
+	private long currentTick = 0;
+
+	/**
+	 * @param tickDuration
+	 *            how far apart the ticks are; a timeout may fire up to this much late
+	 * @param name
+	 *            the name of the thread running the timeouts
+	 */
+	public WheelTimer(long tickDuration, TimeUnit unit, String name) {
+		this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+		for (int level = 0; level < LEVELS; level++) {
+			for (int i = 0; i < WHEEL_SIZE; i++) {
+				this.wheels[level][i] = new Bucket();
+			}
+		}
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	@Override
+	public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+		if (!this.running) {
+			throw new IllegalStateException("Timer has been stopped");
+		}
+		long delayNanos = unit.toNanos(delay);
+		WheelTimeout timeout = new WheelTimeout(this, task, System.nanoTime() + delayNanos);
+		this.pending.add(timeout);
+		if (delayNanos < this.tickNanos && this.parked) {
+			LockSupport.unpark(this.worker);
+		}
+		return timeout;
+	}
+
+	@Override
+	public Set<Timeout> stop() {
+		if (Thread.currentThread() == this.worker) {
+			throw new IllegalStateException("A timer can't be stopped by one of its own timeouts");
+		}
+		this.running = false;
+		LockSupport.unpark(this.worker);
+		boolean interrupted = false;
+		while (this.worker.isAlive()) {
+			try {
+				this.worker.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		Set<Timeout> unprocessed = new HashSet<Timeout>();
+		for (Bucket[] wheel : this.wheels) {
+			for (Bucket bucket : wheel) {
+				for (WheelTimeout t = bucket.head; t != null; t = t.next) {
+					if (!t.isCancelled()) {
+						unprocessed.add(t);
+					}
+				}
+			}
+		}
+		for (WheelTimeout t : this.pending) {
+			if (!t.isCancelled()) {
+				unprocessed.add(t);
+			}
+		}
+		for (WheelTimeout t : this.near) {
+			if (!t.isCancelled()) {
+				unprocessed.add(t);
+			}
+		}
+		return Collections.unmodifiableSet(unprocessed);
+	}
+
+	private void work() {
+		while (this.running) {
+			long now = System.nanoTime();
+			drainCancelled();
+			drainPending(now);
+			while (!this.near.isEmpty() && this.near.peek().deadline - now <= 0) {
+				this.near.poll().expire();
+			}
+			while (tickTime(this.currentTick) - now <= 0) {
+				processTick();
+			}
+
+			long wake = tickTime(this.currentTick);
+			if (!this.near.isEmpty() && this.near.peek().deadline - wake < 0) {
+				wake = this.near.peek().deadline;
+			}
+			long sleep = wake - System.nanoTime();
+			if (sleep > 0) {
+				this.parked = true;
+				// Re-check after publishing that we're about to park, so a timeout added meanwhile isn't missed
+				if (this.pending.isEmpty() && this.running) {
+					LockSupport.parkNanos(this, sleep);
+				}
+				this.parked = false;
+			}
+		}
+	}
+
+	private long tickTime(long tick) {
+		return this.startTime + tick * this.tickNanos;
+	}
+
+	/**
+	 * Places newly added timeouts on the wheels, and runs any that are already due.
+	 */
+	private void drainPending(long now) {
+		WheelTimeout t;
+		while ((t = this.pending.poll()) != null) {
+			if (t.isCancelled()) {
+				continue;
+			}
+			if (t.deadline - now <= 0) {
+				t.expire();
+				continue;
+			}
+			if (t.deadline - tickTime(this.currentTick) < 0) {
+				this.near.add(t);
+				continue;
+			}
+			// Round up, so the timeout's tick is never before its deadline
+			long ticks = (t.deadline - this.startTime + this.tickNanos - 1) / this.tickNanos;
+			t.expires = Math.max(ticks, this.currentTick);
+			place(t);
+		}
+	}
+
+	private void drainCancelled() {
+		WheelTimeout t;
+		while ((t = this.cancelled.poll()) != null) {
+			if (t.bucket != null) {
+				t.bucket.remove(t);
+			}
+		}
+	}
+
+	/**
+	 * Puts a timeout in the lowest wheel whose span covers the time until it expires.
+	 */
+	private void place(WheelTimeout t) {
+		long delta = t.expires - this.currentTick;
+		if (delta > MAX_TICKS) {
+			delta = MAX_TICKS;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+			level++;
+		}
+		long at = this.currentTick + delta;
+		int idx = (int) (at >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+		this.wheels[level][idx].add(t);
+	}
+
+	private void processTick() {
+		long tick = this.currentTick;
+		// When a wheel wraps, bring the next slot of the wheel above down into it, and so on up
+		for (int level = 1; level < LEVELS; level++) {
+			if (((tick >>> (WHEEL_BITS * (level - 1))) & WHEEL_MASK) != 0) {
+				break;
+			}
+			cascade(this.wheels[level][(int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK]);
+		}
+
+		Bucket bucket = this.wheels[0][(int) tick & WHEEL_MASK];
+		this.currentTick = tick + 1;
+		WheelTimeout t;
+		while ((t = bucket.poll()) != null) {
+			if (t.expires > tick) {
+				// Parked at the far end of the top wheel, and not due yet
+				place(t);
+			} else {
+				t.expire();
+			}
+		}
+	}
+
+	private void cascade(Bucket bucket) {
+		WheelTimeout t;
+		while ((t = bucket.poll()) != null) {
+			place(t);
+		}
+	}
+
+	/**
+	 * A doubly-linked list of the timeouts in one slot, so a cancelled timeout can be unlinked in O(1).
+	 */
+	private static final class Bucket {
+		WheelTimeout head;
+		WheelTimeout tail;
+
+		void add(WheelTimeout t) {
+			t.bucket = this;
+			t.prev = this.tail;
+			t.next = null;
+			if (this.tail == null) {
+				this.head = t;
+			} else {
+				this.tail.next = t;
+			}
+			this.tail = t;
+		}
+
+		void remove(WheelTimeout t) {
+			if (t.prev == null) {
+				this.head = t.next;
+			} else {
+				t.prev.next = t.next;
+			}
+			if (t.next == null) {
+				this.tail = t.prev;
+			} else {
+				t.next.prev = t.prev;
+			}
+			t.prev = null;
+			t.next = null;
+			t.bucket = null;
+		}
+
+		WheelTimeout poll() {
+			WheelTimeout t = this.head;
+			if (t != null) {
+				remove(t);
+			}
+			return t;
+		}
+	}
+
+	private static final class WheelTimeout implements Timeout {
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE = AtomicIntegerFieldUpdater.newUpdater(
+		        WheelTimeout.class, "state");
+
+		private final WheelTimer timer;
+		private final TimerTask task;
+		final long deadline;
+		private volatile int state = ST_INIT;
+
+		// Only touched by the worker thread
+		long expires;
+		Bucket bucket;
+		WheelTimeout prev;
+		WheelTimeout next;
+
+		WheelTimeout(WheelTimer timer, TimerTask task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public Timer timer() {
+			return this.timer;
+		}
+
+		@Override
+		public TimerTask task() {
+			return this.task;
+		}
+
+		@Override
+		public boolean isExpired() {
+			return this.state == ST_EXPIRED;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return this.state == ST_CANCELLED;
+		}
+
+		@Override
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+				return false;
+			}
+			// The worker thread unlinks it, so cancelled timeouts don't hold their tasks until they would have fired
+			this.timer.cancelled.add(this);
+			return true;
+		}
+
+		void expire() {
+			if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+				return;
+			}
+			try {
+				this.task.run(this);
+			} catch (Throwable t) {
+				logger.warn("An exception was thrown by " + TimerTask.class.getSimpleName() + ".", t);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import java.nio.charset.Charset;
+
+import uk.me.rkd.jsipp.runtime.Call;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessage;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+/**
+ * A thread-safe map from Call-ID to Call, keyed by the Call-ID's bytes. Received messages are looked up by hashing the
+ * Call-ID where it lies in the message buffer, so routing a message to an existing call never builds a String. Like
+ * IntObjectMap, it is made of independently-locked open-addressing stripes.
+ */
+public class CallIdMap {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int STRIPE_BITS = 6;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Stripe[] stripes;
+
+	public CallIdMap() {
+		this.stripes = new Stripe[1 << STRIPE_BITS];
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * FNV-1a over the bytes, finished with IntObjectMap's mixer so both the stripe and slot bits are well spread.
+	 */
+	static int hash(byte[] buf, int off, int len) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++) {
+			h = (h ^ buf[i]) * 0x01000193;
+		}
+		return IntObjectMap.mix(h);
+	}
+
+	private Stripe stripeFor(int hash) {
+		return this.stripes[hash >>> (32 - STRIPE_BITS)];
+	}
+
+	public Call get(byte[] buf, int off, int len) {
+		int hash = hash(buf, off, len);
+		return stripeFor(hash).get(buf, off, len, hash);
+	}
+
+	public Call get(String callId) {
+		byte[] key = callId.getBytes(UTF8);
+		return get(key, 0, key.length);
+	}
+
+	/**
+	 * Finds the call a received message belongs to, from the Call-ID bytes where the message type allows it.
+	 */
+	public Call get(ReceivedMessage msg) {
+		if (msg instanceof LazyMessage) {
+			LazyMessage lazy = (LazyMessage) msg;
+			return get(lazy.getRawBytes(), lazy.getCallIdOffset(), lazy.getCallIdLength());
+		}
+		return get(msg.getCallId());
+	}
+
+	/**
+	 * @return the call previously stored under this Call-ID, or null
+	 */
+	public Call put(String callId, Call call) {
+		if (call == null) {
+			throw new NullPointerException();
+		}
+		byte[] key = callId.getBytes(UTF8);
+		int hash = hash(key, 0, key.length);
+		return stripeFor(hash).put(key, hash, call);
+	}
+
+	/**
+	 * @return the removed call, or null if there wasn't one
+	 */
+	public Call remove(String callId) {
+		byte[] key = callId.getBytes(UTF8);
+		int hash = hash(key, 0, key.length);
+		return stripeFor(hash).remove(key, hash);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : this.stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	private static boolean keyEquals(byte[] key, byte[] buf, int off, int len) {
+		if (key.length != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (key[i] != buf[off + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Stripe {
+		private byte[][] keys = new byte[INITIAL_CAPACITY][];
+		private int[] hashes = new int[INITIAL_CAPACITY];
+		private Call[] values = new Call[INITIAL_CAPACITY];
+		private int size = 0;
+
+		synchronized int size() {
+			return this.size;
+		}
+
+		synchronized Call get(byte[] buf, int off, int len, int hash) {
+			int mask = this.keys.length - 1;
+			for (int i = hash & mask; this.keys[i] != null; i = (i + 1) & mask) {
+				if (this.hashes[i] == hash && keyEquals(this.keys[i], buf, off, len)) {
+					return this.values[i];
+				}
+			}
+			return null;
+		}
+
+		synchronized Call put(byte[] key, int hash, Call call) {
+			int mask = this.keys.length - 1;
+			int i = hash & mask;
+			for (; this.keys[i] != null; i = (i + 1) & mask) {
+				if (this.hashes[i] == hash && keyEquals(this.keys[i], key, 0, key.length)) {
+					Call old = this.values[i];
+					this.values[i] = call;
+					return old;
+				}
+			}
+			this.keys[i] = key;
+			this.hashes[i] = hash;
+			this.values[i] = call;
+			if (++this.size * 4 > this.keys.length * 3) {
+				resize();
+			}
+			return null;
+		}
+
+		synchronized Call remove(byte[] key, int hash) {
+			int mask = this.keys.length - 1;
+			for (int i = hash & mask; this.keys[i] != null; i = (i + 1) & mask) {
+				if (this.hashes[i] == hash && keyEquals(this.keys[i], key, 0, key.length)) {
+					Call old = this.values[i];
+					shiftBack(i);
+					this.size--;
+					return old;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Fills the hole at slot i by moving later entries of the same probe run back (no tombstones needed).
+		 */
+		private void shiftBack(int i) {
+			int mask = this.keys.length - 1;
+			int hole = i;
+			for (int j = (i + 1) & mask; this.keys[j] != null; j = (j + 1) & mask) {
+				int home = this.hashes[j] & mask;
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					this.keys[hole] = this.keys[j];
+					this.hashes[hole] = this.hashes[j];
+					this.values[hole] = this.values[j];
+					hole = j;
+				}
+			}
+			this.keys[hole] = null;
+			this.values[hole] = null;
+		}
+
+		private void resize() {
+			byte[][] oldKeys = this.keys;
+			int[] oldHashes = this.hashes;
+			Call[] oldValues = this.values;
+			this.keys = new byte[oldKeys.length * 2][];
+			this.hashes = new int[oldKeys.length * 2];
+			this.values = new Call[oldKeys.length * 2];
+			int mask = this.keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] != null) {
+					int i = oldHashes[j] & mask;
+					while (this.keys[i] != null) {
+						i = (i + 1) & mask;
+					}
+					this.keys[i] = oldKeys[j];
+					this.hashes[i] = oldHashes[j];
+					this.values[i] = oldValues[j];
+				}
+			}
+		}
+	}
+}
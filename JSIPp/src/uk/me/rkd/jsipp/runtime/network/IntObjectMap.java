@@ -0,0 +1,162 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+/**
+ * A thread-safe map from int keys (call numbers) to objects. It is split into independently-locked stripes, each an
+ * open-addressing table with linear probing, so an entry costs one int and one reference rather than a boxed Integer
+ * and a node object.
+ */
+public class IntObjectMap<V> {
+
+	private static final int STRIPE_BITS = 6;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Stripe<V>[] stripes;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public IntObjectMap() {
+		this.stripes = new Stripe[1 << STRIPE_BITS];
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe<V>();
+		}
+	}
+
+	/**
+	 * The murmur3 finaliser, so sequential call numbers spread over stripes and slots.
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private Stripe<V> stripeFor(int hash) {
+		return this.stripes[hash >>> (32 - STRIPE_BITS)];
+	}
+
+	public V get(int key) {
+		int hash = mix(key);
+		return stripeFor(hash).get(key, hash);
+	}
+
+	/**
+	 * @return the previous value for the key, or null
+	 */
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = mix(key);
+		return stripeFor(hash).put(key, hash, value);
+	}
+
+	/**
+	 * @return the removed value, or null if there wasn't one
+	 */
+	public V remove(int key) {
+		int hash = mix(key);
+		return stripeFor(hash).remove(key, hash);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe<V> stripe : this.stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	private static final class Stripe<V> {
+		private int[] keys = new int[INITIAL_CAPACITY];
+		private Object[] values = new Object[INITIAL_CAPACITY];
+		private int size = 0;
+
+		synchronized int size() {
+			return this.size;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(int key, int hash) {
+			int mask = this.keys.length - 1;
+			for (int i = hash & mask; this.values[i] != null; i = (i + 1) & mask) {
+				if (this.keys[i] == key) {
+					return (V) this.values[i];
+				}
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V put(int key, int hash, V value) {
+			int mask = this.keys.length - 1;
+			int i = hash & mask;
+			for (; this.values[i] != null; i = (i + 1) & mask) {
+				if (this.keys[i] == key) {
+					V old = (V) this.values[i];
+					this.values[i] = value;
+					return old;
+				}
+			}
+			this.keys[i] = key;
+			this.values[i] = value;
+			if (++this.size * 4 > this.keys.length * 3) {
+				resize();
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V remove(int key, int hash) {
+			int mask = this.keys.length - 1;
+			int i = hash & mask;
+			for (; this.values[i] != null; i = (i + 1) & mask) {
+				if (this.keys[i] == key) {
+					V old = (V) this.values[i];
+					shiftBack(i);
+					this.size--;
+					return old;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Fills the hole left at slot i by moving later entries of the same probe run back, so lookups never need
+		 * tombstones.
+		 */
+		private void shiftBack(int i) {
+			int mask = this.keys.length - 1;
+			int hole = i;
+			for (int j = (i + 1) & mask; this.values[j] != null; j = (j + 1) & mask) {
+				int home = mix(this.keys[j]) & mask;
+				// Move entry j into the hole unless its home slot lies cyclically in (hole, j]
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					this.keys[hole] = this.keys[j];
+					this.values[hole] = this.values[j];
+					hole = j;
+				}
+			}
+			this.values[hole] = null;
+		}
+
+		private void resize() {
+			int[] oldKeys = this.keys;
+			Object[] oldValues = this.values;
+			this.keys = new int[oldKeys.length * 2];
+			this.values = new Object[oldKeys.length * 2];
+			int mask = this.keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldValues[j] != null) {
+					int i = mix(oldKeys[j]) & mask;
+					while (this.values[i] != null) {
+						i = (i + 1) & mask;
+					}
+					this.keys[i] = oldKeys[j];
+					this.values[i] = oldValues[j];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import uk.me.rkd.jsipp.runtime.Call;
+import uk.me.rkd.jsipp.runtime.Watchdog;
+import uk.me.rkd.jsipp.runtime.parsers.DatagramMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageListener;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.StreamMessageParser;
+
+/**
+ * A transport built on Netty, as an alternative to SelectorSocketManager. It uses the native epoll transport
+ * (edge-triggered) where available and NIO otherwise, with one event loop per core and pooled direct buffers.
+ * Messages sent from timer threads are written without flushing, and a single flush per channel is queued behind
+ * them, so a burst of sends becomes one system call.
+ */
+public class NettySocketManager extends SocketManager {
+
+	private static final Logger logger = Logger.getLogger(NettySocketManager.class);
+	private static final int MAX_MESSAGE_SIZE = 65536;
+	private static final AttributeKey<AtomicBoolean> FLUSH_PENDING = AttributeKey.valueOf("jsipp.flushPending");
+
+	private final boolean udp;
+	private final boolean epoll;
+	private final int numThreads;
+	private final EventLoopGroup group;
+	private final List<Channel> channels = new ArrayList<Channel>();
+	private final List<Channel> listeners = new ArrayList<Channel>();
+	private final IntObjectMap<Channel> callNumToChannel = new IntObjectMap<Channel>();
+	// Where to send replies for calls that arrived on an unconnected (UDP listener) channel
+	private final IntObjectMap<SocketAddress> callNumToRemote = new IntObjectMap<SocketAddress>();
+
+	public NettySocketManager(String defaultHost, int defaultPort, boolean udp, int numSockets) throws IOException {
+		this(defaultHost, defaultPort, udp, numSockets, Runtime.getRuntime().availableProcessors());
+	}
+
+	public NettySocketManager(String defaultHost, int defaultPort, boolean udp, int numSockets, int numThreads)
+	        throws IOException {
+		this.udp = udp;
+		this.epoll = Epoll.isAvailable();
+		this.numThreads = Math.max(1, numThreads);
+		this.group = this.epoll ? new EpollEventLoopGroup(this.numThreads) : new NioEventLoopGroup(this.numThreads);
+		logger.info("Using Netty " + (this.epoll ? "epoll" : "NIO") + " transport with " + this.numThreads
+		        + " event loops");
+
+		if (numSockets > 0) {
+			InetSocketAddress target = new InetSocketAddress(defaultHost, defaultPort);
+			Bootstrap b = configure(new Bootstrap().group(this.group));
+			if (udp) {
+				b.channel(this.epoll ? EpollDatagramChannel.class : NioDatagramChannel.class);
+			} else {
+				b.channel(this.epoll ? EpollSocketChannel.class : NioSocketChannel.class);
+				b.option(ChannelOption.TCP_NODELAY, true);
+			}
+			b.handler(new SIPInitializer());
+			// The epoll datagram channel has to be bound before it can be connected
+			SocketAddress local = udp ? new InetSocketAddress(0) : null;
+			for (int i = 0; i < numSockets; i++) {
+				ChannelFuture f = b.connect(target, local).awaitUninterruptibly();
+				if (!f.isSuccess()) {
+					throw new IOException("Couldn't connect to " + target, f.cause());
+				}
+				this.channels.add(f.channel());
+			}
+		}
+	}
+
+	private <B extends AbstractBootstrap<B, ?>> B configure(B b) {
+		b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+		if (this.epoll) {
+			b.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+		}
+		return b;
+	}
+
+	@Override
+	public void add(Call call) throws IOException {
+		Channel chan = this.channels.get(call.getNumber() % this.channels.size());
+		this.callNumToChannel.put(call.getNumber(), chan);
+		super.add(call);
+	}
+
+	@Override
+	public void remove(Call call) throws IOException {
+		this.callNumToChannel.remove(call.getNumber());
+		this.callNumToRemote.remove(call.getNumber());
+		super.remove(call);
+	}
+
+	@Override
+	public boolean isReliable() {
+		return !this.udp;
+	}
+
+	@Override
+	public SocketAddress getdest(Integer callNumber) throws IOException {
+		SocketAddress remote = this.callNumToRemote.get(callNumber);
+		if (remote != null) {
+			return remote;
+		}
+		return this.callNumToChannel.get(callNumber).remoteAddress();
+	}
+
+	@Override
+	public SocketAddress getaddr(Integer callNumber) throws IOException {
+		return this.callNumToChannel.get(callNumber).localAddress();
+	}
+
+	@Override
+	public void send(Integer callNumber, OutboundBuffer message) throws IOException {
+		Channel chan = this.callNumToChannel.get(callNumber);
+		ByteBuf buf = chan.alloc().directBuffer((int) message.remaining());
+		ByteBuffer[] buffers = message.buffers();
+		for (int i = 0; i < message.count(); i++) {
+			buf.writeBytes(buffers[i]);
+		}
+		SocketAddress remote = this.callNumToRemote.get(callNumber);
+		if (remote != null) {
+			write(chan, new DatagramPacket(buf, (InetSocketAddress) remote));
+		} else {
+			write(chan, buf);
+		}
+	}
+
+	/**
+	 * Writes without flushing, and queues a flush on the channel's event loop unless one is already queued.
+	 */
+	private void write(final Channel chan, Object msg) {
+		chan.write(msg, chan.voidPromise());
+		final AtomicBoolean pending = chan.attr(FLUSH_PENDING).get();
+		if (pending.compareAndSet(false, true)) {
+			chan.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					pending.set(false);
+					chan.flush();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void setListener(SocketAddress bindAddr) throws IOException {
+		if (this.udp) {
+			Bootstrap b = configure(new Bootstrap().group(this.group));
+			b.channel(this.epoll ? EpollDatagramChannel.class : NioDatagramChannel.class);
+			b.handler(new SIPInitializer());
+			// With SO_REUSEPORT each event loop gets its own socket, and the kernel spreads datagrams between them
+			int count = 1;
+			if (this.epoll) {
+				b.option(EpollChannelOption.SO_REUSEPORT, true);
+				count = this.numThreads;
+			}
+			for (int i = 0; i < count; i++) {
+				this.listeners.add(bind(b.bind(bindAddr), bindAddr));
+			}
+		} else {
+			ServerBootstrap b = new ServerBootstrap().group(this.group);
+			b.channel(this.epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class);
+			b.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+			b.childOption(ChannelOption.TCP_NODELAY, true);
+			if (this.epoll) {
+				b.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+			}
+			b.childHandler(new SIPInitializer());
+			this.listeners.add(bind(b.bind(bindAddr), bindAddr));
+		}
+		System.out.println("Created and bound " + this.listeners.size() + " network listener(s)");
+	}
+
+	private static Channel bind(ChannelFuture f, SocketAddress bindAddr) throws IOException {
+		f.awaitUninterruptibly();
+		if (!f.isSuccess()) {
+			throw new IOException("Couldn't bind to " + bindAddr, f.cause());
+		}
+		return f.channel();
+	}
+
+	@Override
+	public void start() {
+		// Netty's event loops start when the first channel is registered
+		if (Watchdog.INSTANCE.isRunning()) {
+			for (EventExecutor loop : this.group) {
+				new LoopProbe(loop).schedule();
+			}
+		}
+	}
+
+	/**
+	 * Measures how late an event loop runs a scheduled task, for the watchdog.
+	 */
+	private static class LoopProbe implements Runnable {
+		private final EventExecutor loop;
+		private long due;
+
+		LoopProbe(EventExecutor loop) {
+			this.loop = loop;
+		}
+
+		void schedule() {
+			long interval = Watchdog.INSTANCE.getIntervalMillis();
+			this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+			this.loop.schedule(this, interval, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void run() {
+			if (Watchdog.INSTANCE.isRunning() && !this.loop.isShuttingDown()) {
+				Watchdog.INSTANCE.recordNetworkLateness(Math.max(0, System.nanoTime() - this.due));
+				schedule();
+			}
+		}
+	}
+
+	@Override
+	public void stop() throws IOException {
+		for (Channel chan : this.listeners) {
+			chan.close();
+		}
+		for (Channel chan : this.channels) {
+			chan.close();
+		}
+		this.group.shutdownGracefully();
+	}
+
+	private class SIPInitializer extends ChannelInitializer<Channel> {
+		@Override
+		protected void initChannel(Channel ch) {
+			ch.attr(FLUSH_PENDING).set(new AtomicBoolean());
+			ch.pipeline().addLast(new SIPHandler(ch));
+		}
+	}
+
+	/**
+	 * Frames and decodes the bytes read from one channel, and passes each message to its call.
+	 */
+	private class SIPHandler extends ChannelInboundHandlerAdapter implements SIPpMessageListener {
+		private final Channel chan;
+		private final SIPpMessageParser parser;
+		private SocketAddress source = null;
+
+		SIPHandler(Channel chan) {
+			this.chan = chan;
+			if (NettySocketManager.this.udp) {
+				this.parser = new DatagramMessageParser(this);
+			} else {
+				this.parser = new StreamMessageParser(this, MAX_MESSAGE_SIZE);
+			}
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			try {
+				ByteBuf content;
+				if (msg instanceof DatagramPacket) {
+					DatagramPacket packet = (DatagramPacket) msg;
+					this.source = packet.sender();
+					content = packet.content();
+				} else {
+					content = (ByteBuf) msg;
+				}
+				this.parser.addBytes(content.nioBuffer());
+			} catch (ParseException e) {
+				logger.error("Couldn't parse message", e);
+			} finally {
+				ReferenceCountUtil.release(msg);
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			logger.error("Error on channel " + this.chan, cause);
+		}
+
+		@Override
+		public void processMessage(ReceivedMessage msg) throws Exception {
+			Call call = getCall(msg);
+			if (call == null) {
+				call = newIncomingCall(msg);
+				if (call == null) {
+					return;
+				}
+				callNumToChannel.put(call.getNumber(), this.chan);
+				if (this.chan.remoteAddress() == null && this.source != null) {
+					callNumToRemote.put(call.getNumber(), this.source);
+				}
+			}
+			call.process_incoming(msg);
+		}
+
+		@Override
+		public void handleException(ParseException ex, String messageText) {
+			logger.error("Couldn't parse message: " + messageText, ex);
+		}
+
+		@Override
+		public void sendSingleCLRF() throws Exception {
+			// RFC 5626 section 4.4.1: answer a double-CRLF ping with a single CRLF
+			ByteBuf pong = this.chan.alloc().directBuffer(2);
+			pong.writeByte('\r').writeByte('\n');
+			write(this.chan, pong);
+		}
+	}
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
+import java.util.Collections;
+import java.util.List;
 
 public abstract class NetworkProtocolHandler {
 
@@ -12,6 +14,34 @@ public abstract class NetworkProtocolHandler {
 
 	public abstract void write(SelectableChannel chan, ByteBuffer buf) throws IOException;
 
+	/**
+	 * Writes a message made up of several buffers in one gathering write, without blocking.
+	 *
+	 * @return whether it was all written; if not, the rest is queued for flush() once the socket is writable
+	 * @throws IOException
+	 *             if the write fails, or so much is already queued that the peer can't be reading
+	 */
+	public abstract boolean write(SelectableChannel chan, ByteBuffer[] srcs, int offset, int length)
+	        throws IOException;
+
+	/**
+	 * Writes as much as the socket will take of what earlier writes queued.
+	 *
+	 * @return whether nothing is left queued
+	 */
+	public boolean flush(SelectableChannel chan) throws IOException {
+		return true;
+	}
+
+	/**
+	 * Sends a message to a specific address, for sockets that aren't connected to one peer. Connection-oriented
+	 * protocols ignore the target.
+	 */
+	public void send(SelectableChannel chan, ByteBuffer[] srcs, int offset, int length, SocketAddress target)
+	        throws IOException {
+		write(chan, srcs, offset, length);
+	}
+
 	public abstract int read(SelectableChannel chan, ByteBuffer buf) throws IOException;
 
 	public abstract void connect(SelectableChannel chan, SocketAddress addr) throws IOException;
@@ -22,6 +52,13 @@ public abstract class NetworkProtocolHandler {
 
 	public abstract SelectableChannel newListener(SocketAddress bindAddr) throws IOException;
 
+	/**
+	 * Creates the listening sockets for up to count selector threads to share. By default there's just one.
+	 */
+	public List<SelectableChannel> newListeners(SocketAddress bindAddr, int count) throws IOException {
+		return Collections.singletonList(newListener(bindAddr));
+	}
+
 	public abstract SocketAddress getLocalAddress(SelectableChannel chan) throws IOException;
 
 	public abstract SocketAddress getRemoteAddress(SelectableChannel chan) throws IOException;
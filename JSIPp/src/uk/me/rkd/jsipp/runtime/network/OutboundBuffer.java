@@ -0,0 +1,234 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A per-thread, reusable list of buffers making up one outbound message, written with a single gathering write.
+ *
+ * Shared segments are added as this thread's own view of the shared direct buffer, so they are never copied. Dynamic
+ * values are encoded into a pooled direct scratch buffer. Once a thread has warmed up, building and sending a message
+ * allocates nothing.
+ */
+public final class OutboundBuffer {
+	private static final int SCRATCH_SIZE = 65536;
+
+	private static final ThreadLocal<OutboundBuffer> pool = new ThreadLocal<OutboundBuffer>() {
+		@Override
+		protected OutboundBuffer initialValue() {
+			return new OutboundBuffer();
+		}
+	};
+
+	private ByteBuffer scratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+	private ByteBuffer[] scratchViews = new ByteBuffer[16];
+	private int scratchViewsUsed = 0;
+	private ByteBuffer[] sharedViews = new ByteBuffer[64];
+	private ByteBuffer[] gather = new ByteBuffer[32];
+	private int count = 0;
+	// The scratch view that dynamic bytes are currently being appended to, if it is the last buffer in the list
+	private ByteBuffer openView = null;
+	private String[] values = new String[32];
+
+	private OutboundBuffer() {
+	}
+
+	/**
+	 * @return the calling thread's buffer, emptied and ready for a new message
+	 */
+	public static OutboundBuffer get() {
+		OutboundBuffer out = pool.get();
+		out.clear();
+		return out;
+	}
+
+	public void clear() {
+		this.scratch.clear();
+		this.scratchViewsUsed = 0;
+		for (int i = 0; i < this.count; i++) {
+			this.gather[i] = null;
+		}
+		this.count = 0;
+		this.openView = null;
+	}
+
+	/**
+	 * @param n
+	 *            the number of slots needed
+	 * @return a reusable array for holding resolved values while a message is built
+	 */
+	public String[] values(int n) {
+		if (this.values.length < n) {
+			this.values = new String[Math.max(n, this.values.length * 2)];
+		}
+		return this.values;
+	}
+
+	public void append(SharedSegment segment) {
+		if (segment.id >= this.sharedViews.length) {
+			ByteBuffer[] bigger = new ByteBuffer[Math.max(segment.id + 1, this.sharedViews.length * 2)];
+			System.arraycopy(this.sharedViews, 0, bigger, 0, this.sharedViews.length);
+			this.sharedViews = bigger;
+		}
+		ByteBuffer view = this.sharedViews[segment.id];
+		if (view == null) {
+			view = segment.bytes.duplicate();
+			this.sharedViews[segment.id] = view;
+		}
+		view.rewind();
+		add(view);
+		this.openView = null;
+	}
+
+	public void append(byte[] bytes) {
+		ensureScratch(bytes.length);
+		ByteBuffer view = openScratchView();
+		this.scratch.put(bytes);
+		view.limit(this.scratch.position());
+	}
+
+	public void append(String value) {
+		ensureScratch(utf8Length(value));
+		ByteBuffer view = openScratchView();
+		encodeUtf8(value, this.scratch);
+		view.limit(this.scratch.position());
+	}
+
+	public void append(int value) {
+		ensureScratch(11);
+		ByteBuffer view = openScratchView();
+		if (value < 0) {
+			this.scratch.put((byte) '-');
+			value = -value;
+		}
+		int divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			this.scratch.put((byte) ('0' + (value / divisor) % 10));
+			divisor /= 10;
+		}
+		view.limit(this.scratch.position());
+	}
+
+	/**
+	 * @return the buffers making up the message; only the first count() entries are valid
+	 */
+	public ByteBuffer[] buffers() {
+		return this.gather;
+	}
+
+	public int count() {
+		return this.count;
+	}
+
+	public long remaining() {
+		long total = 0;
+		for (int i = 0; i < this.count; i++) {
+			total += this.gather[i].remaining();
+		}
+		return total;
+	}
+
+	/**
+	 * @return a heap copy of the unsent part of the message, without consuming it
+	 */
+	public byte[] toByteArray() {
+		byte[] out = new byte[(int) remaining()];
+		int offset = 0;
+		for (int i = 0; i < this.count; i++) {
+			ByteBuffer b = this.gather[i];
+			int len = b.remaining();
+			b.duplicate().get(out, offset, len);
+			offset += len;
+		}
+		return out;
+	}
+
+	private void add(ByteBuffer buf) {
+		if (this.count == this.gather.length) {
+			ByteBuffer[] bigger = new ByteBuffer[this.gather.length * 2];
+			System.arraycopy(this.gather, 0, bigger, 0, this.count);
+			this.gather = bigger;
+		}
+		this.gather[this.count++] = buf;
+	}
+
+	private ByteBuffer openScratchView() {
+		if (this.openView == null) {
+			if (this.scratchViewsUsed == this.scratchViews.length) {
+				ByteBuffer[] bigger = new ByteBuffer[this.scratchViews.length * 2];
+				System.arraycopy(this.scratchViews, 0, bigger, 0, this.scratchViewsUsed);
+				this.scratchViews = bigger;
+			}
+			ByteBuffer view = this.scratchViews[this.scratchViewsUsed];
+			if (view == null) {
+				view = this.scratch.duplicate();
+				this.scratchViews[this.scratchViewsUsed] = view;
+			}
+			this.scratchViewsUsed++;
+			view.limit(view.capacity());
+			view.position(this.scratch.position());
+			add(view);
+			this.openView = view;
+		}
+		return this.openView;
+	}
+
+	private void ensureScratch(int needed) {
+		if (this.scratch.remaining() >= needed) {
+			return;
+		}
+		// Views already handed out keep the old scratch buffer alive until the message has been sent
+		int size = Math.max(this.scratch.capacity() * 2, needed);
+		this.scratch = ByteBuffer.allocateDirect(size);
+		this.scratchViews = new ByteBuffer[this.scratchViews.length];
+		this.scratchViewsUsed = 0;
+		this.openView = null;
+	}
+
+	/**
+	 * @return the number of bytes value takes up when encoded as UTF-8
+	 */
+	public static int utf8Length(String value) {
+		int len = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+			        && Character.isLowSurrogate(value.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	private static void encodeUtf8(String value, ByteBuffer dst) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				dst.put((byte) c);
+			} else if (c < 0x800) {
+				dst.put((byte) (0xC0 | (c >> 6)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+			        && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				dst.put((byte) (0xF0 | (cp >> 18)));
+				dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (cp & 0x3F)));
+			} else {
+				dst.put((byte) (0xE0 | (c >> 12)));
+				dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
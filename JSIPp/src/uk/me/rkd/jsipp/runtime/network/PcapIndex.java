@@ -0,0 +1,198 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import uk.me.rkd.jsipp.runtime.RTPHeader;
+
+/**
+ * Finds the RTP packets in a libpcap capture, as SIPp's play_pcap_audio plays them, without copying their payloads:
+ * the result points into the capture's buffer.
+ *
+ * Only the stream of the first RTP packet is kept, so that RTCP, the other direction and any other streams in the
+ * capture are left out. Packets can be on Ethernet (with or without a VLAN tag), Linux cooked, loopback or raw IP
+ * links, over IPv4 or IPv6, but not in IP fragments.
+ */
+class PcapIndex {
+
+	private static final int GLOBAL_HEADER = 24;
+	private static final int RECORD_HEADER = 16;
+	private static final int LINKTYPE_NULL = 0;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int LINKTYPE_RAW = 101;
+	private static final int LINKTYPE_LINUX_SLL = 113;
+	private static final int UDP = 17;
+
+	private int count = 0;
+	private int[] offset = new int[256];
+	private int[] length = new int[256];
+	private byte[] typeAndMarker = new byte[256];
+	private long[] atMicros = new long[256];
+	private long[] timestamp = new long[256];
+
+	static RTPStreamer.Audio index(ByteBuffer capture) {
+		return new PcapIndex().read(capture);
+	}
+
+	private RTPStreamer.Audio read(ByteBuffer capture) {
+		if (capture.limit() < GLOBAL_HEADER) {
+			throw new IllegalArgumentException("Not a pcap file");
+		}
+		// Records are in the byte order of the machine that wrote them, which the magic number shows
+		ByteBuffer le = capture.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer fields;
+		int magic = capture.getInt(0);
+		if (magic == 0xA1B2C3D4 || magic == 0xA1B23C4D) {
+			fields = capture;
+		} else if (Integer.reverseBytes(magic) == 0xA1B2C3D4 || Integer.reverseBytes(magic) == 0xA1B23C4D) {
+			fields = le;
+			magic = Integer.reverseBytes(magic);
+		} else {
+			throw new IllegalArgumentException("Not a pcap file (pcapng isn't supported)");
+		}
+		// The second magic number has nanosecond timestamps
+		long fractionsPerMicro = (magic == 0xA1B23C4D) ? 1000 : 1;
+		int linkType = fields.getInt(20);
+
+		RTPHeader rtp = new RTPHeader();
+		ByteBuffer view = capture.duplicate();
+		long ssrc = -1;
+		int pos = GLOBAL_HEADER;
+		while (pos + RECORD_HEADER <= capture.limit()) {
+			long micros = (fields.getInt(pos) & 0xFFFFFFFFL) * 1000000 + (fields.getInt(pos + 4) & 0xFFFFFFFFL)
+			        / fractionsPerMicro;
+			int captured = fields.getInt(pos + 8);
+			int start = pos + RECORD_HEADER;
+			int end = start + captured;
+			if (captured < 0 || end > capture.limit()) {
+				// Truncated at the end of the file
+				break;
+			}
+			pos = end;
+
+			int payload = udpPayload(capture, linkType, start, end);
+			if (payload < 0) {
+				continue;
+			}
+			view.limit(end).position(payload);
+			if (!rtp.wrap(view) || isRtcp(rtp.payloadType())) {
+				continue;
+			}
+			if (ssrc < 0) {
+				ssrc = rtp.ssrc();
+			} else if (rtp.ssrc() != ssrc) {
+				continue;
+			}
+			if (rtp.payloadLength() > RTPStreamer.MAX_PACKET - RTPStreamer.HEADER_LENGTH) {
+				continue;
+			}
+			add(rtp.payloadOffset(), rtp.payloadLength(), capture.get(payload + 1), micros, rtp.timestamp());
+		}
+		if (this.count == 0) {
+			throw new IllegalArgumentException("No RTP packets in the capture");
+		}
+		return build(capture);
+	}
+
+	/**
+	 * @return where the UDP payload of a captured frame starts, or -1 if it isn't an unfragmented UDP packet
+	 */
+	private static int udpPayload(ByteBuffer capture, int linkType, int start, int end) {
+		int ip;
+		int etherType;
+		switch (linkType) {
+		case LINKTYPE_ETHERNET:
+			if (end - start < 14) {
+				return -1;
+			}
+			etherType = capture.getShort(start + 12) & 0xFFFF;
+			ip = start + 14;
+			if (etherType == 0x8100 && end - start >= 18) {
+				// An 802.1Q VLAN tag
+				etherType = capture.getShort(start + 16) & 0xFFFF;
+				ip = start + 18;
+			}
+			break;
+		case LINKTYPE_LINUX_SLL:
+			if (end - start < 16) {
+				return -1;
+			}
+			etherType = capture.getShort(start + 14) & 0xFFFF;
+			ip = start + 16;
+			break;
+		case LINKTYPE_NULL:
+			// The address family, in the capturing machine's byte order, tells IPv4 from IPv6; so does the IP header
+		case LINKTYPE_RAW:
+			ip = start + ((linkType == LINKTYPE_NULL) ? 4 : 0);
+			if (ip >= end) {
+				return -1;
+			}
+			etherType = ((capture.get(ip) & 0xF0) == 0x60) ? 0x86DD : 0x0800;
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported pcap link type " + linkType);
+		}
+
+		int udp;
+		if (etherType == 0x0800) {
+			if (ip + 20 > end || capture.get(ip + 9) != UDP) {
+				return -1;
+			}
+			// Fragments other than the first have no UDP header, and the first doesn't have the whole payload
+			if ((capture.getShort(ip + 6) & 0x3FFF) != 0) {
+				return -1;
+			}
+			udp = ip + (capture.get(ip) & 0x0F) * 4;
+		} else if (etherType == 0x86DD) {
+			// Extension headers aren't followed
+			if (ip + 40 > end || capture.get(ip + 6) != UDP) {
+				return -1;
+			}
+			udp = ip + 40;
+		} else {
+			return -1;
+		}
+		return (udp + 8 <= end) ? udp + 8 : -1;
+	}
+
+	private static boolean isRtcp(int payloadType) {
+		// RTCP packet types 200-204 are payload types 72-76 with the marker bit set
+		return payloadType >= 72 && payloadType <= 76;
+	}
+
+	private void add(int payloadOffset, int payloadLength, byte second, long micros, long rtpTimestamp) {
+		if (this.count == this.offset.length) {
+			int size = this.count * 2;
+			this.offset = Arrays.copyOf(this.offset, size);
+			this.length = Arrays.copyOf(this.length, size);
+			this.typeAndMarker = Arrays.copyOf(this.typeAndMarker, size);
+			this.atMicros = Arrays.copyOf(this.atMicros, size);
+			this.timestamp = Arrays.copyOf(this.timestamp, size);
+		}
+		this.offset[this.count] = payloadOffset;
+		this.length[this.count] = payloadLength;
+		this.typeAndMarker[this.count] = second;
+		this.atMicros[this.count] = micros;
+		this.timestamp[this.count] = rtpTimestamp;
+		this.count++;
+	}
+
+	private RTPStreamer.Audio build(ByteBuffer capture) {
+		int n = this.count;
+		int[] atMs = new int[n];
+		int[] timestampStep = new int[n];
+		long first = this.atMicros[0];
+		for (int k = 0; k < n; k++) {
+			// Rounded to the pacing tick, and never earlier than the packet before, even if the capture is out of
+			// order
+			atMs[k] = (int) Math.max((k > 0) ? atMs[k - 1] : 0, (this.atMicros[k] - first + 500) / 1000);
+			if (k + 1 < n) {
+				// Wraps as RTP timestamps do
+				timestampStep[k] = (int) (this.timestamp[k + 1] - this.timestamp[k]);
+			}
+		}
+		return new RTPStreamer.Audio(capture, Arrays.copyOf(this.offset, n), Arrays.copyOf(this.length, n),
+		        Arrays.copyOf(this.typeAndMarker, n), atMs, timestampStep, false, 0);
+	}
+}
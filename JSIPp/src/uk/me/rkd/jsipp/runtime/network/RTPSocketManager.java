@@ -20,12 +20,31 @@ import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import uk.me.rkd.jsipp.runtime.Call;
-import uk.me.rkd.jsipp.runtime.RTPPacket;
+import uk.me.rkd.jsipp.runtime.RTPHeader;
 import uk.me.rkd.jsipp.runtime.RTPSession;
+import uk.me.rkd.jsipp.runtime.RTPStats;
 import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
 
+/**
+ * Receives RTP for calls made with -rtp_sink, one local port per call, and keeps per-stream statistics, optionally
+ * sending RTCP receiver reports back to each stream's source on the same port (RFC 5761 multiplexing), as there is no
+ * separate RTCP port in the SDP calls send.
+ *
+ * By default each call gets a newly opened socket on an ephemeral port, closed when the call ends. With a port range
+ * (-min_rtp_port/-max_rtp_port), calls are given ports from the range instead, and each port's socket is opened on
+ * first use and then kept open and registered with the selector for the next call, so there is no socket churn and
+ * the number of file descriptors is bounded by the range.
+ *
+ * Sessions are attached to and detached from their sockets by the selector thread, in the order calls start and end,
+ * and a pooled port only becomes free again once the selector thread has detached its last session.
+ */
 public class RTPSocketManager {
 
+	// Big enough for any RTP packet that fits in an Ethernet frame; anything longer is truncated, header intact
+	private static final int MAX_PACKET = 2048;
+	// How many packets to read from a socket before giving the others a turn, as SelectorSocketManager does
+	private static final int MAX_PACKETS_PER_READ = 64;
+
 	Selector selector;
 	SelectorThread readerThread;
 	NetworkProtocolHandler nethandler;
@@ -33,6 +52,13 @@ public class RTPSocketManager {
 	Map<String, Call> callIdToCall;
 	private List<DatagramChannel> channels;
 
+	// Only set with a port range: each port's socket, by port - minPort, and a stack of the free ports
+	private int minPort = 0;
+	private DatagramChannel[] pooled;
+	private int[] freePorts;
+	private int freeCount = 0;
+	private volatile boolean receiverReports = false;
+
 	public static RTPSocketManager INSTANCE = new RTPSocketManager();
 	
 	private RTPSocketManager() {
@@ -45,34 +71,123 @@ public class RTPSocketManager {
 		this.channels = new ArrayList<DatagramChannel>();
 	}
 
-	public int add(String id) throws IOException {
-			DatagramChannel chan = DatagramChannel.open();
-			chan.bind(null);
-			chan.configureBlocking(false);
-			this.readerThread.add(chan, id);
-			selector.wakeup();
-			return chan.socket().getLocalPort();
+	/**
+	 * Gives calls ports from this range, whose sockets are kept open across calls. Must be called before start().
+	 */
+	public synchronized void setPortRange(int minPort, int maxPort) {
+		if (minPort <= 0 || maxPort < minPort || maxPort > 65535) {
+			throw new IllegalArgumentException("Invalid RTP port range " + minPort + "-" + maxPort);
+		}
+		this.minPort = minPort;
+		this.pooled = new DatagramChannel[maxPort - minPort + 1];
+		this.freePorts = new int[this.pooled.length];
+		// Hand out the lowest ports first
+		for (int i = 0; i < this.pooled.length; i++) {
+			this.freePorts[i] = maxPort - i;
+		}
+		this.freeCount = this.pooled.length;
 	}
-	
-	public void remove(String id) {
-	    this.readerThread.remove(id);
+
+	/**
+	 * Sends RTCP receiver reports to where each stream comes from.
+	 */
+	public void setReceiverReports(boolean receiverReports) {
+		this.receiverReports = receiverReports;
 	}
 
-	public void start() {
+	/**
+	 * Starts receiving RTP for a call.
+	 *
+	 * @param stats
+	 *            where the stream's jitter and loss are recorded, or null not to record them
+	 * @return the local port to send it to
+	 */
+	public int add(String id, RTPStats.ScenarioRTP stats) throws IOException {
+		DatagramChannel chan = (this.pooled != null) ? takePooled() : openEphemeral();
+		int port = chan.socket().getLocalPort();
+		this.readerThread.add(new RTPSession(id, chan, stats), port);
+		selector.wakeup();
+		return port;
+	}
+
+	/**
+	 * Stops receiving RTP on the port add() returned.
+	 */
+	public void remove(int port) {
+		this.readerThread.remove(port);
+		selector.wakeup();
+	}
+
+	public synchronized void start() {
+		if (this.readerThread.isAlive()) {
+			return;
+		}
 		this.readerThread.start();
 	}
 
+	private static DatagramChannel openEphemeral() throws IOException {
+		DatagramChannel chan = DatagramChannel.open();
+		chan.bind(null);
+		chan.configureBlocking(false);
+		return chan;
+	}
+
+	private synchronized DatagramChannel takePooled() throws IOException {
+		if (this.freeCount == 0) {
+			throw new IOException("All " + this.pooled.length + " RTP ports are in use");
+		}
+		int port = this.freePorts[--this.freeCount];
+		DatagramChannel chan = this.pooled[port - this.minPort];
+		if (chan == null) {
+			chan = DatagramChannel.open();
+			try {
+				chan.bind(new InetSocketAddress(port));
+				chan.configureBlocking(false);
+			} catch (IOException e) {
+				// Probably taken by something else, so leave it out of the pool from now on
+				chan.close();
+				throw e;
+			}
+			this.pooled[port - this.minPort] = chan;
+		}
+		return chan;
+	}
+
+	private synchronized void releasePooled(int port) {
+		this.freePorts[this.freeCount++] = port;
+	}
+
+	private boolean isPooled(int port) {
+		return this.pooled != null && port >= this.minPort && port < this.minPort + this.pooled.length;
+	}
+
+	/**
+	 * A session to attach to its port, or, without one, a port to detach.
+	 */
+	private static final class Change {
+		final int port;
+		final RTPSession session;
+
+		Change(int port, RTPSession session) {
+			this.port = port;
+			this.session = session;
+		}
+	}
+
 	protected class SelectorThread extends Thread {
-	    private Map<String, SelectionKey> keysById = new HashMap<String, SelectionKey>();
-		private Queue<RTPSession> newSessionQueue = new ConcurrentLinkedQueue<RTPSession>();
-        private Queue<String> idsToDelete = new ConcurrentLinkedQueue<String>();
+		// Reused for every packet, as sessions only read what they need from the header and keep nothing
+		private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET);
+		private final RTPHeader header = new RTPHeader();
+		private final ByteBuffer report = ByteBuffer.allocateDirect(RTPSession.RR_LENGTH);
+		private final Map<Integer, SelectionKey> keysByPort = new HashMap<Integer, SelectionKey>();
+		private final Queue<Change> changes = new ConcurrentLinkedQueue<Change>();
 
-		public void add(DatagramChannel c, String id) {
-		    newSessionQueue.add(new RTPSession(id, c));
+		public void add(RTPSession session, int port) {
+			this.changes.add(new Change(port, session));
 		}
 		
-		public void remove(String id) {
-		    idsToDelete.add(id);
+		public void remove(int port) {
+			this.changes.add(new Change(port, null));
 		}
 		
 		public void run() {
@@ -96,47 +211,101 @@ public class RTPSocketManager {
 					}
 				}
 
-				while (!this.newSessionQueue.isEmpty()) {
-					RTPSession sess = this.newSessionQueue.poll();
-					try {
-						SelectionKey k = sess.getChannel().register(RTPSocketManager.this.selector, SelectionKey.OP_READ, sess);
-						keysById.put(sess.getId(), k);
-					} catch (ClosedChannelException e) {
-						e.printStackTrace();
-						// Nothing to worry about - if the channel is closed, we
-						// won't create the key, so no cleanup is needed,
-						// and we won't ever need to handle any calls coming in
-						// from it.
+				Change change;
+				while ((change = this.changes.poll()) != null) {
+					if (change.session != null) {
+						attach(change.port, change.session);
+					} else {
+						detach(change.port);
 					}
 				}
-                while (!this.idsToDelete.isEmpty()) {
-                    String id = this.idsToDelete.poll();
-                    try {
-                        SelectionKey k = keysById.get(id);
-                        k.cancel();
-                        k.channel().close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        // Nothing to worry about - if the channel is closed,
-                        // no cleanup is needed,
-                        // and we won't ever need to handle any calls coming in
-                        // from it.
-                    }
-                }
 			}
 		}
 
+		private void attach(int port, RTPSession sess) {
+			SelectionKey k = this.keysByPort.get(port);
+			if (k != null) {
+				// A pooled socket, still registered from an earlier call
+				k.attach(sess);
+				return;
+			}
+			try {
+				k = sess.getChannel().register(RTPSocketManager.this.selector, SelectionKey.OP_READ, sess);
+				this.keysByPort.put(port, k);
+			} catch (ClosedChannelException e) {
+				e.printStackTrace();
+				// Nothing to worry about - if the channel is closed, we
+				// won't create the key, so no cleanup is needed,
+				// and we won't ever need to handle any calls coming in
+				// from it.
+			}
+		}
+
+		private void detach(int port) {
+			if (isPooled(port)) {
+				SelectionKey k = this.keysByPort.get(port);
+				if (k != null) {
+					finish(k);
+					k.attach(null);
+				}
+				releasePooled(port);
+				return;
+			}
+			SelectionKey k = this.keysByPort.remove(port);
+			if (k == null) {
+				return;
+			}
+			finish(k);
+			try {
+				k.cancel();
+				k.channel().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				// Nothing to worry about - if the channel is closed,
+				// no cleanup is needed,
+				// and we won't ever need to handle any calls coming in
+				// from it.
+			}
+		}
+
+		private void finish(SelectionKey k) {
+			RTPSession sess = (RTPSession) k.attachment();
+			if (sess != null) {
+				sess.finish();
+			}
+		}
+
+		/**
+		 * Reads packets until the socket has no more or MAX_PACKETS_PER_READ have been read.
+		 */
 		private void readData(SelectionKey key) {
 			RTPSession sess = (RTPSession) key.attachment();
 			DatagramChannel chan = (DatagramChannel)key.channel();
-			ByteBuffer dst = ByteBuffer.allocate(512);
 			try {
-				chan.receive(dst);
-				dst.limit(dst.position());
-				dst.position(0);
-				RTPPacket packet = RTPPacket.decode(dst);
-				//System.out.println(packet.toString());
-				sess.update(packet);
+				for (int i = 0; i < MAX_PACKETS_PER_READ; i++) {
+					this.packet.clear();
+					SocketAddress source = chan.receive(this.packet);
+					if (source == null) {
+						return;
+					}
+					long now = System.nanoTime();
+					this.packet.flip();
+					// A pooled port between calls still has to be read, but what arrives is dropped
+					if (sess == null) {
+						continue;
+					}
+					if (RTPSession.isRtcp(this.packet)) {
+						sess.updateRtcp(this.packet, now);
+					} else if (this.header.wrap(this.packet)) {
+						sess.update(this.header, now);
+					}
+					if (receiverReports && sess.reportDue(now)) {
+						this.report.clear();
+						sess.writeReceiverReport(this.report, now);
+						this.report.flip();
+						chan.send(this.report, source);
+					}
+				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
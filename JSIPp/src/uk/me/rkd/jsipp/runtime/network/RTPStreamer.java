@@ -0,0 +1,536 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends RTP for calls: an audio file played on a loop with -rtp_stream, or a capture replayed once by a
+ * play_pcap_audio action, to wherever each call's SDP says.
+ *
+ * Files are memory-mapped once, and indexed into packets when they're opened, so every stream reads its payloads from
+ * the same mapping. Each stream keeps the 12-byte header of its next packet, which is patched in place (sequence
+ * number, timestamp, payload type and marker) after every send, so sending a packet allocates nothing. The sequence
+ * numbers, timestamps and SSRC are each stream's own, whatever the file held.
+ *
+ * All streams are paced by one thread, on a wheel of 1ms ticks. Each stream waits in the bucket for the tick its next
+ * packet is due, and each tick the thread sends a packet for every stream in that tick's bucket, in one batch, from
+ * one socket. Streams are added and removed by the pacing thread, in the order calls ask, and a stream's number is
+ * only reused once the pacing thread has let go of it.
+ */
+public class RTPStreamer {
+
+	static final int HEADER_LENGTH = 12;
+	static final int PACKET_MS = 20;
+	// The most a packet can be without fragmenting on Ethernet, which is plenty for any codec played here
+	static final int MAX_PACKET = 1500;
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int WHEEL_BITS = 10;
+	private static final int WHEEL_MASK = (1 << WHEEL_BITS) - 1;
+
+	/**
+	 * Audio mapped into memory and indexed into packets: where each one's payload is, and when it's sent.
+	 */
+	public static final class Audio {
+		final ByteBuffer data;
+		// For each packet: where its payload is in data, and how long it is
+		final int[] offset;
+		final int[] length;
+		// Each packet's RTP payload type, with the marker bit as it is in the header's second byte
+		final byte[] typeAndMarker;
+		// When each packet is sent, in milliseconds after the first
+		final int[] atMs;
+		// How far each packet's RTP timestamp is behind the next's
+		final int[] timestampStep;
+		// Whether it plays again from the start once it's finished, and if so how long each play lasts
+		final boolean loop;
+		final int loopMs;
+
+		Audio(ByteBuffer data, int[] offset, int[] length, byte[] typeAndMarker, int[] atMs, int[] timestampStep,
+		        boolean loop, int loopMs) {
+			if (offset.length == 0) {
+				throw new IllegalArgumentException("No packets to play");
+			}
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.typeAndMarker = typeAndMarker;
+			this.atMs = atMs;
+			this.timestampStep = timestampStep;
+			this.loop = loop;
+			this.loopMs = loopMs;
+		}
+
+		/**
+		 * Maps a file of raw payload, or a WAV file's data chunk, encoded as the payload type says, to be played on a
+		 * loop in 20ms packets.
+		 */
+		public static Audio open(String filename, int payloadType) throws IOException {
+			int bytesPerPacket;
+			// The RTP clock is 8kHz for all of these, so a 20ms packet always covers 160 samples
+			if (payloadType == 0 || payloadType == 8) {
+				// G.711 mu-law and A-law: a byte per sample
+				bytesPerPacket = 160;
+			} else if (payloadType == 18) {
+				// G.729: a 10-byte frame every 10ms
+				bytesPerPacket = 20;
+			} else {
+				throw new IllegalArgumentException("Can't stream payload type " + payloadType
+				        + ", only 0 (PCMU), 8 (PCMA) or 18 (G729)");
+			}
+			ByteBuffer data = map(filename);
+			int[] region = dataChunk(data);
+			// Any part-packet at the end is left out, so every packet is the same length
+			int packets = (region[1] - region[0]) / bytesPerPacket;
+			if (packets == 0) {
+				throw new IllegalArgumentException("Audio is shorter than one " + PACKET_MS + "ms packet");
+			}
+			int[] offset = new int[packets];
+			int[] length = new int[packets];
+			byte[] typeAndMarker = new byte[packets];
+			int[] atMs = new int[packets];
+			int[] timestampStep = new int[packets];
+			for (int k = 0; k < packets; k++) {
+				offset[k] = region[0] + k * bytesPerPacket;
+				length[k] = bytesPerPacket;
+				typeAndMarker[k] = (byte) payloadType;
+				atMs[k] = k * PACKET_MS;
+				timestampStep[k] = 160;
+			}
+			return new Audio(data, offset, length, typeAndMarker, atMs, timestampStep, true, packets * PACKET_MS);
+		}
+
+		/**
+		 * @param spec
+		 *            the file name, optionally followed by a comma and the payload type (default 0, PCMU)
+		 */
+		public static Audio fromSpec(String spec) throws IOException {
+			int comma = spec.lastIndexOf(',');
+			if (comma < 0) {
+				return open(spec, 0);
+			}
+			return open(spec.substring(0, comma), Integer.parseInt(spec.substring(comma + 1).trim()));
+		}
+
+		/**
+		 * Maps a packet capture, to be played once: the RTP stream of the first RTP packet in it, with the packets'
+		 * payloads, payload types, marker bits and spacing as captured.
+		 */
+		public static Audio openPcap(String filename) throws IOException {
+			return PcapIndex.index(map(filename));
+		}
+
+		static ByteBuffer map(String filename) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			try {
+				// The mapping stays valid after the file is closed
+				return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			} finally {
+				file.close();
+			}
+		}
+
+		/**
+		 * @return the start and end of the audio in a WAV file, or of the whole buffer if it isn't one
+		 */
+		private static int[] dataChunk(ByteBuffer data) {
+			int length = data.limit();
+			if (length < 12 || data.getInt(0) != 0x52494646 || data.getInt(8) != 0x57415645) {
+				// Not "RIFF....WAVE", so raw payload
+				return new int[] { 0, length };
+			}
+			ByteBuffer le = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int pos = 12;
+			while (pos + 8 <= length) {
+				long size = le.getInt(pos + 4) & 0xFFFFFFFFL;
+				if (data.getInt(pos) == 0x64617461) {
+					// "data"
+					return new int[] { pos + 8, (int) Math.min(length, pos + 8 + size) };
+				}
+				// Chunks are padded to an even length
+				pos += 8 + size + (size & 1);
+			}
+			throw new IllegalArgumentException("WAV file has no data chunk");
+		}
+
+		/**
+		 * @return the number of packets the audio plays as, each time it plays
+		 */
+		public int packets() {
+			return this.offset.length;
+		}
+
+		/**
+		 * @return how long it takes to play the audio once, from the first packet to the last, in milliseconds
+		 */
+		public int durationMs() {
+			return this.atMs[this.atMs.length - 1];
+		}
+	}
+
+	/**
+	 * A stream to start, a stream to send elsewhere, or, with neither audio nor target, a stream to stop.
+	 */
+	private static final class Change {
+		final int stream;
+		final Audio audio;
+		final InetSocketAddress target;
+
+		Change(int stream, Audio audio, InetSocketAddress target) {
+			this.stream = stream;
+			this.audio = audio;
+			this.target = target;
+		}
+	}
+
+	public static final RTPStreamer INSTANCE = new RTPStreamer();
+
+	private Audio audio;
+	private final PacingThread pacer = new PacingThread();
+	private final Queue<Change> changes = new ConcurrentLinkedQueue<Change>();
+
+	// Stream numbers: a stack of freed ones, and the next never used
+	private int[] freeStreams = new int[64];
+	private int freeCount = 0;
+	private int nextStream = 0;
+
+	private RTPStreamer() {
+	}
+
+	/**
+	 * Sets the audio calls play with -rtp_stream. Must be called before start().
+	 */
+	public void setAudio(Audio audio) {
+		this.audio = audio;
+	}
+
+	/**
+	 * @return whether calls should stream the -rtp_stream audio, which they do once start() has been called with audio
+	 *         set
+	 */
+	public boolean isStreaming() {
+		return this.audio != null && this.pacer.isAlive();
+	}
+
+	/**
+	 * Starts the pacing thread, unless it's already running.
+	 */
+	public synchronized void start() throws IOException {
+		if (this.pacer.isAlive()) {
+			return;
+		}
+		this.pacer.open();
+		this.pacer.start();
+	}
+
+	public void stop() throws InterruptedException {
+		this.pacer.running = false;
+		this.pacer.join();
+	}
+
+	/**
+	 * Starts playing the -rtp_stream audio to a target, from the beginning.
+	 *
+	 * @return the stream's number, to redirect or stop it with
+	 */
+	public int add(InetSocketAddress target) {
+		return add(this.audio, target);
+	}
+
+	/**
+	 * Starts playing some audio to a target, from the beginning. A stream that doesn't loop stops sending at the end,
+	 * but still has to be removed.
+	 *
+	 * @return the stream's number, to redirect or stop it with
+	 */
+	public int add(Audio audio, InetSocketAddress target) {
+		int stream = takeStream();
+		this.changes.add(new Change(stream, audio, target));
+		return stream;
+	}
+
+	/**
+	 * Sends the rest of a stream somewhere else, as when a re-INVITE changes the SDP.
+	 */
+	public void redirect(int stream, InetSocketAddress target) {
+		this.changes.add(new Change(stream, null, target));
+	}
+
+	/**
+	 * Stops a stream add() started.
+	 */
+	public void remove(int stream) {
+		this.changes.add(new Change(stream, null, null));
+	}
+
+	/**
+	 * @return the packets sent so far
+	 */
+	public long packetsSent() {
+		return this.pacer.sent;
+	}
+
+	/**
+	 * @return the packets that weren't sent: because the socket's buffer was full or the send failed, or because the
+	 *         pacing thread fell more than a packet's time behind
+	 */
+	public long packetsDropped() {
+		return this.pacer.dropped;
+	}
+
+	private synchronized int takeStream() {
+		return (this.freeCount > 0) ? this.freeStreams[--this.freeCount] : this.nextStream++;
+	}
+
+	private synchronized void releaseStream(int stream) {
+		if (this.freeCount == this.freeStreams.length) {
+			this.freeStreams = Arrays.copyOf(this.freeStreams, this.freeCount * 2);
+		}
+		this.freeStreams[this.freeCount++] = stream;
+	}
+
+	protected class PacingThread extends Thread {
+		volatile boolean running = true;
+		volatile long sent = 0;
+		volatile long dropped = 0;
+
+		private DatagramChannel channel;
+		// Reused for every packet: a header and payload are copied in and sent
+		private ByteBuffer packet;
+		// The state of each stream, by number, only touched by this thread
+		private Audio[] audio = new Audio[0];
+		// Each stream's own view of its audio, so that the shared mapping's position is never moved
+		private ByteBuffer[] views = new ByteBuffer[0];
+		private InetSocketAddress[] target = new InetSocketAddress[0];
+		// Each stream's next header, HEADER_LENGTH bytes apiece
+		private byte[] headers = new byte[0];
+		// The index of each stream's next packet, the tick its current play of the audio started, and the tick the
+		// next packet is due
+		private int[] next = new int[0];
+		private long[] playStart = new long[0];
+		private long[] due = new long[0];
+		// Whether each stream is waiting in the wheel, and whether it's been removed and should be let go once it
+		// isn't
+		private boolean[] scheduled = new boolean[0];
+		private boolean[] removed = new boolean[0];
+		// The streams waiting for each tick, modulo the size of the wheel; a stream due after a whole turn waits for
+		// the turn it's due on
+		private final int[][] wheel = new int[1 << WHEEL_BITS][4];
+		private final int[] wheelSize = new int[1 << WHEEL_BITS];
+		// A bucket's list is swapped for this while its streams are sent, so that they can go back in the bucket
+		private int[] spare = new int[4];
+		private long tick = 0;
+
+		PacingThread() {
+			super("RTPStreamer");
+			setDaemon(true);
+		}
+
+		void open() throws IOException {
+			this.channel = DatagramChannel.open();
+			this.channel.bind(null);
+			// A full socket buffer drops a packet rather than holding up every other stream
+			this.channel.configureBlocking(false);
+			this.packet = ByteBuffer.allocateDirect(MAX_PACKET);
+		}
+
+		public void run() {
+			long nextTickAt = System.nanoTime();
+			while (this.running) {
+				Change change;
+				while ((change = RTPStreamer.this.changes.poll()) != null) {
+					apply(change);
+				}
+				long now = System.nanoTime();
+				if (now < nextTickAt) {
+					LockSupport.parkNanos(nextTickAt - now);
+					continue;
+				}
+				// Every tick is run, even when behind, but packets that are too late are skipped rather than sent
+				sendBucket();
+				this.tick++;
+				nextTickAt += TICK_NANOS;
+			}
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void apply(Change change) {
+			int s = change.stream;
+			if (change.audio != null) {
+				ensureCapacity(s + 1);
+				Audio a = change.audio;
+				this.audio[s] = a;
+				this.views[s] = a.data.duplicate();
+				this.target[s] = change.target;
+				this.removed[s] = false;
+				this.next[s] = 0;
+				// Start with the next tick, so the first packet goes straight away
+				this.playStart[s] = this.tick;
+				this.due[s] = this.tick + a.atMs[0];
+				schedule(s);
+				// RFC 3550 says the sequence number, timestamp and SSRC should start random
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				int h = s * HEADER_LENGTH;
+				this.headers[h] = (byte) 0x80;
+				// The marker bit is set on the first packet of a talkspurt, as the start of a stream is
+				this.headers[h + 1] = (byte) (0x80 | a.typeAndMarker[0]);
+				putShort(h + 2, random.nextInt(0x10000));
+				putInt(h + 4, random.nextInt());
+				putInt(h + 8, random.nextInt());
+			} else if (change.target != null) {
+				this.target[s] = change.target;
+			} else if (this.scheduled[s]) {
+				// Let go of it when its bucket next comes round
+				this.removed[s] = true;
+			} else {
+				release(s);
+			}
+		}
+
+		private void sendBucket() {
+			int b = (int) (this.tick & WHEEL_MASK);
+			int[] streams = this.wheel[b];
+			int count = this.wheelSize[b];
+			this.wheel[b] = this.spare;
+			this.wheelSize[b] = 0;
+			for (int k = 0; k < count; k++) {
+				int s = streams[k];
+				this.scheduled[s] = false;
+				if (this.removed[s]) {
+					release(s);
+					continue;
+				}
+				// Send everything due by now, which is more than one packet if the audio has them closer than 1ms
+				while (this.due[s] <= this.tick) {
+					if (this.tick - this.due[s] > PACKET_MS) {
+						// Behind after a pause, or overloaded: skip what's missed, as if lost
+						this.dropped++;
+					} else {
+						sendPacket(s);
+					}
+					if (!advance(s)) {
+						break;
+					}
+				}
+				if (this.due[s] != Long.MAX_VALUE) {
+					schedule(s);
+				}
+			}
+			this.spare = streams;
+		}
+
+		private void sendPacket(int s) {
+			Audio a = this.audio[s];
+			int k = this.next[s];
+			ByteBuffer view = this.views[s];
+			this.packet.clear();
+			this.packet.put(this.headers, s * HEADER_LENGTH, HEADER_LENGTH);
+			view.limit(a.offset[k] + a.length[k]).position(a.offset[k]);
+			this.packet.put(view);
+			this.packet.flip();
+			try {
+				if (this.channel.send(this.packet, this.target[s]) > 0) {
+					this.sent++;
+				} else {
+					this.dropped++;
+				}
+			} catch (IOException e) {
+				this.dropped++;
+			}
+		}
+
+		/**
+		 * Patches the stream's header for its next packet, whether or not the last one went.
+		 *
+		 * @return whether there's another packet, which there isn't once audio that doesn't loop has finished
+		 */
+		private boolean advance(int s) {
+			Audio a = this.audio[s];
+			int h = s * HEADER_LENGTH;
+			int k = this.next[s];
+			putShort(h + 2, getShort(h + 2) + 1);
+			putInt(h + 4, getInt(h + 4) + a.timestampStep[k]);
+			k++;
+			if (k == a.packets()) {
+				if (!a.loop) {
+					this.due[s] = Long.MAX_VALUE;
+					return false;
+				}
+				k = 0;
+				this.playStart[s] += a.loopMs;
+			}
+			this.next[s] = k;
+			this.headers[h + 1] = a.typeAndMarker[k];
+			this.due[s] = this.playStart[s] + a.atMs[k];
+			return true;
+		}
+
+		private void schedule(int s) {
+			int b = (int) (this.due[s] & WHEEL_MASK);
+			int size = this.wheelSize[b];
+			if (size == this.wheel[b].length) {
+				this.wheel[b] = Arrays.copyOf(this.wheel[b], size * 2);
+			}
+			this.wheel[b][size] = s;
+			this.wheelSize[b] = size + 1;
+			this.scheduled[s] = true;
+		}
+
+		private void release(int s) {
+			this.audio[s] = null;
+			this.views[s] = null;
+			this.target[s] = null;
+			this.removed[s] = false;
+			releaseStream(s);
+		}
+
+		private void ensureCapacity(int streams) {
+			int old = this.audio.length;
+			if (streams <= old) {
+				return;
+			}
+			int size = Math.max(streams, Math.max(64, old * 2));
+			this.audio = Arrays.copyOf(this.audio, size);
+			this.views = Arrays.copyOf(this.views, size);
+			this.target = Arrays.copyOf(this.target, size);
+			this.headers = Arrays.copyOf(this.headers, size * HEADER_LENGTH);
+			this.next = Arrays.copyOf(this.next, size);
+			this.playStart = Arrays.copyOf(this.playStart, size);
+			this.due = Arrays.copyOf(this.due, size);
+			this.scheduled = Arrays.copyOf(this.scheduled, size);
+			this.removed = Arrays.copyOf(this.removed, size);
+		}
+
+		private int getShort(int at) {
+			return ((this.headers[at] & 0xFF) << 8) | (this.headers[at + 1] & 0xFF);
+		}
+
+		private void putShort(int at, int value) {
+			this.headers[at] = (byte) (value >>> 8);
+			this.headers[at + 1] = (byte) value;
+		}
+
+		private int getInt(int at) {
+			return (getShort(at) << 16) | getShort(at + 2);
+		}
+
+		private void putInt(int at, int value) {
+			putShort(at, value >>> 16);
+			putShort(at + 2, value);
+		}
+	}
+}
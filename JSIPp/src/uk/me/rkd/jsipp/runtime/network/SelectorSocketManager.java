@@ -0,0 +1,384 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.me.rkd.jsipp.Configuration;
+import uk.me.rkd.jsipp.runtime.Call;
+import uk.me.rkd.jsipp.runtime.Watchdog;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
+
+/**
+ * The hand-rolled NIO transport: one or more threads, each running a Selector over its share of the sockets.
+ */
+public abstract class SelectorSocketManager extends SocketManager {
+
+	// How many datagrams to read from a socket before giving the selector's other sockets a turn; a socket with more
+	// waiting is still ready, so the next select() comes straight back to it
+	static final int MAX_DATAGRAMS_PER_READ = 64;
+
+	SelectorThread[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	SocketAddress defaultTarget;
+	NetworkProtocolHandler nethandler;
+	IntObjectMap<SelectableChannel> callNumToSocket;
+	// Where to send replies for calls that arrived on an unconnected (UDP listener) socket
+	IntObjectMap<SocketAddress> callNumToRemote;
+	private List<SelectableChannel> channels;
+
+	public SelectorSocketManager(String defaultHost, int defaultPort, NetworkProtocolHandler nethandler, int numSockets)
+	                                                                                                            throws IOException {
+		this(defaultHost, defaultPort, nethandler, numSockets, Configuration.INSTANCE.getSelectorThreads());
+	}
+
+	/**
+	 * @param numThreads
+	 *            the number of selector threads to spread the sockets over
+	 */
+	public SelectorSocketManager(String defaultHost, int defaultPort, NetworkProtocolHandler nethandler, int numSockets,
+	                     int numThreads) throws IOException {
+		if (defaultHost != null) {
+			this.defaultTarget = new InetSocketAddress(defaultHost, defaultPort);
+		}
+		this.loops = new SelectorThread[Math.max(1, numThreads)];
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i] = new SelectorThread(i);
+		}
+		this.nethandler = nethandler;
+		this.callNumToSocket = new IntObjectMap<SelectableChannel>();
+		this.callNumToRemote = new IntObjectMap<SocketAddress>();
+		this.channels = new ArrayList<SelectableChannel>();
+		createSockets(numSockets);
+	}
+
+	private void createSockets(int numSockets) throws IOException {
+		for (int i = 0; i < numSockets; i++) {
+			SelectableChannel chan = nethandler.newChan();
+			nethandler.connect(chan, this.defaultTarget);
+			chan.configureBlocking(false);
+			this.channels.add(chan);
+			leastLoaded().register(new CallAndChan(null, chan));
+		}
+	}
+
+	/**
+	 * Picks the selector thread with the fewest channels, going round-robin between equally-loaded ones.
+	 */
+	SelectorThread leastLoaded() {
+		int start = (this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length;
+		SelectorThread best = this.loops[start];
+		for (int i = 1; i < this.loops.length; i++) {
+			SelectorThread loop = this.loops[(start + i) % this.loops.length];
+			if (loop.load.get() < best.load.get()) {
+				best = loop;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public void stop() throws IOException {
+		for (SelectorThread loop : this.loops) {
+			loop.interrupt();
+			loop.selector.wakeup();
+		}
+	}
+
+	@Override
+	public SocketAddress getdest(Integer callNumber) throws IOException {
+		SocketAddress remote = this.callNumToRemote.get(callNumber);
+		if (remote != null) {
+			return remote;
+		}
+		SelectableChannel chan = this.callNumToSocket.get(callNumber);
+		assert(chan != null);
+		return nethandler.getRemoteAddress(chan);
+	}
+
+	@Override
+	public SocketAddress getaddr(Integer callNumber) throws IOException {
+		SelectableChannel chan = this.callNumToSocket.get(callNumber);
+		return nethandler.getLocalAddress(chan);
+	}
+
+	@Override
+	public void send(Integer callNumber, OutboundBuffer message) throws IOException {
+		SelectableChannel chan = this.callNumToSocket.get(callNumber);
+		SocketAddress remote = this.callNumToRemote.get(callNumber);
+		if (remote != null) {
+			nethandler.send(chan, message.buffers(), 0, message.count(), remote);
+		} else {
+			if (!nethandler.write(chan, message.buffers(), 0, message.count())) {
+				flushWhenWritable(chan);
+			}
+		}
+	}
+
+	/**
+	 * Has the selector thread that owns the channel flush what's queued on it once it's writable. A channel not yet
+	 * registered is left until the next send on it.
+	 */
+	private void flushWhenWritable(SelectableChannel chan) {
+		for (SelectorThread loop : this.loops) {
+			SelectionKey key = chan.keyFor(loop.selector);
+			if (key != null) {
+				loop.flushQueue.add(key);
+				loop.selector.wakeup();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void add(Call call) throws IOException {
+		int idx = call.getNumber() % this.channels.size();
+		SelectableChannel chan = this.channels.get(idx);
+		assert(chan != null);
+		this.callNumToSocket.put(call.getNumber(), chan);
+		super.add(call);
+	}
+
+	@Override
+	public void remove(Call call) throws IOException {
+		this.callNumToSocket.remove(call.getNumber());
+		this.callNumToRemote.remove(call.getNumber());
+		super.remove(call);
+	}
+
+	class CallAndChan {
+		public Call call;
+		public SelectableChannel chan;
+		public int ops;
+
+		public CallAndChan(Call call, SelectableChannel chan) {
+			this(call, chan, SelectionKey.OP_READ);
+		}
+
+		public CallAndChan(Call call, SelectableChannel chan, int ops) {
+			this.call = call;
+			this.chan = chan;
+			this.ops = ops;
+		}
+	}
+
+	@Override
+	public void start() {
+		for (SelectorThread loop : this.loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Binds the listening socket(s) for UAS mode. TCP connections are accepted on one thread and handed to the least
+	 * loaded one; for UDP, each selector thread gets its own socket bound with SO_REUSEPORT where the JVM supports
+	 * it, so the kernel spreads incoming datagrams between them.
+	 */
+	@Override
+	public void setListener(SocketAddress bindAddr) throws IOException {
+		List<SelectableChannel> listeners = this.nethandler.newListeners(bindAddr, this.loops.length);
+		for (SelectableChannel listener : listeners) {
+			listener.configureBlocking(false);
+			if ((listener.validOps() & SelectionKey.OP_ACCEPT) != 0) {
+				leastLoaded().register(new CallAndChan(null, listener, SelectionKey.OP_ACCEPT));
+			} else {
+				leastLoaded().register(new CallAndChan(null, listener));
+			}
+		}
+		System.out.println("Created and bound " + listeners.size() + " network listener(s)");
+	}
+
+	protected class SelectorThread extends Thread {
+		public Queue<CallAndChan> newCallQueue = new ConcurrentLinkedQueue<CallAndChan>();
+		// Connections with writes queued, to watch for becoming writable
+		final Queue<SelectionKey> flushQueue = new ConcurrentLinkedQueue<SelectionKey>();
+		final Selector selector;
+		final AtomicInteger load = new AtomicInteger();
+
+		// Large enough for any UDP datagram; parsers copy out whatever they keep, so it is reused for every read
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+
+		public SelectorThread(int idx) throws IOException {
+			super("SelectorThread-" + idx);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Queues a channel to be registered by this thread, which owns the selector.
+		 */
+		public void register(CallAndChan cnas) {
+			this.load.incrementAndGet();
+			this.newCallQueue.add(cnas);
+			this.selector.wakeup();
+		}
+
+		public void run() {
+			System.out.println("Selector thread started...");
+			int available = 0;
+			while (!this.isInterrupted() && this.selector.isOpen()) {
+				try {
+					available = this.selector.select();
+				} catch (IOException e1) {
+					System.out.println("Selector is closed, terminating thread");
+					break;
+				}
+				long woken = Watchdog.INSTANCE.isRunning() ? System.nanoTime() : 0;
+				if (available > 0) {
+					Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+					while (keyIterator.hasNext()) {
+						SelectionKey key = keyIterator.next();
+						if (key.isWritable()) {
+							flush(key);
+						}
+						// Unless flushing found the connection closed
+						if (key.isValid() && key.isReadable()) {
+							readData(key);
+						} else if (key.isValid() && key.isAcceptable()) {
+							acceptCxn(key);
+						}
+						keyIterator.remove();
+					}
+				}
+
+				while (!this.newCallQueue.isEmpty()) {
+					CallAndChan cnas = this.newCallQueue.poll();
+					SIPpMessageParser parser = null;
+					if (cnas.ops == SelectionKey.OP_READ) {
+						parser = createParser(cnas.chan, cnas.call);
+					}
+					try {
+						cnas.chan.register(this.selector, cnas.ops, parser);
+						System.out.println("Registered channel...");
+					} catch (ClosedChannelException e) {
+						this.load.decrementAndGet();
+						e.printStackTrace();
+						// Nothing to worry about - if the channel is closed, we
+						// won't create the key, so no cleanup is needed,
+						// and we won't ever need to handle any calls coming in
+						// from it.
+					}
+				}
+				SelectionKey flushing;
+				while ((flushing = this.flushQueue.poll()) != null) {
+					if (flushing.isValid()) {
+						flushing.interestOps(flushing.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				if (woken != 0) {
+					Watchdog.INSTANCE.recordNetworkLateness(System.nanoTime() - woken);
+				}
+			}
+		}
+
+		private void flush(SelectionKey key) {
+			SelectableChannel chan = key.channel();
+			try {
+				if (nethandler.flush(chan)) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					nethandler.close(chan);
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+				key.cancel();
+				this.load.decrementAndGet();
+			}
+		}
+
+		private void acceptCxn(SelectionKey key) {
+			ServerSocketChannel chan = (ServerSocketChannel) key.channel();
+			try {
+				SelectableChannel newChan = chan.accept();
+				if (newChan == null) {
+					return;
+				}
+				newChan.configureBlocking(false);
+				leastLoaded().register(new CallAndChan(null, newChan));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void readData(SelectionKey key) {
+			SelectableChannel chan = key.channel();
+			SIPpMessageParser parser = (SIPpMessageParser) key.attachment();
+			if (chan instanceof DatagramChannel) {
+				readDatagrams((DatagramChannel) chan, parser);
+				return;
+			}
+			ByteBuffer dst = this.readBuffer;
+			dst.clear();
+			try {
+				int result = nethandler.read(chan, dst);
+				if (result == -1) {
+					nethandler.close(chan);
+					key.cancel();
+					this.load.decrementAndGet();
+				} else if (result > 0) {
+					dst.flip();
+					parser.addBytes(dst);
+				}
+			} catch (IOException | ParseException e) {
+				e.printStackTrace();
+				// if the channel isn't actually readable, just
+				// skip it
+			}
+		}
+
+		/**
+		 * Reads datagrams until the socket has no more or MAX_DATAGRAMS_PER_READ have been read, handing each to the
+		 * parser in place in the read buffer.
+		 */
+		private void readDatagrams(DatagramChannel chan, SIPpMessageParser parser) {
+			ByteBuffer dst = this.readBuffer;
+			// A listening UDP socket: remember who sent each message, so a new call can reply to them
+			SocketListener listener = chan.isConnected() ? null : (SocketListener) parser.getMessageListener();
+			try {
+				for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+					dst.clear();
+					SocketAddress source = chan.receive(dst);
+					if (source == null) {
+						return;
+					}
+					if (dst.position() == 0) {
+						continue;
+					}
+					if (listener != null) {
+						listener.setSource(source);
+					}
+					dst.flip();
+					try {
+						parser.addBytes(dst);
+					} catch (ParseException e) {
+						// Only this datagram is lost, so carry on with the rest
+						e.printStackTrace();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				// if the channel isn't actually readable, just
+				// skip it
+			}
+		}
+	}
+
+	protected abstract SIPpMessageParser createParser(SelectableChannel chan, Call call);
+
+}
@@ -0,0 +1,31 @@
+package uk.me.rkd.jsipp.runtime.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable run of bytes (such as the literal text of a message template) held in a direct buffer that every
+ * sending thread can write from without copying it.
+ */
+public final class SharedSegment {
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	final int id;
+	final ByteBuffer bytes;
+
+	private SharedSegment(byte[] bytes) {
+		this.id = nextId.getAndIncrement();
+		ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+		buf.put(bytes);
+		buf.flip();
+		this.bytes = buf.asReadOnlyBuffer();
+	}
+
+	public static SharedSegment of(byte[] bytes) {
+		return new SharedSegment(bytes);
+	}
+
+	public int length() {
+		return this.bytes.capacity();
+	}
+}
@@ -1,41 +1,52 @@
 package uk.me.rkd.jsipp.runtime.network;
 
-import gov.nist.javax.sip.message.SIPMessage;
-import gov.nist.javax.sip.parser.SIPMessageListener;
-
+import java.net.SocketAddress;
 import java.nio.channels.SelectableChannel;
 import java.text.ParseException;
 
 import uk.me.rkd.jsipp.runtime.Call;
-import uk.me.rkd.jsipp.runtime.CallOpeningTask;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageListener;
 
-class SocketListener implements SIPMessageListener {
+class SocketListener implements SIPpMessageListener {
 
 	/**
 	 * 
 	 */
-	private SocketManager multiplexingSocketManager;
+	private SelectorSocketManager multiplexingSocketManager;
 	private SelectableChannel chan;
+	private SocketAddress source = null;
 
-	public SocketListener(SelectableChannel chan, SocketManager multiplexingSocketManager) {
+	public SocketListener(SelectableChannel chan, SelectorSocketManager multiplexingSocketManager) {
 		super();
 		this.multiplexingSocketManager = multiplexingSocketManager;
 		this.chan = chan;
 	}
 
+	/**
+	 * Sets where the next message came from, for sockets that aren't connected to a single peer.
+	 */
+	public void setSource(SocketAddress source) {
+		this.source = source;
+	}
+
 	@Override
-	public void handleException(ParseException e, SIPMessage msg, Class c, String s, String s2) throws ParseException {
+	public void handleException(ParseException e, String messageText) {
 		e.printStackTrace();
 	}
 
 	@Override
-	public void processMessage(SIPMessage msg) throws Exception {
-		String callId = msg.getCallId().getCallId();
-		Call call = this.multiplexingSocketManager.callIdToCall.get(callId);
+	public void processMessage(ReceivedMessage msg) throws Exception {
+		Call call = this.multiplexingSocketManager.getCall(msg);
 		if (call == null) {
-			call = CallOpeningTask.getInstance().newUAS(callId);
-			this.multiplexingSocketManager.callIdToCall.put(callId, call);
+			call = this.multiplexingSocketManager.newIncomingCall(msg);
+			if (call == null) {
+				return;
+			}
 			this.multiplexingSocketManager.callNumToSocket.put(call.getNumber(), this.chan);
+			if (this.source != null) {
+				this.multiplexingSocketManager.callNumToRemote.put(call.getNumber(), this.source);
+			}
 		}
 		call.process_incoming(msg);
 	}
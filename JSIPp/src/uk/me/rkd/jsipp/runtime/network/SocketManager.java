@@ -1,201 +1,87 @@
 package uk.me.rkd.jsipp.runtime.network;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectableChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import uk.me.rkd.jsipp.runtime.Call;
-import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
+import uk.me.rkd.jsipp.runtime.CallOpeningTask;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
 
+/**
+ * Sends SIP messages for calls and routes received ones to the right call. Implementations differ in how they drive
+ * the sockets: see SelectorSocketManager and NettySocketManager.
+ */
 public abstract class SocketManager {
 
-	Selector selector;
-	SelectorThread readerThread;
-	SocketAddress defaultTarget;
-	NetworkProtocolHandler nethandler;
-	Map<Integer, SelectableChannel> callNumToSocket;
-	Map<String, Call> callIdToCall;
-	private List<SelectableChannel> channels;
-
-	public SocketManager(String defaultHost, int defaultPort, NetworkProtocolHandler nethandler, int numSockets)
-	                                                                                                            throws IOException {
-		if (defaultHost != null) {
-			this.defaultTarget = new InetSocketAddress(defaultHost, defaultPort);
-		}
-		this.selector = Selector.open();
-		this.readerThread = new SelectorThread();
-		this.nethandler = nethandler;
-		this.callIdToCall = new HashMap<String, Call>();
-		this.callNumToSocket = new HashMap<Integer, SelectableChannel>();
-		this.channels = new ArrayList<SelectableChannel>();
-		createSockets(numSockets);
-	}
-
-	private void createSockets(int numSockets) throws IOException {
-		for (int i = 0; i < numSockets; i++) {
-			SelectableChannel chan = nethandler.newChan();
-			nethandler.connect(chan, this.defaultTarget);
-			chan.configureBlocking(false);
-			this.channels.add(chan);
-			this.readerThread.newCallQueue.add(new CallAndChan(null, chan));
-			selector.wakeup();
-		}
-	}
-
-	public void stop() throws IOException {
-		this.readerThread.interrupt();
-		this.selector.wakeup();
-	}
+	final CallIdMap callIdToCall = new CallIdMap();
 
-	public SocketAddress getdest(Integer callNumber) throws IOException {
-		SelectableChannel chan = this.callNumToSocket.get(callNumber);
-		assert(chan != null);
-		return nethandler.getRemoteAddress(chan);
+	/**
+	 * Assigns the call a socket to send on, and starts routing messages with its Call-ID to it.
+	 */
+	public void add(Call call) throws IOException {
+		this.callIdToCall.put(call.getCallId(), call);
 	}
 
-	public SocketAddress getaddr(Integer callNumber) throws IOException {
-		SelectableChannel chan = this.callNumToSocket.get(callNumber);
-		return nethandler.getLocalAddress(chan);
+	public void remove(Call call) throws IOException {
+		this.callIdToCall.remove(call.getCallId());
 	}
 
-	public void setdest(Integer callNumber, String host, int port) throws IOException {
-		// TODO Auto-generated method stub
+	/**
+	 * Finds the call a received message belongs to, without decoding its Call-ID if the message allows that.
+	 */
+	Call getCall(ReceivedMessage msg) {
+		return this.callIdToCall.get(msg);
 	}
 
-	public void send(Integer callNumber, String message) throws IOException {
-		SelectableChannel chan = this.callNumToSocket.get(callNumber);
-		ByteBuffer buf = ByteBuffer.wrap(message.getBytes());
-		nethandler.write(chan, buf);
+	/**
+	 * Starts a UAS call for a message with a Call-ID we haven't seen before.
+	 *
+	 * @return the call, or null if no scenario expects the message or the call limits (-l and -m) don't allow another
+	 */
+	Call newIncomingCall(ReceivedMessage msg) {
+		Call call = CallOpeningTask.getInstance().newUAS(msg);
+		if (call != null) {
+			this.callIdToCall.put(msg.getCallId(), call);
+		}
+		return call;
 	}
 
-	public void add(Call call) throws IOException {
-		int idx = call.getNumber() % this.channels.size();
-		SelectableChannel chan = this.channels.get(idx); 
-		assert(chan != null);
-		this.callNumToSocket.put(call.getNumber(), chan);
-		this.callIdToCall.put(call.getCallId(), call);
+	/**
+	 * @return whether the transport delivers messages itself, so that calls needn't retransmit them
+	 */
+	public boolean isReliable() {
+		return false;
 	}
 
-	public void remove(Call call) throws IOException {
-		this.callNumToSocket.remove(call.getNumber());
-		this.callIdToCall.remove(call.getCallId());
-	}
+	public abstract SocketAddress getdest(Integer callNumber) throws IOException;
 
-	class CallAndChan {
-		public Call call;
-		public SelectableChannel chan;
+	public abstract SocketAddress getaddr(Integer callNumber) throws IOException;
 
-		public CallAndChan(Call call, SelectableChannel chan) {
-			this.call = call;
-			this.chan = chan;
-		}
+	public void setdest(Integer callNumber, String host, int port) throws IOException {
+		// TODO Auto-generated method stub
 	}
 
-	public void start() {
-		this.readerThread.start();
+	public void send(Integer callNumber, String message) throws IOException {
+		send(callNumber, message.getBytes("UTF-8"));
 	}
 
-	public void setListener(SocketAddress bindAddr) throws IOException {
-		SelectableChannel listener = this.nethandler.newListener(bindAddr);
-		listener.configureBlocking(false);
-		if ((listener.validOps() & SelectionKey.OP_ACCEPT) != 0) {
-			listener.register(this.selector, SelectionKey.OP_ACCEPT, null);
-		} else {
-			SIPpMessageParser parser = createParser(listener, null);
-			listener.register(this.selector, SelectionKey.OP_READ, parser);
-		}
-		System.out.println("Created and bound network listener");
+	public void send(Integer callNumber, byte[] message) throws IOException {
+		OutboundBuffer out = OutboundBuffer.get();
+		out.append(message);
+		send(callNumber, out);
 	}
 
-	protected class SelectorThread extends Thread {
-		public Queue<CallAndChan> newCallQueue = new ConcurrentLinkedQueue<CallAndChan>();
-
-		public void run() {
-			System.out.println("Selector thread started...");
-			int available = 0;
-			while (!this.isInterrupted() && SocketManager.this.selector.isOpen()) {
-				try {
-					available = SocketManager.this.selector.select();
-				} catch (IOException e1) {
-					System.out.println("Selector is closed, terminating thread");
-					break;
-				}
-				if (available > 0) {
-					Iterator<SelectionKey> keyIterator = SocketManager.this.selector.selectedKeys().iterator();
-					while (keyIterator.hasNext()) {
-						SelectionKey key = keyIterator.next();
-						if (key.isReadable()) {
-							readData(key);
-						} else if (key.isAcceptable()) {
-							acceptCxn(key);
-						}
-						keyIterator.remove();
-					}
-				}
-
-				while (!this.newCallQueue.isEmpty()) {
-					CallAndChan cnas = this.newCallQueue.poll();
-					SIPpMessageParser parser = createParser(cnas.chan, cnas.call);
-					try {
-						cnas.chan.register(SocketManager.this.selector, SelectionKey.OP_READ, parser);
-						System.out.println("Registered channel...");
-					} catch (ClosedChannelException e) {
-						e.printStackTrace();
-						// Nothing to worry about - if the channel is closed, we
-						// won't create the key, so no cleanup is needed,
-						// and we won't ever need to handle any calls coming in
-						// from it.
-					}
-				}
-			}
-		}
+	/**
+	 * Sends a message built up in the calling thread's outbound buffer, with a single gathering write.
+	 */
+	public abstract void send(Integer callNumber, OutboundBuffer message) throws IOException;
 
-		private void acceptCxn(SelectionKey key) {
-			ServerSocketChannel chan = (ServerSocketChannel) key.channel();
-			try {
-				SelectableChannel newChan = chan.accept();
-				newChan.configureBlocking(false);
-				SIPpMessageParser parser = createParser(newChan, null);
-				newChan.register(selector, SelectionKey.OP_READ, parser);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		private void readData(SelectionKey key) {
-			SelectableChannel chan = key.channel();
-			SIPpMessageParser parser = (SIPpMessageParser) key.attachment();
-			ByteBuffer dst = ByteBuffer.allocate(2048);
-			try {
-				int result = nethandler.read(chan, dst);
-				if (result == -1) {
-					nethandler.close(chan);
-					key.cancel();
-				} else {
-					parser.addBytes(dst.array());
-				}
-			} catch (IOException | ParseException e) {
-				e.printStackTrace();
-				// if the channel isn't actually readable, just
-				// skip it
-			}
-		}
-	}
+	/**
+	 * Binds the listening socket(s) for UAS mode.
+	 */
+	public abstract void setListener(SocketAddress bindAddr) throws IOException;
 
-	protected abstract SIPpMessageParser createParser(SelectableChannel chan, Call call);
+	public abstract void start();
 
+	public abstract void stop() throws IOException;
 }
@@ -6,9 +6,58 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class TCPHandler extends NetworkProtocolHandler {
 
+	// How much can be waiting for a connection to become writable before sends on it fail
+	static final int MAX_QUEUED = 1 << 20;
+
+	/**
+	 * What a connection's writes have left unwritten, in order. Writes to the connection lock it, so that messages
+	 * from different threads aren't interleaved.
+	 */
+	private static final class Queued {
+		// In write mode: what's queued is between 0 and the position
+		private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+		boolean isEmpty() {
+			return this.bytes.position() == 0;
+		}
+
+		void append(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			int needed = 0;
+			for (int i = offset; i < offset + length; i++) {
+				needed += srcs[i].remaining();
+			}
+			if (this.bytes.remaining() < needed) {
+				int size = this.bytes.position() + needed;
+				if (size > MAX_QUEUED) {
+					throw new IOException("Over " + MAX_QUEUED + " bytes waiting to be sent: the peer isn't reading");
+				}
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_QUEUED, Math.max(size, this.bytes.capacity() * 2)));
+				this.bytes.flip();
+				bigger.put(this.bytes);
+				this.bytes = bigger;
+			}
+			for (int i = offset; i < offset + length; i++) {
+				this.bytes.put(srcs[i]);
+			}
+		}
+
+		void writeTo(SocketChannel sc) throws IOException {
+			this.bytes.flip();
+			try {
+				sc.write(this.bytes);
+			} finally {
+				this.bytes.compact();
+			}
+		}
+	}
+
+	private final ConcurrentMap<SelectableChannel, Queued> queues = new ConcurrentHashMap<SelectableChannel, Queued>();
+
 	public TCPHandler() {
 		// TODO Auto-generated constructor stub
 	}
@@ -18,6 +67,58 @@ public class TCPHandler extends NetworkProtocolHandler {
 		((SocketChannel) chan).write(buf);
 	}
 
+	@Override
+	public boolean write(SelectableChannel chan, ByteBuffer[] srcs, int offset, int length) throws IOException {
+		SocketChannel sc = (SocketChannel) chan;
+		Queued queued = queueFor(sc);
+		synchronized (queued) {
+			// Behind anything already queued, or the stream would be out of order
+			if (queued.isEmpty()) {
+				sc.write(srcs, offset, length);
+				if (!hasRemaining(srcs, offset, length)) {
+					return true;
+				}
+			}
+			// A non-blocking write may be partial, and the peer may not be reading, so rather than spinning until
+			// it is, keep the rest for flush()
+			queued.append(srcs, offset, length);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean flush(SelectableChannel chan) throws IOException {
+		Queued queued = this.queues.get(chan);
+		if (queued == null) {
+			return true;
+		}
+		synchronized (queued) {
+			queued.writeTo((SocketChannel) chan);
+			return queued.isEmpty();
+		}
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Queued queueFor(SocketChannel sc) {
+		Queued queued = this.queues.get(sc);
+		if (queued == null) {
+			Queued created = new Queued();
+			queued = this.queues.putIfAbsent(sc, created);
+			if (queued == null) {
+				queued = created;
+			}
+		}
+		return queued;
+	}
+
 	@Override
 	public int read(SelectableChannel chan, ByteBuffer buf) throws IOException {
 		return ((SocketChannel) chan).read(buf);
@@ -40,6 +141,7 @@ public class TCPHandler extends NetworkProtocolHandler {
 
 	@Override
 	public void close(SelectableChannel chan) throws IOException {
+		this.queues.remove(chan);
 		((SocketChannel) chan).close();
 	}
 
@@ -7,15 +7,27 @@ import uk.me.rkd.jsipp.runtime.Call;
 import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
 import uk.me.rkd.jsipp.runtime.parsers.StreamMessageParser;
 
-public class TCPMultiplexingSocketManager extends SocketManager {
+public class TCPMultiplexingSocketManager extends SelectorSocketManager {
+
+	private static final int MAX_MESSAGE_SIZE = 65536;
 
 	public TCPMultiplexingSocketManager(String defaultHost, int defaultPort, int numSockets) throws IOException {
 		super(defaultHost, defaultPort, new TCPHandler(), numSockets);
 	}
 
+	public TCPMultiplexingSocketManager(String defaultHost, int defaultPort, int numSockets, int numThreads)
+	        throws IOException {
+		super(defaultHost, defaultPort, new TCPHandler(), numSockets, numThreads);
+	}
+
+	@Override
+	public boolean isReliable() {
+		return true;
+	}
+
 	@Override
 	protected SIPpMessageParser createParser(SelectableChannel chan, Call call) {
-		return new StreamMessageParser(new SocketListener(chan, this), 4096);
+		return new StreamMessageParser(new SocketListener(chan, this), MAX_MESSAGE_SIZE);
 	}
 
 }
@@ -2,12 +2,36 @@ package uk.me.rkd.jsipp.runtime.network;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class UDPHandler extends NetworkProtocolHandler {
 
+	// SO_REUSEPORT is only in StandardSocketOptions from Java 9, so look it up rather than linking against it
+	private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+	// Unconnected sends can't gather, so messages are copied into this first
+	private static final ThreadLocal<ByteBuffer> SEND_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(65536);
+		}
+	};
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
 	public UDPHandler() {
 		// TODO Auto-generated constructor stub
 	}
@@ -17,6 +41,32 @@ public class UDPHandler extends NetworkProtocolHandler {
 		((DatagramChannel) chan).write(buf);
 	}
 
+	@Override
+	public boolean write(SelectableChannel chan, ByteBuffer[] srcs, int offset, int length) throws IOException {
+		// A gathering write on a connected datagram channel sends all the buffers as one datagram, or drops it
+		((DatagramChannel) chan).write(srcs, offset, length);
+		return true;
+	}
+
+	@Override
+	public void send(SelectableChannel chan, ByteBuffer[] srcs, int offset, int length, SocketAddress target)
+	        throws IOException {
+		ByteBuffer buf = SEND_BUFFER.get();
+		long size = 0;
+		for (int i = offset; i < offset + length; i++) {
+			size += srcs[i].remaining();
+		}
+		if (size > buf.capacity()) {
+			throw new IOException("A message of " + size + " bytes is too big for a UDP datagram");
+		}
+		buf.clear();
+		for (int i = offset; i < offset + length; i++) {
+			buf.put(srcs[i]);
+		}
+		buf.flip();
+		((DatagramChannel) chan).send(buf, target);
+	}
+
 	@Override
 	public int read(SelectableChannel chan, ByteBuffer buf) throws IOException {
 		((DatagramChannel) chan).receive(buf);
@@ -54,4 +104,19 @@ public class UDPHandler extends NetworkProtocolHandler {
 		chan.bind(bindAddr);
 		return chan;
 	}
+
+	@Override
+	public List<SelectableChannel> newListeners(SocketAddress bindAddr, int count) throws IOException {
+		if (count == 1 || SO_REUSEPORT == null) {
+			return super.newListeners(bindAddr, count);
+		}
+		List<SelectableChannel> listeners = new ArrayList<SelectableChannel>();
+		for (int i = 0; i < count; i++) {
+			DatagramChannel chan = DatagramChannel.open();
+			chan.setOption(SO_REUSEPORT, true);
+			chan.bind(bindAddr);
+			listeners.add(chan);
+		}
+		return listeners;
+	}
 }
@@ -7,12 +7,17 @@ import uk.me.rkd.jsipp.runtime.Call;
 import uk.me.rkd.jsipp.runtime.parsers.DatagramMessageParser;
 import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser;
 
-public class UDPMultiplexingSocketManager extends SocketManager {
+public class UDPMultiplexingSocketManager extends SelectorSocketManager {
 
 	public UDPMultiplexingSocketManager(String defaultHost, int defaultPort, int numChannels) throws IOException {
 		super(defaultHost, defaultPort, new UDPHandler(), numChannels);
 	}
 
+	public UDPMultiplexingSocketManager(String defaultHost, int defaultPort, int numChannels, int numThreads)
+	        throws IOException {
+		super(defaultHost, defaultPort, new UDPHandler(), numChannels, numThreads);
+	}
+
 	@Override
 	public SIPpMessageParser createParser(SelectableChannel chan, Call call) {
 		return new DatagramMessageParser(new SocketListener(chan, this));
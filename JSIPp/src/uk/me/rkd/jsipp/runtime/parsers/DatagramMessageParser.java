@@ -1,26 +1,22 @@
 package uk.me.rkd.jsipp.runtime.parsers;
 
-import gov.nist.javax.sip.message.SIPMessage;
-import gov.nist.javax.sip.parser.SIPMessageListener;
-
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 public class DatagramMessageParser extends SIPpMessageParser {
 
-	public DatagramMessageParser(SIPMessageListener mhandler) {
+	public DatagramMessageParser(SIPpMessageListener mhandler) {
 		super(mhandler);
 	}
 
+	public DatagramMessageParser(SIPpMessageListener mhandler, MessageDecoder decoder) {
+		super(mhandler, decoder);
+	}
+
 	@Override
-	public void addBytes(byte[] bytes) throws IOException, ParseException {
-		SIPMessage msg = this.smp.parseSIPMessage(bytes, true, false, this.sipMessageListener);
-		try {
-			this.sipMessageListener.processMessage(msg);
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	public void addBytes(ByteBuffer bytes) throws IOException, ParseException {
+		processSIPMessage(bytes);
 	}
 
 }
@@ -0,0 +1,87 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import javax.sip.header.Header;
+
+/**
+ * A ReceivedMessage backed by a fully-parsed jain-sip SIPMessage, used in strict parsing mode.
+ */
+public class JainMessage implements ReceivedMessage {
+
+	private final SIPMessage msg;
+
+	public JainMessage(SIPMessage msg) {
+		this.msg = msg;
+	}
+
+	public SIPMessage getSIPMessage() {
+		return this.msg;
+	}
+
+	@Override
+	public boolean isRequest() {
+		return this.msg instanceof SIPRequest;
+	}
+
+	@Override
+	public String getMethod() {
+		return isRequest() ? ((SIPRequest) this.msg).getMethod() : null;
+	}
+
+	@Override
+	public int getStatusCode() {
+		return isRequest() ? 0 : ((SIPResponse) this.msg).getStatusCode();
+	}
+
+	@Override
+	public String getCallId() {
+		return this.msg.getCallId().getCallId();
+	}
+
+	@Override
+	public String getCSeqMethod() {
+		return this.msg.getCSeq().getMethod();
+	}
+
+	@Override
+	public long getCSeqNumber() {
+		return this.msg.getCSeq().getSeqNumber();
+	}
+
+	@Override
+	public String getTopVia() {
+		return (this.msg.getTopmostVia() == null) ? null : this.msg.getTopmostVia().getHeaderValue();
+	}
+
+	@Override
+	public String getFirstLine() {
+		return this.msg.getFirstLine();
+	}
+
+	@Override
+	public String getHeader(String name) {
+		Header h = this.msg.getHeader(name);
+		if (h == null) {
+			return null;
+		}
+		return ((SIPHeader) h).getHeaderValue();
+	}
+
+	@Override
+	public String getHeaderAsFormattedString(String name) {
+		if (this.msg.getHeader(name) == null) {
+			return null;
+		}
+		return this.msg.getHeaderAsFormattedString(name).trim();
+	}
+
+	@Override
+	public byte[] getBody() {
+		byte[] body = this.msg.getRawContent();
+		return (body == null) ? new byte[0] : body;
+	}
+}
@@ -0,0 +1,399 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * A ReceivedMessage that only indexes where each header lies in the raw bytes. The start line, Call-ID, CSeq and top
+ * Via are decoded up front because every message needs them; any other header is only turned into a String when a
+ * scenario asks for it (e.g. through a [last_*] keyword).
+ */
+public class LazyMessage implements ReceivedMessage {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] METHODS = { "INVITE", "ACK", "BYE", "CANCEL", "OPTIONS", "REGISTER", "MESSAGE",
+	        "INFO", "PRACK", "UPDATE", "SUBSCRIBE", "NOTIFY", "REFER", "PUBLISH" };
+
+	// RFC 3261 section 7.3.3 and the registered compact forms since
+	private static final String[][] COMPACT_FORMS = { { "i", "call-id" }, { "m", "contact" },
+	        { "e", "content-encoding" }, { "l", "content-length" }, { "c", "content-type" }, { "f", "from" },
+	        { "s", "subject" }, { "k", "supported" }, { "t", "to" }, { "v", "via" }, { "r", "refer-to" },
+	        { "b", "referred-by" }, { "o", "event" }, { "u", "allow-events" }, { "x", "session-expires" } };
+
+	private final byte[] raw;
+	private final int length;
+
+	// Four ints per header: name start, name end, value start, value end
+	private int[] headers = new int[64];
+	private int headerCount = 0;
+
+	private int firstLineEnd;
+	private int bodyStart;
+	private int bodyLength;
+
+	private boolean request;
+	private String method;
+	private int statusCode;
+	private int callIdStart = -1;
+	private int callIdEnd;
+	private String callId;
+	private String cseqMethod;
+	private long cseqNumber = -1;
+	private int viaIdx = -1;
+
+	/**
+	 * Indexes a complete message. The array is kept, not copied, so the caller must not reuse it.
+	 */
+	public LazyMessage(byte[] raw, int length) throws ParseException {
+		this.raw = raw;
+		this.length = trimPadding(raw, length);
+		index();
+	}
+
+	private static int trimPadding(byte[] raw, int length) {
+		// Datagrams read into a fixed-size buffer may be followed by zeros
+		while (length > 0 && raw[length - 1] == 0) {
+			length--;
+		}
+		return length;
+	}
+
+	private void index() throws ParseException {
+		int pos = 0;
+		while (pos < length && (raw[pos] == '\r' || raw[pos] == '\n')) {
+			pos++;
+		}
+		int lineEnd = indexOf('\n', pos);
+		if (lineEnd < 0) {
+			throw new ParseException("No start line", pos);
+		}
+		int firstLineStart = pos;
+		this.firstLineEnd = trimCR(pos, lineEnd);
+		decodeStartLine(firstLineStart, this.firstLineEnd);
+		pos = lineEnd + 1;
+
+		int contentLength = -1;
+		while (true) {
+			if (pos >= length) {
+				throw new ParseException("Headers not terminated by an empty line", pos);
+			}
+			if (raw[pos] == '\n') {
+				pos += 1;
+				break;
+			}
+			if (raw[pos] == '\r' && pos + 1 < length && raw[pos + 1] == '\n') {
+				pos += 2;
+				break;
+			}
+			int nameStart = pos;
+			int colon = indexOf(':', pos);
+			lineEnd = indexOf('\n', pos);
+			if (colon < 0 || (lineEnd >= 0 && colon > lineEnd)) {
+				throw new ParseException("Header line without a colon", pos);
+			}
+			// Continuation lines start with whitespace (RFC 3261 section 7.3.1)
+			while (lineEnd >= 0 && lineEnd + 1 < length && (raw[lineEnd + 1] == ' ' || raw[lineEnd + 1] == '\t')) {
+				lineEnd = indexOf('\n', lineEnd + 1);
+			}
+			if (lineEnd < 0) {
+				throw new ParseException("Headers not terminated by an empty line", pos);
+			}
+			int nameEnd = colon;
+			while (nameEnd > nameStart && isSpace(raw[nameEnd - 1])) {
+				nameEnd--;
+			}
+			int valueStart = colon + 1;
+			int valueEnd = trimCR(valueStart, lineEnd);
+			while (valueStart < valueEnd && isSpace(raw[valueStart])) {
+				valueStart++;
+			}
+			while (valueEnd > valueStart && isSpace(raw[valueEnd - 1])) {
+				valueEnd--;
+			}
+			int idx = addHeader(nameStart, nameEnd, valueStart, valueEnd);
+
+			if (nameIs(idx, "call-id")) {
+				this.callIdStart = valueStart;
+				this.callIdEnd = valueEnd;
+			} else if (nameIs(idx, "cseq")) {
+				decodeCSeq(valueStart, valueEnd);
+			} else if (nameIs(idx, "via")) {
+				if (this.viaIdx < 0) {
+					this.viaIdx = idx;
+				}
+			} else if (nameIs(idx, "content-length")) {
+				contentLength = (int) parseNumber(valueStart, valueEnd);
+			}
+			pos = lineEnd + 1;
+		}
+
+		if (this.callIdStart < 0) {
+			throw new ParseException("No Call-ID header", 0);
+		}
+		if (this.cseqMethod == null) {
+			throw new ParseException("No CSeq header", 0);
+		}
+		this.bodyStart = pos;
+		this.bodyLength = length - pos;
+		if (contentLength >= 0) {
+			if (contentLength > this.bodyLength) {
+				throw new ParseException("Body shorter than Content-Length", pos);
+			}
+			this.bodyLength = contentLength;
+		}
+	}
+
+	private void decodeStartLine(int start, int end) throws ParseException {
+		int sp = indexOf(' ', start);
+		if (sp < 0 || sp >= end) {
+			throw new ParseException("Malformed start line", start);
+		}
+		if (regionEquals(start, sp, "SIP/2.0")) {
+			this.request = false;
+			if (sp + 4 > end) {
+				throw new ParseException("Malformed status line", start);
+			}
+			this.statusCode = (int) parseNumber(sp + 1, sp + 4);
+		} else {
+			this.request = true;
+			this.method = method(start, sp);
+		}
+	}
+
+	private void decodeCSeq(int start, int end) throws ParseException {
+		int sp = start;
+		while (sp < end && !isSpace(raw[sp])) {
+			sp++;
+		}
+		this.cseqNumber = parseNumber(start, sp);
+		while (sp < end && isSpace(raw[sp])) {
+			sp++;
+		}
+		if (sp == end) {
+			throw new ParseException("CSeq without a method", start);
+		}
+		this.cseqMethod = method(sp, end);
+	}
+
+	/**
+	 * Returns the shared constant for well-known methods, so the common case allocates nothing.
+	 */
+	private String method(int start, int end) {
+		for (String m : METHODS) {
+			if (regionEquals(start, end, m)) {
+				return m;
+			}
+		}
+		return string(start, end);
+	}
+
+	private int addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		if ((headerCount + 1) * 4 > headers.length) {
+			int[] bigger = new int[headers.length * 2];
+			System.arraycopy(headers, 0, bigger, 0, headers.length);
+			headers = bigger;
+		}
+		int base = headerCount * 4;
+		headers[base] = nameStart;
+		headers[base + 1] = nameEnd;
+		headers[base + 2] = valueStart;
+		headers[base + 3] = valueEnd;
+		return headerCount++;
+	}
+
+	/**
+	 * @param lowerName
+	 *            a full header name in lower case
+	 */
+	private boolean nameIs(int idx, String lowerName) {
+		int start = headers[idx * 4];
+		int end = headers[idx * 4 + 1];
+		if (end - start == 1) {
+			return lowerName.equals(expandCompactForm(Character.toLowerCase((char) raw[start])));
+		}
+		if (end - start != lowerName.length()) {
+			return false;
+		}
+		for (int i = 0; i < lowerName.length(); i++) {
+			if (Character.toLowerCase((char) raw[start + i]) != lowerName.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String expandCompactForm(char c) {
+		for (String[] form : COMPACT_FORMS) {
+			if (form[0].charAt(0) == c) {
+				return form[1];
+			}
+		}
+		return null;
+	}
+
+	private static String canonicalName(String name) {
+		String lower = name.trim().toLowerCase();
+		if (lower.length() == 1) {
+			String expanded = expandCompactForm(lower.charAt(0));
+			if (expanded != null) {
+				return expanded;
+			}
+		}
+		return lower;
+	}
+
+	private boolean regionEquals(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (raw[start + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long parseNumber(int start, int end) throws ParseException {
+		if (start == end) {
+			throw new ParseException("Expected a number", start);
+		}
+		long n = 0;
+		for (int i = start; i < end; i++) {
+			int d = raw[i] - '0';
+			if (d < 0 || d > 9) {
+				throw new ParseException("Expected a number", i);
+			}
+			n = n * 10 + d;
+		}
+		return n;
+	}
+
+	private int indexOf(char c, int from) {
+		for (int i = from; i < length; i++) {
+			if (raw[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int trimCR(int start, int lf) {
+		return (lf > start && raw[lf - 1] == '\r') ? lf - 1 : lf;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private String string(int start, int end) {
+		return new String(raw, start, end - start, UTF8);
+	}
+
+	private String value(int idx) {
+		return string(headers[idx * 4 + 2], headers[idx * 4 + 3]);
+	}
+
+	@Override
+	public boolean isRequest() {
+		return this.request;
+	}
+
+	@Override
+	public String getMethod() {
+		return this.method;
+	}
+
+	@Override
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	@Override
+	public String getCallId() {
+		if (this.callId == null) {
+			this.callId = string(this.callIdStart, this.callIdEnd);
+		}
+		return this.callId;
+	}
+
+	/**
+	 * The array the message was indexed in, for looking its Call-ID up without decoding it (see getCallIdOffset).
+	 */
+	public byte[] getRawBytes() {
+		return this.raw;
+	}
+
+	public int getCallIdOffset() {
+		return this.callIdStart;
+	}
+
+	public int getCallIdLength() {
+		return this.callIdEnd - this.callIdStart;
+	}
+
+	@Override
+	public String getCSeqMethod() {
+		return this.cseqMethod;
+	}
+
+	@Override
+	public long getCSeqNumber() {
+		return this.cseqNumber;
+	}
+
+	@Override
+	public String getTopVia() {
+		if (this.viaIdx < 0) {
+			return null;
+		}
+		String via = value(this.viaIdx);
+		int comma = via.indexOf(',');
+		return (comma < 0) ? via : via.substring(0, comma).trim();
+	}
+
+	@Override
+	public String getFirstLine() {
+		return string(0, this.firstLineEnd).trim();
+	}
+
+	@Override
+	public String getHeader(String name) {
+		String lower = canonicalName(name);
+		for (int i = 0; i < headerCount; i++) {
+			if (nameIs(i, lower)) {
+				return value(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String getHeaderAsFormattedString(String name) {
+		String lower = canonicalName(name);
+		StringBuilder sb = null;
+		for (int i = 0; i < headerCount; i++) {
+			if (nameIs(i, lower)) {
+				if (sb == null) {
+					sb = new StringBuilder(name.trim()).append(": ");
+				} else {
+					sb.append(',');
+				}
+				sb.append(value(i));
+			}
+		}
+		return (sb == null) ? null : sb.toString();
+	}
+
+	public int getBodyLength() {
+		return this.bodyLength;
+	}
+
+	@Override
+	public byte[] getBody() {
+		byte[] body = new byte[this.bodyLength];
+		System.arraycopy(raw, bodyStart, body, 0, bodyLength);
+		return body;
+	}
+}
@@ -0,0 +1,18 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * The default decoder: copies the message out of the network buffer once and indexes it as a LazyMessage.
+ */
+public class LazyMessageDecoder implements MessageDecoder {
+
+	@Override
+	public ReceivedMessage decode(ByteBuffer message) throws ParseException {
+		int length = message.remaining();
+		byte[] raw = new byte[length];
+		message.get(raw);
+		return new LazyMessage(raw, length);
+	}
+}
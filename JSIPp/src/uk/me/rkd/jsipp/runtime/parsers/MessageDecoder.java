@@ -0,0 +1,19 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Turns the bytes of one complete SIP message into a ReceivedMessage.
+ */
+public interface MessageDecoder {
+
+	/**
+	 * @param message
+	 *            a buffer holding exactly one message between its position and limit, which is consumed
+	 * @return the decoded message, which keeps its own copy of the bytes
+	 * @throws ParseException
+	 *             if the message is malformed
+	 */
+	public ReceivedMessage decode(ByteBuffer message) throws ParseException;
+}
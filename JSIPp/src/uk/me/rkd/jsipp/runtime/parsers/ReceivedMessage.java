@@ -0,0 +1,47 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+/**
+ * A SIP message received from the network, as seen by calls and scenario phases.
+ */
+public interface ReceivedMessage {
+
+	public boolean isRequest();
+
+	/**
+	 * @return the request method, or null for a response
+	 */
+	public String getMethod();
+
+	/**
+	 * @return the status code, or 0 for a request
+	 */
+	public int getStatusCode();
+
+	public String getCallId();
+
+	public String getCSeqMethod();
+
+	public long getCSeqNumber();
+
+	/**
+	 * @return the value of the topmost Via header
+	 */
+	public String getTopVia();
+
+	public String getFirstLine();
+
+	/**
+	 * @return the value of the first header with this name, or null if there isn't one
+	 */
+	public String getHeader(String name);
+
+	/**
+	 * @return every header with this name, formatted as "Name: value,value", or null if there aren't any
+	 */
+	public String getHeaderAsFormattedString(String name);
+
+	/**
+	 * @return a copy of the message body, which is empty if there isn't one
+	 */
+	public byte[] getBody();
+}
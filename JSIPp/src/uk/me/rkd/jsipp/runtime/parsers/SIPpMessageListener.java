@@ -0,0 +1,18 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+import java.text.ParseException;
+
+/**
+ * Receives the messages (and parse failures) produced by a SIPpMessageParser.
+ */
+public interface SIPpMessageListener {
+
+	public void processMessage(ReceivedMessage msg) throws Exception;
+
+	public void handleException(ParseException ex, String messageText);
+
+	/**
+	 * Called when a double-CRLF keepalive is received on a stream (RFC 5626 section 4.4.1).
+	 */
+	public void sendSingleCLRF() throws Exception;
+}
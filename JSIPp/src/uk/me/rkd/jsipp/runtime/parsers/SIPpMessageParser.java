@@ -1,54 +1,91 @@
 package uk.me.rkd.jsipp.runtime.parsers;
 
-import gov.nist.javax.sip.message.SIPMessage;
-import gov.nist.javax.sip.parser.MessageParser;
-import gov.nist.javax.sip.parser.SIPMessageListener;
-import gov.nist.javax.sip.parser.StringMsgParser;
-
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 
 import org.apache.log4j.Logger;
 
+import uk.me.rkd.jsipp.Configuration;
+
 public abstract class SIPpMessageParser {
 
 	protected static Logger logger = Logger.getLogger(StreamMessageParser.class);
 
-	public abstract void addBytes(byte[] bytes) throws IOException, ParseException;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Consumes newly-read bytes between the buffer's position and limit. The buffer may be reused once this returns,
+	 * so parsers must copy anything they need to keep.
+	 */
+	public abstract void addBytes(ByteBuffer bytes) throws IOException, ParseException;
+
+	public void addBytes(byte[] bytes) throws IOException, ParseException {
+		addBytes(ByteBuffer.wrap(bytes));
+	}
 
-	protected MessageParser smp = null;
+	protected MessageDecoder decoder;
 
 	/**
 	 * The message listener that is registered with this parser. (The message listener has methods that can process
 	 * correct and erroneous messages.)
 	 */
-	protected SIPMessageListener sipMessageListener;
+	protected SIPpMessageListener sipMessageListener;
 
-	public SIPpMessageParser(SIPMessageListener mhandler) {
+	public SIPpMessageParser(SIPpMessageListener mhandler) {
+		this(mhandler, defaultDecoder());
+	}
+
+	public SIPpMessageParser(SIPpMessageListener mhandler, MessageDecoder decoder) {
 		super();
 		this.sipMessageListener = mhandler;
-		this.smp = new StringMsgParser();
+		this.decoder = decoder;
 	}
 
-	public void processSIPMessage(SIPMessage message) {
+	/**
+	 * @return the decoder selected on the command line (lazy unless -strict_parser was given)
+	 */
+	protected static MessageDecoder defaultDecoder() {
+		return Configuration.INSTANCE.isStrictParser() ? new StrictMessageDecoder() : new LazyMessageDecoder();
+	}
+
+	/**
+	 * Decodes one complete message and passes it to the listener.
+	 */
+	protected void processSIPMessage(ByteBuffer message) {
+		ReceivedMessage msg;
+		ByteBuffer original = message.duplicate();
 		try {
-			sipMessageListener.processMessage(message);
+			msg = this.decoder.decode(message);
+		} catch (ParseException e) {
+			byte[] text = new byte[original.remaining()];
+			original.get(text);
+			sipMessageListener.handleException(e, new String(text, UTF8));
+			return;
+		}
+		try {
+			sipMessageListener.processMessage(msg);
 		} catch (Exception e) {
 			logger.error("Can't process message", e);
 		}
 	}
 
 	/**
-	 * Add a class that implements a SIPMessageListener interface whose methods get called * on successful parse and
+	 * Add a class that implements a SIPpMessageListener interface whose methods get called on successful parse and
 	 * error conditons.
 	 * 
 	 * @param mlistener
-	 *            a SIPMessageListener implementation that can react to correct and incorrect pars.
+	 *            a SIPpMessageListener implementation that can react to correct and incorrect parses.
 	 */
-	public void setMessageListener(SIPMessageListener mlistener) {
+	public void setMessageListener(SIPpMessageListener mlistener) {
 		sipMessageListener = mlistener;
 	}
 
+	public SIPpMessageListener getMessageListener() {
+		return sipMessageListener;
+	}
+
 	public static int getBodyLength(String message) {
 		String[] parts = message.split("\r\n\r\n", 2);
 		if (parts.length == 1) {
@@ -56,4 +93,4 @@ public abstract class SIPpMessageParser {
 		}
 		return parts[1].length();
 	}
-}
\ No newline at end of file
+}
@@ -1,5 +1,9 @@
 package uk.me.rkd.jsipp.runtime.parsers;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
 public class SipUtils {
 
 	public static String methodOrStatusCode(String firstLine) {
@@ -11,4 +15,55 @@ public class SipUtils {
 		}
 	}
 
+	/**
+	 * Finds where an SDP offer or answer wants its audio sent: the port of the first m=audio line, at the address of
+	 * that media's c= line, or else the session's.
+	 *
+	 * @return the address, or null if there's no audio stream, it's been refused (port 0), or it has no usable address
+	 */
+	public static InetSocketAddress sdpAudioTarget(String sdp) {
+		String sessionAddress = null;
+		String mediaAddress = null;
+		int port = -1;
+		boolean inMedia = false;
+		for (String line : sdp.split("\r?\n")) {
+			if (line.startsWith("m=")) {
+				if (port >= 0) {
+					// Only the first audio stream is used
+					break;
+				}
+				inMedia = true;
+				String[] fields = line.substring(2).trim().split(" +");
+				if (fields[0].equals("audio") && fields.length > 1) {
+					try {
+						// Ignore any "/<number of ports>"
+						port = Integer.parseInt(fields[1].split("/")[0]);
+					} catch (NumberFormatException e) {
+						return null;
+					}
+				}
+			} else if (line.startsWith("c=")) {
+				String[] fields = line.substring(2).trim().split(" +");
+				if (fields.length < 3) {
+					continue;
+				}
+				// Ignore any multicast "/<ttl>"
+				String address = fields[2].split("/")[0];
+				if (port >= 0) {
+					mediaAddress = address;
+				} else if (!inMedia) {
+					sessionAddress = address;
+				}
+			}
+		}
+		String address = (mediaAddress != null) ? mediaAddress : sessionAddress;
+		if (port <= 0 || address == null) {
+			return null;
+		}
+		try {
+			return new InetSocketAddress(InetAddress.getByName(address), port);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
 }
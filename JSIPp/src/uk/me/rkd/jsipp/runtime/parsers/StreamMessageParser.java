@@ -1,282 +1,258 @@
 package uk.me.rkd.jsipp.runtime.parsers;
 
-/*
- * Conditions Of Use
- *
- * This software was developed by employees of the National Institute of
- * Standards and Technology (NIST), an agency of the Federal Government.
- * Pursuant to title 15 Untied States Code Section 105, works of NIST
- * employees are not subject to copyright protection in the United States
- * and are considered to be in the public domain.  As a result, a formal
- * license is not needed to use the software.
- *
- * This software is provided by NIST as a service and is expressly
- * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
- * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
- * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
- * AND DATA ACCURACY.  NIST does not warrant or make any representations
- * regarding the use of the software or the results thereof, including but
- * not limited to the correctness, accuracy, reliability or usefulness of
- * the software.
- *
- * Permission to use this software is contingent upon your acceptance
- * of the terms of this agreement
- *
- * .
- *
- */
-/******************************************************************************
- * Product of NIST/ITL Advanced Networking Technologies Division (ANTD)       *
- ******************************************************************************/
-
-import gov.nist.javax.sip.message.SIPMessage;
-import gov.nist.javax.sip.parser.SIPMessageListener;
-
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
-import javax.sip.header.CallIdHeader;
-import javax.sip.header.ContentLengthHeader;
-
 /**
- * This is a FSM that can parse a single stream of messages with they bodies and then pass the sip message to the
- * listeners. It accumulates bytes until end of message is detected or some DoS trigger terminates it due to excessive
- * amount of bytes per message or line.
- * 
- * Once parsed it will pass the message to the SIPMessageListener
- * 
- * @see SIPMessageListener
- * @author vladimirralev
+ * Splits a stream of bytes (e.g. from a TCP connection) into SIP messages. Each read is scanned in place for the end
+ * of the headers and the Content-Length header, and every complete message is handed to the decoder as a slice of the
+ * buffer it arrived in. Only a message that straddles two reads is copied, into a buffer kept until the rest arrives.
  */
-public class StreamMessageParser extends uk.me.rkd.jsipp.runtime.parsers.SIPpMessageParser {
+public class StreamMessageParser extends SIPpMessageParser {
+
+	private static final int INITIAL_PENDING_SIZE = 4096;
 
-	private static final String CRLF = "\r\n";
+	private final int maxMessageSize;
 
-	private int maxMessageSize;
-	private int sizeCounter;
-	boolean isRunning = false;
-	boolean currentStreamEnded = false;
-	boolean readingMessageBodyContents = false;
-	boolean readingHeaderLines = true;
-	boolean partialLineRead = false; // if we didn't receive enough bytes for a full line we expect the line to end in
-	                                 // the next batch of bytes
-	String partialLine = "";
-	String callId;
+	// Bytes of an incomplete message, kept between reads; null when there are none
+	private ByteBuffer pending = null;
 
-	StringBuffer message = new StringBuffer();
-	byte[] messageBody = null;
-	int contentLength = 0;
-	int contentReadSoFar = 0;
+	// Scanning state for the message at the start of the buffer, relative to that start
+	private int scannedTo = 0;
+	private int headerLength = -1;
+	private int contentLength = 0;
+	private boolean previousLineCRLF = false;
 
-	/*
-	 * This is where we receive the bytes from the stream and we analyze the through message structure. For TCP the key
-	 * things to identify are message lines for the headers, parse the Content-Length header and then read the message
-	 * body (aka message content). For TCP the Content-Length must be 100% accurate.
+	/**
+	 * @param mhandler
+	 *            the listener for parsed messages and keepalives
+	 * @param maxMsgSize
+	 *            the maximum allowed size of a SIP message, or 0 for no limit
 	 */
-	private void readStream(InputStream inputStream) throws IOException {
-		boolean isPreviousLineCRLF = false;
-		while (true) { // We read continuously from the bytes we receive and only break where there are no more bytes in
-			           // the inputStream passed to us
-			if (currentStreamEnded) {
-				break; // The stream ends when we have read all bytes in the chunk NIO passed to us
-			}
-			if (readingHeaderLines) {// We are in state to read header lines right now
-				isPreviousLineCRLF = readMessageSipHeaderLines(inputStream, isPreviousLineCRLF);
-			}
-			if (readingMessageBodyContents) { // We've already read the headers an now we are reading the Contents of
-				                              // the SIP message (which doesn't generally have lines)
-				readMessageBody(inputStream);
-			}
-		}
+	public StreamMessageParser(SIPpMessageListener mhandler, int maxMsgSize) {
+		this(mhandler, defaultDecoder(), maxMsgSize);
 	}
 
-	private boolean readMessageSipHeaderLines(InputStream inputStream, boolean isPreviousLineCRLF) throws IOException {
-		boolean crlfReceived = false;
-		String line = readLine(inputStream); // This gives us a full line or if it didn't fit in the byte check it may
-		                                     // give us part of the line
-		if (partialLineRead) {
-			partialLine = partialLine + line; // If we are reading partial line again we must concatenate it with the
-			                                  // previous partial line to reconstruct the full line
+	public StreamMessageParser(SIPpMessageListener mhandler, MessageDecoder decoder, int maxMsgSize) {
+		super(mhandler, decoder);
+		this.maxMessageSize = maxMsgSize;
+	}
+
+	@Override
+	public synchronized void addBytes(ByteBuffer bytes) throws IOException, ParseException {
+		if (this.pending == null) {
+			try {
+				frame(bytes);
+			} finally {
+				if (bytes.hasRemaining()) {
+					keep(bytes);
+				}
+			}
 		} else {
-			line = partialLine + line; // If we reach the end of the line in this chunk we concatenate it with the
-			                           // partial line from the previous buffer to have a full line
-			partialLine = ""; // Reset the partial line so next time we will concatenate empty string instead of the
-			                  // obsolete partial line that we just took care of
-			if (!line.equals(CRLF)) { // CRLF indicates END of message headers by RFC
-				message.append(line); // Collect the line so far in the message buffer (line by line)
-				String lineIgnoreCase = line.toLowerCase();
-				// contribution from Alexander Saveliev compare to lower case as RFC 3261 states (7.3.1 Header Field
-				// Format) states that header fields are case-insensitive
-				if (lineIgnoreCase.startsWith(ContentLengthHeader.NAME.toLowerCase())) { // naive Content-Length header
-					                                                                     // parsing to figure out how
-					                                                                     // much bytes of message body
-					                                                                     // must be read after the SIP
-					                                                                     // headers
-					contentLength = Integer.parseInt(line.substring(ContentLengthHeader.NAME.length() + 1).trim());
-				} else if (lineIgnoreCase.startsWith(CallIdHeader.NAME.toLowerCase())) { // naive Content-Length header
-					                                                                     // parsing to figure out how
-					                                                                     // much bytes of message body
-					                                                                     // must be read after the SIP
-					                                                                     // headers
-					callId = line.substring(CallIdHeader.NAME.length() + 1).trim();
+			append(bytes);
+			this.pending.flip();
+			try {
+				frame(this.pending);
+			} finally {
+				if (this.pending.hasRemaining()) {
+					this.pending.compact();
+				} else {
+					this.pending = null;
 				}
-			} else {
-				if (isPreviousLineCRLF) {
-					// Handling keepalive ping (double CRLF) as defined per RFC 5626 Section 4.4.1
-					// sending pong (single CRLF)
-					logger.debug("KeepAlive Double CRLF received, sending single CRLF as defined per RFC 5626 Section 4.4.1");
-					logger.debug("~~~ setting isPreviousLineCRLF=false");
+			}
+		}
+	}
 
-					crlfReceived = false;
+	/**
+	 * Passes on every complete message at the start of buf, leaving its position at the first unconsumed byte.
+	 */
+	private void frame(ByteBuffer buf) throws ParseException {
+		while (buf.hasRemaining()) {
+			int start = buf.position();
+			int available = buf.limit() - start;
 
-					try {
-						sipMessageListener.sendSingleCLRF();
-					} catch (Exception e) {
-						logger.error("A problem occured while trying to send a single CLRF in response to a double CLRF",
-						             e);
-					}
-				} else {
-					crlfReceived = true;
-					logger.debug("Received CRLF");
+			if (this.headerLength < 0) {
+				if (skipCRLF(buf)) {
+					continue;
 				}
-				if (message.length() > 0) { // if we havent read any headers yet we are between messages and ignore
-					                        // CRLFs
-					readingMessageBodyContents = true;
-					readingHeaderLines = false;
-					partialLineRead = false;
-					message.append(CRLF); // the parser needs CRLF at the end, otherwise fails TODO: Is that a bug?
-					logger.debug("Content Length parsed is " + contentLength);
-
-					contentReadSoFar = 0;
-					messageBody = new byte[contentLength];
+				int end = indexOfHeaderEnd(buf, start + Math.max(0, this.scannedTo - 3), buf.limit());
+				if (end < 0) {
+					this.scannedTo = available;
+					checkSize(buf, available);
+					return;
+				}
+				int headers = end - start;
+				int maxBody = ((this.maxMessageSize > 0) ? this.maxMessageSize : Integer.MAX_VALUE) - headers;
+				try {
+					this.contentLength = findContentLength(buf, start, end, maxBody);
+				} catch (ParseException e) {
+					// Without a length there's no way to find where the next message starts
+					dropAll(buf);
+					throw e;
 				}
+				this.headerLength = headers;
 			}
+
+			int total = this.headerLength + this.contentLength;
+			checkSize(buf, total);
+			if (available < total) {
+				return;
+			}
+			ByteBuffer message = buf.duplicate();
+			message.limit(start + total);
+			buf.position(start + total);
+			this.headerLength = -1;
+			this.scannedTo = 0;
+			this.contentLength = 0;
+			this.previousLineCRLF = false;
+			processSIPMessage(message);
 		}
-		return crlfReceived;
 	}
 
-	// This method must be called repeatedly until the inputStream returns -1 or some error conditions is triggered
-	private void readMessageBody(InputStream inputStream) throws IOException {
-		int bytesRead = 0;
-		if (contentLength > 0) {
-			bytesRead = readChunk(inputStream, messageBody, contentReadSoFar, contentLength - contentReadSoFar);
-			if (bytesRead == -1) {
-				currentStreamEnded = true;
-				bytesRead = 0; // avoid passing by a -1 for a one-off bug when contentReadSoFar gets wrong
+	/**
+	 * Consumes a CRLF found between messages. Two in a row are a keepalive ping (RFC 5626 section 4.4.1), answered
+	 * with a single CRLF.
+	 *
+	 * @return whether a CRLF was consumed
+	 */
+	private boolean skipCRLF(ByteBuffer buf) {
+		int start = buf.position();
+		if (buf.get(start) == '\n') {
+			buf.position(start + 1);
+			this.scannedTo = 0;
+			return true;
+		}
+		if (buf.get(start) != '\r' || start + 1 >= buf.limit() || buf.get(start + 1) != '\n') {
+			return false;
+		}
+		buf.position(start + 2);
+		this.scannedTo = 0;
+		if (this.previousLineCRLF) {
+			this.previousLineCRLF = false;
+			logger.debug("KeepAlive Double CRLF received, sending single CRLF as defined per RFC 5626 Section 4.4.1");
+			try {
+				sipMessageListener.sendSingleCLRF();
+			} catch (Exception e) {
+				logger.error("A problem occured while trying to send a single CLRF in response to a double CLRF", e);
 			}
+		} else {
+			this.previousLineCRLF = true;
 		}
-		contentReadSoFar += bytesRead;
-		if (contentReadSoFar == contentLength) { // We have read the full message headers + body
-			sizeCounter = maxMessageSize;
-			readingHeaderLines = true;
-			readingMessageBodyContents = false;
-			final String msgLines = message.toString();
-			message = new StringBuffer();
-			final byte[] msgBodyBytes = messageBody;
-			SIPMessage sipMessage = null;
-			synchronized (smp) {
-				try {
-					sipMessage = smp.parseSIPMessage(msgLines.getBytes(), false, false, null);
-					sipMessage.setMessageContent(msgBodyBytes);
-				} catch (ParseException e) {
-					logger.error("Parsing problem", e);
+		return true;
+	}
+
+	/**
+	 * @return the offset just past the first CRLFCRLF in [from, to), or -1
+	 */
+	static int indexOfHeaderEnd(ByteBuffer buf, int from, int to) {
+		if (buf.hasArray()) {
+			byte[] a = buf.array();
+			int off = buf.arrayOffset();
+			for (int i = from + 3; i < to; i++) {
+				if (a[off + i] == '\n' && a[off + i - 2] == '\n' && a[off + i - 1] == '\r' && a[off + i - 3] == '\r') {
+					return i + 1;
+				}
+			}
+		} else {
+			for (int i = from + 3; i < to; i++) {
+				if (buf.get(i) == '\n' && buf.get(i - 2) == '\n' && buf.get(i - 1) == '\r' && buf.get(i - 3) == '\r') {
+					return i + 1;
 				}
 			}
-			processSIPMessage(sipMessage);
 		}
+		return -1;
 	}
 
-	@Override
-	public synchronized void addBytes(byte[] bytes) throws IOException {
-		currentStreamEnded = false;
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-		readStream(inputStream);
+	/**
+	 * Finds the Content-Length (or compact "l") header among the header lines in [start, end).
+	 *
+	 * @return its value, or 0 if there isn't one
+	 * @throws ParseException
+	 *             if the value isn't a number, or is more than max
+	 */
+	static int findContentLength(ByteBuffer buf, int start, int end, int max) throws ParseException {
+		int lineStart = start;
+		while (lineStart < end) {
+			int nameEnd = matchName(buf, lineStart, end, "content-length");
+			if (nameEnd < 0) {
+				nameEnd = matchName(buf, lineStart, end, "l");
+			}
+			if (nameEnd >= 0) {
+				int i = nameEnd;
+				while (i < end && (buf.get(i) == ' ' || buf.get(i) == '\t')) {
+					i++;
+				}
+				int value = 0;
+				int digits = 0;
+				for (; i < end && buf.get(i) >= '0' && buf.get(i) <= '9'; i++, digits++) {
+					int digit = buf.get(i) - '0';
+					// Checked before it can overflow
+					if (value > (max - digit) / 10) {
+						throw new ParseException("Content-Length over " + max, i - start);
+					}
+					value = value * 10 + digit;
+				}
+				if (digits == 0) {
+					throw new ParseException("Malformed Content-Length", i - start);
+				}
+				return value;
+			}
+			while (lineStart < end && buf.get(lineStart) != '\n') {
+				lineStart++;
+			}
+			lineStart++;
+		}
+		return 0;
 	}
 
 	/**
-	 * This is the constructor for stackless mode.
-	 * 
-	 * @param mhandler
-	 *            a SIPMessageListener implementation that provides the message handlers to handle correctly and
-	 *            incorrectly parsed messages.
-	 * @param maxMsgSize
-	 *            The maximum allowed size of a SIP message.
+	 * @return the offset just past the colon if the line at lineStart is a header with this (lower case) name, or -1
 	 */
-
-	public StreamMessageParser(SIPMessageListener mhandler, int maxMsgSize) {
-		super(mhandler);
-		this.maxMessageSize = maxMessageSize;
-		this.sizeCounter = this.maxMessageSize;
+	private static int matchName(ByteBuffer buf, int lineStart, int end, String name) {
+		int i = lineStart;
+		for (int j = 0; j < name.length(); j++, i++) {
+			if (i >= end || (buf.get(i) | 0x20) != name.charAt(j)) {
+				return -1;
+			}
+		}
+		while (i < end && (buf.get(i) == ' ' || buf.get(i) == '\t')) {
+			i++;
+		}
+		return (i < end && buf.get(i) == ':') ? i + 1 : -1;
 	}
 
-	private int readChunk(InputStream inputStream, byte[] where, int offset, int length) throws IOException {
-		int read = inputStream.read(where, offset, length);
-		sizeCounter -= read;
-		checkLimits();
-		return read;
+	private void checkSize(ByteBuffer buf, int size) throws ParseException {
+		if (this.maxMessageSize > 0 && size > this.maxMessageSize) {
+			// There's no way to find the start of the next message, so drop everything received so far
+			dropAll(buf);
+			throw new ParseException("Max Message Size Exceeded " + this.maxMessageSize, 0);
+		}
 	}
 
-	private int readSingleByte(InputStream inputStream) throws IOException {
-		sizeCounter--;
-		checkLimits();
-		return inputStream.read();
+	private void dropAll(ByteBuffer buf) {
+		buf.position(buf.limit());
+		this.headerLength = -1;
+		this.scannedTo = 0;
+		this.contentLength = 0;
 	}
 
-	private void checkLimits() {
-		if (maxMessageSize > 0 && sizeCounter < 0)
-			throw new RuntimeException("Max Message Size Exceeded " + maxMessageSize);
+	private void keep(ByteBuffer bytes) {
+		this.pending = ByteBuffer.allocate(Math.max(INITIAL_PENDING_SIZE, bytes.remaining()));
+		this.pending.put(bytes);
 	}
 
-	/**
-	 * read a line of input. Note that we encode the result in UTF-8
-	 */
-	private String readLine(InputStream inputStream) throws IOException {
-		partialLineRead = false;
-		int counter = 0;
-		int increment = 1024;
-		int bufferSize = increment;
-		byte[] lineBuffer = new byte[bufferSize];
-		// handles RFC 5626 CRLF keepalive mechanism
-		byte[] crlfBuffer = new byte[2];
-		int crlfCounter = 0;
-		while (true) {
-			char ch;
-			int i = readSingleByte(inputStream);
-			if (i == -1) {
-				partialLineRead = true;
-				currentStreamEnded = true;
-				break;
-			} else
-				ch = (char) (i & 0xFF);
-
-			if (ch != '\r')
-				lineBuffer[counter++] = (byte) (i & 0xFF);
-			else if (counter == 0)
-				crlfBuffer[crlfCounter++] = (byte) '\r';
-
-			if (ch == '\n') {
-				if (counter == 1 && crlfCounter > 0) {
-					crlfBuffer[crlfCounter++] = (byte) '\n';
-				}
-				break;
-			}
-
-			if (counter == bufferSize) {
-				byte[] tempBuffer = new byte[bufferSize + increment];
-				System.arraycopy((Object) lineBuffer, 0, (Object) tempBuffer, 0, bufferSize);
-				bufferSize = bufferSize + increment;
-				lineBuffer = tempBuffer;
-
+	private void append(ByteBuffer bytes) {
+		if (this.pending.remaining() < bytes.remaining()) {
+			int size = this.pending.capacity();
+			while (size - this.pending.position() < bytes.remaining()) {
+				size *= 2;
 			}
+			ByteBuffer bigger = ByteBuffer.allocate(size);
+			this.pending.flip();
+			bigger.put(this.pending);
+			this.pending = bigger;
 		}
-		if (counter == 1 && crlfCounter > 0) {
-			return new String(crlfBuffer, 0, crlfCounter, "UTF-8");
-		} else {
-			return new String(lineBuffer, 0, counter, "UTF-8");
-		}
-
+		this.pending.put(bytes);
 	}
-
-}
\ No newline at end of file
+}
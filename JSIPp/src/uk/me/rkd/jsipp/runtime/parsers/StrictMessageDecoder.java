@@ -0,0 +1,27 @@
+package uk.me.rkd.jsipp.runtime.parsers;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Parses every message fully with the jain-sip StringMsgParser. Slower than the lazy decoder, but rejects malformed
+ * headers.
+ */
+public class StrictMessageDecoder implements MessageDecoder {
+
+	private final StringMsgParser smp = new StringMsgParser();
+
+	@Override
+	public synchronized ReceivedMessage decode(ByteBuffer message) throws ParseException {
+		byte[] raw = new byte[message.remaining()];
+		message.get(raw);
+		SIPMessage msg = this.smp.parseSIPMessage(raw, true, false, null);
+		if (msg == null) {
+			throw new ParseException("Empty message", 0);
+		}
+		return new JainMessage(msg);
+	}
+}
@@ -0,0 +1,69 @@
+package uk.me.rkd.jsipp.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageTemplateTest {
+
+	private static String render(String text, VariableTable variables) throws Exception {
+		return new String(MessageTemplate.compile(text).render(variables), "UTF-8");
+	}
+
+	@Test
+	public void testSingleMatch() throws Exception {
+		VariableTable variables = new SimpleVariableTable();
+		variables.putKeyword("call_id", "4");
+		assertEquals("1 2 3 4 5", render("1 2 3 [call_id] 5", variables));
+	}
+
+	@Test
+	public void testNoMatch() throws Exception {
+		VariableTable variables = new SimpleVariableTable();
+		variables.putKeyword("call_id", "4");
+		assertEquals("1 2 3 [other] 5", render("1 2 3 [other] 5", variables));
+	}
+
+	@Test
+	public void testMissingLast() throws Exception {
+		MessageTemplate t = MessageTemplate.compile("1 2 3 [last_Via:] [call_id] 5\r\nnext\r\n");
+		assertTrue(t.usesLastHeaders());
+		VariableTable variables = new SimpleVariableTable();
+		variables.putKeyword("call_id", "4");
+		assertEquals("1 2 3 \r\nnext\r\n", new String(t.render(variables), "UTF-8"));
+	}
+
+	@Test
+	public void testAddition() throws Exception {
+		VariableTable variables = new SimpleVariableTable();
+		variables.putKeyword("call_id", "4");
+		assertEquals("1 2 3 8 5", render("1 2 3 [call_id+4] 5", variables));
+	}
+
+	@Test
+	public void testEscape() throws Exception {
+		VariableTable variables = new SimpleVariableTable();
+		variables.putKeyword("call_id", "4");
+		assertEquals("1 2 3 [call_id] 5", render("1 2 3 \\u005Bcall_id] 5", variables));
+	}
+
+	@Test
+	public void testLength() throws Exception {
+		String text = "MESSAGE sip:a@example.com SIP/2.0\r\nContent-Length: [len]\r\n\r\nHello [call_id]!\r\n";
+		MessageTemplate t = MessageTemplate.compile(text);
+		assertFalse(t.usesLastHeaders());
+		VariableTable variables = new SimpleVariableTable();
+		variables.putKeyword("call_id", "caf\u00e9");
+		String expected = "MESSAGE sip:a@example.com SIP/2.0\r\nContent-Length: 14\r\n\r\nHello caf\u00e9!\r\n";
+		assertEquals(expected, new String(t.render(variables), "UTF-8"));
+	}
+
+	@Test
+	public void testNoBody() throws Exception {
+		String text = "MESSAGE sip:a@example.com SIP/2.0\r\nContent-Length: [len]\r\n\r\n";
+		assertEquals("MESSAGE sip:a@example.com SIP/2.0\r\nContent-Length: 0\r\n\r\n",
+		             render(text, new SimpleVariableTable()));
+	}
+}
@@ -1,14 +1,21 @@
 package uk.me.rkd.jsipp.compiler;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.junit.Test;
 import org.xml.sax.SAXException;
 
+import uk.me.rkd.jsipp.compiler.phases.CallPhase;
+import uk.me.rkd.jsipp.compiler.phases.Nop;
 import uk.me.rkd.jsipp.testutils.XMLHelper;
 
 
@@ -47,4 +54,59 @@ public class ScenarioTest {
 		Scenario.fromXMLDocument(XMLHelper.parseXML(xml));
 	}
 
+	@Test
+	public void testRepartitions() throws ParserConfigurationException, SAXException, IOException {
+		String xml = "<scenario><send>MESSAGE sip:example.com SIP/2.0</send><recv response='200' />"
+		        + "<ResponseTimeRepartition value='10, 20,30 , 20'/><CallLengthRepartition value='100'/></scenario>";
+		Scenario scenario = Scenario.fromXMLDocument(XMLHelper.parseXML(xml));
+		assertArrayEquals(new int[] { 10, 20, 30 }, scenario.getResponseTimeRepartition());
+		assertArrayEquals(new int[] { 100 }, scenario.getCallLengthRepartition());
+		assertTrue(scenario.phases().size() == 2);
+	}
+
+	@Test
+	public void testRtdNames() throws ParserConfigurationException, SAXException, IOException {
+		String xml = "<scenario><send start_rtd='a'>MESSAGE sip:example.com SIP/2.0</send>"
+		        + "<recv response='100' rtd='a' start_rtd='b' /><recv response='200' rtd='true' repeat_rtd='true' />"
+		        + "</scenario>";
+		Scenario scenario = Scenario.fromXMLDocument(XMLHelper.parseXML(xml));
+		assertEquals(Arrays.asList("a", "b", "1"), scenario.getRtdNames());
+		List<CallPhase> phases = scenario.phases();
+		assertEquals(0, phases.get(0).startRtd);
+		assertEquals(CallPhase.NO_RTD, phases.get(0).stopRtd);
+		assertEquals(0, phases.get(1).stopRtd);
+		assertEquals(1, phases.get(1).startRtd);
+		assertEquals(2, phases.get(2).stopRtd);
+		assertTrue(phases.get(2).repeatRtd);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyRtds() throws ParserConfigurationException, SAXException, IOException {
+		StringBuilder xml = new StringBuilder("<scenario>");
+		for (int i = 0; i <= Scenario.MAX_RTDS; i++) {
+			xml.append("<pause start_rtd='" + i + "' />");
+		}
+		Scenario.fromXMLDocument(XMLHelper.parseXML(xml.append("</scenario>").toString()));
+	}
+
+	@Test
+	public void testNopAndActions() throws ParserConfigurationException, SAXException, IOException {
+		String xml = "<scenario><nop start_rtd='a'><action><ereg regexp='.*' search_in='msg' /><log message='x' />"
+		        + "</action></nop><pause /></scenario>";
+		Scenario scenario = Scenario.fromXMLDocument(XMLHelper.parseXML(xml));
+		List<CallPhase> phases = scenario.phases();
+		assertEquals(2, phases.size());
+		assertTrue(phases.get(0) instanceof Nop);
+		assertEquals(0, phases.get(0).startRtd);
+		// Neither action does anything yet
+		assertTrue(phases.get(0).actions.isEmpty());
+		assertFalse(scenario.playsAudio());
+		assertEquals("NAME:Unnamed Scenario;NOP:;PAUSE:1000;", scenario.forZMQ());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingCapture() throws ParserConfigurationException, SAXException, IOException {
+		String xml = "<scenario><nop><action><exec play_pcap_audio='no-such-file.pcap' /></action></nop></scenario>";
+		Scenario.fromXMLDocument(XMLHelper.parseXML(xml));
+	}
 }
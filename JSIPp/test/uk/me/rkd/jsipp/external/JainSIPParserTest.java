@@ -9,14 +9,17 @@ import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
-import gov.nist.javax.sip.parser.SIPMessageListener;
 
 import java.text.ParseException;
 
 import org.junit.Test;
 
 import uk.me.rkd.jsipp.runtime.parsers.DatagramMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.JainMessage;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageListener;
 import uk.me.rkd.jsipp.runtime.parsers.StreamMessageParser;
+import uk.me.rkd.jsipp.runtime.parsers.StrictMessageDecoder;
 
 public class JainSIPParserTest {
 	String resp = "SIP/2.0 200 OK\r\n" + "Via: SIP/2.0/TCP client.atlanta.example.com:5060;branch=z9hG4bK74bf9\r\n"
@@ -35,7 +38,7 @@ public class JainSIPParserTest {
 	        + "Call-ID: a84b4c76e66710\r\n" + "CSeq: 63104 OPTIONS\r\n" + "Contact: <sip:alice@pc33.atlanta.com>\r\n"
 	        + "Accept: application/sdp\r\n" + "Content-Length: 0\r\n" + "\r\n";
 
-	public class TestHandler implements SIPMessageListener {
+	public class TestHandler implements SIPpMessageListener {
 
 		public SIPMessage msg;
 		public boolean error = false;
@@ -43,17 +46,16 @@ public class JainSIPParserTest {
 		public String err = "";
 
 		@Override
-		public void handleException(ParseException ex, SIPMessage sipMessage, Class headerClass, String headerText,
-		                            String messageText) throws ParseException {
-			this.err = "Parse error: " + headerText;
+		public void handleException(ParseException ex, String messageText) {
+			this.err = "Parse error: " + ex.getMessage();
 			this.error = true;
 			// TODO Auto-generated method stub
 
 		}
 
 		@Override
-		public void processMessage(SIPMessage msg) throws Exception {
-			this.msg = msg;
+		public void processMessage(ReceivedMessage msg) throws Exception {
+			this.msg = ((JainMessage) msg).getSIPMessage();
 			// TODO Auto-generated method stub
 
 		}
@@ -68,7 +70,7 @@ public class JainSIPParserTest {
 	@Test
 	public void testRequest() throws Exception {
 		TestHandler h = new TestHandler();
-		StreamMessageParser p = new StreamMessageParser(h, 4096);
+		StreamMessageParser p = new StreamMessageParser(h, new StrictMessageDecoder(), 4096);
 		p.addBytes(this.req.getBytes());
 		System.out.println(h.err);
 		assertFalse(h.error);
@@ -84,7 +86,7 @@ public class JainSIPParserTest {
 	@Test
 	public void testDatagramRequest() throws Exception {
 		TestHandler h = new TestHandler();
-		DatagramMessageParser p = new DatagramMessageParser(h);
+		DatagramMessageParser p = new DatagramMessageParser(h, new StrictMessageDecoder());
 		p.addBytes(this.req.getBytes());
 		System.out.println(h.err);
 		assertFalse(h.error);
@@ -100,7 +102,7 @@ public class JainSIPParserTest {
 	@Test
 	public void testResponse() throws Exception {
 		TestHandler h = new TestHandler();
-		StreamMessageParser p = new StreamMessageParser(h, 4096);
+		StreamMessageParser p = new StreamMessageParser(h, new StrictMessageDecoder(), 4096);
 		p.addBytes(this.resp.getBytes());
 		assertFalse(h.error);
 		assertNotNull(h.msg);
@@ -117,7 +119,7 @@ public class JainSIPParserTest {
 	@Test
 	public void testPing() throws Exception {
 		TestHandler h = new TestHandler();
-		StreamMessageParser p = new StreamMessageParser(h, 4096);
+		StreamMessageParser p = new StreamMessageParser(h, new StrictMessageDecoder(), 4096);
 		assertFalse(h.keepalive);
 		p.addBytes("\r\n\r\n".getBytes());
 		assertFalse(h.error);
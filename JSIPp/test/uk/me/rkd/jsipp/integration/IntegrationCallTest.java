@@ -15,8 +15,10 @@ import uk.me.rkd.jsipp.compiler.Scenario;
 import uk.me.rkd.jsipp.runtime.Call;
 import uk.me.rkd.jsipp.runtime.CallOpeningTask;
 import uk.me.rkd.jsipp.runtime.Scheduler;
+import uk.me.rkd.jsipp.runtime.network.NettySocketManager;
 import uk.me.rkd.jsipp.runtime.network.SocketManager;
 import uk.me.rkd.jsipp.runtime.network.TCPMultiplexingSocketManager;
+import uk.me.rkd.jsipp.runtime.network.UDPMultiplexingSocketManager;
 
 public class IntegrationCallTest {
 
@@ -78,4 +80,68 @@ public class IntegrationCallTest {
 		sched.stop();
 	}
 
+	@Test
+	public void testUDPSeveralSelectorThreads() throws ParserConfigurationException, SAXException, IOException,
+	        InterruptedException {
+		Scheduler sched = new Scheduler(50);
+
+		Scenario uasScenario = Scenario.fromXMLFilename("resources/message-uas.xml");
+
+		Scenario uacScenario = Scenario.fromXMLFilename("resources/message.xml");
+
+		SocketManager uasSM = new UDPMultiplexingSocketManager(null, 0, 0, 2);
+		InetSocketAddress bindAddr = new InetSocketAddress("127.0.0.1", 15061);
+		uasSM.setListener(bindAddr);
+
+		SocketManager uacSM = new UDPMultiplexingSocketManager("127.0.0.1", 15061, 4, 2);
+
+		CallOpeningTask opentask = CallOpeningTask.getInstance(uasScenario, uasSM, 0, sched.getTimer());
+
+		uasSM.start();
+		uacSM.start();
+
+		Call call = new Call(8, "uac1", "Test Scenario", uacScenario.phases(), uacSM, sched.getTimer());
+		call.registerSocket();
+		sched.getTimer().newTimeout(call, 10, TimeUnit.MILLISECONDS);
+		Thread.sleep(1000);
+		assertTrue(call.hasCompleted());
+		opentask.stop();
+		CallOpeningTask.reset();
+		uasSM.stop();
+		uacSM.stop();
+		sched.stop();
+	}
+
+	@Test
+	public void testNetty() throws ParserConfigurationException, SAXException, IOException, InterruptedException {
+		for (boolean udp : new boolean[] { false, true }) {
+			Scheduler sched = new Scheduler(50);
+
+			Scenario uasScenario = Scenario.fromXMLFilename("resources/message-uas.xml");
+
+			Scenario uacScenario = Scenario.fromXMLFilename("resources/message.xml");
+
+			SocketManager uasSM = new NettySocketManager(null, 0, udp, 0, 2);
+			InetSocketAddress bindAddr = new InetSocketAddress("127.0.0.1", 15062);
+			uasSM.setListener(bindAddr);
+
+			SocketManager uacSM = new NettySocketManager("127.0.0.1", 15062, udp, 2, 2);
+
+			CallOpeningTask opentask = CallOpeningTask.getInstance(uasScenario, uasSM, 0, sched.getTimer());
+
+			uasSM.start();
+			uacSM.start();
+
+			Call call = new Call(8, "uac1", "Test Scenario", uacScenario.phases(), uacSM, sched.getTimer());
+			call.registerSocket();
+			sched.getTimer().newTimeout(call, 10, TimeUnit.MILLISECONDS);
+			Thread.sleep(1000);
+			assertTrue(call.hasCompleted());
+			opentask.stop();
+			CallOpeningTask.reset();
+			uacSM.stop();
+			uasSM.stop();
+			sched.stop();
+		}
+	}
 }
@@ -0,0 +1,66 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ArrivalsTest {
+
+	@Test
+	public void testConstant() throws IOException {
+		ArrivalProcess arrivals = Arrivals.fromSpec("constant", 1000);
+		assertEquals(1000000, arrivals.nextGap());
+		arrivals.setRate(4000);
+		assertEquals(250000, arrivals.nextGap());
+	}
+
+	@Test
+	public void testPoissonMean() {
+		ArrivalProcess arrivals = new Arrivals.Poisson(1000, new Random(42));
+		long total = 0;
+		int n = 100000;
+		for (int i = 0; i < n; i++) {
+			long gap = arrivals.nextGap();
+			assertTrue(gap >= 0);
+			total += gap;
+		}
+		assertEquals(1000000.0, (double) total / n, 20000.0);
+	}
+
+	@Test
+	public void testOnOffOnlyStartsCallsDuringBursts() throws IOException {
+		// 100ms bursts every 400ms, averaging 100 calls a second
+		ArrivalProcess arrivals = Arrivals.fromSpec("onoff:100,300", 100);
+		long at = 0;
+		for (int i = 0; i < 400; i++) {
+			at += arrivals.nextGap();
+			long intoCycle = at % 400000000L;
+			assertTrue(intoCycle < 100000000L);
+		}
+		// 400 calls take 10 cycles
+		assertEquals(4000000000L, at, 400000000L);
+	}
+
+	@Test
+	public void testReplay() {
+		ArrivalProcess arrivals = new Arrivals.Replay(new BufferedReader(new StringReader(
+		        "# seconds from the start\n0.5\n\n0.75\n0.75\n2\n")));
+		assertEquals(500000000L, arrivals.nextGap());
+		assertEquals(250000000L, arrivals.nextGap());
+		assertEquals(0, arrivals.nextGap());
+		assertEquals(1250000000L, arrivals.nextGap());
+		assertEquals(-1, arrivals.nextGap());
+		assertEquals(-1, arrivals.nextGap());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownProcess() throws IOException {
+		Arrivals.fromSpec("sometimes", 10);
+	}
+}
@@ -1,7 +1,11 @@
 package uk.me.rkd.jsipp.runtime;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.IOException;
@@ -31,4 +35,80 @@ public class CallOpeningTaskTest {
 		sched.stop();
 	}
 
+	@Test
+	public void testConcurrentLimit() throws ParserConfigurationException, SAXException, IOException,
+	        InterruptedException {
+		SocketManager sm = mock(SocketManager.class);
+		Scenario s = Scenario.fromXMLFilename("resources/message-uas.xml");
+		Scheduler sched = new Scheduler(1);
+		CallOpeningTask task = CallOpeningTask.getInstance(s, sm, 1000, sched.getTimer());
+		// The calls wait for a MESSAGE that never comes, so stay in progress
+		task.setLimits(5, 0, false);
+		sched.add(task, 0);
+		Thread.sleep(200);
+		verify(sm, times(5)).add(Matchers.any(Call.class));
+		assertEquals(5, task.getCallsInFlight());
+		assertNull(task.newUAS("over-the-limit"));
+		task.stop();
+		CallOpeningTask.reset();
+		sched.stop();
+	}
+
+	@Test
+	public void testTotalLimit() throws ParserConfigurationException, SAXException, IOException, InterruptedException {
+		SocketManager sm = mock(SocketManager.class);
+		Scenario s = Scenario.fromXMLFilename("resources/message-uas.xml");
+		Scheduler sched = new Scheduler(1);
+		CallOpeningTask task = CallOpeningTask.getInstance(s, sm, 1000, sched.getTimer());
+		task.setLimits(0, 3, false);
+		sched.add(task, 0);
+		Thread.sleep(200);
+		verify(sm, times(3)).add(Matchers.any(Call.class));
+		task.stop();
+		CallOpeningTask.reset();
+		sched.stop();
+	}
+
+	@Test
+	public void testClosedLoopReplacesEndedCalls() throws ParserConfigurationException, SAXException, IOException,
+	        InterruptedException {
+		SocketManager sm = mock(SocketManager.class);
+		Scenario s = Scenario.fromXMLFilename("resources/message-uas.xml");
+		Scheduler sched = new Scheduler(1);
+		// A rate of zero, so only calls ending start new ones
+		CallOpeningTask task = CallOpeningTask.getInstance(s, sm, 0, sched.getTimer());
+		task.setLimits(4, 0, true);
+		sched.add(task, 0);
+		Thread.sleep(100);
+		verify(sm, times(4)).add(Matchers.any(Call.class));
+		task.callEnded();
+		task.callEnded();
+		Thread.sleep(100);
+		verify(sm, times(6)).add(Matchers.any(Call.class));
+		assertEquals(4, task.getCallsInFlight());
+		task.stop();
+		CallOpeningTask.reset();
+		sched.stop();
+	}
+
+	@Test
+	public void testCarriesOnAfterSocketFailure() throws ParserConfigurationException, SAXException, IOException,
+	        InterruptedException {
+		SocketManager sm = mock(SocketManager.class);
+		doThrow(new IOException("Connection refused")).doThrow(new IOException("Connection refused")).doNothing()
+		        .when(sm).add(Matchers.any(Call.class));
+		Scenario s = Scenario.fromXMLFilename("resources/message-uas.xml");
+		Scheduler sched = new Scheduler(1);
+		CallOpeningTask task = CallOpeningTask.getInstance(s, sm, 1000, sched.getTimer());
+		task.setLimits(5, 0, false);
+		sched.add(task, 0);
+		Thread.sleep(200);
+		// The two that failed ended at once, and didn't stop more being opened in their place
+		verify(sm, times(7)).add(Matchers.any(Call.class));
+		verify(sm, times(2)).remove(Matchers.any(Call.class));
+		assertEquals(5, task.getCallsInFlight());
+		task.stop();
+		CallOpeningTask.reset();
+		sched.stop();
+	}
 }
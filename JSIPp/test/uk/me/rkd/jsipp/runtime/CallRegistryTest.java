@@ -0,0 +1,94 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.network.CallIdMap;
+import uk.me.rkd.jsipp.runtime.network.IntObjectMap;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+public class CallRegistryTest {
+
+	@Test
+	public void testIntObjectMapPutGetRemove() {
+		IntObjectMap<String> map = new IntObjectMap<String>();
+		assertNull(map.put(1, "a"));
+		assertEquals("a", map.put(1, "b"));
+		assertEquals("b", map.get(1));
+		assertNull(map.get(2));
+		assertEquals(1, map.size());
+		assertEquals("b", map.remove(1));
+		assertNull(map.remove(1));
+		assertNull(map.get(1));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void testIntObjectMapAgainstHashMap() {
+		// Enough keys to resize every stripe, with removals that exercise the backward shift
+		IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			int key = random.nextInt(20000);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (int key = 0; key < 20000; key++) {
+			assertEquals(expected.get(key), map.get(key));
+		}
+	}
+
+	@Test
+	public void testCallIdMapLooksUpMessageBytes() throws Exception {
+		CallIdMap map = new CallIdMap();
+		Call call = mock(Call.class);
+		map.put("a84b4c76e66710", call);
+		String req = "OPTIONS sip:carol@chicago.com SIP/2.0\r\n"
+		        + "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKhjhs8ass877\r\n"
+		        + "Call-ID:   a84b4c76e66710  \r\n" + "CSeq: 63104 OPTIONS\r\n" + "Content-Length: 0\r\n" + "\r\n";
+		ReceivedMessage msg = new LazyMessageDecoder().decode(ByteBuffer.wrap(req.getBytes()));
+		assertSame(call, map.get(msg));
+		assertSame(call, map.get("a84b4c76e66710"));
+		assertNull(map.get("a84b4c76e6671"));
+
+		assertSame(call, map.remove("a84b4c76e66710"));
+		assertNull(map.get(msg));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void testCallIdMapAgainstHashMap() {
+		CallIdMap map = new CallIdMap();
+		Map<String, Call> expected = new HashMap<String, Call>();
+		Call[] calls = new Call[] { mock(Call.class), mock(Call.class) };
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++) {
+			String callId = random.nextInt(10000) + "@jsipp";
+			if (random.nextInt(3) == 0) {
+				assertSame(expected.remove(callId), map.remove(callId));
+			} else {
+				Call call = calls[i % 2];
+				assertSame(expected.put(callId, call), map.put(callId, call));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (int i = 0; i < 10000; i++) {
+			assertSame(expected.get(i + "@jsipp"), map.get(i + "@jsipp"));
+		}
+	}
+}
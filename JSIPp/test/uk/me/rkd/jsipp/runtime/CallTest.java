@@ -1,14 +1,18 @@
 package uk.me.rkd.jsipp.runtime;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import gov.nist.javax.sip.parser.StringMsgParser;
+import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -17,11 +21,19 @@ import org.junit.Test;
 import org.xml.sax.SAXException;
 
 import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.runtime.network.OutboundBuffer;
 import uk.me.rkd.jsipp.runtime.network.SocketManager;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.testutils.XMLHelper;
 
 public class CallTest {
 
-	static StringMsgParser p = new StringMsgParser();
+	static LazyMessageDecoder p = new LazyMessageDecoder();
+
+	static ReceivedMessage parse(String message) throws ParseException {
+		return p.decode(ByteBuffer.wrap(message.getBytes()));
+	}
 
 	String resp = "SIP/2.0 200 OK\r\n" + "Via: SIP/2.0/TCP client.atlanta.example.com:5060;branch=z9hG4bK74bf9\r\n"
 	        + " ;received=192.0.2.101\r\n" + "From: Alice <sip:alice@atlanta.example.com>;tag=9fxced76sl\r\n"
@@ -63,9 +75,9 @@ public class CallTest {
 		Call c = new Call(1, "1", "Test Scenario", s.phases(), sm, sched.getTimer());
 		c.registerSocket();
 		sched.add(c, 0);
-		c.process_incoming(p.parseSIPMessage(message_req.getBytes(), true, true, null));
+		c.process_incoming(parse(message_req));
 		Thread.sleep(50);
-		verify(sm).send(eq(1), anyString());
+		verify(sm).send(eq(1), any(OutboundBuffer.class));
 		Thread.sleep(50);
 		assertTrue(c.hasCompleted());
 		verify(sm).remove(c);
@@ -79,10 +91,31 @@ public class CallTest {
 		Scenario s = Scenario.fromXMLFilename("resources/message-uas.xml");
 		Call c = new Call(2, "2", "Test Scenario", s.phases(), sm, sched.getTimer());
 		c.registerSocket();
-		c.process_incoming(p.parseSIPMessage(req.getBytes(), true, true, null));
+		c.process_incoming(parse(req));
 		verify(sm).remove(c);
 	}
 
+	@Test
+	public void testSlotRecycled() throws ParserConfigurationException, SAXException, IOException, ParseException {
+		SocketManager sm = mock(SocketManager.class);
+		Scheduler sched = new Scheduler(1);
+		Scenario s = Scenario.fromXMLFilename("resources/message-uas.xml");
+		int before = CallStore.INSTANCE.size();
+		Call c = new Call(4, "call-4@example.com", "Test Scenario", s.phases(), sm, sched.getTimer());
+		assertEquals(before + 1, CallStore.INSTANCE.size());
+		assertEquals("call-4@example.com", c.getCallId());
+		assertEquals(4, c.getNumber());
+		c.process_incoming(parse(req));
+		assertEquals(before, CallStore.INSTANCE.size());
+		assertFalse(c.hasCompleted());
+
+		// The next call reuses the slot, and starts from a clean state
+		Call d = new Call(5, "5", "Test Scenario", s.phases(), sm, sched.getTimer());
+		assertEquals("5", d.getCallId());
+		assertFalse(d.hasCompleted());
+		sched.stop();
+	}
+
 	@Test
 	public void testUAC() throws ParserConfigurationException, SAXException, IOException, InterruptedException,
 	        ParseException {
@@ -92,8 +125,8 @@ public class CallTest {
 		Call c = new Call(3, "3", "Test Scenario", s.phases(), sm, sched.getTimer());
 		sched.add(c, 0);
 		Thread.sleep(200);
-		verify(sm).send(eq(3), anyString());
-		c.process_incoming(p.parseSIPMessage(resp.getBytes(), true, true, null));
+		verify(sm).send(eq(3), any(OutboundBuffer.class));
+		c.process_incoming(parse(resp));
 		Thread.sleep(200);
 		assertTrue(c.hasCompleted());
 		verify(sm).remove(c);
@@ -109,8 +142,8 @@ public class CallTest {
 		Call c = new Call(3, "3", "Test Scenario", s.phases(), sm, sched.getTimer());
 		sched.add(c, 0);
 		Thread.sleep(200);
-		verify(sm).send(eq(3), anyString());
-		c.process_incoming(p.parseSIPMessage(resp.getBytes(), true, true, null));
+		verify(sm).send(eq(3), any(OutboundBuffer.class));
+		c.process_incoming(parse(resp));
 		Thread.sleep(200);
 		assertTrue(c.hasCompleted());
 		verify(sm).remove(c);
@@ -126,14 +159,125 @@ public class CallTest {
 		Call c = new Call(3, "3", "Test Scenario", s.phases(), sm, sched.getTimer());
 		sched.add(c, 0);
 		Thread.sleep(200);
-		verify(sm).send(eq(3), anyString());
-		c.process_incoming(p.parseSIPMessage(trying_resp.getBytes(), true, true, null));
+		verify(sm).send(eq(3), any(OutboundBuffer.class));
+		c.process_incoming(parse(trying_resp));
 		Thread.sleep(200);
 		verify(sm, never()).remove(c);
-		c.process_incoming(p.parseSIPMessage(resp.getBytes(), true, true, null));
+		c.process_incoming(parse(resp));
 		Thread.sleep(200);
 		assertTrue(c.hasCompleted());
 		verify(sm).remove(c);
 		sched.stop();
 	}
+
+	static Scenario retransmitting() throws ParserConfigurationException, SAXException, IOException {
+		return Scenario.fromXMLDocument(XMLHelper.parseXML("<scenario><send retrans='100'>"
+		        + "MESSAGE sip:carol@chicago.com SIP/2.0</send><recv response='200' /></scenario>"));
+	}
+
+	@Test
+	public void testRetransmitsUntilAnswered() throws ParserConfigurationException, SAXException, IOException,
+	        InterruptedException, ParseException {
+		SocketManager sm = mock(SocketManager.class);
+		Scheduler sched = new Scheduler(1);
+		Call c = new Call(4, "4", "Retransmitting", retransmitting().phases(), sm, sched.getTimer());
+		sched.add(c, 0);
+		// Sent at 0, then again at 100ms and 300ms
+		Thread.sleep(350);
+		verify(sm, times(3)).send(eq(4), any(OutboundBuffer.class));
+		c.process_incoming(parse(resp.replace("1 INVITE", "1 MESSAGE")));
+		Thread.sleep(500);
+		verify(sm, times(3)).send(eq(4), any(OutboundBuffer.class));
+		assertTrue(c.hasCompleted());
+		sched.stop();
+	}
+
+	@Test
+	public void testNoRetransmissionOverReliableTransport() throws ParserConfigurationException, SAXException,
+	        IOException, InterruptedException {
+		SocketManager sm = mock(SocketManager.class);
+		when(sm.isReliable()).thenReturn(true);
+		Scheduler sched = new Scheduler(1);
+		Call c = new Call(5, "5", "Retransmitting", retransmitting().phases(), sm, sched.getTimer());
+		sched.add(c, 0);
+		Thread.sleep(350);
+		verify(sm, times(1)).send(eq(5), any(OutboundBuffer.class));
+		sched.stop();
+	}
+
+	@Test
+	public void testRtdTimers() throws ParserConfigurationException, SAXException, IOException, InterruptedException,
+	        ParseException {
+		Scenario s = Scenario.fromXMLDocument(XMLHelper.parseXML("<scenario name='Rtd'><pause duration='50' />"
+		        + "<send start_rtd='invite'>MESSAGE sip:carol@chicago.com SIP/2.0</send>"
+		        + "<recv response='100' rtd='invite' /><recv response='200' rtd='true' /></scenario>"));
+		SocketManager sm = mock(SocketManager.class);
+		Scheduler sched = new Scheduler(1);
+		Latencies.INSTANCE.register(s);
+		Call c = new Call(6, "6", s.getName(), s.phases(), sm, sched.getTimer());
+		sched.add(c, 0);
+		Thread.sleep(100);
+		c.process_incoming(parse(trying_resp));
+		Thread.sleep(100);
+		c.process_incoming(parse(resp));
+		Thread.sleep(100);
+		assertTrue(c.hasCompleted());
+		sched.stop();
+
+		// "invite" runs from the send, after the pause, to the 100, and "1" from the start of the call to the 200
+		Latencies.ScenarioLatencies latency = Latencies.INSTANCE.forScenario(s.getName(), s.phases());
+		assertEquals("invite", latency.rtdNames[0]);
+		assertEquals("1", latency.rtdNames[1]);
+		LatencyHistogram.Snapshot invite = latency.rtd[0].collect();
+		LatencyHistogram.Snapshot whole = latency.rtd[1].collect();
+		assertEquals(1, invite.count());
+		assertEquals(1, whole.count());
+		assertTrue(invite.max() > 10000 && invite.max() < 90000);
+		assertTrue(whole.max() >= 190000);
+	}
+
+	@Test
+	public void testResponseTimeFromFirstSend() throws ParserConfigurationException, SAXException, IOException,
+	        InterruptedException, ParseException {
+		Scenario s = Scenario.fromXMLDocument(XMLHelper.parseXML("<scenario name='Retransmitted'><send retrans='100'>"
+		        + "MESSAGE sip:carol@chicago.com SIP/2.0</send><recv response='200' /></scenario>"));
+		SocketManager sm = mock(SocketManager.class);
+		Scheduler sched = new Scheduler(1);
+		Call c = new Call(7, "7", s.getName(), s.phases(), sm, sched.getTimer());
+		sched.add(c, 0);
+		// Retransmitted at 100ms, then answered
+		Thread.sleep(150);
+		verify(sm, times(2)).send(eq(7), any(OutboundBuffer.class));
+		c.process_incoming(parse(resp));
+		assertTrue(c.hasCompleted());
+		sched.stop();
+
+		LatencyHistogram.Snapshot response = Latencies.INSTANCE.forScenario(s.getName(), s.phases()).responseTime[1]
+		        .collect();
+		assertEquals(1, response.count());
+		assertTrue(response.max() + "us", response.max() >= 140000);
+	}
+
+	@Test
+	public void testProvisionalResponseSlowsRetransmission() throws ParserConfigurationException, SAXException,
+	        IOException, InterruptedException, ParseException {
+		Scenario s = Scenario.fromXMLDocument(XMLHelper.parseXML("<scenario><send retrans='100'>"
+		        + "MESSAGE sip:carol@chicago.com SIP/2.0</send><recv response='100' optional='true' />"
+		        + "<recv response='200' /></scenario>"));
+		SocketManager sm = mock(SocketManager.class);
+		Scheduler sched = new Scheduler(1);
+		Call c = new Call(8, "8", "Provisional", s.phases(), sm, sched.getTimer());
+		sched.add(c, 0);
+		Thread.sleep(50);
+		c.process_incoming(parse(trying_resp.replace("1 INVITE", "1 MESSAGE")));
+		// Still retransmitting in case the final response is lost, but only every T2
+		long until = c.untilRetransmission();
+		assertTrue(until + "ms", until > Call.T2 - 1000 && until <= Call.T2);
+		Thread.sleep(300);
+		verify(sm, times(1)).send(eq(8), any(OutboundBuffer.class));
+		assertFalse(c.hasCompleted());
+		c.process_incoming(parse(resp.replace("1 INVITE", "1 MESSAGE")));
+		assertTrue(c.hasCompleted());
+		sched.stop();
+	}
 }
@@ -37,4 +37,16 @@ public class ConfigurationTest {
 		assertEquals(cfg.getRemoteHost(), "example.com");
 	}
 	
+
+	@Test
+	public void testTraceStat() throws ParseException {
+		CommandLineParser parser = new BasicParser();
+		String[] args = {"-sf", "example.xml", "-trace_stat", "-fd", "5", "-no_zmq", "example.com"};
+		CommandLine cmd = parser.parse( Configuration.createOptions(), args);
+		Configuration cfg = Configuration.createFromOptions(cmd);
+		assertTrue(cfg.isTraceStat());
+		assertTrue(cfg.isZmqDisabled());
+		assertEquals(5, cfg.getStatPeriod());
+		assertNull(cfg.getStatFile());
+	}
 }
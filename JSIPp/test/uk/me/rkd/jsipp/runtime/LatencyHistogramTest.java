@@ -0,0 +1,42 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsCoverEveryValue() {
+		// Every value lands in a bucket whose upper bound is at or above it, and within about 6%
+		for (long v = 0; v < 1000000; v += 1 + v / 50) {
+			int bucket = LatencyHistogram.bucketFor(v);
+			long highest = LatencyHistogram.highestValueIn(bucket);
+			assertTrue(highest >= v);
+			assertTrue(highest - v <= Math.max(1, v / 16));
+			if (bucket > 0) {
+				assertTrue(LatencyHistogram.highestValueIn(bucket - 1) < v);
+			}
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i);
+		}
+		LatencyHistogram.Snapshot s = h.snapshotAndReset();
+		assertEquals(1000, s.count());
+		assertEquals(1000, s.max());
+		assertEquals(500, s.percentile(50), 500 / 16);
+		assertEquals(990, s.percentile(99), 990 / 16);
+		assertEquals(1000, s.percentile(100));
+
+		LatencyHistogram.Snapshot empty = h.snapshotAndReset();
+		assertEquals(0, empty.count());
+		assertEquals(0, empty.percentile(99));
+	}
+}
@@ -0,0 +1,60 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+	@Test
+	public void testRepartitionCountsExactly() {
+		LatencyRecorder r = new LatencyRecorder(new int[] { 10, 20, 50 });
+		// On a bound counts towards it; above the last counts separately
+		for (long micros : new long[] { 0, 9999, 10000, 10001, 20000, 49999, 50001, 1000000 }) {
+			r.record(micros);
+		}
+		LatencyHistogram.Snapshot s = r.collect();
+		assertEquals(8, s.count());
+		assertEquals(1000000, s.max());
+		assertArrayEquals(new int[] { 10, 20, 50 }, r.bounds());
+		assertArrayEquals(new long[] { 3, 2, 1, 2 }, r.repartition());
+
+		// Later collections add to what's already there
+		r.record(5000);
+		assertEquals(9, r.collect().count());
+		assertArrayEquals(new long[] { 4, 2, 1, 2 }, r.repartition());
+	}
+
+	@Test
+	public void testThreadsAreMerged() throws InterruptedException {
+		final int threads = 8;
+		final int each = 50000;
+		final LatencyRecorder r = new LatencyRecorder(new int[] { 1 });
+		Thread[] recorders = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final long value = (t + 1) * 500;
+			recorders[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < each; i++) {
+						r.record(value);
+					}
+				}
+			};
+			recorders[t].start();
+		}
+		long collected = 0;
+		for (Thread t : recorders) {
+			// Collecting while recording carries on mustn't lose anything
+			collected = r.collect().count();
+			t.join();
+		}
+		LatencyHistogram.Snapshot s = r.collect();
+		assertEquals((long) threads * each, s.count());
+		assertEquals(threads * 500, s.max());
+		assertEquals(s.count(), r.repartition()[0] + r.repartition()[1]);
+		assertEquals(2L * each, r.repartition()[0]);
+		assertTrue("collected " + collected + " of " + s.count() + " mid-run", collected <= s.count());
+	}
+}
@@ -0,0 +1,99 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessage;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+
+public class LazyMessageTest {
+	String resp = "SIP/2.0 200 OK\r\n" + "Via: SIP/2.0/TCP client.atlanta.example.com:5060;branch=z9hG4bK74bf9\r\n"
+	        + " ;received=192.0.2.101\r\n" + "f: Alice <sip:alice@atlanta.example.com>;tag=9fxced76sl\r\n"
+	        + "To: Bob <sip:bob@biloxi.example.com>;tag=8321234356\r\n"
+	        + "i: 3848276298220188511@atlanta.example.com\r\n" + "CSeq: 1 INVITE\r\n"
+	        + "Contact: <sip:bob@client.biloxi.example.com;transport=tcp>\r\n"
+	        + "Contact: <sip:bob2@client.biloxi.example.com;transport=tcp>\r\n" + "Content-Type: application/sdp\r\n"
+	        + "l: 5\r\n" + "\r\n" + "v=0\r\n";
+	String req = "OPTIONS sip:carol@chicago.com SIP/2.0\r\n"
+	        + "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKhjhs8ass877\r\n" + "Max-Forwards: 70\r\n"
+	        + "To: <sip:carol@chicago.com>\r\n" + "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+	        + "Call-ID: a84b4c76e66710\r\n" + "CSeq: 63104 OPTIONS\r\n" + "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+	        + "Accept: application/sdp\r\n" + "Content-Length: 0\r\n" + "\r\n";
+
+	private static ReceivedMessage decode(String message) throws ParseException {
+		return new LazyMessageDecoder().decode(ByteBuffer.wrap(message.getBytes()));
+	}
+
+	@Test
+	public void testRequest() throws Exception {
+		ReceivedMessage msg = decode(req);
+		assertTrue(msg.isRequest());
+		assertSame("OPTIONS", msg.getMethod());
+		assertEquals(0, msg.getStatusCode());
+		assertEquals("a84b4c76e66710", msg.getCallId());
+		assertEquals(63104, msg.getCSeqNumber());
+		assertEquals("OPTIONS", msg.getCSeqMethod());
+		assertEquals("OPTIONS sip:carol@chicago.com SIP/2.0", msg.getFirstLine());
+		assertEquals("SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKhjhs8ass877", msg.getTopVia());
+		assertEquals("70", msg.getHeader("max-forwards"));
+	}
+
+	@Test
+	public void testResponse() throws Exception {
+		ReceivedMessage msg = decode(resp);
+		assertFalse(msg.isRequest());
+		assertNull(msg.getMethod());
+		assertEquals(200, msg.getStatusCode());
+		assertEquals("INVITE", msg.getCSeqMethod());
+		assertEquals("3848276298220188511@atlanta.example.com", msg.getCallId());
+		assertEquals(5, ((LazyMessage) msg).getBodyLength());
+	}
+
+	@Test
+	public void testFoldedHeader() throws Exception {
+		ReceivedMessage msg = decode(resp);
+		assertEquals("SIP/2.0/TCP client.atlanta.example.com:5060;branch=z9hG4bK74bf9\r\n ;received=192.0.2.101",
+		             msg.getTopVia());
+	}
+
+	@Test
+	public void testFormattedHeaders() throws Exception {
+		ReceivedMessage msg = decode(resp);
+		assertEquals("Contact: <sip:bob@client.biloxi.example.com;transport=tcp>,<sip:bob2@client.biloxi.example.com;transport=tcp>",
+		             msg.getHeaderAsFormattedString("Contact"));
+		assertEquals("From: Alice <sip:alice@atlanta.example.com>;tag=9fxced76sl",
+		             msg.getHeaderAsFormattedString("From"));
+		assertEquals("Call-ID: 3848276298220188511@atlanta.example.com", msg.getHeaderAsFormattedString("Call-ID"));
+		assertNull(msg.getHeaderAsFormattedString("Subject"));
+		assertNull(msg.getHeader("Subject"));
+	}
+
+	@Test
+	public void testDatagramPadding() throws Exception {
+		byte[] padded = new byte[2048];
+		byte[] bytes = req.getBytes();
+		System.arraycopy(bytes, 0, padded, 0, bytes.length);
+		ReceivedMessage msg = new LazyMessageDecoder().decode(ByteBuffer.wrap(padded));
+		assertEquals("a84b4c76e66710", msg.getCallId());
+		assertEquals(0, ((LazyMessage) msg).getBodyLength());
+	}
+
+	@Test(expected = ParseException.class)
+	public void testMissingCallId() throws Exception {
+		decode(req.replace("Call-ID: a84b4c76e66710\r\n", ""));
+	}
+
+	@Test(expected = ParseException.class)
+	public void testTruncatedBody() throws Exception {
+		decode(resp.replace("l: 5", "l: 50"));
+	}
+}
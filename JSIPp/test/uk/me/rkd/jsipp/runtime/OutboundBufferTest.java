@@ -0,0 +1,51 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.network.OutboundBuffer;
+import uk.me.rkd.jsipp.runtime.network.SharedSegment;
+
+public class OutboundBufferTest {
+
+	@Test
+	public void testGathering() throws Exception {
+		SharedSegment header = SharedSegment.of("Content-Length: ".getBytes("UTF-8"));
+		OutboundBuffer out = OutboundBuffer.get();
+		out.append(header);
+		out.append(1234);
+		out.append("\r\n");
+		out.append("Subject: caf\u00e9");
+		assertEquals(2, out.count());
+		assertEquals("Content-Length: 1234\r\nSubject: caf\u00e9", new String(out.toByteArray(), "UTF-8"));
+		assertEquals(OutboundBuffer.utf8Length("Content-Length: 1234\r\nSubject: caf\u00e9"), out.remaining());
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		SharedSegment segment = SharedSegment.of("abc".getBytes("UTF-8"));
+		OutboundBuffer out = OutboundBuffer.get();
+		out.append(segment);
+		out.buffers()[0].position(3);
+		assertEquals(0, out.remaining());
+
+		OutboundBuffer again = OutboundBuffer.get();
+		assertSame(out, again);
+		again.append(segment);
+		assertEquals("abc", new String(again.toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void testGrowth() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 70000; i++) {
+			sb.append('x');
+		}
+		OutboundBuffer out = OutboundBuffer.get();
+		out.append("start");
+		out.append(sb.toString().getBytes("UTF-8"));
+		assertEquals(70005, out.toByteArray().length);
+	}
+}
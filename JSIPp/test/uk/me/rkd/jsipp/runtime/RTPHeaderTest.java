@@ -0,0 +1,63 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class RTPHeaderTest {
+
+	@Test
+	public void testFixedHeader() {
+		ByteBuffer b = ByteBuffer.allocateDirect(64);
+		b.put((byte) 0x80).put((byte) 0x88).putShort((short) 0xFFFE).putInt(0xF0000001).putInt(0x12345678);
+		b.put(new byte[20]);
+		b.flip();
+		RTPHeader h = new RTPHeader();
+		assertTrue(h.wrap(b));
+		assertTrue(h.marker());
+		assertEquals(8, h.payloadType());
+		// Read as unsigned
+		assertEquals(65534, h.sequenceNumber());
+		assertEquals(0xF0000001L, h.timestamp());
+		assertEquals(0x12345678L, h.ssrc());
+		assertEquals(12, h.payloadOffset());
+		assertEquals(20, h.payloadLength());
+		// Nothing was consumed
+		assertEquals(0, b.position());
+	}
+
+	@Test
+	public void testCsrcsExtensionAndPadding() {
+		ByteBuffer b = ByteBuffer.allocate(64);
+		// Two CSRCs, an extension of one word, 10 bytes of payload and 2 of padding
+		b.put((byte) 0xB2).put((byte) 0).putShort((short) 7).putInt(160).putInt(1);
+		b.putInt(2).putInt(3);
+		b.putShort((short) 0xBEDE).putShort((short) 1).putInt(0);
+		b.put(new byte[10]).put((byte) 0).put((byte) 2);
+		b.flip();
+		RTPHeader h = new RTPHeader();
+		assertTrue(h.wrap(b));
+		assertEquals(7, h.sequenceNumber());
+		assertEquals(12 + 8 + 8, h.payloadOffset());
+		assertEquals(10, h.payloadLength());
+	}
+
+	@Test
+	public void testMalformedPacketsAreRejected() {
+		RTPHeader h = new RTPHeader();
+		ByteBuffer shortPacket = ByteBuffer.allocate(11);
+		shortPacket.put(0, (byte) 0x80);
+		assertFalse(h.wrap(shortPacket));
+		ByteBuffer version1 = ByteBuffer.allocate(12);
+		version1.put(0, (byte) 0x40);
+		assertFalse(h.wrap(version1));
+		// Says it has CSRCs that aren't there
+		ByteBuffer truncated = ByteBuffer.allocate(12);
+		truncated.put(0, (byte) 0x81);
+		assertFalse(h.wrap(truncated));
+	}
+}
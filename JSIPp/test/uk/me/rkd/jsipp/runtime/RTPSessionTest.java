@@ -0,0 +1,117 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class RTPSessionTest {
+
+	private static final long MS = 1000000;
+
+	private final RTPHeader header = new RTPHeader();
+
+	private static ByteBuffer bytes(int payloadType, int seq, long timestamp) {
+		ByteBuffer b = ByteBuffer.allocate(12 + 160);
+		b.put((byte) 0x80).put((byte) payloadType).putShort((short) seq).putInt((int) timestamp).putInt(1234);
+		b.rewind();
+		return b;
+	}
+
+	private RTPHeader packet(int payloadType, int seq, long timestamp) {
+		assertTrue(this.header.wrap(bytes(payloadType, seq, timestamp)));
+		return this.header;
+	}
+
+	@Test
+	public void testJitter() {
+		RTPSession steady = new RTPSession("a", null, null);
+		RTPSession uneven = new RTPSession("b", null, null);
+		for (int n = 0; n < 500; n++) {
+			steady.update(packet(8, n, 160 * n), 1000 * MS + n * 20 * MS);
+			// Every other packet 10ms late, so each transit time differs from the last by 80 timestamp units
+			uneven.update(packet(8, n, 160 * n), 1000 * MS + n * 20 * MS + (n % 2) * 10 * MS);
+		}
+		assertEquals(0, steady.jitterMicros());
+		assertTrue(uneven.jitterMicros() + "us", uneven.jitterMicros() > 9500 && uneven.jitterMicros() <= 10000);
+
+		// The same delays at DVI4's 16kHz clock are the same jitter in time
+		RTPSession wideband = new RTPSession("c", null, null);
+		for (int n = 0; n < 500; n++) {
+			wideband.update(packet(6, n, 320 * n), n * 20 * MS + (n % 2) * 10 * MS);
+		}
+		assertTrue(wideband.jitterMicros() + "us", wideband.jitterMicros() > 9500);
+		assertEquals(90000, RTPSession.clockRate(26));
+		assertEquals(8000, RTPSession.clockRate(101));
+	}
+
+	@Test
+	public void testLossReorderingAndDuplicates() {
+		RTPStats.ScenarioRTP stats = new RTPStats.ScenarioRTP("s");
+		RTPSession session = new RTPSession("a", null, stats);
+		int[] sequence = { 65533, 65534, 0, 1, 65535, 65535, 1, 4 };
+		for (int i = 0; i < sequence.length; i++) {
+			session.update(packet(0, sequence[i], 160 * i), i * 20 * MS);
+		}
+		// 65535 was late, then duplicated, as was 1; 2 and 3 are missing
+		assertEquals(2, session.cumulativeLost());
+		assertEquals(1, session.reordered());
+		assertEquals(2, session.duplicates());
+
+		// A packet too far behind to be in the bitmap can't be told from a duplicate, so counts as late
+		for (int seq = 5; seq < 100; seq++) {
+			session.update(packet(0, seq, 160 * seq), seq * 20 * MS);
+		}
+		session.update(packet(0, 4, 0), 100 * 20 * MS);
+		assertEquals(1, session.cumulativeLost());
+		assertEquals(2, session.reordered());
+
+		// A restart of the numbering isn't loss
+		session.update(packet(0, 40000, 0), 101 * 20 * MS);
+		session.update(packet(0, 40001, 160), 102 * 20 * MS);
+		assertEquals(1, session.cumulativeLost());
+
+		session.finish();
+		assertEquals(3, stats.jitter.collect().count());
+		assertEquals(2, stats.counts.sum(2));
+	}
+
+	@Test
+	public void testReceiverReport() {
+		RTPSession session = new RTPSession("a", null, null);
+		for (int seq = 0; seq < 10; seq++) {
+			if (seq != 5) {
+				session.update(packet(0, seq, 160 * seq), seq * 20 * MS);
+			}
+		}
+		assertFalse(session.reportDue(180 * MS));
+		assertTrue(session.reportDue(5000 * MS));
+
+		// A sender report, whose NTP timestamp's middle 32 bits are 0x00112233
+		ByteBuffer sr = ByteBuffer.allocate(28);
+		sr.put((byte) 0x80).put((byte) 200).putShort((short) 6).putInt(1234).putInt(0x44550011).putInt(0x22330000);
+		sr.rewind();
+		assertTrue(RTPSession.isRtcp(sr));
+		assertFalse(RTPSession.isRtcp(bytes(0, 0, 0)));
+		session.updateRtcp(sr, 4500 * MS);
+
+		ByteBuffer rr = ByteBuffer.allocate(RTPSession.RR_LENGTH);
+		session.writeReceiverReport(rr, 5000 * MS);
+		assertEquals(RTPSession.RR_LENGTH, rr.position());
+		assertEquals(0x81, rr.get(0) & 0xFF);
+		assertEquals(201, rr.get(1) & 0xFF);
+		assertEquals(7, rr.getShort(2));
+		assertEquals(1234, rr.getInt(8));
+		// 1 of 10 lost is 25/256, and 1 lost in total
+		assertEquals(25, rr.get(12) & 0xFF);
+		assertEquals(1, rr.getInt(12) & 0xFFFFFF);
+		assertEquals(9, rr.getInt(16));
+		assertEquals(0x00112233, rr.getInt(24));
+		// Half a second, in 1/65536ths
+		assertEquals(32768, rr.getInt(28));
+		assertFalse(session.reportDue(5000 * MS));
+	}
+}
@@ -0,0 +1,84 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.network.RTPSocketManager;
+
+public class RTPSocketManagerTest {
+
+	@Test
+	public void testPooledPortsAreReused() throws IOException, InterruptedException {
+		RTPSocketManager rtp = RTPSocketManager.INSTANCE;
+		rtp.setPortRange(41000, 41001);
+		rtp.start();
+		int first = rtp.add("a", null);
+		int second = rtp.add("b", null);
+		assertEquals(41000, first);
+		assertEquals(41001, second);
+		try {
+			rtp.add("c", null);
+			fail("Expected the pool to be exhausted");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		// The port comes back once the selector thread has let go of it, with its socket still open
+		rtp.remove(first);
+		int third = -1;
+		for (int i = 0; i < 100 && third < 0; i++) {
+			Thread.sleep(10);
+			try {
+				third = rtp.add("c", null);
+			} catch (IOException e) {
+				// Not released yet
+			}
+		}
+		assertEquals(first, third);
+		rtp.remove(second);
+		rtp.remove(third);
+	}
+
+	@Test
+	public void testBurstIsDrained() throws IOException, InterruptedException {
+		RTPSocketManager rtp = RTPSocketManager.INSTANCE;
+		rtp.start();
+		RTPStats.ScenarioRTP stats = new RTPStats.ScenarioRTP("burst");
+		int port = -1;
+		for (int i = 0; i < 100 && port < 0; i++) {
+			try {
+				port = rtp.add("burst", stats);
+			} catch (IOException e) {
+				// The other test's pooled ports not released yet
+				Thread.sleep(10);
+			}
+		}
+		Thread.sleep(50);
+
+		// More than one read's worth, sent faster than the selector thread wakes up for them
+		DatagramChannel sender = DatagramChannel.open();
+		InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		ByteBuffer packet = ByteBuffer.allocate(12 + 160);
+		for (int seq = 0; seq < 200; seq++) {
+			packet.clear();
+			packet.put((byte) 0x80).put((byte) 0).putShort((short) seq).putInt(160 * seq).putInt(1234);
+			packet.clear();
+			sender.send(packet, target);
+		}
+		sender.close();
+		Thread.sleep(200);
+		rtp.remove(port);
+		for (int i = 0; i < 100 && stats.jitter.collect().count() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(200, stats.counts.sum(0) + stats.counts.sum(1));
+	}
+}
@@ -0,0 +1,223 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.network.RTPStreamer;
+import uk.me.rkd.jsipp.runtime.parsers.SipUtils;
+
+public class RTPStreamerTest {
+
+	private static File write(byte[] contents) throws IOException {
+		File f = File.createTempFile("audio", ".raw");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(contents);
+		out.close();
+		return f;
+	}
+
+	@Test
+	public void testStreamsAudioOnALoop() throws IOException, InterruptedException {
+		// Two 20ms PCMA packets, and a part-packet that's left out
+		byte[] audio = new byte[2 * 160 + 50];
+		for (int i = 0; i < audio.length; i++) {
+			audio[i] = (byte) (i / 160 + 1);
+		}
+		RTPStreamer streamer = RTPStreamer.INSTANCE;
+		streamer.setAudio(RTPStreamer.Audio.fromSpec(write(audio).getPath() + ",8"));
+		streamer.start();
+		assertTrue(streamer.isStreaming());
+
+		DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		receiver.setSoTimeout(1000);
+		int stream = streamer.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort()));
+		RTPHeader header = new RTPHeader();
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		int firstSeq = 0;
+		long firstTimestamp = 0;
+		long ssrc = 0;
+		long firstArrival = 0;
+		for (int n = 0; n < 5; n++) {
+			receiver.receive(packet);
+			if (n == 0) {
+				firstArrival = System.nanoTime();
+			}
+			assertTrue(header.wrap(ByteBuffer.wrap(packet.getData(), 0, packet.getLength())));
+			assertEquals(8, header.payloadType());
+			assertEquals(n == 0, header.marker());
+			assertEquals(160, header.payloadLength());
+			if (n == 0) {
+				firstSeq = header.sequenceNumber();
+				firstTimestamp = header.timestamp();
+				ssrc = header.ssrc();
+			} else {
+				assertEquals((firstSeq + n) & 0xFFFF, header.sequenceNumber());
+				assertEquals((firstTimestamp + 160 * n) & 0xFFFFFFFFL, header.timestamp());
+				assertEquals(ssrc, header.ssrc());
+			}
+			byte[] expected = new byte[160];
+			Arrays.fill(expected, (byte) (n % 2 + 1));
+			assertArrayEquals(expected, Arrays.copyOfRange(packet.getData(), 12, 172));
+		}
+		// Paced at 20ms, so four intervals between the first and fifth packets
+		long elapsedMs = (System.nanoTime() - firstArrival) / 1000000;
+		assertTrue("5 packets took " + elapsedMs + "ms", elapsedMs >= 70 && elapsedMs < 500);
+
+		streamer.remove(stream);
+		Thread.sleep(100);
+		receiver.setSoTimeout(100);
+		try {
+			while (true) {
+				receiver.receive(packet);
+			}
+		} catch (SocketTimeoutException e) {
+			// Drained what was sent before the stream stopped
+		}
+		try {
+			receiver.receive(packet);
+			fail("Packets still arriving after the stream was removed");
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+		receiver.close();
+		assertTrue(streamer.packetsSent() >= 5);
+	}
+
+	/**
+	 * @return an Ethernet frame holding a UDP packet from 10.0.0.1:4000 to 10.0.0.2:5000, with an RTP header
+	 */
+	private static byte[] frame(int payloadType, int seq, long timestamp, int ssrc, byte[] payload) {
+		ByteBuffer b = ByteBuffer.allocate(14 + 20 + 8 + 12 + payload.length);
+		b.put(new byte[12]).putShort((short) 0x0800);
+		b.put((byte) 0x45).put((byte) 0).putShort((short) (20 + 8 + 12 + payload.length)).putInt(0);
+		b.put((byte) 64).put((byte) 17).putShort((short) 0).put(new byte[] { 10, 0, 0, 1, 10, 0, 0, 2 });
+		b.putShort((short) 4000).putShort((short) 5000).putShort((short) (8 + 12 + payload.length)).putShort((short) 0);
+		b.put((byte) 0x80).put((byte) payloadType).putShort((short) seq).putInt((int) timestamp).putInt(ssrc);
+		b.put(payload);
+		return b.array();
+	}
+
+	/**
+	 * @return a little-endian libpcap file of Ethernet frames, captured at the given microseconds
+	 */
+	private static File pcap(long[] micros, byte[]... frames) throws IOException {
+		int size = 24;
+		for (byte[] f : frames) {
+			size += 16 + f.length;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(65535).putInt(1);
+		for (int i = 0; i < frames.length; i++) {
+			b.putInt((int) (micros[i] / 1000000)).putInt((int) (micros[i] % 1000000));
+			b.putInt(frames[i].length).putInt(frames[i].length).put(frames[i]);
+		}
+		return write(b.array());
+	}
+
+	@Test
+	public void testPcapReplay() throws IOException {
+		byte[] a = new byte[160];
+		byte[] b = new byte[160];
+		Arrays.fill(a, (byte) 1);
+		Arrays.fill(b, (byte) 2);
+		// The stream, with a DTMF event in the middle, an RTCP report, and the other direction
+		long[] micros = { 1000000, 1020100, 1025000, 1030000, 1040000, 1059800 };
+		File capture = pcap(micros, frame(8, 100, 16000, 7, a), frame(8, 101, 16160, 7, b),
+		                    frame(72 | 0x80, 0, 0, 7, new byte[8]), frame(101, 102, 16160, 7, new byte[4]),
+		                    frame(0, 500, 9999, 8, a), frame(8, 103, 16480, 7, a));
+		RTPStreamer.Audio audio = RTPStreamer.Audio.openPcap(capture.getPath());
+		assertEquals(4, audio.packets());
+		assertEquals(60, audio.durationMs());
+
+		RTPStreamer streamer = RTPStreamer.INSTANCE;
+		streamer.start();
+		DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		receiver.setSoTimeout(1000);
+		int stream = streamer.add(audio, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+		                                                       receiver.getLocalPort()));
+		RTPHeader header = new RTPHeader();
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		int[] types = { 8, 8, 101, 8 };
+		int[] lengths = { 160, 160, 4, 160 };
+		// The timestamps are the stream's own, but move on as the captured ones did
+		long[] steps = { 0, 160, 160, 480 };
+		int firstSeq = 0;
+		long firstTimestamp = 0;
+		for (int n = 0; n < 4; n++) {
+			receiver.receive(packet);
+			assertTrue(header.wrap(ByteBuffer.wrap(packet.getData(), 0, packet.getLength())));
+			assertEquals(types[n], header.payloadType());
+			assertEquals(lengths[n], header.payloadLength());
+			if (n == 0) {
+				firstSeq = header.sequenceNumber();
+				firstTimestamp = header.timestamp();
+				assertTrue(header.marker());
+			}
+			assertEquals((firstSeq + n) & 0xFFFF, header.sequenceNumber());
+			assertEquals((firstTimestamp + steps[n]) & 0xFFFFFFFFL, header.timestamp());
+		}
+		assertEquals(1, packet.getData()[12]);
+		// Played once
+		receiver.setSoTimeout(200);
+		try {
+			receiver.receive(packet);
+			fail("Expected the capture to be played only once");
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+		streamer.remove(stream);
+		receiver.close();
+	}
+
+	@Test
+	public void testWavDataChunk() throws IOException {
+		ByteBuffer wav = ByteBuffer.allocate(12 + 8 + 16 + 8 + 400).order(ByteOrder.LITTLE_ENDIAN);
+		wav.put("RIFF".getBytes()).putInt(wav.capacity() - 8).put("WAVE".getBytes());
+		wav.put("fmt ".getBytes()).putInt(16).put(new byte[16]);
+		wav.put("data".getBytes()).putInt(400);
+		RTPStreamer.Audio audio = RTPStreamer.Audio.open(write(wav.array()).getPath(), 18);
+		// 20-byte G.729 packets
+		assertEquals(20, audio.packets());
+		try {
+			RTPStreamer.Audio.open(write(new byte[100]).getPath(), 0);
+			fail("Expected less than a packet of audio to be refused");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSdpAudioTarget() {
+		String sdp = "v=0\r\no=- 1 1 IN IP4 10.0.0.1\r\ns=-\r\nc=IN IP4 10.0.0.1\r\nt=0 0\r\n"
+		        + "m=video 5000 RTP/AVP 96\r\nc=IN IP4 10.0.0.9\r\n"
+		        + "m=audio 6000 RTP/AVP 0 8\r\na=rtpmap:0 PCMU/8000\r\n";
+		assertEquals(new InetSocketAddress("10.0.0.1", 6000), SipUtils.sdpAudioTarget(sdp));
+		// A media-level address takes precedence
+		assertEquals(new InetSocketAddress("10.0.0.2", 6000),
+		             SipUtils.sdpAudioTarget(sdp + "c=IN IP4 10.0.0.2\r\n"));
+		// Refused
+		assertNull(SipUtils.sdpAudioTarget(sdp.replace("6000", "0")));
+		assertNull(SipUtils.sdpAudioTarget("v=0\nc=IN IP4 10.0.0.1\nm=video 5000 RTP/AVP 96\n"));
+		assertFalse(SipUtils.sdpAudioTarget("v=0\nc=IN IP6 ::1\nm=audio 7000 RTP/AVP 0\n").getAddress()
+		        .getHostAddress().startsWith("0.0"));
+	}
+}
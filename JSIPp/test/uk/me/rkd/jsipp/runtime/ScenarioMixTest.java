@@ -0,0 +1,73 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import uk.me.rkd.jsipp.compiler.Scenario;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.testutils.XMLHelper;
+
+public class ScenarioMixTest {
+
+	private static Scenario uac(String method) throws ParserConfigurationException, SAXException, IOException {
+		return Scenario.fromXMLDocument(XMLHelper.parseXML("<scenario name='" + method + "'><send>" + method
+		        + " sip:example.com SIP/2.0</send><recv response='200' /></scenario>"));
+	}
+
+	private static Scenario uas(String method) throws ParserConfigurationException, SAXException, IOException {
+		return Scenario.fromXMLDocument(XMLHelper.parseXML("<scenario name='" + method + "'><recv request='" + method
+		        + "' /><send>SIP/2.0 200 OK</send></scenario>"));
+	}
+
+	@Test
+	public void testWeightsAreFollowedEvenly() throws ParserConfigurationException, SAXException, IOException {
+		ScenarioMix mix = new ScenarioMix(Arrays.asList(uac("REGISTER"), uac("MESSAGE"), uac("INVITE")),
+		        Arrays.asList(10.0, 15.0, 75.0));
+		int[] counts = new int[3];
+		for (int i = 0; i < 1000; i++) {
+			counts[mix.next()] += 1;
+			// Never more than one call away from the exact share at any point
+			for (int j = 0; j < 3; j++) {
+				assertEquals(mix.share(j) * (i + 1), counts[j], 1.0);
+			}
+		}
+		assertEquals(100, counts[0]);
+		assertEquals(150, counts[1]);
+		assertEquals(750, counts[2]);
+	}
+
+	@Test
+	public void testIncomingCallsPickTheirScenario() throws ParserConfigurationException, SAXException, IOException {
+		ScenarioMix mix = new ScenarioMix(Arrays.asList(uas("REGISTER"), uas("INVITE")), Arrays.asList(1.0, 1.0));
+		ReceivedMessage invite = mock(ReceivedMessage.class);
+		when(invite.isRequest()).thenReturn(true);
+		when(invite.getMethod()).thenReturn("INVITE");
+		ReceivedMessage options = mock(ReceivedMessage.class);
+		when(options.isRequest()).thenReturn(true);
+		when(options.getMethod()).thenReturn("OPTIONS");
+		assertEquals(1, mix.forIncoming(invite));
+		assertEquals(-1, mix.forIncoming(options));
+		assertEquals(0, ScenarioMix.single(uas("REGISTER")).forIncoming(options));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUacAndUasCantBeMixed() throws ParserConfigurationException, SAXException, IOException {
+		new ScenarioMix(Arrays.asList(uac("MESSAGE"), uas("MESSAGE")), Arrays.asList(1.0, 1.0));
+	}
+
+	@Test
+	public void testNamesAreUsableInStatistics() throws ParserConfigurationException, SAXException, IOException {
+		Scenario s = Scenario.fromXMLDocument(XMLHelper.parseXML(
+		        "<scenario name='a:b;c'><send>MESSAGE sip:example.com SIP/2.0</send></scenario>"));
+		assertEquals("a_b_c", s.getName());
+	}
+}
@@ -20,7 +20,7 @@ public class SchedulerTest {
 	public void test() throws InterruptedException {
 		Scheduler s = new Scheduler(100);
 		TestTimer t = new TestTimer();
-		s.add(t, 0);
+		s.add(t, 100);
 		assertEquals(0, t.timesScheduled);
 		Thread.sleep(300);
 		assertEquals(1, t.timesScheduled);
@@ -30,7 +30,7 @@ public class SchedulerTest {
 	public void testStopping() throws InterruptedException {
 		Scheduler s = new Scheduler(100);
 		TestTimer t = new TestTimer();
-		s.add(t, 0);
+		s.add(t, 100);
 		s.stop();
 		assertEquals(0, t.timesScheduled);
 		Thread.sleep(200);
@@ -0,0 +1,113 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+public class StatsRingTest {
+
+	@Test
+	public void testEventsComeOutAsTheyWentIn() {
+		StatsRing ring = new StatsRing(8);
+		StatsRing.Event e = new StatsRing.Event();
+		assertFalse(ring.poll(e));
+		assertTrue(ring.offer(1234567890123L, 2, 3, -4, Statistics.NO_PHASE, 200));
+		assertTrue(ring.poll(e));
+		assertEquals(1234567890123L, e.timestamp);
+		assertEquals(2, e.type);
+		assertEquals(3, e.scenario);
+		assertEquals(-4, e.callNumber);
+		assertEquals(Statistics.NO_PHASE, e.phase);
+		assertEquals(200, e.code);
+		assertFalse(ring.poll(e));
+	}
+
+	@Test
+	public void testFullRingDropsAndCounts() {
+		StatsRing ring = new StatsRing(5);
+		assertEquals(8, ring.capacity());
+		for (int i = 0; i < 8; i++) {
+			assertTrue(ring.offer(i, 0, 0, i, 0, 0));
+		}
+		assertFalse(ring.offer(8, 0, 0, 8, 0, 0));
+		assertEquals(1, ring.dropped());
+
+		// Space frees up as events are taken, in order
+		StatsRing.Event e = new StatsRing.Event();
+		assertTrue(ring.poll(e));
+		assertEquals(0, e.callNumber);
+		assertTrue(ring.offer(9, 0, 0, 9, 0, 0));
+		for (int i = 1; i < 8; i++) {
+			assertTrue(ring.poll(e));
+			assertEquals(i, e.callNumber);
+		}
+		assertTrue(ring.poll(e));
+		assertEquals(9, e.callNumber);
+	}
+
+	@Test
+	public void testManyWriters() throws InterruptedException {
+		final int writers = 4;
+		final int each = 100000;
+		final StatsRing ring = new StatsRing(1024);
+		Thread[] threads = new Thread[writers];
+		for (int t = 0; t < writers; t++) {
+			final int writer = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < each; i++) {
+						ring.offer(i, 0, writer, i, 0, 0);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		// Each writer's events must arrive in order, whole, and with none lost except those counted as dropped
+		int[] next = new int[writers];
+		long received = 0;
+		StatsRing.Event e = new StatsRing.Event();
+		boolean running = true;
+		while (running) {
+			running = false;
+			for (Thread thread : threads) {
+				running |= thread.isAlive();
+			}
+			while (ring.poll(e)) {
+				assertEquals(e.timestamp, e.callNumber);
+				assertTrue(e.callNumber >= next[e.scenario]);
+				next[e.scenario] = e.callNumber + 1;
+				received++;
+			}
+		}
+		assertEquals((long) writers * each, received + ring.dropped());
+	}
+
+	@Test
+	public void testDecodedAsText() {
+		Statistics stats = Statistics.INSTANCE;
+		int scenario = stats.scenarioId("Decoding");
+		assertEquals(scenario, stats.scenarioId("Decoding"));
+
+		StatsRing.Event e = new StatsRing.Event();
+		e.timestamp = 1500;
+		e.type = StatType.PHASE_SUCCESS.ordinal();
+		e.scenario = scenario;
+		e.callNumber = 7;
+		e.phase = 2;
+		e.code = Statistics.methodCode("INVITE");
+		assertEquals("SIPP-PHASE_SUCCESS:500.0:Decoding:7:7:2:INVITE", stats.decode(e));
+		e.code = 180;
+		assertEquals("SIPP-PHASE_SUCCESS:500.0:Decoding:7:7:2:180", stats.decode(e));
+		e.code = Statistics.NO_CODE;
+		assertEquals("SIPP-PHASE_SUCCESS:500.0:Decoding:7:7:2", stats.decode(e));
+		e.type = StatType.CALL_BEGIN.ordinal();
+		e.phase = Statistics.NO_PHASE;
+		assertEquals("SIPP-CALL_BEGIN:500.0:Decoding:7:7", stats.decode(e));
+		assertEquals("OTHER", Statistics.identifier(Statistics.methodCode("FOO")));
+	}
+}
@@ -0,0 +1,132 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessage;
+import uk.me.rkd.jsipp.runtime.parsers.LazyMessageDecoder;
+import uk.me.rkd.jsipp.runtime.parsers.ReceivedMessage;
+import uk.me.rkd.jsipp.runtime.parsers.SIPpMessageListener;
+import uk.me.rkd.jsipp.runtime.parsers.StreamMessageParser;
+
+public class StreamMessageParserTest {
+	String req = "OPTIONS sip:carol@chicago.com SIP/2.0\r\n"
+	        + "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKhjhs8ass877\r\n" + "Max-Forwards: 70\r\n"
+	        + "To: <sip:carol@chicago.com>\r\n" + "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+	        + "Call-ID: a84b4c76e66710\r\n" + "CSeq: 63104 OPTIONS\r\n" + "l: 4\r\n" + "\r\n" + "body";
+
+	class Collector implements SIPpMessageListener {
+		List<ReceivedMessage> msgs = new ArrayList<ReceivedMessage>();
+		int keepalives = 0;
+		int errors = 0;
+
+		@Override
+		public void processMessage(ReceivedMessage msg) {
+			msgs.add(msg);
+		}
+
+		@Override
+		public void handleException(ParseException ex, String messageText) {
+			errors++;
+		}
+
+		@Override
+		public void sendSingleCLRF() {
+			keepalives++;
+		}
+	}
+
+	@Test
+	public void testSeveralMessagesInOneRead() throws Exception {
+		Collector c = new Collector();
+		StreamMessageParser p = new StreamMessageParser(c, new LazyMessageDecoder(), 0);
+		p.addBytes((req + req.replace("a84b", "b84b") + "OPTIONS sip:x").getBytes());
+		assertEquals(2, c.msgs.size());
+		assertEquals("a84b4c76e66710", c.msgs.get(0).getCallId());
+		assertEquals("b84b4c76e66710", c.msgs.get(1).getCallId());
+		assertEquals(4, ((LazyMessage) c.msgs.get(1)).getBodyLength());
+	}
+
+	@Test
+	public void testByteAtATime() throws Exception {
+		Collector c = new Collector();
+		StreamMessageParser p = new StreamMessageParser(c, new LazyMessageDecoder(), 0);
+		ByteBuffer direct = ByteBuffer.allocateDirect(1);
+		for (byte b : (req + req).getBytes()) {
+			direct.clear();
+			direct.put(b).flip();
+			p.addBytes(direct);
+		}
+		assertEquals(2, c.msgs.size());
+		assertEquals("body", new String(((LazyMessage) c.msgs.get(1)).getBody()));
+		assertEquals(0, c.errors);
+	}
+
+	@Test
+	public void testKeepaliveSplitAcrossReads() throws Exception {
+		Collector c = new Collector();
+		StreamMessageParser p = new StreamMessageParser(c, new LazyMessageDecoder(), 0);
+		p.addBytes("\r\n\r".getBytes());
+		p.addBytes(("\n" + req).getBytes());
+		assertEquals(1, c.keepalives);
+		assertEquals(1, c.msgs.size());
+	}
+
+	@Test
+	public void testMaxMessageSize() throws Exception {
+		Collector c = new Collector();
+		StreamMessageParser p = new StreamMessageParser(c, new LazyMessageDecoder(), 64);
+		try {
+			p.addBytes(req.getBytes());
+		} catch (ParseException e) {
+			c.errors++;
+		}
+		assertTrue(c.errors > 0);
+		p.addBytes(("\r\n" + "X").getBytes());
+		assertEquals(0, c.msgs.size());
+	}
+
+	private static void addRejected(StreamMessageParser p, String bytes) throws Exception {
+		try {
+			p.addBytes(bytes.getBytes());
+			fail("Expected " + bytes.substring(bytes.indexOf("l: ")).trim() + " to be refused");
+		} catch (ParseException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testOversizedContentLength() throws Exception {
+		Collector c = new Collector();
+		StreamMessageParser p = new StreamMessageParser(c, new LazyMessageDecoder(), 65536);
+		addRejected(p, req.replace("l: 4", "l: 2147483648"));
+		// Nothing of the bad message is left to be parsed, so the next one is found
+		p.addBytes(req.getBytes());
+		assertEquals(1, c.msgs.size());
+		assertEquals(4, ((LazyMessage) c.msgs.get(0)).getBodyLength());
+
+		// Without a size limit, values that would overflow are still refused, rather than wrapping
+		StreamMessageParser unlimited = new StreamMessageParser(c, new LazyMessageDecoder(), 0);
+		addRejected(unlimited, req.replace("l: 4", "l: 4294967295"));
+		unlimited.addBytes(req.getBytes());
+		assertEquals(2, c.msgs.size());
+	}
+
+	@Test
+	public void testNonNumericContentLength() throws Exception {
+		Collector c = new Collector();
+		StreamMessageParser p = new StreamMessageParser(c, new LazyMessageDecoder(), 0);
+		addRejected(p, req.replace("l: 4", "l: four"));
+		p.addBytes(req.getBytes());
+		assertEquals(1, c.msgs.size());
+		assertEquals("body", new String(((LazyMessage) c.msgs.get(0)).getBody()));
+	}
+}
@@ -0,0 +1,55 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.Statistics.StatType;
+
+public class StripedCountersTest {
+
+	@Test
+	public void testCountersAreSeparate() {
+		StripedCounters c = new StripedCounters(3);
+		c.increment(0);
+		c.add(2, 5);
+		c.increment(2);
+		long[] all = new long[3];
+		c.sumAll(all);
+		assertArrayEquals(new long[] { 1, 0, 6 }, all);
+		assertEquals(6, c.sum(2));
+	}
+
+	@Test
+	public void testManyThreads() throws InterruptedException {
+		final int threads = 8;
+		final int each = 100000;
+		final StripedCounters c = new StripedCounters(2);
+		Thread[] adders = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int counter = t % 2;
+			adders[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < each; i++) {
+						c.increment(counter);
+					}
+				}
+			};
+			adders[t].start();
+		}
+		for (Thread t : adders) {
+			t.join();
+		}
+		assertEquals((long) threads / 2 * each, c.sum(0));
+		assertEquals((long) threads / 2 * each, c.sum(1));
+	}
+
+	@Test
+	public void testRecordedEventsAreCounted() {
+		// Counted even when nothing is being published
+		long before = Statistics.INSTANCE.count(StatType.RETRANSMISSION);
+		Statistics.INSTANCE.record(StatType.RETRANSMISSION, 0, 1, 0, Statistics.NO_CODE);
+		assertEquals(before + 1, Statistics.INSTANCE.count(StatType.RETRANSMISSION));
+	}
+}
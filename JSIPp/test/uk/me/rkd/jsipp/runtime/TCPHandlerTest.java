@@ -0,0 +1,81 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.network.TCPHandler;
+
+public class TCPHandlerTest {
+
+	private static final int MESSAGE = 65536;
+
+	private static ByteBuffer[] message(int n) {
+		ByteBuffer b = ByteBuffer.allocate(MESSAGE);
+		while (b.hasRemaining()) {
+			b.putInt(n);
+		}
+		b.flip();
+		return new ByteBuffer[] { b };
+	}
+
+	@Test
+	public void testQueuesRatherThanSpinningWhenThePeerIsntReading() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		client.configureBlocking(false);
+		SocketChannel peer = server.accept();
+		TCPHandler tcp = new TCPHandler();
+
+		// Write until the socket buffers are full and a message is only partly written
+		int sent = 0;
+		while (tcp.write(client, message(sent), 0, 1)) {
+			sent++;
+			assertTrue("Socket buffers never filled", sent < 10000);
+		}
+		sent++;
+		assertFalse(tcp.flush(client));
+		// Queued behind the partial one rather than written around it
+		assertFalse(tcp.write(client, message(sent++), 0, 1));
+
+		// Until the peer can't be reading
+		try {
+			while (true) {
+				tcp.write(client, message(sent++), 0, 1);
+			}
+		} catch (IOException e) {
+			sent--;
+		}
+
+		// Everything accepted arrives once the peer reads, in order
+		ByteBuffer in = ByteBuffer.allocate(MESSAGE);
+		for (int n = 0; n < sent; n++) {
+			in.clear();
+			while (in.hasRemaining()) {
+				tcp.flush(client);
+				peer.read(in);
+			}
+			assertEquals(n, in.getInt(0));
+			assertEquals(n, in.getInt(MESSAGE - 4));
+		}
+		assertTrue(tcp.flush(client));
+		tcp.close(client);
+		in.clear();
+		if (peer.read(in) != -1) {
+			fail("Expected nothing after the messages sent");
+		}
+		peer.close();
+		server.close();
+	}
+}
@@ -0,0 +1,46 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+import uk.me.rkd.jsipp.runtime.network.UDPHandler;
+
+public class UDPHandlerTest {
+
+	@Test
+	public void testRefusesMessagesTooBigForADatagram() throws IOException {
+		DatagramChannel receiver = DatagramChannel.open();
+		receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		DatagramChannel sender = DatagramChannel.open();
+		UDPHandler udp = new UDPHandler();
+		try {
+			ByteBuffer[] big = { ByteBuffer.allocate(40000), ByteBuffer.allocate(30000) };
+			try {
+				udp.send(sender, big, 0, 2, receiver.getLocalAddress());
+				fail("Sent a 70000 byte datagram");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("70000 bytes"));
+			}
+
+			// Nothing was consumed, and the next message still goes
+			assertEquals(40000, big[0].remaining());
+			ByteBuffer[] small = { ByteBuffer.wrap("OPTIONS ".getBytes()), ByteBuffer.wrap("sip:a SIP/2.0".getBytes()) };
+			udp.send(sender, small, 0, 2, receiver.getLocalAddress());
+			ByteBuffer got = ByteBuffer.allocate(100);
+			receiver.receive(got);
+			assertEquals("OPTIONS sip:a SIP/2.0", new String(got.array(), 0, got.position()));
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+}
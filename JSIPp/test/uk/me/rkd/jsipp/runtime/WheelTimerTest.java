@@ -0,0 +1,89 @@
+package uk.me.rkd.jsipp.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class WheelTimerTest {
+
+	static class Recorder implements TimerTask {
+		final long deadline;
+		final CountDownLatch fired = new CountDownLatch(1);
+		final AtomicLong firedAt = new AtomicLong();
+
+		Recorder(long delayNanos) {
+			this.deadline = System.nanoTime() + delayNanos;
+		}
+
+		@Override
+		public void run(Timeout timeout) {
+			this.firedAt.set(System.nanoTime());
+			this.fired.countDown();
+		}
+	}
+
+	@Test
+	public void testImmediateTimeoutRunsBeforeNextTick() throws InterruptedException {
+		WheelTimer timer = new WheelTimer(1, TimeUnit.SECONDS, "test-timer");
+		Recorder r = new Recorder(0);
+		timer.newTimeout(r, 0, TimeUnit.MILLISECONDS);
+		assertTrue(r.fired.await(200, TimeUnit.MILLISECONDS));
+		timer.stop();
+	}
+
+	@Test
+	public void testNeverEarlyAcrossLevels() throws InterruptedException {
+		// A 10us tick, so that these delays land on the first, second and third wheels
+		WheelTimer timer = new WheelTimer(10, TimeUnit.MICROSECONDS, "test-timer");
+		long[] delays = { 500000, 5000000, 900000000 };
+		Recorder[] recorders = new Recorder[delays.length];
+		for (int i = 0; i < delays.length; i++) {
+			recorders[i] = new Recorder(delays[i]);
+			timer.newTimeout(recorders[i], delays[i], TimeUnit.NANOSECONDS);
+		}
+		for (Recorder r : recorders) {
+			assertTrue(r.fired.await(5, TimeUnit.SECONDS));
+			assertTrue(r.firedAt.get() >= r.deadline);
+		}
+		timer.stop();
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		WheelTimer timer = new WheelTimer(1, TimeUnit.MILLISECONDS, "test-timer");
+		final AtomicInteger runs = new AtomicInteger();
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				runs.incrementAndGet();
+			}
+		};
+		Timeout cancelled = timer.newTimeout(task, 20, TimeUnit.MILLISECONDS);
+		Timeout kept = timer.newTimeout(task, 30, TimeUnit.MILLISECONDS);
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+		Thread.sleep(200);
+		assertEquals(1, runs.get());
+		assertTrue(cancelled.isCancelled());
+		assertTrue(kept.isExpired());
+		timer.stop();
+	}
+
+	@Test
+	public void testStopReturnsUnprocessed() {
+		WheelTimer timer = new WheelTimer(1, TimeUnit.MILLISECONDS, "test-timer");
+		Recorder r = new Recorder(TimeUnit.MINUTES.toNanos(5));
+		Timeout t = timer.newTimeout(r, 5, TimeUnit.MINUTES);
+		assertTrue(timer.stop().contains(t));
+		assertEquals(1, r.fired.getCount());
+	}
+}
@@ -11,6 +11,7 @@ POSITIONS3 = "%15s %-12s%%-10s%%-10s%%-10s%%-15s\n"
 OUT_ARROW = "-------->"
 IN_ARROW = "<--------"
 PAUSE =    "[%6dms]"
+NOP =      "[  nop   ]"
 
 class MinuteLongBuffer
   def initialize
@@ -28,52 +29,94 @@ class MinuteLongBuffer
 end
 
 class Scenario
+  # The description is NAME:scenario;IN:...;OUT:...;PAUSE:...;NOP:; for each scenario in turn. Each phase gets a row,
+  # found by scenario name and phase index, and each scenario a heading when there are several.
   def parse_scenario_desc desc
     @strings = []
     @msg_counts = []
+    @unexpected_msg_counts = []
+    @timeout_counts = []
+    @retrans_counts = []
+    @rows = {}
     parts = desc.split(";")
+    headings = parts.count {|part| part.start_with? "NAME:"} > 1
+    scenario = ""
+    idx = 0
     parts.each do |part|
-      type, value = part.split(":")
-      if type == "IN"
-        @strings << (POSITIONS3 % [value, IN_ARROW])
-      elsif type == "OUT"
-        @strings << (POSITIONS3 % [value, OUT_ARROW])
-      elsif type == "PAUSE"
-        @strings << (POSITIONS3 % [(PAUSE % value), ""])
+      type, value = part.split(":", 2)
+      if type == "NAME"
+        scenario = value
+        idx = 0
+        next unless headings
+        @strings << (value.gsub("%", "%%") + "\n")
+      else
+        @rows["#{scenario}:#{idx}"] = @strings.length
+        idx += 1
+        if type == "IN"
+          @strings << (POSITIONS3 % [value, IN_ARROW])
+        elsif type == "OUT"
+          @strings << (POSITIONS3 % [value, OUT_ARROW])
+        elsif type == "PAUSE"
+          @strings << (POSITIONS3 % [(PAUSE % value), ""])
+        elsif type == "NOP"
+          @strings << (POSITIONS3 % [NOP, ""])
+        end
       end
       @msg_counts << 0
       @unexpected_msg_counts << 0
       @timeout_counts << 0
+      @retrans_counts << 0
     end
   end
 
-  def inc_msg idx
-    @msg_counts[idx.to_i] += 1
+  def inc_msg scenario, idx
+    row = @rows["#{scenario}:#{idx}"]
+    return if row.nil?
+    @msg_counts[row] += 1
     if idx.to_i == 0
       @new_calls.add 1
     end
   end
 
-  def inc_unexpected idx
-    @unexpected_msg_counts[idx.to_i] += 1
+  def inc_unexpected scenario, idx
+    row = @rows["#{scenario}:#{idx}"]
+    @unexpected_msg_counts[row] += 1 unless row.nil?
+  end
+
+  def inc_retrans scenario, idx
+    row = @rows["#{scenario}:#{idx}"]
+    @retrans_counts[row] += 1 unless row.nil?
   end
 
-  def inc_timeout idx
-    @timeout_counts[idx.to_i] += 1
+  def inc_timeout scenario, idx
+    row = @rows["#{scenario}:#{idx}"]
+    @timeout_counts[row] += 1 unless row.nil?
   end
 
   def update
     Curses.clear
     Curses.addstr(POSITIONS % ["Call-rate", "Length", "Port", "Total-time", "Total-calls", "Remote-host"])
-    Curses.addstr(POSITIONS % [("?cps"), "? ms", "????", ("%.2fs" % (Time.new.to_f - @start)), "?", "??? (???)"])
+    Curses.addstr(POSITIONS % [("%.1f/%.1fcps" % [@achieved_cps, @target_cps]), "? ms", "????", ("%.2fs" % (Time.new.to_f - @start)), "?", "??? (???)"])
     Curses.addstr("\n")
-    Curses.addstr(POSITIONS2 % ["%d new calls during 1.000s period" % @new_calls.count, "?ms scheduler resolution"])
-    Curses.addstr(POSITIONS2 % ["? concurrent calls (limit ?)", "Peak was ? calls, after ?s"])
+    Curses.addstr(POSITIONS2 % ["%d new calls during 1.000s period" % @new_calls.count, "%.1fms timer lateness (p99)" % (@timer_lateness_us / 1000.0)])
+    @call_lengths.each do |scenario, (p50, p99, p999)|
+      Curses.addstr("Call length %s: p50 %.1fms, p99 %.1fms, p99.9 %.1fms\n" % [scenario, p50 / 1000.0, p99 / 1000.0, p999 / 1000.0])
+    end
+    if @stats_dropped > 0
+      Curses.addstr("%d statistics events dropped because the publisher fell behind\n" % @stats_dropped)
+    end
+    if @missed_calls > 0
+      Curses.addstr("%d calls skipped because they were overdue\n" % @missed_calls)
+    end
+    Curses.addstr(POSITIONS2 % ["%d concurrent calls (limit %s)" % [@in_flight, @call_limit > 0 ? @call_limit : "none"], "Peak was ? calls, after ?s"])
     Curses.addstr(POSITIONS2 % ["? out-of-call msg (discarded)", "? open sockets"])
+    if Time.new.to_f - @overloaded_at < 5
+      Curses.addstr("GENERATOR OVERLOADED (%s threads %.1fms late) - timeouts may not be the remote end's fault\n" % [@overloaded_source, @overloaded_us / 1000.0])
+    end
     Curses.addstr("\n")
     Curses.addstr((POSITIONS3 % ["", "",]) % ["Messages", "Retrans", "Timeout", "Unexpected-Msg"])
     @strings.each_with_index do |s, i|
-      Curses.addstr(s % [@msg_counts[i], 0, @timeout_counts[i], @unexpected_msg_counts[i]])
+      Curses.addstr(s % [@msg_counts[i], @retrans_counts[i], @timeout_counts[i], @unexpected_msg_counts[i]])
     end
     Curses.refresh
   end
@@ -84,7 +127,20 @@ class Scenario
     @msg_counts = []
     @unexpected_msg_counts = []
     @timeout_counts = []
+    @retrans_counts = []
+    @rows = {}
     @start = Time.new.to_f
+    @timer_lateness_us = 0
+    @overloaded_at = 0
+    @overloaded_source = ""
+    @overloaded_us = 0
+    @achieved_cps = 0.0
+    @target_cps = 0.0
+    @missed_calls = 0
+    @stats_dropped = 0
+    @call_lengths = {}
+    @in_flight = 0
+    @call_limit = 0
 
     Thread.new do
       context = ZMQ::Context.new
@@ -102,13 +158,44 @@ class Scenario
         msgs.each do |msg|
         name, ts, scenario, callnum, callid, idx, result = msg.split(":")
         if name == "SIPP-PHASE_SUCCESS"
-          inc_msg idx
+          inc_msg scenario, idx
         end
         if name == "SIPP-UNEXPECTED_MSG_RECVD"
-          inc_unexpected idx
+          inc_unexpected scenario, idx
+        end
+        if name == "SIPP-RETRANSMISSION"
+          inc_retrans scenario, idx
         end
         if name == "SIPP-RECV_TIMED_OUT"
-          inc_timeout idx
+          inc_timeout scenario, idx
+        end
+        if name == "SIPP-WATCHDOG"
+          # SIPP-WATCHDOG:ts:source:count:p50:p99:max, in microseconds
+          _, _, source, _, _, p99 = msg.split(":")
+          @timer_lateness_us = p99.to_i if source == "timer"
+        end
+        if name == "SIPP-CALL_RATE"
+          # SIPP-CALL_RATE:ts:target:achieved:missed:in_flight:limit
+          _, _, target, achieved, missed, in_flight, limit = msg.split(":")
+          @in_flight = in_flight.to_i
+          @call_limit = limit.to_i
+          @target_cps = target.to_f
+          @achieved_cps = achieved.to_f
+          @missed_calls += missed.to_i
+        end
+        if name == "SIPP-LATENCY"
+          # SIPP-LATENCY:ts:scenario:call or phase:count:p50:p99:p99.9:max, in microseconds
+          _, _, scenario, which, _, p50, p99, p999 = msg.split(":")
+          @call_lengths[scenario] = [p50.to_i, p99.to_i, p999.to_i] if which == "call"
+        end
+        if name == "SIPP-STATS_DROPPED"
+          # SIPP-STATS_DROPPED:ts:total
+          @stats_dropped = msg.split(":")[2].to_i
+        end
+        if name == "SIPP-GENERATOR_OVERLOADED"
+          _, _, @overloaded_source, late = msg.split(":")
+          @overloaded_us = late.to_i
+          @overloaded_at = Time.new.to_f
         end
       end
       end